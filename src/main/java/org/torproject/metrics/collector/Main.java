@@ -14,6 +14,7 @@ import org.torproject.metrics.collector.cron.Scheduler;
 import org.torproject.metrics.collector.cron.ShutdownHook;
 import org.torproject.metrics.collector.exitlists.ExitListDownloader;
 import org.torproject.metrics.collector.indexer.CreateIndexJson;
+import org.torproject.metrics.collector.monitoring.MetricsServer;
 import org.torproject.metrics.collector.onionperf.OnionPerfDownloader;
 import org.torproject.metrics.collector.relaydescs.ArchiveWriter;
 import org.torproject.metrics.collector.snowflake.SnowflakeStatsDownloader;
@@ -94,6 +95,7 @@ public class Main {
       if (!Scheduler.getInstance().scheduleModuleRuns(collecTorMains, conf)) {
         return;
       }
+      MetricsServer.getInstance().start(conf);
     } catch (ConfigurationException ce) {
       printUsage(ce.getMessage());
       return;
@@ -11,6 +11,7 @@ import org.torproject.metrics.collector.conf.Configuration;
 import org.torproject.metrics.collector.conf.ConfigurationException;
 import org.torproject.metrics.collector.conf.Key;
 import org.torproject.metrics.collector.cron.CollecTorMain;
+import org.torproject.metrics.collector.persist.RecentFiles;
 import org.torproject.metrics.collector.persist.BridgedbMetricsPersistence;
 
 import org.slf4j.Logger;
@@ -21,11 +22,9 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.time.Instant;
-import java.time.temporal.ChronoUnit;
-import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
 import java.util.SortedSet;
-import java.util.Stack;
 import java.util.TreeSet;
 
 public class BridgedbMetricsProcessor extends CollecTorMain {
@@ -98,11 +97,20 @@ public class BridgedbMetricsProcessor extends CollecTorMain {
     SortedSet<Path> previouslyProcessedFiles = this.readProcessedFiles(
         this.parsedBridgedbMetricsFile);
     SortedSet<Path> processedFiles = new TreeSet<>();
+    File[] filesToRead = new File[] { this.inputDirectory };
+    Optional<List<File>> changedFiles = this.changedLocalOriginFiles(
+        this.inputDirectory.toPath());
+    if (changedFiles.isPresent()) {
+      /* Only read new or modified files, and keep all previously processed
+       * files in the state file until the next walk of the whole directory. */
+      processedFiles.addAll(previouslyProcessedFiles);
+      filesToRead = changedFiles.get().toArray(new File[0]);
+    }
     logger.info("Reading BridgeDB statistics files in {}.",
         this.inputDirectory);
     for (Descriptor descriptor
         : DescriptorSourceFactory.createDescriptorReader()
-        .readDescriptors(this.inputDirectory)) {
+        .readDescriptors(filesToRead)) {
       processedFiles.add(descriptor.getDescriptorFile().toPath());
       if (previouslyProcessedFiles.contains(
           descriptor.getDescriptorFile().toPath())) {
@@ -168,6 +176,7 @@ public class BridgedbMetricsProcessor extends CollecTorMain {
           return;
         }
         Files.write(outputPath, rawDescriptorBytes);
+        RecentFiles.getInstance().recordWritten(outputPath);
       } catch (IOException e) {
         logger.warn("Unable to write descriptor to file {}.", outputPath, e);
       }
@@ -179,24 +188,13 @@ public class BridgedbMetricsProcessor extends CollecTorMain {
    * the last three days.
    */
   public void cleanUpRsyncDirectory() {
-    Instant cutOff = Instant.now().minus(3L, ChronoUnit.DAYS);
-    Stack<File> allFiles = new Stack<>();
-    allFiles.add(new File(this.recentPathName));
-    while (!allFiles.isEmpty()) {
-      File file = allFiles.pop();
-      if (file.isDirectory()) {
-        File[] filesInDirectory = file.listFiles();
-        if (null != filesInDirectory) {
-          allFiles.addAll(Arrays.asList(filesInDirectory));
-        }
-      } else if (Instant.ofEpochMilli(file.lastModified()).isBefore(cutOff)) {
-        try {
-          Files.deleteIfExists(file.toPath());
-        } catch (IOException e) {
-          logger.warn("Unable to delete file {} that is apparently older than "
-              + "three days.", file, e);
-        }
-      }
+    long retentionMillis = 3L * 24L * 60L * 60L * 1000L;
+    Path directory = Paths.get(this.recentPathName);
+    try {
+      RecentFiles.getInstance().clean(this.module(), directory,
+          name -> retentionMillis, false);
+    } catch (IOException e) {
+      logger.warn("Unable to clean up directory {}.", directory, e);
     }
   }
 }
@@ -3,6 +3,10 @@
 
 package org.torproject.metrics.collector.bridgedescs;
 
+import org.torproject.metrics.collector.cron.CollecTorMain;
+import org.torproject.metrics.collector.downloader.DescriptorSplitter;
+import org.torproject.metrics.collector.monitoring.MetricsRegistry;
+
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
@@ -20,7 +24,10 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.StringReader;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
@@ -38,9 +45,21 @@ public class BridgeSnapshotReader {
    */
   public BridgeSnapshotReader(BridgeDescriptorParser bdp,
       File bridgeDirectoriesDir, File statsDirectory) {
+    this(bdp, bridgeDirectoriesDir, statsDirectory,
+        Collections.singletonList(bridgeDirectoriesDir));
+  }
+
+  /**
+   * Reads the half-hourly snapshots of bridge descriptors from Bifroest
+   * contained in the given files or directories, which are all located in
+   * the given bridge directories directory.
+   */
+  public BridgeSnapshotReader(BridgeDescriptorParser bdp,
+      File bridgeDirectoriesDir, File statsDirectory,
+      Collection<File> filesToImport) {
 
     if (bdp == null || bridgeDirectoriesDir == null
-        || statsDirectory == null) {
+        || statsDirectory == null || filesToImport == null) {
       throw new IllegalArgumentException();
     }
 
@@ -73,8 +92,14 @@ public class BridgeSnapshotReader {
       int parsedExtraInfoDescriptors = 0;
       int skippedExtraInfoDescriptors = 0;
       Stack<File> filesInInputDir = new Stack<>();
-      filesInInputDir.add(bridgeDirectoriesDir);
+      filesInInputDir.addAll(filesToImport);
       while (!filesInInputDir.isEmpty()) {
+        if (CollecTorMain.isStopRequested()) {
+          logger.info("Stopping import of bridge snapshots with {} file(s) "
+              + "left to import. Resuming on next run.",
+              filesInInputDir.size());
+          break;
+        }
         File pop = filesInInputDir.pop();
         if (pop.isDirectory()) {
           Collections.addAll(filesInInputDir, pop.listFiles());
@@ -161,49 +186,29 @@ public class BridgeSnapshotReader {
                   skippedFiles++;
                   continue;
                 } else {
-                  int start;
-                  int sig;
-                  int end = -1;
-                  String startToken = firstLine.startsWith("router ")
-                      ? "router " : "extra-info ";
-                  String sigToken = "\nrouter-signature\n";
-                  String endToken = "\n-----END SIGNATURE-----\n";
-                  while (end < ascii.length()) {
-                    start = ascii.indexOf(startToken, end);
-                    if (start < 0) {
-                      break;
-                    }
-                    sig = ascii.indexOf(sigToken, start);
-                    if (sig < 0) {
-                      break;
-                    }
-                    sig += sigToken.length();
-                    end = ascii.indexOf(endToken, sig);
-                    if (end < 0) {
-                      break;
-                    }
-                    end += endToken.length();
-                    byte[] descBytes = new byte[end - start];
-                    System.arraycopy(allData, start, descBytes, 0,
-                        end - start);
-                    String descriptorDigest = Hex.encodeHexString(
-                        DigestUtils.sha1(descBytes));
-                    if (!descriptorImportHistory.contains(
-                        descriptorDigest)) {
-                      bdp.parse(descBytes, dateTime, authorityFingerprint);
-                      descriptorImportHistory.add(descriptorDigest);
-                      if (firstLine.startsWith("router ")) {
-                        parsedServerDescriptors++;
-                      } else {
-                        parsedExtraInfoDescriptors++;
-                      }
-                    } else {
-                      if (firstLine.startsWith("router ")) {
-                        skippedServerDescriptors++;
-                      } else {
-                        skippedExtraInfoDescriptors++;
-                      }
-                    }
+                  boolean serverDescriptors = firstLine.startsWith("router ");
+                  MessageDigest sha1 = DigestUtils.getSha1Digest();
+                  int[] parsedAndSkipped = new int[2];
+                  (serverDescriptors ? DescriptorSplitter.serverDescriptors()
+                      : DescriptorSplitter.extraInfoDescriptors()).split(
+                      ByteBuffer.wrap(allData), descriptor -> {
+                        sha1.update(descriptor.duplicate());
+                        String descriptorDigest = Hex.encodeHexString(
+                            sha1.digest());
+                        if (descriptorImportHistory.add(descriptorDigest)) {
+                          bdp.parse(DescriptorSplitter.toBytes(descriptor),
+                              dateTime, authorityFingerprint);
+                          parsedAndSkipped[0]++;
+                        } else {
+                          parsedAndSkipped[1]++;
+                        }
+                      });
+                  if (serverDescriptors) {
+                    parsedServerDescriptors += parsedAndSkipped[0];
+                    skippedServerDescriptors += parsedAndSkipped[1];
+                  } else {
+                    parsedExtraInfoDescriptors += parsedAndSkipped[0];
+                    skippedExtraInfoDescriptors += parsedAndSkipped[1];
                   }
                 }
                 descriptorImportHistory.add(fileDigest);
@@ -230,6 +235,26 @@ public class BridgeSnapshotReader {
           + "{}).", bridgeDirectoriesDir, parsedFiles, skippedFiles,
           parsedStatuses, parsedServerDescriptors, skippedServerDescriptors,
           parsedExtraInfoDescriptors, skippedExtraInfoDescriptors);
+      MetricsRegistry metrics = MetricsRegistry.getInstance();
+      String filesName = "collector_bridgedescs_snapshot_files_total";
+      String filesHelp = "Number of bridge snapshot files read.";
+      metrics.counter(filesName, filesHelp, "result", "parsed")
+          .add(parsedFiles);
+      metrics.counter(filesName, filesHelp, "result", "skipped")
+          .add(skippedFiles);
+      String descriptorsName = "collector_bridgedescs_descriptors_total";
+      String descriptorsHelp = "Number of bridge descriptors read from "
+          + "snapshots.";
+      metrics.counter(descriptorsName, descriptorsHelp, "type", "status",
+          "result", "parsed").add(parsedStatuses);
+      metrics.counter(descriptorsName, descriptorsHelp, "type", "server",
+          "result", "parsed").add(parsedServerDescriptors);
+      metrics.counter(descriptorsName, descriptorsHelp, "type", "server",
+          "result", "skipped").add(skippedServerDescriptors);
+      metrics.counter(descriptorsName, descriptorsHelp, "type", "extra-info",
+          "result", "parsed").add(parsedExtraInfoDescriptors);
+      metrics.counter(descriptorsName, descriptorsHelp, "type", "extra-info",
+          "result", "skipped").add(skippedExtraInfoDescriptors);
       if (!parsed.isEmpty() && modified) {
         logger.debug("Writing file {}...", pbdFile.getAbsolutePath());
         pbdFile.getParentFile().mkdirs();
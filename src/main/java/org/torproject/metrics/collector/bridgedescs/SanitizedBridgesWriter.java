@@ -13,6 +13,8 @@ import org.torproject.metrics.collector.conf.Configuration;
 import org.torproject.metrics.collector.conf.ConfigurationException;
 import org.torproject.metrics.collector.conf.Key;
 import org.torproject.metrics.collector.cron.CollecTorMain;
+import org.torproject.metrics.collector.persist.RecentFiles;
+import org.torproject.metrics.collector.persist.WriteBehindAppender;
 
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Base64;
@@ -29,6 +31,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
@@ -37,12 +40,11 @@ import java.text.SimpleDateFormat;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
-import java.util.Stack;
 import java.util.TreeMap;
 
 /**
@@ -77,6 +79,10 @@ public class SanitizedBridgesWriter extends CollecTorMain {
 
   private String rsyncCatString;
 
+  /** Appender keeping concatenated descriptor files in the rsync directory
+   * open during a run, or null if they are opened for each descriptor. */
+  private WriteBehindAppender rsyncAppender;
+
   private File bridgeDirectoriesDirectory;
 
   /**
@@ -219,12 +225,23 @@ public class SanitizedBridgesWriter extends CollecTorMain {
     // Prepare bridge descriptor parser
     BridgeDescriptorParser bdp = new BridgeDescriptorParser(this);
 
-    // Import bridge descriptors
-    new BridgeSnapshotReader(bdp, this.bridgeDirectoriesDirectory,
-        statsDirectory);
-
-    // Finish writing sanitized bridge descriptors to disk
-    this.finishWriting();
+    /* Close appended rsync files even if importing descriptors fails, so
+     * that appended descriptors are written. */
+    this.rsyncAppender = new WriteBehindAppender(1024L * 1024L
+        * config.getInt(Key.WriteBehindCheckpointMegabytes));
+    try {
+      // Import bridge descriptors
+      new BridgeSnapshotReader(bdp, this.bridgeDirectoriesDirectory,
+          statsDirectory, this.changedLocalOriginFiles(
+          this.bridgeDirectoriesDirectory.toPath()).orElse(
+          Collections.singletonList(this.bridgeDirectoriesDirectory)));
+
+      // Finish writing sanitized bridge descriptors to disk
+      this.finishWriting();
+    } finally {
+      this.rsyncAppender.close();
+      this.rsyncAppender = null;
+    }
 
     this.checkStaleDescriptors();
 
@@ -649,6 +666,7 @@ public class SanitizedBridgesWriter extends CollecTorMain {
           bw.write(scrubbed);
         }
         bw.close();
+        RecentFiles.getInstance().recordWritten(outputFile);
       }
     } catch (IOException e) {
       logger.warn("Could not write sanitized bridge "
@@ -1035,11 +1053,17 @@ public class SanitizedBridgesWriter extends CollecTorMain {
            * not store it yet another time. */
           break;
         }
+        if (appendToFile && null != this.rsyncAppender) {
+          this.rsyncAppender.append(outputFile,
+              scrubbed.toString().getBytes());
+          continue;
+        }
         outputFile.getParentFile().mkdirs();
         BufferedWriter bw = new BufferedWriter(new FileWriter(
             outputFile, appendToFile));
         bw.write(scrubbed.toString());
         bw.close();
+        RecentFiles.getInstance().recordWritten(outputFile);
       }
     } catch (ConfigurationException | IOException e) {
       logger.warn("Could not write sanitized server descriptor to disk.", e);
@@ -1291,18 +1315,26 @@ public class SanitizedBridgesWriter extends CollecTorMain {
            * not store it yet another time. */
           break;
         }
+        StringBuilder descriptor = new StringBuilder();
+        descriptor.append(Annotation.BridgeExtraInfo.toString());
+        descriptor.append(scrubbedDesc);
+        if (descriptorDigestSha256Base64 != null) {
+          descriptor.append("router-digest-sha256 ")
+              .append(descriptorDigestSha256Base64).append("\n");
+        }
+        descriptor.append("router-digest ")
+            .append(descriptorDigest.toUpperCase()).append("\n");
+        if (appendToFile && null != this.rsyncAppender) {
+          this.rsyncAppender.append(outputFile,
+              descriptor.toString().getBytes());
+          continue;
+        }
         outputFile.getParentFile().mkdirs();
         BufferedWriter bw = new BufferedWriter(new FileWriter(
             outputFile, appendToFile));
-        bw.write(Annotation.BridgeExtraInfo.toString());
-        bw.write(scrubbedDesc);
-        if (descriptorDigestSha256Base64 != null) {
-          bw.write("router-digest-sha256 " + descriptorDigestSha256Base64
-              + "\n");
-        }
-        bw.write("router-digest " + descriptorDigest.toUpperCase()
-            + "\n");
+        bw.write(descriptor.toString());
         bw.close();
+        RecentFiles.getInstance().recordWritten(outputFile);
       }
     } catch (Exception e) {
       logger.warn("Could not write sanitized "
@@ -1389,22 +1421,14 @@ public class SanitizedBridgesWriter extends CollecTorMain {
    * in the last three days, and remove the .tmp extension from newly
    * written files. */
   public void cleanUpRsyncDirectory() throws ConfigurationException {
-    long cutOffMillis = System.currentTimeMillis()
-        - 3L * 24L * 60L * 60L * 1000L;
-    Stack<File> allFiles = new Stack<>();
-    allFiles.add(new File(config.getPath(Key.RecentPath).toFile(),
-        BRIDGE_DESCRIPTORS));
-    while (!allFiles.isEmpty()) {
-      File file = allFiles.pop();
-      if (file.isDirectory()) {
-        allFiles.addAll(Arrays.asList(file.listFiles()));
-      } else if (file.lastModified() < cutOffMillis) {
-        file.delete();
-      } else if (file.getName().endsWith(".tmp")) {
-        file.renameTo(new File(file.getParentFile(),
-            file.getName().substring(0,
-            file.getName().lastIndexOf(".tmp"))));
-      }
+    long retentionMillis = 3L * 24L * 60L * 60L * 1000L;
+    Path directory = config.getPath(Key.RecentPath).resolve(
+        BRIDGE_DESCRIPTORS);
+    try {
+      RecentFiles.getInstance().clean(this.module(), directory,
+          name -> retentionMillis, true);
+    } catch (IOException e) {
+      logger.warn("Unable to clean up directory {}.", directory, e);
     }
   }
 }
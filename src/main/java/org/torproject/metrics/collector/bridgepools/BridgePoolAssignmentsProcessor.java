@@ -8,6 +8,7 @@ import org.torproject.metrics.collector.conf.Configuration;
 import org.torproject.metrics.collector.conf.ConfigurationException;
 import org.torproject.metrics.collector.conf.Key;
 import org.torproject.metrics.collector.cron.CollecTorMain;
+import org.torproject.metrics.collector.persist.RecentFiles;
 
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
@@ -28,14 +29,15 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.DateTimeException;
-import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.Stack;
@@ -128,7 +130,16 @@ public class BridgePoolAssignmentsProcessor extends CollecTorMain {
     SortedSet<Path> previouslyProcessedFiles = this.readProcessedFiles(
         this.parsedBridgePoolAssignmentsFile);
     SortedSet<Path> processedFiles = new TreeSet<>();
-    List<File> assignmentFiles = this.listAssignmentFiles();
+    Optional<List<File>> changedFiles = this.changedLocalOriginFiles(
+        this.assignmentsDirectory.toPath());
+    if (changedFiles.isPresent()) {
+      /* Only look at new or modified files, and keep all previously processed
+       * files in the state file until the next walk of the whole directory. */
+      processedFiles.addAll(previouslyProcessedFiles);
+    }
+    List<File> assignmentFiles = this.listAssignmentFiles(
+        changedFiles.orElse(Collections.singletonList(
+        this.assignmentsDirectory)));
     LocalDateTime latestPublished = null;
     for (File assignmentFile : assignmentFiles) {
       processedFiles.add(assignmentFile.toPath());
@@ -198,14 +209,17 @@ public class BridgePoolAssignmentsProcessor extends CollecTorMain {
   }
 
   /**
-   * Compile a list of all assignment files in the input directory.
+   * Compile a list of all assignment files in the given files or directories.
    *
+   * @param filesOrDirectories Files or directories to search for assignment
+   *     files, which is usually just the input directory.
    * @return List of assignment files.
    */
-  private List<File> listAssignmentFiles() {
+  private List<File> listAssignmentFiles(
+      Collection<File> filesOrDirectories) {
     List<File> assignmentFiles = new ArrayList<>();
     Stack<File> files = new Stack<>();
-    files.add(this.assignmentsDirectory);
+    files.addAll(filesOrDirectories);
     while (!files.isEmpty()) {
       File file = files.pop();
       if (file.isDirectory()) {
@@ -359,7 +373,9 @@ public class BridgePoolAssignmentsProcessor extends CollecTorMain {
     } catch (IOException e) {
       logger.warn("Unable to write sanitized bridge pool assignments to {}.",
           outputFile, e);
+      return;
     }
+    RecentFiles.getInstance().recordWritten(outputFile);
   }
 
   /**
@@ -367,24 +383,13 @@ public class BridgePoolAssignmentsProcessor extends CollecTorMain {
    * the last three days.
    */
   public void cleanUpRsyncDirectory() {
-    Instant cutOff = Instant.now().minus(3L, ChronoUnit.DAYS);
-    Stack<File> allFiles = new Stack<>();
-    allFiles.add(new File(this.recentPathName));
-    while (!allFiles.isEmpty()) {
-      File file = allFiles.pop();
-      if (file.isDirectory()) {
-        File[] filesInDirectory = file.listFiles();
-        if (null != filesInDirectory) {
-          allFiles.addAll(Arrays.asList(filesInDirectory));
-        }
-      } else if (Instant.ofEpochMilli(file.lastModified()).isBefore(cutOff)) {
-        try {
-          Files.deleteIfExists(file.toPath());
-        } catch (IOException e) {
-          logger.warn("Unable to delete file {} that is apparently older than "
-              + "three days.", file, e);
-        }
-      }
+    long retentionMillis = 3L * 24L * 60L * 60L * 1000L;
+    Path directory = Paths.get(this.recentPathName);
+    try {
+      RecentFiles.getInstance().clean(this.module(), directory,
+          name -> retentionMillis, false);
+    } catch (IOException e) {
+      logger.warn("Unable to clean up directory {}.", directory, e);
     }
   }
 }
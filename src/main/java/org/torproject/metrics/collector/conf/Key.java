@@ -16,6 +16,18 @@ public enum Key {
 
   ShutdownGraceWaitMinutes(Long.class),
   RunOnce(Boolean.class),
+  ModuleDependencies(String[].class),
+  ModuleExecutionPolicies(String[].class),
+  UseVirtualThreads(Boolean.class),
+  WatchLocalOrigins(Boolean.class),
+  LocalOriginsReconcileMinutes(Integer.class),
+  MetricsHost(String.class),
+  MetricsPort(Integer.class),
+  RunReportsRetentionDays(Integer.class),
+  WorkerBudget(Integer.class),
+  ModuleWorkerLimits(String[].class),
+  HeapBudgetPercent(Integer.class),
+  RecentReconcileMinutes(Integer.class),
   ExitlistUrl(URL.class),
   InstanceBaseUrl(String.class),
   IndexedPath(Path.class),
@@ -60,6 +72,13 @@ public enum Key {
   UpdateindexOffsetMinutes(Integer.class),
   UpdateindexPeriodMinutes(Integer.class),
   CompressRelayDescriptorDownloads(Boolean.class),
+  ParallelAuthorityDownloads(Integer.class),
+  ParallelRequestsPerAuthority(Integer.class),
+  DownloadConsensusDiffs(Boolean.class),
+  RelayDescriptorVerification(String.class),
+  RelayDescriptorParseWorkers(Integer.class),
+  StoreRelayDescriptorsInSegments(Boolean.class),
+  WriteBehindCheckpointMegabytes(Integer.class),
   DirectoryAuthoritiesAddresses(String[].class),
   DirectoryAuthoritiesFingerprintsForVotes(String[].class),
   DownloadAllServerDescriptors(Boolean.class),
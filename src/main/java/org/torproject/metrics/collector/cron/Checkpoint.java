@@ -0,0 +1,102 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.cron;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Checkpoint of work items, like file names, that a module has finished
+ * processing in a run that may get interrupted by a shutdown, so that the
+ * next run can skip these items and resume where the interrupted run
+ * stopped.
+ *
+ * <p>The checkpoint is saved to disk periodically and when the run gets
+ * interrupted, and it is deleted once the run has processed all items.</p>
+ */
+public final class Checkpoint {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      Checkpoint.class);
+
+  private static final int SAVE_INTERVAL = 1000;
+
+  private final Path checkpointFile;
+
+  private final SortedSet<String> finishedItems = new TreeSet<>();
+
+  private int unsavedItems = 0;
+
+  private Checkpoint(Path checkpointFile) {
+    this.checkpointFile = checkpointFile;
+  }
+
+  /**
+   * Load the checkpoint from the given file, or start a new, empty checkpoint
+   * if the file does not exist or cannot be read.
+   */
+  public static Checkpoint load(Path checkpointFile) {
+    Checkpoint checkpoint = new Checkpoint(checkpointFile);
+    if (Files.exists(checkpointFile)) {
+      try {
+        checkpoint.finishedItems.addAll(Files.readAllLines(checkpointFile,
+            StandardCharsets.UTF_8));
+        logger.info("Resuming from checkpoint {} with {} finished item(s).",
+            checkpointFile, checkpoint.finishedItems.size());
+      } catch (IOException e) {
+        logger.warn("Cannot read checkpoint {}. Starting over.",
+            checkpointFile, e);
+      }
+    }
+    return checkpoint;
+  }
+
+  /** Return whether the given item was finished before. */
+  public boolean isFinished(String item) {
+    return this.finishedItems.contains(item);
+  }
+
+  /** Record the given item as finished, and save the checkpoint from time to
+   * time. */
+  public void finished(String item) {
+    if (this.finishedItems.add(item)
+        && ++this.unsavedItems >= SAVE_INTERVAL) {
+      this.save();
+    }
+  }
+
+  /** Save all finished items to disk. */
+  public void save() {
+    try {
+      Files.createDirectories(this.checkpointFile.getParent());
+      Path tempFile = this.checkpointFile.resolveSibling(
+          this.checkpointFile.getFileName() + ".tmp");
+      Files.write(tempFile, this.finishedItems, StandardCharsets.UTF_8);
+      Files.move(tempFile, this.checkpointFile,
+          StandardCopyOption.REPLACE_EXISTING);
+      this.unsavedItems = 0;
+    } catch (IOException e) {
+      logger.warn("Cannot save checkpoint {}.", this.checkpointFile, e);
+    }
+  }
+
+  /** Delete the checkpoint after all items have been processed. */
+  public void delete() {
+    this.finishedItems.clear();
+    this.unsavedItems = 0;
+    try {
+      Files.deleteIfExists(this.checkpointFile);
+    } catch (IOException e) {
+      logger.warn("Cannot delete checkpoint {}.", this.checkpointFile, e);
+    }
+  }
+}
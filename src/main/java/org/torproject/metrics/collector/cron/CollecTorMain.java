@@ -8,11 +8,13 @@ import org.torproject.metrics.collector.conf.Configuration;
 import org.torproject.metrics.collector.conf.ConfigurationException;
 import org.torproject.metrics.collector.conf.Key;
 import org.torproject.metrics.collector.conf.SourceType;
+import org.torproject.metrics.collector.monitoring.RunReport;
 import org.torproject.metrics.collector.sync.SyncManager;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -22,9 +24,11 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.concurrent.Callable;
+import java.util.stream.Collectors;
 
 public abstract class CollecTorMain extends SyncManager
     implements Callable<Object>, Runnable {
@@ -34,12 +38,24 @@ public abstract class CollecTorMain extends SyncManager
 
   private static final long LIMIT_MB = 200;
   public static final String SOURCES = "Sources";
+  private static final String RUN_REPORTS = "run-reports";
 
   protected Configuration config = new Configuration();
 
   protected final Map<String, Class<? extends Descriptor>> mapPathDescriptors
       = new HashMap<>();
 
+  /* Requests another run of this module, or null if this module only runs
+   * once. */
+  private volatile Runnable runRequester;
+
+  private final Map<Path, LocalOriginWatcher> localOriginWatchers
+      = new HashMap<>();
+
+  private volatile RunReport runReport;
+
+  private static volatile boolean stopRequested = false;
+
   public CollecTorMain(Configuration conf) {
     this.config.putAll(conf.getPropertiesCopy());
   }
@@ -49,6 +65,12 @@ public abstract class CollecTorMain extends SyncManager
    */
   @Override
   public final void run() {
+    if (isStopRequested()) {
+      logger.info("Not starting {} module, because CollecTor is shutting "
+          + "down.", module());
+      return;
+    }
+    this.runReport = new RunReport(module());
     try {
       if (!isSyncOnly()) {
         logger.info("Starting {} module of CollecTor.", module());
@@ -60,6 +82,7 @@ public abstract class CollecTorMain extends SyncManager
     }
     try {
       if (isSync()) {
+        this.runReport.startPhase("sync");
         logger.info("Starting sync-run of module {} of CollecTor.", module());
         this.merge(this.config, this.syncMarker(),
             this.syncMapPathsDescriptors());
@@ -69,6 +92,59 @@ public abstract class CollecTorMain extends SyncManager
       logger.error("Sync-run of {} module failed: {}", module(),
           th.getMessage(), th);
     }
+    this.writeRunReport();
+  }
+
+  /**
+   * Ask all running modules to stop at their next safe point, and don't start
+   * any further module runs.
+   */
+  static void requestStop() {
+    stopRequested = true;
+  }
+
+  /**
+   * Allow module runs again after a previous stop request.
+   */
+  static void clearStopRequest() {
+    stopRequested = false;
+  }
+
+  /**
+   * Return whether modules should stop processing at the next safe point,
+   * either because CollecTor is shutting down or because the current thread
+   * has been interrupted.
+   *
+   * <p>Modules that stop early should save a {@link Checkpoint} of what they
+   * finished, so that the next run can resume from there.</p>
+   */
+  public static boolean isStopRequested() {
+    return stopRequested || Thread.currentThread().isInterrupted();
+  }
+
+  /**
+   * Return the performance report of the current run for adding phases and
+   * counts of bytes and descriptors.
+   */
+  protected RunReport runReport() {
+    if (null == this.runReport) {
+      this.runReport = new RunReport(module());
+    }
+    return this.runReport;
+  }
+
+  private void writeRunReport() {
+    this.runReport.finish();
+    try {
+      int retentionDays = this.config.getInt(Key.RunReportsRetentionDays);
+      if (retentionDays > 0) {
+        this.runReport.writeTo(this.config.getPath(Key.StatsPath)
+            .resolve(RUN_REPORTS), System.currentTimeMillis()
+            - retentionDays * 24L * 60L * 60L * 1000L);
+      }
+    } catch (ConfigurationException ce) {
+      logger.debug("Not writing run report of {} module.", module(), ce);
+    }
   }
 
   private boolean isSync() throws ConfigurationException {
@@ -134,6 +210,59 @@ public abstract class CollecTorMain extends SyncManager
     }
   }
 
+  /**
+   * Set the callback for requesting another run of this module, for example,
+   * when new files appear in a watched local origin directory.
+   */
+  void setRunRequester(Runnable runRequester) {
+    this.runRequester = runRequester;
+  }
+
+  /**
+   * Return files in the given local origin directory or its subdirectories
+   * that were created or modified since the last call, or an empty result if
+   * the caller needs to walk the whole directory.
+   *
+   * <p>The whole directory needs to be walked if watching local origins is
+   * disabled or not possible, on the first run, and at least once per
+   * configured reconciliation period.</p>
+   *
+   * @param directory Local origin directory.
+   * @return Created or modified files, or an empty result if the whole
+   *     directory needs to be walked.
+   */
+  protected synchronized Optional<List<File>> changedLocalOriginFiles(
+      Path directory) {
+    Runnable requester = this.runRequester;
+    try {
+      if (null == requester || !this.config.getBool(Key.WatchLocalOrigins)) {
+        return Optional.empty();
+      }
+      if (!this.localOriginWatchers.containsKey(directory)) {
+        this.localOriginWatchers.put(directory, LocalOriginWatcher.start(
+            directory, this.config.getInt(Key.LocalOriginsReconcileMinutes)
+            * 60L * 1000L, LocalOriginWatcher.DEFAULT_SETTLE_MILLIS,
+            requester));
+      }
+    } catch (ConfigurationException ce) {
+      logger.warn("Cannot read configuration for watching {}. Walking the "
+          + "whole directory.", directory, ce);
+      return Optional.empty();
+    }
+    LocalOriginWatcher watcher = this.localOriginWatchers.get(directory);
+    if (null == watcher) {
+      return Optional.empty();
+    }
+    Optional<List<Path>> changedFiles = watcher.takeChangedFiles();
+    if (changedFiles.isPresent()) {
+      logger.info("Processing {} new or modified file(s) in {} rather than "
+          + "walking the whole directory.", changedFiles.get().size(),
+          directory);
+    }
+    return changedFiles.map(paths -> paths.stream().map(Path::toFile)
+        .collect(Collectors.toList()));
+  }
+
   /**
    * Read file names of processed files from the given state file.
    *
@@ -0,0 +1,23 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.cron;
+
+/**
+ * Policy for handling requests to run a module while that module is still
+ * running, for example, because its previous run took longer than its period
+ * or because an upstream module completed in the meantime.
+ */
+public enum ExecutionPolicy {
+
+  /** Drop all requests that come in while the module is running. */
+  Skip,
+
+  /** Combine all requests that come in while the module is running into a
+   * single run right after the current run. */
+  Coalesce,
+
+  /** Queue requests that come in while the module is running and run them one
+   * after the other, up to a bounded number of queued runs. */
+  Queue
+}
@@ -0,0 +1,111 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.cron;
+
+import org.torproject.metrics.collector.conf.Configuration;
+import org.torproject.metrics.collector.conf.ConfigurationException;
+import org.torproject.metrics.collector.conf.Key;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Factory for executors that run module executions and their internal
+ * fan-out of blocking I/O tasks, either on a bounded number of platform
+ * threads or, if configured and supported by the Java runtime, on one
+ * virtual thread per task.
+ *
+ * <p>Virtual threads are looked up via reflection, because CollecTor is still
+ * compiled for Java versions without virtual threads. If they are not
+ * available at runtime, executors fall back to platform threads.</p>
+ */
+public final class ExecutorFactory {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      ExecutorFactory.class);
+
+  private static volatile boolean useVirtualThreads = false;
+
+  private ExecutorFactory() {
+  }
+
+  /**
+   * Read the configured execution mode, and log a warning if virtual threads
+   * are configured but not supported by this Java runtime.
+   */
+  public static void configure(Configuration conf) {
+    boolean virtualThreadsConfigured = false;
+    try {
+      virtualThreadsConfigured = conf.getBool(Key.UseVirtualThreads);
+    } catch (ConfigurationException ce) {
+      logger.warn("Cannot read execution mode. Using platform threads.", ce);
+    }
+    if (virtualThreadsConfigured && null == newVirtualThreadFactory("test")) {
+      logger.warn("Virtual threads are configured but not supported by this "
+          + "Java runtime ({}). Using platform threads.",
+          System.getProperty("java.version"));
+      virtualThreadsConfigured = false;
+    }
+    useVirtualThreads = virtualThreadsConfigured;
+    logger.info("Running modules on {} threads.",
+        useVirtualThreads ? "virtual" : "platform");
+  }
+
+  /** Return whether executors run tasks on virtual threads. */
+  public static boolean usesVirtualThreads() {
+    return useVirtualThreads;
+  }
+
+  /**
+   * Create an executor that either runs each task on a new virtual thread
+   * with names starting with the given prefix, or that runs tasks on at most
+   * the given number of platform threads created by the given thread
+   * factory.
+   */
+  public static ExecutorService newExecutor(String namePrefix,
+      int platformThreads, ThreadFactory platformThreadFactory) {
+    if (useVirtualThreads) {
+      ThreadFactory virtualThreadFactory = newVirtualThreadFactory(namePrefix);
+      if (null != virtualThreadFactory) {
+        try {
+          return (ExecutorService) Executors.class
+              .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+              .invoke(null, virtualThreadFactory);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+          logger.warn("Cannot create virtual-thread executor for {}. Using "
+              + "platform threads.", namePrefix, ex);
+        }
+      }
+    }
+    return Executors.newFixedThreadPool(platformThreads,
+        platformThreadFactory);
+  }
+
+  /**
+   * Create an executor as in {@link #newExecutor(String, int, ThreadFactory)}
+   * using the default thread factory for platform threads.
+   */
+  public static ExecutorService newExecutor(String namePrefix,
+      int platformThreads) {
+    return newExecutor(namePrefix, platformThreads,
+        Executors.defaultThreadFactory());
+  }
+
+  private static ThreadFactory newVirtualThreadFactory(String namePrefix) {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      builder = builderClass.getMethod("name", String.class, long.class)
+          .invoke(builder, namePrefix + "-", 1L);
+      return (ThreadFactory) builderClass.getMethod("factory")
+          .invoke(builder);
+    } catch (ReflectiveOperationException | RuntimeException ex) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,231 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.cron;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watcher for a local origin directory that keeps track of files being
+ * created or modified in that directory or any of its subdirectories, so that
+ * modules can process only those files rather than walking the whole
+ * directory tree on every run.
+ *
+ * <p>A file is reported once it has not been modified for a short settle
+ * time, which is the closest approximation of a file being closed that the
+ * {@link WatchService} API provides. Whenever new files are reported, the
+ * given run requester is notified, so that the module can process these files
+ * right away.</p>
+ *
+ * <p>Callers still need to walk the whole directory from time to time, which
+ * is indicated by {@link #takeChangedFiles()} returning an empty result: on
+ * the first run, after the reconciliation interval has passed, and whenever
+ * the watch service may have lost events.</p>
+ */
+final class LocalOriginWatcher implements Runnable {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      LocalOriginWatcher.class);
+
+  static final long DEFAULT_SETTLE_MILLIS = 5_000L;
+
+  private final Path directory;
+
+  private final long reconciliationMillis;
+
+  private final long settleMillis;
+
+  private final Runnable runRequester;
+
+  private final WatchService watchService;
+
+  private final Map<WatchKey, Path> watchedDirectories = new HashMap<>();
+
+  /* Files with their last creation or modification event time in millis that
+   * are not yet settled. Only accessed by the watcher thread. */
+  private final Map<Path, Long> unsettledFiles = new HashMap<>();
+
+  /* Settled files that have not yet been taken by the module. */
+  private final SortedSet<Path> changedFiles = new TreeSet<>();
+
+  private boolean reconciliationNeeded = true;
+
+  private long nextReconciliationMillis;
+
+  private LocalOriginWatcher(Path directory, long reconciliationMillis,
+      long settleMillis, Runnable runRequester) throws IOException {
+    this.directory = directory;
+    this.reconciliationMillis = reconciliationMillis;
+    this.settleMillis = settleMillis;
+    this.runRequester = runRequester;
+    this.watchService = directory.getFileSystem().newWatchService();
+    this.registerAll(directory, false);
+  }
+
+  /**
+   * Start watching the given directory, or return {@code null} if the
+   * directory cannot be watched.
+   */
+  static LocalOriginWatcher start(Path directory, long reconciliationMillis,
+      long settleMillis, Runnable runRequester) {
+    if (!Files.isDirectory(directory)) {
+      logger.warn("Cannot watch local origin {}, because it is not a "
+          + "directory.", directory);
+      return null;
+    }
+    try {
+      LocalOriginWatcher watcher = new LocalOriginWatcher(directory,
+          reconciliationMillis, settleMillis, runRequester);
+      Thread thread = new Thread(watcher,
+          "CollecTor-Watcher-" + directory.getFileName());
+      thread.setDaemon(true);
+      thread.start();
+      logger.info("Watching local origin {} for new files.", directory);
+      return watcher;
+    } catch (IOException | UnsupportedOperationException e) {
+      logger.warn("Cannot watch local origin {}.", directory, e);
+      return null;
+    }
+  }
+
+  /**
+   * Return files that were created or modified since the last call, or an
+   * empty result if the caller needs to walk the whole directory, in which
+   * case reported files are discarded.
+   */
+  synchronized Optional<List<Path>> takeChangedFiles() {
+    long now = System.currentTimeMillis();
+    if (this.reconciliationNeeded || now >= this.nextReconciliationMillis) {
+      this.reconciliationNeeded = false;
+      this.nextReconciliationMillis = now + this.reconciliationMillis;
+      this.changedFiles.clear();
+      return Optional.empty();
+    }
+    List<Path> files = new ArrayList<>(this.changedFiles);
+    this.changedFiles.clear();
+    return Optional.of(files);
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (true) {
+        WatchKey key = this.watchService.poll(this.settleMillis,
+            TimeUnit.MILLISECONDS);
+        if (null != key) {
+          this.processEvents(key);
+        }
+        this.reportSettledFiles();
+      }
+    } catch (InterruptedException | ClosedWatchServiceException e) {
+      logger.debug("Stopped watching {}.", this.directory);
+    }
+  }
+
+  private void processEvents(WatchKey key) {
+    Path watchedDirectory = this.watchedDirectories.get(key);
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (OVERFLOW == event.kind() || null == watchedDirectory) {
+        this.requestReconciliation("the watch service overflowed");
+        continue;
+      }
+      Path path = watchedDirectory.resolve((Path) event.context());
+      if (Files.isDirectory(path)) {
+        if (ENTRY_CREATE == event.kind()) {
+          try {
+            this.registerAll(path, true);
+          } catch (IOException e) {
+            this.requestReconciliation("new directory " + path
+                + " could not be watched");
+          }
+        }
+      } else {
+        this.unsettledFiles.put(path, System.currentTimeMillis());
+      }
+    }
+    if (!key.reset()) {
+      this.watchedDirectories.remove(key);
+      if (watchedDirectory == this.directory) {
+        this.requestReconciliation("the directory is not accessible anymore");
+      }
+    }
+  }
+
+  private void reportSettledFiles() {
+    long settledBefore = System.currentTimeMillis() - this.settleMillis;
+    List<Path> settledFiles = new ArrayList<>();
+    Iterator<Map.Entry<Path, Long>> iterator
+        = this.unsettledFiles.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<Path, Long> unsettledFile = iterator.next();
+      if (unsettledFile.getValue() <= settledBefore) {
+        settledFiles.add(unsettledFile.getKey());
+        iterator.remove();
+      }
+    }
+    if (!settledFiles.isEmpty()) {
+      synchronized (this) {
+        this.changedFiles.addAll(settledFiles);
+      }
+      logger.debug("Found {} new or modified file(s) in {}.",
+          settledFiles.size(), this.directory);
+      this.runRequester.run();
+    }
+  }
+
+  private synchronized void requestReconciliation(String reason) {
+    logger.info("Walking local origin {} on next run, because {}.",
+        this.directory, reason);
+    this.reconciliationNeeded = true;
+    this.runRequester.run();
+  }
+
+  /* Register the given directory and all its subdirectories, and if requested,
+   * also report all contained files, which might have been created before the
+   * directory was registered. */
+  private void registerAll(Path start, final boolean reportFiles)
+      throws IOException {
+    Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir,
+          BasicFileAttributes attrs) throws IOException {
+        watchedDirectories.put(dir.register(watchService, ENTRY_CREATE,
+            ENTRY_MODIFY), dir);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        if (reportFiles) {
+          unsettledFiles.put(file, System.currentTimeMillis());
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+}
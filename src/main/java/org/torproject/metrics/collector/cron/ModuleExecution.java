@@ -0,0 +1,174 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.cron;
+
+import org.torproject.metrics.collector.monitoring.MetricsRegistry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Wrapper around a {@link CollecTorMain} instance that makes sure that the
+ * module never runs concurrently with itself and that triggers runs of
+ * downstream modules as soon as a run of this module completes.
+ *
+ * <p>Runs requested while the module is still running are not executed in
+ * parallel but handled according to the module's {@link ExecutionPolicy}:
+ * they are either dropped, coalesced into a single run after the current
+ * run, or queued up to a bounded number of runs.</p>
+ */
+final class ModuleExecution implements Runnable {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      ModuleExecution.class);
+
+  private final CollecTorMain module;
+
+  private final Executor executor;
+
+  private final int maxPendingRuns;
+
+  private final ModuleStatistics statistics;
+
+  private final List<ModuleExecution> downstreamExecutions
+      = new CopyOnWriteArrayList<>();
+
+  private final AtomicBoolean running = new AtomicBoolean(false);
+
+  private final AtomicInteger pendingRuns = new AtomicInteger(0);
+
+  ModuleExecution(CollecTorMain module, Executor executor,
+      ExecutionPolicy policy, int queueDepth, long periodMillis) {
+    this.module = module;
+    this.executor = executor;
+    switch (policy) {
+      case Skip:
+        this.maxPendingRuns = 0;
+        break;
+      case Queue:
+        this.maxPendingRuns = Math.max(1, queueDepth);
+        break;
+      case Coalesce:
+      default:
+        this.maxPendingRuns = 1;
+        break;
+    }
+    this.statistics = new ModuleStatistics(module.module(), policy,
+        periodMillis);
+  }
+
+  CollecTorMain module() {
+    return this.module;
+  }
+
+  ModuleStatistics statistics() {
+    return this.statistics;
+  }
+
+  /** Adds a module execution to trigger whenever this module completes. */
+  void addDownstream(ModuleExecution downstreamExecution) {
+    this.downstreamExecutions.add(downstreamExecution);
+  }
+
+  /**
+   * Requests a run of this module right away without waiting for the run to
+   * complete, for example, because an upstream module just completed or
+   * because the module's period has elapsed.
+   */
+  void trigger() {
+    try {
+      this.executor.execute(this);
+    } catch (RejectedExecutionException ree) {
+      logger.debug("Not triggering {} module, because the scheduler does "
+          + "not accept new tasks anymore.", this.module.module());
+    }
+  }
+
+  @Override
+  public void run() {
+    this.statistics.requested();
+    if (!this.running.compareAndSet(false, true)) {
+      this.deferOrDrop();
+      return;
+    }
+    boolean runAgain;
+    do {
+      try {
+        do {
+          this.runModule();
+        } while (this.takePendingRun());
+      } finally {
+        this.running.set(false);
+      }
+      /* Another run might have been deferred right between checking for it
+       * and releasing the running flag, in which case we're responsible for
+       * running the module once more. */
+      runAgain = this.pendingRuns.get() > 0
+          && this.running.compareAndSet(false, true);
+      if (runAgain && !this.takePendingRun()) {
+        this.running.set(false);
+        runAgain = false;
+      }
+    } while (runAgain);
+  }
+
+  private void deferOrDrop() {
+    int pendingBefore = this.pendingRuns.getAndUpdate(
+        pending -> pending < this.maxPendingRuns ? pending + 1 : pending);
+    if (pendingBefore < this.maxPendingRuns) {
+      this.statistics.deferred();
+      logger.info("The {} module is still running. Deferring requested run "
+          + "until the current run completes ({} pending, policy {}).",
+          this.module.module(), pendingBefore + 1,
+          this.statistics.getPolicy());
+    } else {
+      this.statistics.dropped();
+      logger.info("The {} module is still running. Dropping requested run "
+          + "({} pending, policy {}).", this.module.module(), pendingBefore,
+          this.statistics.getPolicy());
+    }
+  }
+
+  private boolean takePendingRun() {
+    if (CollecTorMain.isStopRequested()) {
+      this.pendingRuns.set(0);
+      return false;
+    }
+    return this.pendingRuns.getAndUpdate(
+        pending -> pending > 0 ? pending - 1 : 0) > 0;
+  }
+
+  private void runModule() {
+    long started = System.currentTimeMillis();
+    this.module.run();
+    long runMillis = System.currentTimeMillis() - started;
+    MetricsRegistry.getInstance().histogram(
+        "collector_module_run_duration_seconds", "Duration of module runs.",
+        MetricsRegistry.DURATION_BUCKETS, "module", this.module.module())
+        .observe(runMillis / 1000.0);
+    if (this.statistics.completed(runMillis)) {
+      logger.warn("The {} module took {} seconds, which is longer than its "
+          + "period of {} seconds.", this.module.module(), runMillis / 1000L,
+          this.statistics.getPeriodMillis() / 1000L);
+    }
+    logger.info("Statistics on module runs of {}.", this.statistics);
+    for (ModuleExecution downstreamExecution : this.downstreamExecutions) {
+      logger.info("Triggering {} module after {} module completed.",
+          downstreamExecution.module.module(), this.module.module());
+      downstreamExecution.trigger();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "ModuleExecution(" + this.module.module() + ")";
+  }
+}
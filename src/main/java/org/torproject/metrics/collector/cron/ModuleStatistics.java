@@ -0,0 +1,156 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.cron;
+
+import org.torproject.metrics.collector.monitoring.MetricsRegistry;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics on runs of a single module, including how often its execution
+ * policy deferred or dropped requested runs and how long runs took compared
+ * to the configured period.
+ */
+public final class ModuleStatistics {
+
+  private final String module;
+
+  private final ExecutionPolicy policy;
+
+  private final long periodMillis;
+
+  private final AtomicLong requestedRuns = new AtomicLong();
+
+  private final AtomicLong completedRuns = new AtomicLong();
+
+  private final AtomicLong deferredRuns = new AtomicLong();
+
+  private final AtomicLong droppedRuns = new AtomicLong();
+
+  private final AtomicLong overrunRuns = new AtomicLong();
+
+  private final AtomicLong lastRunMillis = new AtomicLong();
+
+  private final AtomicLong maxRunMillis = new AtomicLong();
+
+  private final AtomicLong totalRunMillis = new AtomicLong();
+
+  ModuleStatistics(String module, ExecutionPolicy policy, long periodMillis) {
+    this.module = module;
+    this.policy = policy;
+    this.periodMillis = periodMillis;
+  }
+
+  void requested() {
+    this.requestedRuns.incrementAndGet();
+  }
+
+  void deferred() {
+    this.deferredRuns.incrementAndGet();
+  }
+
+  void dropped() {
+    this.droppedRuns.incrementAndGet();
+  }
+
+  /** Records a completed run and returns whether it took longer than the
+   * module's period. */
+  boolean completed(long runMillis) {
+    this.completedRuns.incrementAndGet();
+    this.lastRunMillis.set(runMillis);
+    this.maxRunMillis.accumulateAndGet(runMillis, Math::max);
+    this.totalRunMillis.addAndGet(runMillis);
+    if (this.periodMillis > 0L && runMillis > this.periodMillis) {
+      this.overrunRuns.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  /** Registers these statistics as live metrics in the given registry. */
+  void registerMetrics(MetricsRegistry registry) {
+    registry.counter("collector_module_runs_requested_total",
+        "Number of requested module runs.", this.requestedRuns::get,
+        "module", this.module);
+    registry.counter("collector_module_runs_completed_total",
+        "Number of completed module runs.", this.completedRuns::get,
+        "module", this.module);
+    registry.counter("collector_module_runs_deferred_total",
+        "Number of module runs deferred by the execution policy.",
+        this.deferredRuns::get, "module", this.module);
+    registry.counter("collector_module_runs_dropped_total",
+        "Number of module runs dropped by the execution policy.",
+        this.droppedRuns::get, "module", this.module);
+    registry.counter("collector_module_runs_overrun_total",
+        "Number of module runs that took longer than the module period.",
+        this.overrunRuns::get, "module", this.module);
+    registry.gauge("collector_module_last_run_duration_seconds",
+        "Duration of the last module run.",
+        () -> this.lastRunMillis.get() / 1000.0, "module", this.module);
+    registry.gauge("collector_module_period_seconds",
+        "Configured module period.", () -> this.periodMillis / 1000.0,
+        "module", this.module);
+  }
+
+  public String getModule() {
+    return this.module;
+  }
+
+  public ExecutionPolicy getPolicy() {
+    return this.policy;
+  }
+
+  public long getPeriodMillis() {
+    return this.periodMillis;
+  }
+
+  public long getRequestedRuns() {
+    return this.requestedRuns.get();
+  }
+
+  public long getCompletedRuns() {
+    return this.completedRuns.get();
+  }
+
+  public long getDeferredRuns() {
+    return this.deferredRuns.get();
+  }
+
+  public long getDroppedRuns() {
+    return this.droppedRuns.get();
+  }
+
+  public long getOverrunRuns() {
+    return this.overrunRuns.get();
+  }
+
+  public long getLastRunMillis() {
+    return this.lastRunMillis.get();
+  }
+
+  public long getMaxRunMillis() {
+    return this.maxRunMillis.get();
+  }
+
+  public long getTotalRunMillis() {
+    return this.totalRunMillis.get();
+  }
+
+  /** Returns the duration of the last run as fraction of the period, or 0.0
+   * if the period is unknown. */
+  public double getLastRunPeriodRatio() {
+    return this.periodMillis > 0L
+        ? (double) this.lastRunMillis.get() / (double) this.periodMillis : 0.0;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s: policy=%s, requested=%d, completed=%d, "
+        + "deferred=%d, dropped=%d, overruns=%d, last=%d ms (%.1f%% of "
+        + "period), max=%d ms", this.module, this.policy, getRequestedRuns(),
+        getCompletedRuns(), getDeferredRuns(), getDroppedRuns(),
+        getOverrunRuns(), getLastRunMillis(),
+        100.0 * getLastRunPeriodRatio(), getMaxRunMillis());
+  }
+}
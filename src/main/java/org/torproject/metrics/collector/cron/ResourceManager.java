@@ -0,0 +1,279 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.cron;
+
+import org.torproject.metrics.collector.conf.Configuration;
+import org.torproject.metrics.collector.conf.ConfigurationException;
+import org.torproject.metrics.collector.conf.Key;
+import org.torproject.metrics.collector.monitoring.MetricsRegistry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared manager of CPU workers and heap memory across all modules, so that
+ * modules running at the same time on one host don't oversubscribe the CPU
+ * or push the heap into constant garbage collection.
+ *
+ * <p>Modules request a number of workers for CPU-intensive work by acquiring
+ * a {@link Lease} and release the workers by closing the lease. Leases are
+ * granted from a global worker budget and are further bounded by optional
+ * per-module limits. Acquiring a lease blocks until at least one worker is
+ * available; the lease may contain fewer workers than requested. While heap
+ * usage exceeds the soft heap budget, leases contain only a single
+ * worker.</p>
+ *
+ * <p>Code holding a lease must not acquire another lease, because that could
+ * deadlock once the budget is exhausted.</p>
+ */
+public final class ResourceManager {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      ResourceManager.class);
+
+  private static final ResourceManager instance = new ResourceManager();
+
+  /* Don't limit workers until configured, e.g., when running a single module
+   * outside of the scheduler. */
+  private int workerBudget = Integer.MAX_VALUE;
+
+  private Map<String, Integer> moduleLimits = new HashMap<>();
+
+  private int heapBudgetPercent = 80;
+
+  private int workersInUse = 0;
+
+  private final Map<String, Integer> moduleWorkersInUse = new HashMap<>();
+
+  private ResourceManager() {
+    MetricsRegistry metrics = MetricsRegistry.getInstance();
+    metrics.gauge("collector_resource_worker_budget",
+        "Number of CPU workers shared by all modules.",
+        () -> this.getWorkerBudget());
+    metrics.gauge("collector_resource_workers_in_use",
+        "Number of CPU workers currently leased by modules.",
+        () -> this.getWorkersInUse());
+  }
+
+  public static ResourceManager getInstance() {
+    return instance;
+  }
+
+  /**
+   * Read the global worker budget, per-module worker limits, and soft heap
+   * budget from the given configuration, keeping defaults for values that
+   * cannot be read.
+   */
+  public synchronized void configure(Configuration conf) {
+    this.workerBudget = Runtime.getRuntime().availableProcessors();
+    try {
+      int configuredBudget = conf.getInt(Key.WorkerBudget);
+      if (configuredBudget > 0) {
+        this.workerBudget = configuredBudget;
+      }
+    } catch (ConfigurationException ce) {
+      logger.warn("Cannot read worker budget. Using {} workers.",
+          this.workerBudget, ce);
+    }
+    try {
+      this.heapBudgetPercent = conf.getInt(Key.HeapBudgetPercent);
+    } catch (ConfigurationException ce) {
+      logger.warn("Cannot read heap budget. Using {}% of maximum heap size.",
+          this.heapBudgetPercent, ce);
+    }
+    this.moduleLimits = readModuleLimits(conf);
+    logger.info("Sharing {} CPU workers between modules with per-module "
+        + "limits {} and a soft heap budget of {}%.", this.workerBudget,
+        this.moduleLimits, this.heapBudgetPercent);
+    this.notifyAll();
+  }
+
+  private static Map<String, Integer> readModuleLimits(Configuration conf) {
+    Map<String, Integer> limits = new HashMap<>();
+    String property = conf.getProperty(Key.ModuleWorkerLimits.name());
+    if (null == property || property.trim().isEmpty()) {
+      return limits;
+    }
+    try {
+      for (String limit : conf.getStringArray(Key.ModuleWorkerLimits)) {
+        String[] parts = limit.split(":");
+        try {
+          if (parts.length != 2 || Integer.parseInt(parts[1].trim()) < 1) {
+            throw new NumberFormatException();
+          }
+          limits.put(parts[0].trim().toLowerCase(Locale.US),
+              Integer.parseInt(parts[1].trim()));
+        } catch (NumberFormatException nfe) {
+          logger.warn("Ignoring malformed module worker limit '{}'.", limit);
+        }
+      }
+    } catch (ConfigurationException ce) {
+      logger.warn("Cannot read module worker limits. Not limiting modules.",
+          ce);
+    }
+    return limits;
+  }
+
+  /**
+   * Acquire between one and the given maximum number of workers for the given
+   * module, blocking until at least one worker is available.
+   */
+  public Lease acquire(String module, int maxWorkers)
+      throws InterruptedException {
+    String key = module.toLowerCase(Locale.US);
+    synchronized (this) {
+      int available;
+      while ((available = this.availableWorkers(key)) < 1) {
+        this.wait();
+      }
+      int workers = Math.max(1, Math.min(maxWorkers, available));
+      if (workers > 1 && this.isHeapAboveBudget()) {
+        logger.info("Heap usage is above the soft budget of {}%. Granting "
+            + "only 1 of {} requested worker(s) to the {} module.",
+            this.heapBudgetPercent, maxWorkers, module);
+        workers = 1;
+      }
+      this.workersInUse += workers;
+      this.moduleWorkersInUse.merge(key, workers, Integer::sum);
+      logger.debug("Leasing {} of {} requested worker(s) to the {} module.",
+          workers, maxWorkers, module);
+      return new Lease(key, workers);
+    }
+  }
+
+  private int availableWorkers(String key) {
+    int available = this.workerBudget - this.workersInUse;
+    if (this.moduleLimits.containsKey(key)) {
+      available = Math.min(available, this.moduleLimits.get(key)
+          - this.moduleWorkersInUse.getOrDefault(key, 0));
+    }
+    return available;
+  }
+
+  private synchronized void release(String key, int workers) {
+    this.workersInUse -= workers;
+    this.moduleWorkersInUse.merge(key, -workers, Integer::sum);
+    this.notifyAll();
+  }
+
+  /** Return whether heap usage currently exceeds the soft heap budget. */
+  public boolean isHeapAboveBudget() {
+    MemoryUsage heap = ManagementFactory.getMemoryMXBean()
+        .getHeapMemoryUsage();
+    return heap.getMax() > 0L && heap.getUsed() * 100L
+        > heap.getMax() * (long) this.heapBudgetPercent;
+  }
+
+  public synchronized int getWorkerBudget() {
+    return this.workerBudget;
+  }
+
+  public synchronized int getWorkersInUse() {
+    return this.workersInUse;
+  }
+
+  /**
+   * Workers leased to a module until the lease is closed.
+   */
+  public final class Lease implements AutoCloseable {
+
+    private final String key;
+
+    private final int workers;
+
+    private ForkJoinPool forkJoinPool;
+
+    private boolean closed = false;
+
+    private volatile boolean cancelled = false;
+
+    private Lease(String key, int workers) {
+      this.key = key;
+      this.workers = workers;
+    }
+
+    /** Return the number of workers in this lease. */
+    public int workers() {
+      return this.workers;
+    }
+
+    /**
+     * Return whether tasks run by {@link #invoke(Callable)} have been
+     * cancelled, because the invoking thread was interrupted, and should
+     * therefore stop at the next safe point.
+     */
+    public boolean isCancelled() {
+      return this.cancelled;
+    }
+
+    /**
+     * Run the given task in a fork-join pool with as many threads as workers
+     * in this lease, so that parallel streams started by the task use only
+     * the leased workers rather than the common pool.
+     *
+     * <p>If the invoking thread is interrupted while waiting for the task,
+     * the task is cancelled, and this method waits for it to stop before
+     * throwing an {@link InterruptedException}, so that the task doesn't
+     * keep running in the background. Running tasks need to check
+     * {@link #isCancelled()} to stop early.</p>
+     */
+    public <T> T invoke(Callable<T> task) throws Exception {
+      synchronized (this) {
+        if (null == this.forkJoinPool) {
+          this.forkJoinPool = new ForkJoinPool(this.workers);
+        }
+      }
+      ForkJoinTask<T> future = this.forkJoinPool.submit(task);
+      try {
+        return future.get();
+      } catch (InterruptedException ie) {
+        this.cancel(future);
+        throw ie;
+      } catch (ExecutionException ee) {
+        if (ee.getCause() instanceof Exception) {
+          throw (Exception) ee.getCause();
+        }
+        throw ee;
+      }
+    }
+
+    private void cancel(ForkJoinTask<?> future) {
+      this.cancelled = true;
+      future.cancel(false);
+      this.forkJoinPool.shutdown();
+      try {
+        while (!this.forkJoinPool.awaitTermination(1L, TimeUnit.MINUTES)) {
+          logger.info("Waiting for cancelled task of the {} module to stop.",
+              this.key);
+        }
+      } catch (InterruptedException e) {
+        logger.warn("Interrupted again while waiting for cancelled task of "
+            + "the {} module to stop. Not waiting any longer.", this.key);
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    @Override
+    public synchronized void close() {
+      if (!this.closed) {
+        this.closed = true;
+        if (null != this.forkJoinPool) {
+          this.forkJoinPool.shutdown();
+        }
+        release(this.key, this.workers);
+      }
+    }
+  }
+}
@@ -6,15 +6,30 @@ package org.torproject.metrics.collector.cron;
 import org.torproject.metrics.collector.conf.Configuration;
 import org.torproject.metrics.collector.conf.ConfigurationException;
 import org.torproject.metrics.collector.conf.Key;
+import org.torproject.metrics.collector.monitoring.MetricsRegistry;
+import org.torproject.metrics.collector.persist.RecentFiles;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
@@ -29,6 +44,8 @@ public final class Scheduler implements ThreadFactory {
   public static final String ACTIVATED = "Activated";
   public static final String PERIODMIN = "PeriodMinutes";
   public static final String OFFSETMIN = "OffsetMinutes";
+  public static final String DEPENDENCY_SEP = "->";
+  private static final int DEFAULT_QUEUE_DEPTH = 2;
   private static final long MILLIS_IN_A_MINUTE = 60_000L;
 
   private static final Logger logger = LoggerFactory.getLogger(Scheduler.class);
@@ -41,6 +58,13 @@ public final class Scheduler implements ThreadFactory {
   private final ScheduledExecutorService scheduler =
       Executors.newScheduledThreadPool(10, this);
 
+  /* Executor for module runs, which is the scheduler itself unless modules
+   * run on virtual threads. */
+  private ExecutorService moduleExecutor = this.scheduler;
+
+  private final Map<String, ModuleStatistics> moduleStatistics
+      = new ConcurrentHashMap<>();
+
   private static Scheduler instance = new Scheduler();
 
   private Scheduler(){}
@@ -61,7 +85,15 @@ public final class Scheduler implements ThreadFactory {
       logger.warn("Cannot read grace period.", ce);
       gracePeriodMinutes = 10L;
     }
-    List<Callable<Object>> runOnceMains = new ArrayList<>();
+    CollecTorMain.clearStopRequest();
+    ExecutorFactory.configure(conf);
+    ResourceManager.getInstance().configure(conf);
+    RecentFiles.getInstance().configure(conf);
+    if (ExecutorFactory.usesVirtualThreads()) {
+      this.moduleExecutor = ExecutorFactory.newExecutor(
+          "CollecTor-Module-Thread", 10, this);
+    }
+    SortedMap<String, CollecTorMain> activatedMains = new TreeMap<>();
     for (Map.Entry<Key, Class<? extends CollecTorMain>> ctmEntry
         : collecTorMains.entrySet()) {
       try {
@@ -69,36 +101,240 @@ public final class Scheduler implements ThreadFactory {
           String prefix = ctmEntry.getKey().name().replace(ACTIVATED, "");
           CollecTorMain ctm = ctmEntry.getValue()
               .getConstructor(Configuration.class).newInstance(conf);
-          if (conf.getBool(Key.RunOnce)) {
-            logger.info("Prepare single run for {}.", ctm.getClass().getName());
-            runOnceMains.add(Executors.callable(ctm));
-          } else {
-            scheduleExecutions(ctm,
-                conf.getInt(Key.valueOf(prefix + OFFSETMIN)),
-                conf.getInt(Key.valueOf(prefix + PERIODMIN)));
-          }
+          activatedMains.put(prefix, ctm);
         }
       } catch (ConfigurationException | IllegalAccessException
           | InstantiationException | InvocationTargetException
-          | NoSuchMethodException | RejectedExecutionException
-          | NullPointerException ex) {
+          | NoSuchMethodException | NullPointerException ex) {
         logger.error("Cannot schedule {}. Reason: {}",
             ctmEntry.getValue().getName(), ex.getMessage(), ex);
       }
     }
+    Map<String, SortedSet<String>> dependencies
+        = readModuleDependencies(conf, activatedMains.keySet());
     try {
       if (conf.getBool(Key.RunOnce)) {
-        scheduler.invokeAll(runOnceMains);
+        for (SortedSet<String> stage
+            : computeRunStages(activatedMains.keySet(), dependencies)) {
+          List<Callable<Object>> runOnceMains = new ArrayList<>();
+          for (String prefix : stage) {
+            CollecTorMain ctm = activatedMains.get(prefix);
+            logger.info("Prepare single run for {}.",
+                ctm.getClass().getName());
+            runOnceMains.add(Executors.callable(ctm));
+          }
+          this.moduleExecutor.invokeAll(runOnceMains);
+        }
         return false;
       }
     } catch (ConfigurationException | InterruptedException
         | RejectedExecutionException | NullPointerException ex) {
       logger.error("Cannot schedule run-once: {}", ex.getMessage(), ex);
+      return true;
+    }
+    Map<String, String[]> policies = readExecutionPolicies(conf);
+    Map<String, ModuleExecution> executions = new HashMap<>();
+    for (Map.Entry<String, CollecTorMain> activatedMain
+        : activatedMains.entrySet()) {
+      String prefix = activatedMain.getKey();
+      ExecutionPolicy policy = ExecutionPolicy.Coalesce;
+      int queueDepth = DEFAULT_QUEUE_DEPTH;
+      long periodMillis = 0L;
+      try {
+        if (policies.containsKey(prefix)) {
+          String[] policyParts = policies.get(prefix);
+          policy = ExecutionPolicy.valueOf(policyParts[0]);
+          if (policyParts.length > 1) {
+            queueDepth = Integer.parseInt(policyParts[1]);
+          }
+        }
+        periodMillis = conf.getInt(Key.valueOf(prefix + PERIODMIN))
+            * MILLIS_IN_A_MINUTE;
+      } catch (ConfigurationException | IllegalArgumentException ex) {
+        logger.warn("Cannot read execution policy for {}. Using {}.", prefix,
+            policy, ex);
+      }
+      ModuleExecution execution = new ModuleExecution(activatedMain.getValue(),
+          this.moduleExecutor, policy, queueDepth, periodMillis);
+      activatedMain.getValue().setRunRequester(execution::trigger);
+      executions.put(prefix, execution);
+      this.moduleStatistics.put(prefix, execution.statistics());
+      execution.statistics().registerMetrics(MetricsRegistry.getInstance());
+    }
+    for (Map.Entry<String, SortedSet<String>> dependency
+        : dependencies.entrySet()) {
+      for (String downstream : dependency.getValue()) {
+        logger.info("Running {} right after each run of {}.", downstream,
+            dependency.getKey());
+        executions.get(dependency.getKey())
+            .addDownstream(executions.get(downstream));
+      }
+    }
+    for (Map.Entry<String, ModuleExecution> execution
+        : executions.entrySet()) {
+      String prefix = execution.getKey();
+      try {
+        scheduleExecutions(execution.getValue(),
+            conf.getInt(Key.valueOf(prefix + OFFSETMIN)),
+            conf.getInt(Key.valueOf(prefix + PERIODMIN)));
+      } catch (ConfigurationException | RejectedExecutionException
+          | IllegalArgumentException | NullPointerException ex) {
+        logger.error("Cannot schedule {}. Reason: {}",
+            execution.getValue().module().getClass().getName(),
+            ex.getMessage(), ex);
+      }
     }
     return true;
   }
 
-  private void scheduleExecutions(CollecTorMain ctm, int offset, int period) {
+  /**
+   * Read module dependencies from the configuration and return a map from
+   * upstream module prefixes to prefixes of downstream modules that shall run
+   * right after the upstream module completes.
+   *
+   * <p>Dependencies of non-activated modules, malformed dependencies, and
+   * dependencies that would create a cycle are ignored.</p>
+   */
+  static Map<String, SortedSet<String>> readModuleDependencies(
+      Configuration conf, Set<String> activatedModules) {
+    Map<String, SortedSet<String>> dependencies = new TreeMap<>();
+    String property = conf.getProperty(Key.ModuleDependencies.name());
+    if (null == property || property.trim().isEmpty()) {
+      return dependencies;
+    }
+    String[] configuredDependencies;
+    try {
+      configuredDependencies = conf.getStringArray(Key.ModuleDependencies);
+    } catch (ConfigurationException ce) {
+      logger.warn("Cannot read module dependencies. Running all modules "
+          + "independently of each other.", ce);
+      return dependencies;
+    }
+    for (String dependency : configuredDependencies) {
+      String[] parts = dependency.split(DEPENDENCY_SEP);
+      if (parts.length != 2 || !Key.has(parts[0].trim() + ACTIVATED)
+          || !Key.has(parts[1].trim() + ACTIVATED)) {
+        logger.warn("Ignoring malformed module dependency '{}'.", dependency);
+        continue;
+      }
+      String upstream = parts[0].trim();
+      String downstream = parts[1].trim();
+      if (!activatedModules.contains(upstream)
+          || !activatedModules.contains(downstream)) {
+        logger.debug("Ignoring module dependency '{}' of at least one "
+            + "non-activated module.", dependency);
+        continue;
+      }
+      if (upstream.equals(downstream)
+          || isReachable(dependencies, downstream, upstream)) {
+        logger.warn("Ignoring module dependency '{}', because it would "
+            + "create a cycle.", dependency);
+        continue;
+      }
+      dependencies.computeIfAbsent(upstream, k -> new TreeSet<>())
+          .add(downstream);
+    }
+    return dependencies;
+  }
+
+  /**
+   * Read execution policies from the configuration and return a map from
+   * module prefixes to policy name and, optionally, queue depth.
+   */
+  private static Map<String, String[]> readExecutionPolicies(
+      Configuration conf) {
+    Map<String, String[]> policies = new HashMap<>();
+    String property = conf.getProperty(Key.ModuleExecutionPolicies.name());
+    if (null == property || property.trim().isEmpty()) {
+      return policies;
+    }
+    try {
+      for (String policy
+          : conf.getStringArray(Key.ModuleExecutionPolicies)) {
+        String[] parts = policy.split(":");
+        if (parts.length < 2 || parts.length > 3
+            || !Key.has(parts[0].trim() + ACTIVATED)) {
+          logger.warn("Ignoring malformed execution policy '{}'.", policy);
+          continue;
+        }
+        policies.put(parts[0].trim(), Arrays.stream(parts, 1, parts.length)
+            .map(String::trim).toArray(String[]::new));
+      }
+    } catch (ConfigurationException ce) {
+      logger.warn("Cannot read execution policies. Using {} for all modules.",
+          ExecutionPolicy.Coalesce, ce);
+    }
+    return policies;
+  }
+
+  /**
+   * Return statistics on module runs by module prefix, including how often
+   * execution policies deferred or dropped runs.
+   */
+  public Map<String, ModuleStatistics> getModuleStatistics() {
+    return Collections.unmodifiableMap(this.moduleStatistics);
+  }
+
+  private static boolean isReachable(
+      Map<String, SortedSet<String>> dependencies, String from, String to) {
+    Deque<String> modulesToVisit = new ArrayDeque<>();
+    Set<String> visitedModules = new HashSet<>();
+    modulesToVisit.push(from);
+    while (!modulesToVisit.isEmpty()) {
+      String module = modulesToVisit.pop();
+      if (module.equals(to)) {
+        return true;
+      }
+      if (visitedModules.add(module) && dependencies.containsKey(module)) {
+        modulesToVisit.addAll(dependencies.get(module));
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Split the given modules into stages, so that all upstream modules of a
+   * module are contained in earlier stages than the module itself.
+   */
+  static List<SortedSet<String>> computeRunStages(Set<String> modules,
+      Map<String, SortedSet<String>> dependencies) {
+    Map<String, Integer> upstreamCounts = new HashMap<>();
+    for (String module : modules) {
+      upstreamCounts.put(module, 0);
+    }
+    for (SortedSet<String> downstreams : dependencies.values()) {
+      for (String downstream : downstreams) {
+        upstreamCounts.merge(downstream, 1, Integer::sum);
+      }
+    }
+    List<SortedSet<String>> stages = new ArrayList<>();
+    while (!upstreamCounts.isEmpty()) {
+      SortedSet<String> stage = new TreeSet<>();
+      for (Map.Entry<String, Integer> e : upstreamCounts.entrySet()) {
+        if (e.getValue() == 0) {
+          stage.add(e.getKey());
+        }
+      }
+      if (stage.isEmpty()) {
+        /* This cannot happen with dependencies read by
+         * readModuleDependencies, but let's not loop forever. */
+        stage.addAll(upstreamCounts.keySet());
+      }
+      for (String module : stage) {
+        upstreamCounts.remove(module);
+        for (String downstream : dependencies.getOrDefault(module,
+            Collections.emptySortedSet())) {
+          upstreamCounts.computeIfPresent(downstream, (k, v) -> v - 1);
+        }
+      }
+      stages.add(stage);
+    }
+    return stages;
+  }
+
+  private void scheduleExecutions(ModuleExecution execution, int offset,
+      int period) {
+    CollecTorMain ctm = execution.module();
     logger.info("Periodic updater started for {}; offset={}, period={}.",
         ctm.getClass().getName(), offset, period);
     long periodMillis = period * MILLIS_IN_A_MINUTE;
@@ -110,8 +346,11 @@ public final class Scheduler implements ThreadFactory {
         + "minutes.", initialDelayMillis < MILLIS_IN_A_MINUTE
         ? "under 1 minute"
         : (initialDelayMillis / MILLIS_IN_A_MINUTE) + " minute(s)", period);
-    this.scheduler.scheduleAtFixedRate(ctm, initialDelayMillis, periodMillis,
-        TimeUnit.MILLISECONDS);
+    /* Only request a run on each tick, so that a run that takes longer than
+     * the period doesn't cause a burst of delayed runs afterwards. Overlapping
+     * requests are handled by the module's execution policy. */
+    this.scheduler.scheduleAtFixedRate(execution::trigger, initialDelayMillis,
+        periodMillis, TimeUnit.MILLISECONDS);
   }
 
   protected static long computeInitialDelayMillis(long currentMillis,
@@ -121,22 +360,39 @@ public final class Scheduler implements ThreadFactory {
   }
 
   /**
-   * Try to shutdown smoothly, i.e., wait for running tasks to terminate.
+   * Try to shutdown smoothly, i.e., ask running tasks to stop at their next
+   * safe point and wait for them to terminate, and interrupt them if they
+   * don't terminate within the grace period.
    */
   public void shutdownScheduler() {
     try {
       logger.info("Waiting at most {} minutes for termination "
           + "of running tasks ... ", gracePeriodMinutes);
+      CollecTorMain.requestStop();
       scheduler.shutdown();
-      scheduler.awaitTermination(gracePeriodMinutes,
-          java.util.concurrent.TimeUnit.MINUTES);
-      logger.info("Shutdown of all scheduled tasks completed successfully.");
-    } catch (InterruptedException ie) {
-      List<Runnable> notTerminated = scheduler.shutdownNow();
-      logger.error("Regular shutdown failed for: {}", notTerminated);
-      if (!notTerminated.isEmpty()) {
-        logger.error("Forced shutdown failed for: {}", notTerminated);
+      moduleExecutor.shutdown();
+      long deadlineMillis = System.currentTimeMillis()
+          + gracePeriodMinutes * MILLIS_IN_A_MINUTE;
+      boolean terminated = scheduler.awaitTermination(gracePeriodMinutes,
+          TimeUnit.MINUTES)
+          && moduleExecutor.awaitTermination(Math.max(0L,
+          deadlineMillis - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+      if (terminated) {
+        logger.info("Shutdown of all scheduled tasks completed successfully.");
+        return;
       }
+      logger.warn("Running tasks did not terminate within {} minutes. "
+          + "Interrupting them.", gracePeriodMinutes);
+    } catch (InterruptedException ie) {
+      logger.warn("Interrupted while waiting for running tasks to terminate. "
+          + "Interrupting them.");
+    }
+    List<Runnable> notTerminated = new ArrayList<>(scheduler.shutdownNow());
+    if (moduleExecutor != scheduler) {
+      notTerminated.addAll(moduleExecutor.shutdownNow());
+    }
+    if (!notTerminated.isEmpty()) {
+      logger.error("Forced shutdown failed for: {}", notTerminated);
     }
   }
 
@@ -3,6 +3,8 @@
 
 package org.torproject.metrics.collector.cron;
 
+import org.torproject.metrics.collector.monitoring.MetricsServer;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -40,6 +42,7 @@ public final class ShutdownHook extends Thread {
   public void run() {
     logger.info("Shutdown in progress ... ");
     Scheduler.getInstance().shutdownScheduler();
+    MetricsServer.getInstance().stop();
     synchronized (this) {
       this.stayAlive = false;
       this.notify();
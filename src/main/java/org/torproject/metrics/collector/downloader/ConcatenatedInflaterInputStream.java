@@ -0,0 +1,71 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.downloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Input stream that inflates one or more concatenated zlib streams.
+ *
+ * <p>Directory authorities may respond to requests for several descriptors
+ * with one zlib stream per descriptor or per chunk of descriptors, rather
+ * than with a single zlib stream. {@link InflaterInputStream} stops after
+ * the first of these streams and silently drops the remaining descriptors,
+ * whereas this stream continues with the next zlib stream until the
+ * underlying stream ends.</p>
+ */
+public class ConcatenatedInflaterInputStream extends InflaterInputStream {
+
+  /** Create a stream that inflates the given stream. */
+  public ConcatenatedInflaterInputStream(InputStream in) {
+    super(in, new Inflater(), 64 * 1024);
+  }
+
+  @Override
+  public int read(byte[] data, int off, int len) throws IOException {
+    while (true) {
+      int read = super.read(data, off, len);
+      if (read != -1 || len == 0 || !this.startNextStream()) {
+        return read;
+      }
+    }
+  }
+
+  /* Reset the inflater to the start of the next zlib stream, which begins
+   * either with the input left over from the previous stream or with the
+   * next bytes in the underlying stream. Return false if there is no next
+   * stream. */
+  private boolean startNextStream() throws IOException {
+    if (!this.inf.finished()) {
+      return false;
+    }
+    int remaining = this.inf.getRemaining();
+    if (remaining > 0) {
+      int offset = this.len - remaining;
+      this.inf.reset();
+      this.inf.setInput(this.buf, offset, remaining);
+      return true;
+    }
+    int read = this.in.read(this.buf, 0, this.buf.length);
+    if (read == -1) {
+      return false;
+    }
+    this.len = read;
+    this.inf.reset();
+    this.inf.setInput(this.buf, 0, read);
+    return true;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      super.close();
+    } finally {
+      this.inf.end();
+    }
+  }
+}
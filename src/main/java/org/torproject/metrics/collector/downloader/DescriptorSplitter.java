@@ -0,0 +1,224 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.downloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Splits concatenated descriptors into single descriptors by scanning
+ * their bytes for the keyword that starts each descriptor at the beginning
+ * of a line.
+ *
+ * <p>Signed descriptors, like server and extra-info descriptors, end with
+ * a router signature, and anything following the signature up to the next
+ * descriptor is skipped. All other descriptors, like votes and
+ * microdescriptors, end where the next descriptor starts or where the
+ * input ends.</p>
+ *
+ * <p>Descriptors are passed to the consumer as read-only slices of the
+ * input or of an internal buffer, without copying them. Slices are only
+ * valid until the consumer returns, so consumers need to copy them if they
+ * keep them for longer, for example using {@link #toBytes(ByteBuffer)}.
+ * When reading from an {@link InputStream}, the internal buffer only grows
+ * beyond its initial size for descriptors that don't fit into it, so that
+ * arbitrarily long inputs are split in constant memory.</p>
+ */
+public class DescriptorSplitter {
+
+  private static final int BUFFER_SIZE = 1024 * 1024;
+
+  private static final byte[] SIGNATURE_TOKEN
+      = "\nrouter-signature\n".getBytes(StandardCharsets.US_ASCII);
+
+  private static final byte[] END_SIGNATURE_TOKEN
+      = "\n-----END SIGNATURE-----\n".getBytes(StandardCharsets.US_ASCII);
+
+  private final byte[] startToken;
+
+  private final boolean signed;
+
+  private DescriptorSplitter(String startToken, boolean signed) {
+    this.startToken = startToken.getBytes(StandardCharsets.US_ASCII);
+    this.signed = signed;
+  }
+
+  /** Returns a splitter for descriptors that start with the given keyword,
+   * including the following space, and end with a router signature, like
+   * server and extra-info descriptors. */
+  public static DescriptorSplitter signed(String startToken) {
+    return new DescriptorSplitter(startToken, true);
+  }
+
+  /** Returns a splitter for descriptors that start with the given keyword,
+   * including the following space or newline, and end where the next
+   * descriptor starts, like votes and microdescriptors. */
+  public static DescriptorSplitter delimited(String startToken) {
+    return new DescriptorSplitter(startToken, false);
+  }
+
+  /** Returns a splitter for server descriptors. */
+  public static DescriptorSplitter serverDescriptors() {
+    return signed("router ");
+  }
+
+  /** Returns a splitter for extra-info descriptors. */
+  public static DescriptorSplitter extraInfoDescriptors() {
+    return signed("extra-info ");
+  }
+
+  /** Returns a splitter for network status consensuses and votes. */
+  public static DescriptorSplitter networkStatuses() {
+    return delimited("network-status-version ");
+  }
+
+  /** Returns a splitter for microdescriptors. */
+  public static DescriptorSplitter microdescriptors() {
+    return delimited("onion-key\n");
+  }
+
+  /**
+   * Splits the descriptors contained in the given buffer, between its
+   * current position and limit, and passes each of them to the given
+   * consumer.
+   *
+   * @return Number of descriptors passed to the consumer.
+   */
+  public int split(ByteBuffer data, Consumer<ByteBuffer> consumer) {
+    int descriptors = 0;
+    int from = data.position();
+    while (true) {
+      int start = this.findStart(data, from);
+      if (start < 0) {
+        break;
+      }
+      int end = this.findEnd(data, start, true);
+      if (end < 0) {
+        break;
+      }
+      consumer.accept(slice(data, start, end));
+      descriptors++;
+      from = end;
+    }
+    return descriptors;
+  }
+
+  /**
+   * Splits the descriptors read from the given stream, which is not
+   * closed, and passes each of them to the given consumer.
+   *
+   * @return Number of descriptors passed to the consumer.
+   */
+  public int split(InputStream in, Consumer<ByteBuffer> consumer)
+      throws IOException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    int length = 0;
+    int from = 0;
+    boolean complete = false;
+    int descriptors = 0;
+    while (true) {
+      ByteBuffer data = ByteBuffer.wrap(buffer, 0, length);
+      int start = this.findStart(data, from);
+      int end = start < 0 ? -1 : this.findEnd(data, start, complete);
+      if (end >= 0) {
+        consumer.accept(slice(data, start, end));
+        descriptors++;
+        from = end;
+        continue;
+      } else if (complete) {
+        break;
+      }
+      /* Keep the start of the current descriptor or the bytes that could
+       * be the beginning of the next start token, plus one preceding byte
+       * to tell whether the token starts at the beginning of a line. */
+      int resume = start >= 0 ? start
+          : Math.max(from, length - this.startToken.length + 1);
+      int discard = Math.max(0, resume - 1);
+      if (discard > 0) {
+        System.arraycopy(buffer, discard, buffer, 0, length - discard);
+        length -= discard;
+      } else if (length == buffer.length) {
+        byte[] larger = new byte[buffer.length * 2];
+        System.arraycopy(buffer, 0, larger, 0, length);
+        buffer = larger;
+      }
+      from = resume - discard;
+      int read = in.read(buffer, length, buffer.length - length);
+      if (read < 0) {
+        complete = true;
+      } else {
+        length += read;
+      }
+    }
+    return descriptors;
+  }
+
+  /** Returns a copy of the remaining bytes in the given descriptor slice
+   * without changing its position. */
+  public static byte[] toBytes(ByteBuffer descriptor) {
+    byte[] bytes = new byte[descriptor.remaining()];
+    descriptor.duplicate().get(bytes);
+    return bytes;
+  }
+
+  private static ByteBuffer slice(ByteBuffer data, int start, int end) {
+    ByteBuffer descriptor = data.asReadOnlyBuffer();
+    descriptor.limit(end);
+    descriptor.position(start);
+    return descriptor.slice();
+  }
+
+  /* Return the position of the next start token at the beginning of a line
+   * at or after the given position, or -1 if there is none, treating the
+   * buffer position as the beginning of a line. */
+  private int findStart(ByteBuffer data, int from) {
+    int start = from;
+    while ((start = indexOf(data, this.startToken, start)) >= 0) {
+      if (start == data.position() || data.get(start - 1) == '\n') {
+        return start;
+      }
+      start++;
+    }
+    return -1;
+  }
+
+  /* Return the end of the descriptor starting at the given position, or -1
+   * if the buffer doesn't contain the whole descriptor, either because
+   * more input is needed or, if the input is complete, because the
+   * descriptor is truncated. */
+  private int findEnd(ByteBuffer data, int start, boolean complete) {
+    if (this.signed) {
+      int sig = indexOf(data, SIGNATURE_TOKEN, start);
+      if (sig < 0) {
+        return -1;
+      }
+      int end = indexOf(data, END_SIGNATURE_TOKEN,
+          sig + SIGNATURE_TOKEN.length);
+      return end < 0 ? -1 : end + END_SIGNATURE_TOKEN.length;
+    } else {
+      int next = this.findStart(data, start + 1);
+      if (next >= 0) {
+        return next;
+      }
+      return complete ? data.limit() : -1;
+    }
+  }
+
+  private static int indexOf(ByteBuffer data, byte[] token, int from) {
+    int last = data.limit() - token.length;
+    outer:
+    for (int i = from; i <= last; i++) {
+      for (int j = 0; j < token.length; j++) {
+        if (data.get(i + j) != token[j]) {
+          continue outer;
+        }
+      }
+      return i;
+    }
+    return -1;
+  }
+}
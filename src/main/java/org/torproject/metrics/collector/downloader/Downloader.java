@@ -3,18 +3,19 @@
 
 package org.torproject.metrics.collector.downloader;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.zip.InflaterInputStream;
 
 /**
  * Utility class for downloading resources from HTTP servers.
+ *
+ * <p>Use {@link HttpClient} directly for streaming downloads to a file or
+ * for conditional requests.</p>
  */
 public class Downloader {
 
+  private static final HttpClient unconditionalClient = new HttpClient();
+
   /**
    * Download the given URL from an HTTP server and return downloaded bytes.
    *
@@ -37,26 +38,7 @@ public class Downloader {
    */
   public static byte[] downloadFromHttpServer(URL url, boolean isDeflated)
       throws IOException {
-    ByteArrayOutputStream downloadedBytes = new ByteArrayOutputStream();
-    HttpURLConnection huc = (HttpURLConnection) url.openConnection();
-    huc.setRequestMethod("GET");
-    huc.setReadTimeout(5000);
-    huc.connect();
-    int response = huc.getResponseCode();
-    if (response != 200) {
-      return null;
-    }
-    try (BufferedInputStream in = isDeflated
-        ? new BufferedInputStream(new InflaterInputStream(
-            huc.getInputStream()))
-        : new BufferedInputStream(huc.getInputStream())) {
-      int len;
-      byte[] data = new byte[1024];
-      while ((len = in.read(data, 0, 1024)) >= 0) {
-        downloadedBytes.write(data, 0, len);
-      }
-    }
-    return downloadedBytes.toByteArray();
+    return unconditionalClient.downloadBytes(url, isDeflated);
   }
 }
 
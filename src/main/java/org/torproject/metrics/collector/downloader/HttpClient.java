@@ -0,0 +1,498 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.downloader;
+
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Client for downloading resources from HTTP servers that streams response
+ * bodies to a sink or file, keeps connections alive for reuse, and, if
+ * configured with a validators file, sends conditional requests using the
+ * {@code ETag} and {@code Last-Modified} validators of previous responses.
+ * Validators of a response are only persisted after the caller has
+ * processed the response and calls {@link #commitValidator(URL)}, so that
+ * a resource is downloaded again if processing it failed.
+ *
+ * <p>Connections are pooled per host by the Java runtime's keep-alive cache,
+ * which can be tuned with the {@code http.maxConnections} system property.
+ * This client makes sure that connections can be reused by always reading
+ * response bodies to the end, including bodies of error responses.</p>
+ *
+ * <p>If configured to negotiate content encodings, this client sends an
+ * {@code Accept-Encoding} header with all encodings it can decode, as
+ * understood by Tor directory servers, and decodes response bodies while
+ * streaming them according to the {@code Content-Encoding} header.</p>
+ */
+public class HttpClient {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      HttpClient.class);
+
+  private static final int READ_TIMEOUT_MILLIS = 5000;
+
+  private static final int CONNECT_TIMEOUT_MILLIS = 30000;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** Constructor of the zstd decoder from zstd-jni, or {@code null} if that
+   * optional library is not on the classpath. */
+  private static final Constructor<?> zstdInputStreamConstructor
+      = findZstdInputStreamConstructor();
+
+  private static Constructor<?> findZstdInputStreamConstructor() {
+    try {
+      return Class.forName("com.github.luben.zstd.ZstdInputStream")
+          .getConstructor(InputStream.class);
+    } catch (ReflectiveOperationException | LinkageError e) {
+      return null;
+    }
+  }
+
+  /**
+   * Return the content encodings that this client can decode, in order of
+   * preference.
+   */
+  public static List<String> supportedEncodings() {
+    List<String> encodings = new ArrayList<>();
+    if (null != zstdInputStreamConstructor) {
+      encodings.add("x-zstd");
+    }
+    encodings.add("x-tor-lzma");
+    encodings.add("deflate");
+    encodings.add("gzip");
+    encodings.add("identity");
+    return Collections.unmodifiableList(encodings);
+  }
+
+  /** Result of a download. */
+  public static final class Response {
+
+    private final int responseCode;
+
+    private final long bytes;
+
+    private Response(int responseCode, long bytes) {
+      this.responseCode = responseCode;
+      this.bytes = bytes;
+    }
+
+    /** Return the HTTP response code. */
+    public int getResponseCode() {
+      return this.responseCode;
+    }
+
+    /** Return the number of bytes written to the sink after inflating. */
+    public long getBytes() {
+      return this.bytes;
+    }
+
+    /** Return whether the resource was downloaded to the sink. */
+    public boolean isOk() {
+      return HttpURLConnection.HTTP_OK == this.responseCode;
+    }
+
+    /** Return whether the resource has not been modified since the last
+     * download, in which case nothing was written to the sink. */
+    public boolean isNotModified() {
+      return HttpURLConnection.HTTP_NOT_MODIFIED == this.responseCode;
+    }
+  }
+
+  /**
+   * Resource downloaded to a temporary file, which is deleted when closed.
+   */
+  public static final class DownloadedFile implements AutoCloseable {
+
+    private final Path path;
+
+    private final Response response;
+
+    private DownloadedFile(Path path, Response response) {
+      this.path = path;
+      this.response = response;
+    }
+
+    /** Return response code and number of bytes written to the file. */
+    public Response getResponse() {
+      return this.response;
+    }
+
+    /** Return the temporary file. */
+    public Path getPath() {
+      return this.path;
+    }
+
+    /** Return a read-only, memory-mapped view of the file, which does not
+     * count towards the heap. */
+    public ByteBuffer map() throws IOException {
+      try (FileChannel channel = FileChannel.open(this.path,
+          StandardOpenOption.READ)) {
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0L,
+            channel.size());
+      }
+    }
+
+    @Override
+    public void close() {
+      try {
+        Files.deleteIfExists(this.path);
+      } catch (IOException e) {
+        logger.warn("Cannot delete temporary file {}.", this.path, e);
+      }
+    }
+  }
+
+  /** File to persist validators in, or {@code null} to not send conditional
+   * requests. */
+  private final Path validatorsFile;
+
+  /** Entity tag and last-modified time, either of which may be {@code null},
+   * by URL. */
+  private final SortedMap<String, String[]> validators = new TreeMap<>();
+
+  /** Validators of downloaded responses that have not been committed yet,
+   * by URL. */
+  private final Map<String, String[]> uncommittedValidators = new HashMap<>();
+
+  private volatile int readTimeoutMillis = READ_TIMEOUT_MILLIS;
+
+  private volatile boolean negotiateEncoding = false;
+
+  /** Create a client that does not send conditional requests. */
+  public HttpClient() {
+    this(null);
+  }
+
+  /** Create a client that sends conditional requests using validators
+   * persisted in the given file. */
+  public HttpClient(Path validatorsFile) {
+    this.validatorsFile = validatorsFile;
+    this.readValidators();
+  }
+
+  /** Set the read timeout for subsequent requests, which defaults to five
+   * seconds. */
+  public void setReadTimeout(int readTimeoutMillis) {
+    this.readTimeoutMillis = readTimeoutMillis;
+  }
+
+  /** Set whether to send an {@code Accept-Encoding} header with subsequent
+   * requests and decode responses according to their
+   * {@code Content-Encoding} header. */
+  public void setNegotiateEncoding(boolean negotiateEncoding) {
+    this.negotiateEncoding = negotiateEncoding;
+  }
+
+  /**
+   * Download the given URL, possibly inflate the response, and write the
+   * response body to the given sink if the response code is 200.
+   *
+   * @param url URL to download.
+   * @param isDeflated Whether the response is deflated.
+   * @param sink Sink for downloaded bytes, which is not closed.
+   * @return Response code and number of bytes written to the sink.
+   * @throws IOException Thrown if anything goes wrong while downloading.
+   */
+  public Response download(URL url, boolean isDeflated, OutputStream sink)
+      throws IOException {
+    return this.download(url, isDeflated, sink, Collections.emptyMap());
+  }
+
+  /**
+   * Download the given URL as in {@link #download(URL, boolean,
+   * OutputStream)}, sending the given additional request headers.
+   */
+  public Response download(URL url, boolean isDeflated, OutputStream sink,
+      Map<String, String> requestHeaders) throws IOException {
+    HttpURLConnection huc = (HttpURLConnection) url.openConnection();
+    huc.setRequestMethod("GET");
+    huc.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+    huc.setReadTimeout(this.readTimeoutMillis);
+    for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+      huc.setRequestProperty(header.getKey(), header.getValue());
+    }
+    boolean negotiateEncoding = this.negotiateEncoding;
+    if (negotiateEncoding) {
+      huc.setRequestProperty("Accept-Encoding",
+          String.join(", ", supportedEncodings()));
+    }
+    String[] validator = this.getValidator(url);
+    if (null != validator) {
+      if (null != validator[0]) {
+        huc.setRequestProperty("If-None-Match", validator[0]);
+      }
+      if (null != validator[1]) {
+        huc.setRequestProperty("If-Modified-Since", validator[1]);
+      }
+    }
+    huc.connect();
+    int responseCode = huc.getResponseCode();
+    if (HttpURLConnection.HTTP_OK != responseCode) {
+      drain(responseCode >= HttpURLConnection.HTTP_BAD_REQUEST
+          ? huc.getErrorStream() : huc.getInputStream());
+      if (HttpURLConnection.HTTP_NOT_MODIFIED == responseCode) {
+        logger.debug("Resource {} has not been modified.", url);
+      }
+      return new Response(responseCode, 0L);
+    }
+    long bytes = 0L;
+    try (InputStream in = decode(huc.getInputStream(),
+        negotiateEncoding ? huc.getContentEncoding() : null, isDeflated)) {
+      int len;
+      byte[] data = new byte[BUFFER_SIZE];
+      while ((len = in.read(data, 0, BUFFER_SIZE)) >= 0) {
+        sink.write(data, 0, len);
+        bytes += len;
+      }
+    }
+    this.putUncommittedValidator(url, huc.getHeaderField("ETag"),
+        huc.getHeaderField("Last-Modified"));
+    return new Response(responseCode, bytes);
+  }
+
+  /**
+   * Download the given URL, possibly inflate the response, and return
+   * downloaded bytes.
+   *
+   * @param url URL to download.
+   * @param isDeflated Whether the response is deflated.
+   * @return Downloaded bytes, or {@code null} if the resource was not found
+   *     or has not been modified.
+   * @throws IOException Thrown if anything goes wrong while downloading.
+   */
+  public byte[] downloadBytes(URL url, boolean isDeflated) throws IOException {
+    return this.downloadBytes(url, isDeflated, Collections.emptyMap());
+  }
+
+  /**
+   * Download the given URL as in {@link #downloadBytes(URL, boolean)},
+   * sending the given additional request headers.
+   */
+  public byte[] downloadBytes(URL url, boolean isDeflated,
+      Map<String, String> requestHeaders) throws IOException {
+    ByteArrayOutputStream downloadedBytes = new ByteArrayOutputStream();
+    return this.download(url, isDeflated, downloadedBytes, requestHeaders)
+        .isOk() ? downloadedBytes.toByteArray() : null;
+  }
+
+  /**
+   * Download the given URL, possibly inflate the response, and write the
+   * response body to the given file if the response code is 200, without
+   * leaving a partially written file behind if the download fails.
+   *
+   * @param url URL to download.
+   * @param isDeflated Whether the response is deflated.
+   * @param file File to write, including parent directories.
+   * @return Response code and number of bytes written to the file.
+   * @throws IOException Thrown if anything goes wrong while downloading or
+   *     writing.
+   */
+  public Response downloadToFile(URL url, boolean isDeflated, Path file)
+      throws IOException {
+    Files.createDirectories(file.toAbsolutePath().getParent());
+    Path tempFile = file.resolveSibling("." + file.getFileName() + ".part");
+    try {
+      Response response;
+      try (OutputStream out = Files.newOutputStream(tempFile)) {
+        response = this.download(url, isDeflated, out);
+      }
+      if (response.isOk()) {
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+      }
+      return response;
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
+  }
+
+  /**
+   * Download the given URL, possibly inflate the response, and stream the
+   * response body into a new temporary file if the response code is 200, so
+   * that heap usage does not grow with the size of the resource.
+   *
+   * @param url URL to download.
+   * @param isDeflated Whether the response is deflated.
+   * @return Downloaded file, which the caller needs to close in order to
+   *     delete it.
+   * @throws IOException Thrown if anything goes wrong while downloading or
+   *     writing.
+   */
+  public DownloadedFile downloadToTempFile(URL url, boolean isDeflated)
+      throws IOException {
+    Path tempFile = Files.createTempFile("collector-download-", ".tmp");
+    try (FileChannel channel = FileChannel.open(tempFile,
+        StandardOpenOption.WRITE)) {
+      return new DownloadedFile(tempFile, this.download(url, isDeflated,
+          Channels.newOutputStream(channel)));
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(tempFile);
+      throw e;
+    }
+  }
+
+  /**
+   * Wrap the given response body in a decoder for the given content
+   * encoding, or for deflate if no content encoding is given and the
+   * response is known to be deflated.
+   *
+   * @throws IOException Thrown if the content encoding is not supported.
+   */
+  static InputStream decode(InputStream in, String contentEncoding,
+      boolean isDeflated) throws IOException {
+    String encoding = null == contentEncoding ? ""
+        : contentEncoding.trim().toLowerCase(Locale.US);
+    if (encoding.isEmpty() || encoding.equals("identity")) {
+      encoding = isDeflated ? "deflate" : "identity";
+    }
+    switch (encoding) {
+      case "identity":
+        return in;
+      case "deflate":
+        return new ConcatenatedInflaterInputStream(in);
+      case "gzip":
+      case "x-gzip":
+        return new GZIPInputStream(in, BUFFER_SIZE);
+      case "x-tor-lzma":
+        return new XZCompressorInputStream(in, true);
+      case "x-zstd":
+        if (null != zstdInputStreamConstructor) {
+          try {
+            return (InputStream) zstdInputStreamConstructor.newInstance(in);
+          } catch (InvocationTargetException e) {
+            throw new IOException("Cannot decode zstd response.",
+                e.getCause());
+          } catch (ReflectiveOperationException e) {
+            throw new IOException("Cannot decode zstd response.", e);
+          }
+        }
+        break;
+      default:
+        break;
+    }
+    in.close();
+    throw new IOException("Unsupported content encoding '" + contentEncoding
+        + "'.");
+  }
+
+  /* Read response bodies to the end, so that connections can be reused. */
+  private static void drain(InputStream in) {
+    if (null == in) {
+      return;
+    }
+    try (InputStream toDrain = in) {
+      byte[] data = new byte[BUFFER_SIZE];
+      while (toDrain.read(data) >= 0) {
+        /* Discard. */
+      }
+    } catch (IOException e) {
+      logger.debug("Cannot read response body to the end.", e);
+    }
+  }
+
+  private synchronized String[] getValidator(URL url) {
+    return null == this.validatorsFile ? null
+        : this.validators.get(url.toString());
+  }
+
+  private synchronized void putUncommittedValidator(URL url,
+      String entityTag, String lastModified) {
+    if (null != this.validatorsFile) {
+      this.uncommittedValidators.put(url.toString(),
+          new String[] { entityTag, lastModified });
+    }
+  }
+
+  /**
+   * Persist the validators of the last successful response from the given
+   * URL, so that the next request to that URL is sent conditionally, which
+   * should only happen after the response has been processed successfully.
+   * Does nothing if there is no such response or if this client does not
+   * send conditional requests.
+   */
+  public synchronized void commitValidator(URL url) {
+    String[] validator = this.uncommittedValidators.remove(url.toString());
+    if (null == validator) {
+      return;
+    }
+    if (null == validator[0] && null == validator[1]) {
+      if (null == this.validators.remove(url.toString())) {
+        return;
+      }
+    } else {
+      this.validators.put(url.toString(), validator);
+    }
+    this.writeValidators();
+  }
+
+  private void readValidators() {
+    if (null == this.validatorsFile || !Files.exists(this.validatorsFile)) {
+      return;
+    }
+    try {
+      for (String line : Files.readAllLines(this.validatorsFile,
+          StandardCharsets.UTF_8)) {
+        String[] parts = line.split("\t", -1);
+        if (parts.length != 3) {
+          logger.warn("Skipping malformed line '{}' in {}.", line,
+              this.validatorsFile);
+          continue;
+        }
+        this.validators.put(parts[0], new String[] {
+            parts[1].isEmpty() ? null : parts[1],
+            parts[2].isEmpty() ? null : parts[2] });
+      }
+    } catch (IOException e) {
+      logger.warn("Cannot read validators from {}. Sending unconditional "
+          + "requests.", this.validatorsFile, e);
+    }
+  }
+
+  private void writeValidators() {
+    List<String> lines = new ArrayList<>();
+    for (Map.Entry<String, String[]> e : this.validators.entrySet()) {
+      lines.add(e.getKey() + "\t"
+          + (null == e.getValue()[0] ? "" : e.getValue()[0]) + "\t"
+          + (null == e.getValue()[1] ? "" : e.getValue()[1]));
+    }
+    try {
+      Files.createDirectories(this.validatorsFile.toAbsolutePath()
+          .getParent());
+      Path tempFile = this.validatorsFile.resolveSibling(
+          this.validatorsFile.getFileName() + ".tmp");
+      Files.write(tempFile, lines, StandardCharsets.UTF_8);
+      Files.move(tempFile, this.validatorsFile,
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      logger.warn("Cannot write validators to {}.", this.validatorsFile, e);
+    }
+  }
+}
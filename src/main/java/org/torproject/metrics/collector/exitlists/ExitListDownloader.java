@@ -13,6 +13,7 @@ import org.torproject.metrics.collector.conf.ConfigurationException;
 import org.torproject.metrics.collector.conf.Key;
 import org.torproject.metrics.collector.cron.CollecTorMain;
 import org.torproject.metrics.collector.downloader.Downloader;
+import org.torproject.metrics.collector.persist.RecentFiles;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,6 +23,7 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.net.URL;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
@@ -135,6 +137,7 @@ public class ExitListDownloader extends CollecTorMain {
             outputFile));
         bw.write(downloadedExitList);
         bw.close();
+        RecentFiles.getInstance().recordWritten(outputFile);
       } catch (IOException e) {
         logger.warn("Could not write downloaded exit list to {}",
             outputFile.getAbsolutePath(), e);
@@ -174,17 +177,13 @@ public class ExitListDownloader extends CollecTorMain {
   /** Delete all files from the rsync directory that have not been modified
    * in the last three days. */
   public void cleanUpRsyncDirectory() {
-    long cutOffMillis = System.currentTimeMillis()
-        - 3L * 24L * 60L * 60L * 1000L;
-    Stack<File> allFiles = new Stack<>();
-    allFiles.add(new File(recentPathName));
-    while (!allFiles.isEmpty()) {
-      File file = allFiles.pop();
-      if (file.isDirectory()) {
-        allFiles.addAll(Arrays.asList(file.listFiles()));
-      } else if (file.lastModified() < cutOffMillis) {
-        file.delete();
-      }
+    long retentionMillis = 3L * 24L * 60L * 60L * 1000L;
+    Path directory = Paths.get(this.recentPathName);
+    try {
+      RecentFiles.getInstance().clean(this.module(), directory,
+          name -> retentionMillis, false);
+    } catch (IOException e) {
+      logger.warn("Unable to clean up directory {}.", directory, e);
     }
   }
 }
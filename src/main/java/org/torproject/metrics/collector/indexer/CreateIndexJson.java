@@ -7,6 +7,7 @@ import org.torproject.metrics.collector.conf.Configuration;
 import org.torproject.metrics.collector.conf.ConfigurationException;
 import org.torproject.metrics.collector.conf.Key;
 import org.torproject.metrics.collector.cron.CollecTorMain;
+import org.torproject.metrics.collector.cron.ExecutorFactory;
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.JsonInclude;
@@ -46,7 +47,6 @@ import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 /**
  * Create an index file called {@code index.json} containing metadata of all
@@ -169,14 +169,14 @@ public class CreateIndexJson extends CollecTorMain {
   /**
    * Executor for indexing tarballs.
    */
-  private ExecutorService tarballsExecutor
-      = Executors.newFixedThreadPool(tarballIndexerThreads);
+  private ExecutorService tarballsExecutor = ExecutorFactory.newExecutor(
+      "CollecTor-Tarball-Indexer", tarballIndexerThreads);
 
   /**
    * Executor for indexing flat files (non-tarballs).
    */
-  private ExecutorService flatFilesExecutor
-      = Executors.newFixedThreadPool(flatFileIndexerThreads);
+  private ExecutorService flatFilesExecutor = ExecutorFactory.newExecutor(
+      "CollecTor-Flat-File-Indexer", flatFileIndexerThreads);
 
   /**
    * Initialize this class with the given {@code configuration}.
@@ -504,7 +504,7 @@ public class CreateIndexJson extends CollecTorMain {
    * @return Indexer task.
    */
   protected IndexerTask createIndexerTask(Path fileToIndex) {
-    return new IndexerTask(fileToIndex);
+    return new IndexerTask(fileToIndex, this.module());
   }
 
   /**
@@ -22,6 +22,7 @@ import org.torproject.descriptor.SnowflakeStats;
 import org.torproject.descriptor.TorperfResult;
 import org.torproject.descriptor.UnparseableDescriptor;
 import org.torproject.descriptor.WebServerAccessLog;
+import org.torproject.metrics.collector.cron.ResourceManager;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.digest.DigestUtils;
@@ -30,6 +31,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Instant;
@@ -62,6 +64,11 @@ class IndexerTask implements Callable<FileNode> {
    */
   private Path path;
 
+  /**
+   * Name of the module indexing the file, which leases a worker for doing so.
+   */
+  private String module;
+
   /**
    * Index results object, which starts out empty and gets populated as indexing
    * proceeds.
@@ -73,24 +80,40 @@ class IndexerTask implements Callable<FileNode> {
    * parsing just yet.
    *
    * @param path Descriptor file to index.
+   * @param module Name of the module indexing the file.
    */
-  IndexerTask(Path path) {
+  IndexerTask(Path path, String module) {
     this.path = path;
+    this.module = module;
   }
 
   /**
-   * Index the given file and return index results when done.
+   * Index the given file and return index results when done, while holding a
+   * worker leased from the shared resource manager.
    *
    * @return Index results.
-   * @throws IOException Thrown if an I/O error occurs.
+   * @throws IOException Thrown if an I/O error occurs or if interrupted while
+   *     waiting for a worker.
    */
   @Override
   public FileNode call() throws IOException {
-    this.indexResult = new FileNode();
-    this.requestBasicFileAttributes();
-    this.computeFileDigest();
-    this.parseDescriptorFile();
-    return this.indexResult;
+    ResourceManager.Lease lease;
+    try {
+      lease = ResourceManager.getInstance().acquire(this.module, 1);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a "
+          + "worker to index " + this.path + ".");
+    }
+    try {
+      this.indexResult = new FileNode();
+      this.requestBasicFileAttributes();
+      this.computeFileDigest();
+      this.parseDescriptorFile();
+      return this.indexResult;
+    } finally {
+      lease.close();
+    }
   }
 
   /**
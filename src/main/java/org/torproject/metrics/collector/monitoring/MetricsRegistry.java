@@ -0,0 +1,278 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.monitoring;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Registry of counters, gauges, and histograms that modules update while
+ * running and that can be exported in the Prometheus text exposition format.
+ *
+ * <p>Metrics are identified by name and by an even number of label names and
+ * values. Asking for a counter or histogram that already exists returns the
+ * existing instance, so that callers don't have to keep references.</p>
+ */
+public final class MetricsRegistry {
+
+  /** Default histogram buckets in seconds for durations of module runs and
+   * their phases. */
+  public static final double[] DURATION_BUCKETS = new double[] { 0.1, 0.5, 1.0,
+      5.0, 15.0, 30.0, 60.0, 120.0, 300.0, 600.0, 1800.0, 3600.0 };
+
+  private static final MetricsRegistry instance = new MetricsRegistry();
+
+  private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+  private MetricsRegistry() {
+  }
+
+  public static MetricsRegistry getInstance() {
+    return instance;
+  }
+
+  /** Return the counter with the given name and labels, and create it if it
+   * doesn't exist yet. */
+  public Counter counter(String name, String help, String... labels) {
+    return (Counter) this.family(name, help, "counter", Counter.class)
+        .samples.computeIfAbsent(formatLabels(labels), k -> new Counter());
+  }
+
+  /** Register a counter with the given name and labels whose value is read
+   * from the given supplier, replacing any previously registered supplier.
+   * Counters with the same name must all be read from suppliers. */
+  public void counter(String name, String help, DoubleSupplier value,
+      String... labels) {
+    this.family(name, help, "counter", SuppliedCounter.class).samples.put(
+        formatLabels(labels), new SuppliedCounter(value));
+  }
+
+  /** Register a gauge with the given name and labels whose value is read from
+   * the given supplier, replacing any previously registered supplier. */
+  public void gauge(String name, String help, DoubleSupplier value,
+      String... labels) {
+    this.family(name, help, "gauge", Gauge.class).samples.put(
+        formatLabels(labels), new Gauge(value));
+  }
+
+  /** Return the histogram with the given name, buckets, and labels, and create
+   * it if it doesn't exist yet. */
+  public Histogram histogram(String name, String help, double[] buckets,
+      String... labels) {
+    return (Histogram) this.family(name, help, "histogram", Histogram.class)
+        .samples.computeIfAbsent(formatLabels(labels),
+        k -> new Histogram(buckets));
+  }
+
+  /* Return the family with the given name, and create it if it doesn't
+   * exist yet, making sure that all its samples are of the same kind. */
+  private Family family(String name, String help, String type,
+      Class<? extends Sample> kind) {
+    Family family = this.families.computeIfAbsent(name,
+        k -> new Family(help, type, kind));
+    if (!family.type.equals(type)) {
+      throw new IllegalArgumentException("Metric " + name + " is a "
+          + family.type + ", not a " + type + ".");
+    }
+    if (family.kind != kind) {
+      throw new IllegalArgumentException("Counter " + name + " is "
+          + (SuppliedCounter.class == family.kind ? "read from a supplier"
+          : "incremented") + " and cannot be "
+          + (SuppliedCounter.class == kind ? "read from a supplier"
+          : "incremented") + ".");
+    }
+    return family;
+  }
+
+  /** Return all metrics in the Prometheus text exposition format. */
+  public String scrape() {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, Family> e : this.families.entrySet()) {
+      String name = e.getKey();
+      Family family = e.getValue();
+      sb.append("# HELP ").append(name).append(' ')
+          .append(family.help.replace("\\", "\\\\").replace("\n", "\\n"))
+          .append('\n');
+      sb.append("# TYPE ").append(name).append(' ').append(family.type)
+          .append('\n');
+      for (Map.Entry<String, Sample> sample : family.samples.entrySet()) {
+        sample.getValue().appendTo(sb, name, sample.getKey());
+      }
+    }
+    return sb.toString();
+  }
+
+  private static String formatLabels(String... labels) {
+    if (labels.length % 2 != 0) {
+      throw new IllegalArgumentException("Labels must be given as pairs of "
+          + "names and values: " + Arrays.toString(labels));
+    }
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < labels.length; i += 2) {
+      sb.append(sb.length() == 0 ? "" : ",").append(labels[i]).append("=\"")
+          .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"")
+          .replace("\n", "\\n")).append('"');
+    }
+    return sb.toString();
+  }
+
+  private static String formatValue(double value) {
+    if (Double.isNaN(value)) {
+      return "NaN";
+    } else if (Double.isInfinite(value)) {
+      return value > 0 ? "+Inf" : "-Inf";
+    } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+      return String.valueOf((long) value);
+    } else {
+      return String.format(Locale.US, "%s", value);
+    }
+  }
+
+  private static void appendSample(StringBuilder sb, String name,
+      String labels, double value) {
+    sb.append(name);
+    if (!labels.isEmpty()) {
+      sb.append('{').append(labels).append('}');
+    }
+    sb.append(' ').append(formatValue(value)).append('\n');
+  }
+
+  private static final class Family {
+
+    private final String help;
+
+    private final String type;
+
+    private final Class<? extends Sample> kind;
+
+    private final SortedMap<String, Sample> samples
+        = new ConcurrentSkipListMap<>();
+
+    private Family(String help, String type, Class<? extends Sample> kind) {
+      this.help = help;
+      this.type = type;
+      this.kind = kind;
+    }
+  }
+
+  private interface Sample {
+
+    void appendTo(StringBuilder sb, String name, String labels);
+  }
+
+  /** Monotonically increasing counter. */
+  public static final class Counter implements Sample {
+
+    private final LongAdder value = new LongAdder();
+
+    private Counter() {
+    }
+
+    /** Increment this counter by one. */
+    public void inc() {
+      this.value.increment();
+    }
+
+    /** Increment this counter by the given non-negative amount. */
+    public void add(long amount) {
+      if (amount > 0L) {
+        this.value.add(amount);
+      }
+    }
+
+    public long get() {
+      return this.value.sum();
+    }
+
+    @Override
+    public void appendTo(StringBuilder sb, String name, String labels) {
+      appendSample(sb, name, labels, this.value.sum());
+    }
+  }
+
+  private static final class Gauge implements Sample {
+
+    private final DoubleSupplier value;
+
+    private Gauge(DoubleSupplier value) {
+      this.value = value;
+    }
+
+    @Override
+    public void appendTo(StringBuilder sb, String name, String labels) {
+      appendSample(sb, name, labels, this.value.getAsDouble());
+    }
+  }
+
+  /** Counter whose value is read from a supplier when scraping. */
+  private static final class SuppliedCounter implements Sample {
+
+    private final DoubleSupplier value;
+
+    private SuppliedCounter(DoubleSupplier value) {
+      this.value = value;
+    }
+
+    @Override
+    public void appendTo(StringBuilder sb, String name, String labels) {
+      appendSample(sb, name, labels, this.value.getAsDouble());
+    }
+  }
+
+  /** Histogram of observed values with fixed, cumulative buckets. */
+  public static final class Histogram implements Sample {
+
+    private final double[] buckets;
+
+    private final AtomicLong[] bucketCounts;
+
+    private final LongAdder count = new LongAdder();
+
+    private final DoubleAdder sum = new DoubleAdder();
+
+    private Histogram(double[] buckets) {
+      this.buckets = buckets.clone();
+      Arrays.sort(this.buckets);
+      this.bucketCounts = new AtomicLong[this.buckets.length];
+      for (int i = 0; i < this.bucketCounts.length; i++) {
+        this.bucketCounts[i] = new AtomicLong();
+      }
+    }
+
+    /** Record the given observed value. */
+    public void observe(double value) {
+      for (int i = 0; i < this.buckets.length; i++) {
+        if (value <= this.buckets[i]) {
+          this.bucketCounts[i].incrementAndGet();
+        }
+      }
+      this.count.increment();
+      this.sum.add(value);
+    }
+
+    public long getCount() {
+      return this.count.sum();
+    }
+
+    @Override
+    public void appendTo(StringBuilder sb, String name, String labels) {
+      String separator = labels.isEmpty() ? "" : ",";
+      for (int i = 0; i < this.buckets.length; i++) {
+        appendSample(sb, name + "_bucket", labels + separator + "le=\""
+            + formatValue(this.buckets[i]) + "\"", this.bucketCounts[i].get());
+      }
+      appendSample(sb, name + "_bucket", labels + separator + "le=\"+Inf\"",
+          this.count.sum());
+      appendSample(sb, name + "_sum", labels, this.sum.sum());
+      appendSample(sb, name + "_count", labels, this.count.sum());
+    }
+  }
+}
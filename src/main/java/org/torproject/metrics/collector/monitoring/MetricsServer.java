@@ -0,0 +1,130 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.monitoring;
+
+import org.torproject.metrics.collector.conf.Configuration;
+import org.torproject.metrics.collector.conf.ConfigurationException;
+import org.torproject.metrics.collector.conf.Key;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Embedded HTTP server that serves all metrics in the
+ * {@link MetricsRegistry} at {@code /metrics} for scraping by Prometheus.
+ */
+public final class MetricsServer {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      MetricsServer.class);
+
+  static final String PATH = "/metrics";
+
+  private static final String CONTENT_TYPE = "text/plain; version=0.0.4; "
+      + "charset=utf-8";
+
+  private static final MetricsServer instance = new MetricsServer();
+
+  private HttpServer server;
+
+  private ExecutorService executor;
+
+  private MetricsServer() {
+  }
+
+  public static MetricsServer getInstance() {
+    return instance;
+  }
+
+  /**
+   * Start serving metrics on the configured address and port, unless the
+   * configured port is 0, and return whether the server is running.
+   */
+  public synchronized boolean start(Configuration conf) {
+    if (null != this.server) {
+      return true;
+    }
+    try {
+      int port = conf.getInt(Key.MetricsPort);
+      if (port <= 0) {
+        return false;
+      }
+      String host = conf.getProperty(Key.MetricsHost.name(), "127.0.0.1");
+      this.server = HttpServer.create(new InetSocketAddress(host, port), 0);
+    } catch (ConfigurationException | IOException | RuntimeException e) {
+      logger.warn("Cannot start metrics endpoint. Not serving metrics.", e);
+      this.server = null;
+      return false;
+    }
+    this.executor = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "CollecTor-Metrics-Thread");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.server.setExecutor(this.executor);
+    this.server.createContext(PATH, MetricsServer::handle);
+    this.server.start();
+    logger.info("Serving metrics at http://{}:{}{}.",
+        this.server.getAddress().getHostString(),
+        this.server.getAddress().getPort(), PATH);
+    return true;
+  }
+
+  /** Return the port the server is listening on, or -1 if not running. */
+  public synchronized int getPort() {
+    return null == this.server ? -1 : this.server.getAddress().getPort();
+  }
+
+  /** Stop serving metrics. */
+  public synchronized void stop() {
+    if (null != this.server) {
+      this.server.stop(0);
+      this.executor.shutdownNow();
+      this.server = null;
+      this.executor = null;
+      logger.info("Stopped serving metrics.");
+    }
+  }
+
+  private static void handle(HttpExchange exchange) throws IOException {
+    try {
+      if (!"GET".equals(exchange.getRequestMethod())
+          && !"HEAD".equals(exchange.getRequestMethod())) {
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+      /* Build the response body before sending any headers, so that we can
+       * still respond with an error if that fails. */
+      byte[] body;
+      try {
+        body = MetricsRegistry.getInstance().scrape()
+            .getBytes(StandardCharsets.UTF_8);
+      } catch (RuntimeException e) {
+        logger.warn("Cannot serve metrics.", e);
+        exchange.sendResponseHeaders(500, -1);
+        return;
+      }
+      exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+      if ("HEAD".equals(exchange.getRequestMethod())) {
+        exchange.sendResponseHeaders(200, -1);
+        return;
+      }
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream os = exchange.getResponseBody()) {
+        os.write(body);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+}
@@ -0,0 +1,252 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.monitoring;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.PropertyNamingStrategy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Performance report of a single module run, consisting of one or more
+ * phases with wall time, bytes read and written, descriptors processed, and
+ * memory allocation and garbage collection deltas, that gets written to a
+ * JSON file after the run.
+ *
+ * <p>Allocated bytes are only counted for the thread running the module and
+ * only if the Java runtime supports measuring them.</p>
+ */
+public final class RunReport {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      RunReport.class);
+
+  private static final DateTimeFormatter fileNameFormatter = DateTimeFormatter
+      .ofPattern("uuuu-MM-dd-HH-mm-ss").withZone(ZoneOffset.UTC);
+
+  /**
+   * Object mapper for formatting run reports.
+   */
+  private static ObjectMapper objectMapper = new ObjectMapper()
+      .setPropertyNamingStrategy(PropertyNamingStrategy.SNAKE_CASE)
+      .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+      .setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.NONE)
+      .setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY);
+
+  /** Measurements of a single phase or of the whole run. */
+  static final class Measurement {
+
+    private String name;
+
+    private String started;
+
+    private long wallMillis;
+
+    private long bytesRead;
+
+    private long bytesWritten;
+
+    private long descriptors;
+
+    private Long allocatedBytes;
+
+    private long gcCount;
+
+    private long gcMillis;
+
+    private long heapUsedBytes;
+
+    private transient long startedNanos;
+
+    private transient long startedAllocatedBytes;
+
+    private transient long startedGcCount;
+
+    private transient long startedGcMillis;
+
+    private Measurement(String name) {
+      this.name = name;
+      this.started = Instant.now().toString();
+      this.startedNanos = System.nanoTime();
+      this.startedAllocatedBytes = allocatedBytes();
+      long[] gc = gcCountAndMillis();
+      this.startedGcCount = gc[0];
+      this.startedGcMillis = gc[1];
+    }
+
+    private void finish() {
+      this.wallMillis = (System.nanoTime() - this.startedNanos) / 1_000_000L;
+      long allocated = allocatedBytes();
+      if (allocated >= 0L && this.startedAllocatedBytes >= 0L) {
+        this.allocatedBytes = allocated - this.startedAllocatedBytes;
+      }
+      long[] gc = gcCountAndMillis();
+      this.gcCount = gc[0] - this.startedGcCount;
+      this.gcMillis = gc[1] - this.startedGcMillis;
+      this.heapUsedBytes = ManagementFactory.getMemoryMXBean()
+          .getHeapMemoryUsage().getUsed();
+    }
+
+    String getName() {
+      return this.name;
+    }
+
+    long getBytesRead() {
+      return this.bytesRead;
+    }
+
+    long getBytesWritten() {
+      return this.bytesWritten;
+    }
+
+    long getDescriptors() {
+      return this.descriptors;
+    }
+  }
+
+  private String module;
+
+  private Measurement run;
+
+  private List<Measurement> phases = new ArrayList<>();
+
+  private transient Measurement currentPhase;
+
+  /** Starts measuring a run of the given module. */
+  public RunReport(String module) {
+    this.module = module;
+    this.run = new Measurement(module);
+  }
+
+  /** Ends the current phase, if any, and starts a new phase with the given
+   * name. */
+  public synchronized void startPhase(String name) {
+    this.endPhase();
+    this.currentPhase = new Measurement(name);
+  }
+
+  /** Ends the current phase, if any. */
+  public synchronized void endPhase() {
+    if (null != this.currentPhase) {
+      this.currentPhase.finish();
+      this.phases.add(this.currentPhase);
+      this.currentPhase = null;
+    }
+  }
+
+  /** Adds the given number of bytes read to the current phase and run. */
+  public synchronized void addBytesRead(long bytes) {
+    this.run.bytesRead += bytes;
+    if (null != this.currentPhase) {
+      this.currentPhase.bytesRead += bytes;
+    }
+  }
+
+  /** Adds the given number of bytes written to the current phase and run. */
+  public synchronized void addBytesWritten(long bytes) {
+    this.run.bytesWritten += bytes;
+    if (null != this.currentPhase) {
+      this.currentPhase.bytesWritten += bytes;
+    }
+  }
+
+  /** Adds the given number of processed descriptors to the current phase and
+   * run. */
+  public synchronized void addDescriptors(long descriptors) {
+    this.run.descriptors += descriptors;
+    if (null != this.currentPhase) {
+      this.currentPhase.descriptors += descriptors;
+    }
+  }
+
+  /** Ends the current phase, if any, and the run. */
+  public synchronized void finish() {
+    this.endPhase();
+    this.run.finish();
+  }
+
+  synchronized List<Measurement> getPhases() {
+    return new ArrayList<>(this.phases);
+  }
+
+  synchronized Measurement getRun() {
+    return this.run;
+  }
+
+  /**
+   * Writes this report to a file named after the module and run start time in
+   * the given directory and deletes reports that were last modified before
+   * the given cut-off time.
+   */
+  public synchronized void writeTo(Path directory, long cutOffMillis) {
+    try {
+      Files.createDirectories(directory);
+      String fileName = this.module + "-" + fileNameFormatter.format(
+          Instant.parse(this.run.started)) + ".json";
+      Path tempPath = directory.resolve("." + fileName + ".tmp");
+      objectMapper.writerWithDefaultPrettyPrinter()
+          .writeValue(tempPath.toFile(), this);
+      Files.move(tempPath, directory.resolve(fileName),
+          StandardCopyOption.REPLACE_EXISTING);
+      try (Stream<Path> reports = Files.list(directory)) {
+        reports.filter(report -> report.getFileName().toString()
+            .startsWith(this.module + "-")).forEach(report -> {
+              try {
+                if (Files.getLastModifiedTime(report).toMillis()
+                    < cutOffMillis) {
+                  Files.delete(report);
+                }
+              } catch (IOException e) {
+                logger.debug("Cannot delete old run report {}.", report, e);
+              }
+            });
+      }
+    } catch (IOException e) {
+      logger.warn("Cannot write run report of {} module to {}.", this.module,
+          directory, e);
+    }
+  }
+
+  private static long allocatedBytes() {
+    ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    if (threadBean instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean sunThreadBean
+          = (com.sun.management.ThreadMXBean) threadBean;
+      if (sunThreadBean.isThreadAllocatedMemorySupported()
+          && sunThreadBean.isThreadAllocatedMemoryEnabled()) {
+        return sunThreadBean.getThreadAllocatedBytes(
+            Thread.currentThread().getId());
+      }
+    }
+    return -1L;
+  }
+
+  private static long[] gcCountAndMillis() {
+    long count = 0L;
+    long millis = 0L;
+    for (GarbageCollectorMXBean gcBean
+        : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0L, gcBean.getCollectionCount());
+      millis += Math.max(0L, gcBean.getCollectionTime());
+    }
+    return new long[] { count, millis };
+  }
+}
@@ -11,14 +11,15 @@ import org.torproject.metrics.collector.conf.Configuration;
 import org.torproject.metrics.collector.conf.ConfigurationException;
 import org.torproject.metrics.collector.conf.Key;
 import org.torproject.metrics.collector.cron.CollecTorMain;
-import org.torproject.metrics.collector.downloader.Downloader;
+import org.torproject.metrics.collector.downloader.HttpClient;
+import org.torproject.metrics.collector.persist.RecentFiles;
 
-import org.apache.commons.compress.utils.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
@@ -27,17 +28,16 @@ import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedSet;
-import java.util.Stack;
 import java.util.TreeSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -65,6 +65,10 @@ public class OnionPerfDownloader extends CollecTorMain {
   /** Full URLs of files downloaded in the current or in past executions. */
   private SortedSet<String> downloadedFiles = new TreeSet<>();
 
+  /** Client for downloading directory listings and files, reusing
+   * connections to the same OnionPerf host. */
+  private HttpClient httpClient = new HttpClient();
+
   /** Base URLs of configured OnionPerf hosts. */
   private URL[] onionPerfHosts = null;
 
@@ -151,8 +155,13 @@ public class OnionPerfDownloader extends CollecTorMain {
       ".*<a href=\"([0-9-]{10}\\.onionperf\\.analysis\\.json\\.xz)\">.*");
 
   private void downloadOnionPerfDirectoryListing(URL baseUrl) {
-    try (BufferedReader br = new BufferedReader(new InputStreamReader(
-        baseUrl.openStream()))) {
+    try {
+      byte[] directoryListing = this.httpClient.downloadBytes(baseUrl, false);
+      if (null == directoryListing) {
+        throw new IOException("Unexpected response code.");
+      }
+      BufferedReader br = new BufferedReader(new InputStreamReader(
+          new ByteArrayInputStream(directoryListing)));
       String line;
       while ((line = br.readLine()) != null) {
         Matcher tpfFileMatcher = TPF_FILE_URL_PATTERN.matcher(line);
@@ -228,25 +237,16 @@ public class OnionPerfDownloader extends CollecTorMain {
     /* Download file contents to temporary file. */
     File tempFile = new File(this.recentDirectory,
         TORPERF + "/." + tpfFileName);
-    byte[] downloadedBytes;
-    try {
-      downloadedBytes = Downloader.downloadFromHttpServer(
-          new URL(baseUrl + tpfFileName));
-    } catch (IOException e) {
-      logger.warn("Unable to download '{}{}'. Skipping.", baseUrl, tpfFileName,
-          e);
-      return;
-    }
-    if (null == downloadedBytes) {
-      logger.warn("Unable to download '{}{}'. Skipping.", baseUrl, tpfFileName);
-      return;
-    }
-    tempFile.getParentFile().mkdirs();
     try {
-      Files.write(tempFile.toPath(), downloadedBytes);
+      if (!this.httpClient.downloadToFile(new URL(baseUrl + tpfFileName),
+          false, tempFile.toPath()).isOk()) {
+        logger.warn("Unable to download '{}{}'. Skipping.", baseUrl,
+            tpfFileName);
+        return;
+      }
     } catch (IOException e) {
-      logger.warn("Unable to write previously downloaded '{}{}' to temporary "
-          + "file '{}'. Skipping.", baseUrl, tpfFileName, tempFile, e);
+      logger.warn("Unable to download '{}{}' to temporary file '{}'. "
+          + "Skipping.", baseUrl, tpfFileName, tempFile, e);
       return;
     }
 
@@ -307,6 +307,7 @@ public class OnionPerfDownloader extends CollecTorMain {
     File recentFile = new File(this.recentDirectory,
         TORPERF + "/" + tpfFileName);
     tempFile.renameTo(recentFile);
+    RecentFiles.getInstance().recordWritten(recentFile);
 
     /* Add to download history to avoid downloading it again. */
     this.downloadedFiles.add(baseUrl + tpfFileName);
@@ -343,27 +344,17 @@ public class OnionPerfDownloader extends CollecTorMain {
     /* Download file contents to temporary file. */
     File tempFile = new File(this.recentDirectory,
         ONIONPERF + "/." + onionPerfAnalysisFileName);
-    byte[] downloadedBytes;
     try {
-      downloadedBytes = Downloader.downloadFromHttpServer(
-          new URL(baseUrl + onionPerfAnalysisFileName));
-    } catch (IOException e) {
-      logger.warn("Unable to download '{}{}'. Skipping.", baseUrl,
-          onionPerfAnalysisFileName, e);
-      return;
-    }
-    if (null == downloadedBytes) {
-      logger.warn("Unable to download '{}{}'. Skipping.", baseUrl,
-          onionPerfAnalysisFileName);
-      return;
-    }
-    tempFile.getParentFile().mkdirs();
-    try {
-      Files.write(tempFile.toPath(), downloadedBytes);
+      if (!this.httpClient.downloadToFile(
+          new URL(baseUrl + onionPerfAnalysisFileName), false,
+          tempFile.toPath()).isOk()) {
+        logger.warn("Unable to download '{}{}'. Skipping.", baseUrl,
+            onionPerfAnalysisFileName);
+        return;
+      }
     } catch (IOException e) {
-      logger.warn("Unable to write previously downloaded '{}{}' to temporary "
-          + "file '{}'. Skipping.", baseUrl, onionPerfAnalysisFileName,
-          tempFile, e);
+      logger.warn("Unable to download '{}{}' to temporary file '{}'. "
+          + "Skipping.", baseUrl, onionPerfAnalysisFileName, tempFile, e);
       return;
     }
 
@@ -372,8 +363,7 @@ public class OnionPerfDownloader extends CollecTorMain {
         DescriptorSourceFactory.createDescriptorParser();
     byte[] rawDescriptorBytes;
     try {
-      rawDescriptorBytes = IOUtils.toByteArray(
-          Files.newInputStream(tempFile.toPath()));
+      rawDescriptorBytes = Files.readAllBytes(tempFile.toPath());
     } catch (IOException e) {
       logger.warn("OnionPerf file '{}{}' could not be read. Skipping.", baseUrl,
           onionPerfAnalysisFileName, e);
@@ -420,6 +410,7 @@ public class OnionPerfDownloader extends CollecTorMain {
     File recentFile = new File(this.recentDirectory,
         ONIONPERF + "/" + date + "." + source + ".onionperf.analysis.json.xz");
     tempFile.renameTo(recentFile);
+    RecentFiles.getInstance().recordWritten(recentFile);
 
     /* Add to download history to avoid downloading it again. */
     this.downloadedFiles.add(baseUrl + onionPerfAnalysisFileName);
@@ -444,17 +435,13 @@ public class OnionPerfDownloader extends CollecTorMain {
   /** Delete all files from the rsync directory that have not been modified
    * in the last three days. */
   public void cleanUpRsyncDirectory() throws ConfigurationException {
-    long cutOffMillis = System.currentTimeMillis()
-        - 3L * 24L * 60L * 60L * 1000L;
-    Stack<File> allFiles = new Stack<>();
-    allFiles.add(new File(config.getPath(Key.RecentPath).toFile(), TORPERF));
-    while (!allFiles.isEmpty()) {
-      File file = allFiles.pop();
-      if (file.isDirectory()) {
-        allFiles.addAll(Arrays.asList(file.listFiles()));
-      } else if (file.lastModified() < cutOffMillis) {
-        file.delete();
-      }
+    long retentionMillis = 3L * 24L * 60L * 60L * 1000L;
+    Path directory = config.getPath(Key.RecentPath).resolve(TORPERF);
+    try {
+      RecentFiles.getInstance().clean(this.module(), directory,
+          name -> retentionMillis, false);
+    } catch (IOException e) {
+      logger.warn("Unable to clean up directory {}.", directory, e);
     }
   }
 }
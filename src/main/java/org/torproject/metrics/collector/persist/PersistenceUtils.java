@@ -9,14 +9,10 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.FileAlreadyExistsException;
-import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
@@ -76,6 +72,7 @@ public class PersistenceUtils {
       appendOption = StandardOpenOption.APPEND;
     }
     Files.write(path, data, appendOption, StandardOpenOption.CREATE);
+    RecentFiles.getInstance().recordWritten(path);
     return true;
   }
 
@@ -89,24 +86,18 @@ public class PersistenceUtils {
    * location. */
   public static void cleanDirectory(Path pathToClean, long cutOffMillis)
       throws IOException {
-    SimpleFileVisitor<Path> sfv = new SimpleFileVisitor<Path>() {
-      @Override
-      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
-          throws IOException {
-        String tempName = file.toString();
-        if (cutOffMillis >= 0L
-            && attrs.lastModifiedTime().toMillis() < cutOffMillis) {
-          file.toFile().delete();
-        } else if (tempName.endsWith(TEMPFIX)) {
-          Path outputPath = Paths
-              .get(tempName.substring(0, tempName.length() - TEMPFIX.length()));
-          Files.deleteIfExists(outputPath);
-          file.toFile().renameTo(outputPath.toFile());
-        }
-        return FileVisitResult.CONTINUE;
-      }
-    };
-    Files.walkFileTree(pathToClean, sfv);
+    PersistenceUtils.cleanDirectory(null, pathToClean, cutOffMillis);
+  }
+
+  /** Clean up the given directory like {@link #cleanDirectory(Path, long)},
+   * using the index of recent files with the given name rather than walking
+   * the whole directory, see {@link RecentFiles}. */
+  public static void cleanDirectory(String indexName, Path pathToClean,
+      long cutOffMillis) throws IOException {
+    long retentionMillis = cutOffMillis < 0L ? Long.MAX_VALUE
+        : System.currentTimeMillis() - cutOffMillis;
+    RecentFiles.getInstance().clean(indexName, pathToClean,
+        name -> retentionMillis, true);
   }
 
   /** Return all date-time parts as array. */
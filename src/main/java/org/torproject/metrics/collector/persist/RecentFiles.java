@@ -0,0 +1,447 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.persist;
+
+import org.torproject.metrics.collector.conf.Configuration;
+import org.torproject.metrics.collector.conf.ConfigurationException;
+import org.torproject.metrics.collector.conf.Key;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToLongFunction;
+
+/**
+ * Shared manager of files in the recent directory that deletes files after
+ * their retention time and moves temporary files to their final location,
+ * without walking the whole directory on every run.
+ *
+ * <p>Code writing to the recent directory records written files, and each
+ * module keeps an index of the files in its part of the recent directory
+ * ordered by the time when they expire. Cleaning a directory adds files
+ * that were recorded since the last run to the index, moves recorded
+ * temporary files, and only looks at files at the head of the index that
+ * have expired. Files written by other processes or by code that doesn't
+ * record its writes are found by walking the directory on the first run
+ * and at least once every {@code RecentReconcileMinutes} minutes.</p>
+ *
+ * <p>Until configured, e.g., when running a single module outside of the
+ * scheduler, every cleaning walks the whole directory.</p>
+ */
+public final class RecentFiles {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      RecentFiles.class);
+
+  private static final RecentFiles instance = new RecentFiles();
+
+  private static final String INDEX_DIRECTORY = "recent-index";
+
+  /** File in the recent directory with the time when it expires. */
+  private static final class Entry implements Comparable<Entry> {
+
+    private final long expires;
+
+    private final String path;
+
+    private Entry(long expires, String path) {
+      this.expires = expires;
+      this.path = path;
+    }
+
+    @Override
+    public int compareTo(Entry other) {
+      int result = Long.compare(this.expires, other.expires);
+      return 0 != result ? result : this.path.compareTo(other.path);
+    }
+  }
+
+  /** Files in a module's part of the recent directory. */
+  private static final class Index {
+
+    private final File file;
+
+    private Path directory;
+
+    private long lastReconciled;
+
+    private long lastUpdated;
+
+    private final TreeSet<Entry> byExpiry = new TreeSet<>();
+
+    private final Map<String, Entry> byPath = new HashMap<>();
+
+    private Index(File file) {
+      this.file = file;
+    }
+
+    private void put(String path, long expires) {
+      Entry previous = this.byPath.put(path, new Entry(expires, path));
+      if (null != previous) {
+        this.byExpiry.remove(previous);
+      }
+      this.byExpiry.add(this.byPath.get(path));
+    }
+
+    private void remove(String path) {
+      Entry previous = this.byPath.remove(path);
+      if (null != previous) {
+        this.byExpiry.remove(previous);
+      }
+    }
+
+    private void clear() {
+      this.byExpiry.clear();
+      this.byPath.clear();
+    }
+  }
+
+  /* Don't keep an index until configured. */
+  private volatile Path recentDirectory = null;
+
+  private volatile Path indexDirectory = null;
+
+  private volatile long reconcileMillis = 0L;
+
+  /** Files written to the recent directory with the time of writing. */
+  private final Map<Path, Long> written = new ConcurrentHashMap<>();
+
+  private final Map<String, Index> indexes = new HashMap<>();
+
+  private RecentFiles() {
+  }
+
+  public static RecentFiles getInstance() {
+    return instance;
+  }
+
+  /**
+   * Read the recent directory, the directory for storing indexes, and the
+   * interval for walking directories from the given configuration, keeping
+   * to walk directories on every run if these cannot be read.
+   */
+  public synchronized void configure(Configuration conf) {
+    try {
+      this.reconcileMillis = Math.max(0L,
+          conf.getInt(Key.RecentReconcileMinutes) * 60L * 1000L);
+      this.recentDirectory = conf.getPath(Key.RecentPath).toAbsolutePath()
+          .normalize();
+      this.indexDirectory = conf.getPath(Key.StatsPath).resolve(
+          INDEX_DIRECTORY);
+    } catch (ConfigurationException ce) {
+      logger.warn("Cannot read configuration for indexing recent files. "
+          + "Walking recent directories on every run.", ce);
+      this.reconcileMillis = 0L;
+    }
+    this.indexes.clear();
+    this.written.clear();
+  }
+
+  private boolean isIndexing() {
+    return this.reconcileMillis > 0L && null != this.recentDirectory;
+  }
+
+  /** Record that the given file was written, so that it will be cleaned
+   * without walking its directory. Does nothing for files outside of the
+   * recent directory. */
+  public void recordWritten(Path file) {
+    if (!this.isIndexing()) {
+      return;
+    }
+    Path path = file.toAbsolutePath().normalize();
+    if (path.startsWith(this.recentDirectory)) {
+      this.written.put(path, System.currentTimeMillis());
+    }
+  }
+
+  /** Record that the given file was written, see
+   * {@link #recordWritten(Path)}. */
+  public void recordWritten(File file) {
+    this.recordWritten(file.toPath());
+  }
+
+  /**
+   * Delete files in the given directory that have not been modified for
+   * the retention time that the given function returns for their file
+   * name, and, if requested, move temporary files ending in
+   * {@link PersistenceUtils#TEMPFIX} to their final location.
+   *
+   * @param name Name of the index with files in the given directory, or
+   *     {@code null} for walking the directory without keeping an index.
+   */
+  public void clean(String name, Path directory,
+      ToLongFunction<String> retentionMillis, boolean promoteTemporaryFiles)
+      throws IOException {
+    Path start = directory.toAbsolutePath().normalize();
+    long now = System.currentTimeMillis();
+    Index index = null == name || !this.isIndexing() ? null
+        : this.index(name);
+    if (null == index) {
+      walk(start, retentionMillis, promoteTemporaryFiles, now, null);
+      return;
+    }
+    synchronized (index) {
+      if (!start.equals(index.directory)
+          || now - index.lastReconciled >= this.reconcileMillis) {
+        index.clear();
+        index.directory = start;
+        walk(start, retentionMillis, promoteTemporaryFiles, now, index);
+        index.lastReconciled = now;
+      } else {
+        this.addWritten(index, retentionMillis);
+        if (promoteTemporaryFiles) {
+          promote(index, retentionMillis, now);
+        }
+        expire(index, retentionMillis, now);
+      }
+      index.lastUpdated = now;
+      this.write(index);
+    }
+    this.written.values().removeIf(
+        time -> time < now - this.reconcileMillis);
+  }
+
+  private synchronized Index index(String name) {
+    Index index = this.indexes.get(name);
+    if (null == index) {
+      index = this.read(this.indexDirectory.resolve(name).toFile());
+      this.indexes.put(name, index);
+    }
+    return index;
+  }
+
+  /* Walk the given directory, delete expired files, promote temporary
+   * files, and add remaining files to the given index, if any. */
+  private static void walk(Path start, ToLongFunction<String> retentionMillis,
+      boolean promoteTemporaryFiles, long now, Index index)
+      throws IOException {
+    if (!Files.isDirectory(start)) {
+      return;
+    }
+    Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        long expires = expires(lastModified, retentionMillis, file);
+        if (expires < now) {
+          delete(file);
+          return FileVisitResult.CONTINUE;
+        }
+        Path current = file;
+        if (promoteTemporaryFiles && isTemporary(file)) {
+          current = rename(file);
+          if (null == current) {
+            current = file;
+          } else {
+            expires = expires(lastModified, retentionMillis, current);
+          }
+        }
+        if (null != index) {
+          index.put(start.relativize(current).toString(), expires);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFileFailed(Path file, IOException e) {
+        logger.warn("Unable to read file {} in directory {}.", file, start,
+            e);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  /* Add files written below the index directory since the last update. */
+  private void addWritten(Index index,
+      ToLongFunction<String> retentionMillis) {
+    /* Include writes recorded shortly before the last update, which might
+     * have been put into the map only after the last update started. */
+    long since = index.lastUpdated - 60L * 1000L;
+    for (Map.Entry<Path, Long> e : this.written.entrySet()) {
+      if (e.getValue() >= since && e.getKey().startsWith(index.directory)) {
+        index.put(index.directory.relativize(e.getKey()).toString(),
+            expires(e.getValue(), retentionMillis, e.getKey()));
+      }
+    }
+  }
+
+  /* Move indexed temporary files to their final location, unless they have
+   * expired or have been moved already. */
+  private void promote(Index index, ToLongFunction<String> retentionMillis,
+      long now) {
+    List<String> temporaryPaths = new ArrayList<>();
+    for (String path : index.byPath.keySet()) {
+      if (path.endsWith(PersistenceUtils.TEMPFIX)) {
+        temporaryPaths.add(path);
+      }
+    }
+    for (String path : temporaryPaths) {
+      Path file = index.directory.resolve(path);
+      long lastModified = file.toFile().lastModified();
+      if (0L == lastModified) {
+        index.remove(path);
+        continue;
+      }
+      if (expires(lastModified, retentionMillis, file) < now) {
+        delete(file);
+        index.remove(path);
+        continue;
+      }
+      Path destination = rename(file);
+      if (null != destination) {
+        index.remove(path);
+        index.put(index.directory.relativize(destination).toString(),
+            expires(lastModified, retentionMillis, destination));
+        this.recordWritten(destination);
+      }
+    }
+  }
+
+  /* Look at files at the head of the index that have expired, and delete
+   * them unless they have been modified since they were indexed. */
+  private static void expire(Index index,
+      ToLongFunction<String> retentionMillis, long now) {
+    Map<String, Long> modified = new HashMap<>();
+    Iterator<Entry> iterator = index.byExpiry.iterator();
+    while (iterator.hasNext()) {
+      Entry entry = iterator.next();
+      if (entry.expires >= now) {
+        break;
+      }
+      iterator.remove();
+      index.byPath.remove(entry.path);
+      Path file = index.directory.resolve(entry.path);
+      long lastModified = file.toFile().lastModified();
+      if (0L == lastModified) {
+        continue;
+      }
+      long expires = expires(lastModified, retentionMillis, file);
+      if (expires < now && delete(file)) {
+        continue;
+      }
+      /* Try again next time if the file could not be deleted. */
+      modified.put(entry.path, Math.max(expires, now));
+    }
+    for (Map.Entry<String, Long> e : modified.entrySet()) {
+      index.put(e.getKey(), e.getValue());
+    }
+  }
+
+  private static long expires(long lastModified,
+      ToLongFunction<String> retentionMillis, Path file) {
+    long retention = retentionMillis.applyAsLong(
+        file.getFileName().toString());
+    return retention > Long.MAX_VALUE - lastModified ? Long.MAX_VALUE
+        : lastModified + retention;
+  }
+
+  private static boolean isTemporary(Path file) {
+    return file.getFileName().toString().endsWith(PersistenceUtils.TEMPFIX);
+  }
+
+  private static boolean delete(Path file) {
+    try {
+      Files.deleteIfExists(file);
+      return true;
+    } catch (IOException e) {
+      logger.warn("Unable to delete outdated file {}.", file, e);
+      return false;
+    }
+  }
+
+  /* Move the given temporary file to its final location, replacing an
+   * existing file, and return the final location, or null if the file
+   * could not be moved. */
+  private static Path rename(Path file) {
+    String tempName = file.getFileName().toString();
+    Path destination = file.resolveSibling(tempName.substring(0,
+        tempName.length() - PersistenceUtils.TEMPFIX.length()));
+    try {
+      logger.debug("Renaming file {} to {}.", file, destination);
+      Files.move(file, destination, StandardCopyOption.REPLACE_EXISTING);
+      return destination;
+    } catch (IOException e) {
+      logger.warn("Unable to rename file {} to {}.", file, destination, e);
+      return null;
+    }
+  }
+
+  /* Read an index from the given file, or return an empty index that will
+   * be reconciled on the next run if the file cannot be read. The first
+   * line contains the indexed directory, the second line the times of the
+   * last reconciliation and update, and the remaining lines the expiry
+   * time and relative path of each file. */
+  private Index read(File file) {
+    Index index = new Index(file);
+    if (!file.exists()) {
+      return index;
+    }
+    try (BufferedReader br = Files.newBufferedReader(file.toPath(),
+        StandardCharsets.UTF_8)) {
+      Path directory = Paths.get(br.readLine());
+      String[] times = br.readLine().split(" ");
+      long lastReconciled = Long.parseLong(times[0]);
+      long lastUpdated = Long.parseLong(times[1]);
+      String line;
+      while (null != (line = br.readLine())) {
+        String[] parts = line.split(" ", 2);
+        index.put(parts[1], Long.parseLong(parts[0]));
+      }
+      index.directory = directory;
+      index.lastReconciled = lastReconciled;
+      index.lastUpdated = lastUpdated;
+    } catch (IOException | RuntimeException e) {
+      logger.warn("Unable to read index of recent files {}. Walking the "
+          + "directory on the next run.", file, e);
+      index.clear();
+    }
+    return index;
+  }
+
+  /* Write the given index to a temporary file first, so that an
+   * interrupted write doesn't leave an incomplete index behind. */
+  private void write(Index index) {
+    Path tempFile = index.file.toPath().resolveSibling(index.file.getName()
+        + PersistenceUtils.TEMPFIX);
+    try {
+      Files.createDirectories(tempFile.getParent());
+      try (BufferedWriter bw = Files.newBufferedWriter(tempFile,
+          StandardCharsets.UTF_8)) {
+        bw.write(index.directory.toString());
+        bw.newLine();
+        bw.write(index.lastReconciled + " " + index.lastUpdated);
+        bw.newLine();
+        for (Entry entry : index.byExpiry) {
+          bw.write(entry.expires + " " + entry.path);
+          bw.newLine();
+        }
+      }
+      Files.move(tempFile, index.file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      logger.warn("Unable to write index of recent files {}. Walking the "
+          + "directory on the next run.", index.file, e);
+      index.lastReconciled = 0L;
+    }
+  }
+}
@@ -0,0 +1,350 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.persist;
+
+import org.apache.commons.compress.utils.CountingInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Stores descriptors that would otherwise be written to many small files
+ * in an output directory by appending them to a few segment files.
+ *
+ * <p>Descriptors are addressed by the file they would have been written
+ * to. The directory that is a given number of levels above that file, for
+ * example {@code server-descriptor/2020/05} above
+ * {@code server-descriptor/2020/05/a/b/ab...}, determines the segment, and
+ * the remaining path is the name of the descriptor in that segment. Each
+ * segment consists of a data file with the concatenated descriptors and an
+ * index file with name, offset, and length of each descriptor, both of
+ * which are only appended to. Index entries pointing beyond the end of the
+ * data file, which could remain after an interrupted write, are ignored
+ * and removed before appending to a segment again.</p>
+ *
+ * <p>Segments can be exported to the directory layout that would have
+ * been written without segments, for example before creating tarballs,
+ * by running this class with the segment directory, the output directory,
+ * and, optionally, the path of a segment or of its parent directory:</p>
+ *
+ * <pre>java -cp collector.jar \
+ * org.torproject.metrics.collector.persist.SegmentStore \
+ * out/relay-descriptor-segments out/relay-descriptors \
+ * server-descriptor/2020/05</pre>
+ *
+ * <p>This class is not thread-safe.</p>
+ */
+public class SegmentStore implements AutoCloseable {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      SegmentStore.class);
+
+  private static final String DATA_FILE_NAME = "descriptors";
+
+  private static final String INDEX_FILE_NAME = "index";
+
+  /** Position and length of a descriptor in a data file. */
+  private static final class Entry {
+
+    private final long offset;
+
+    private final int length;
+
+    private Entry(long offset, int length) {
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  /** Descriptors in a single data file. */
+  private static final class Segment {
+
+    private final File dataFile;
+
+    private final File indexFile;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    private long size;
+
+    /** Length of complete entries at the start of the index file. */
+    private final long indexLength;
+
+    private OutputStream data;
+
+    private DataOutputStream index;
+
+    private Segment(Path directory) throws IOException {
+      this.dataFile = directory.resolve(DATA_FILE_NAME).toFile();
+      this.indexFile = directory.resolve(INDEX_FILE_NAME).toFile();
+      this.indexLength = readIndex(this.indexFile, this.dataFile.length(),
+          this.entries);
+      for (Entry entry : this.entries.values()) {
+        this.size = Math.max(this.size, entry.offset + entry.length);
+      }
+    }
+  }
+
+  private final Path segmentDirectory;
+
+  private final Path outputDirectory;
+
+  private final int levels;
+
+  private final Map<Path, Segment> segments = new HashMap<>();
+
+  /**
+   * Creates a store that keeps segments in the given segment directory
+   * for descriptors that would otherwise be written to the given output
+   * directory, using the directory the given number of levels above each
+   * descriptor file as segment.
+   */
+  public SegmentStore(Path segmentDirectory, Path outputDirectory,
+      int levels) {
+    this.segmentDirectory = segmentDirectory;
+    this.outputDirectory = outputDirectory;
+    this.levels = levels;
+  }
+
+  /** Returns whether a descriptor that would otherwise be written to the
+   * given file has been stored before. */
+  public boolean contains(File file) {
+    Path relative = this.relativize(file);
+    if (null == relative) {
+      return false;
+    }
+    Segment segment = this.segment(this.segmentPath(relative));
+    return null != segment && segment.entries.containsKey(
+        this.name(relative));
+  }
+
+  /**
+   * Appends a descriptor that would otherwise be written to the given
+   * file to its segment, prefixed with the given type annotation unless
+   * the descriptor starts with an annotation, and unless the segment
+   * already contains that descriptor.
+   *
+   * @return The number of bytes written, or -1 if the descriptor could not
+   *     be stored.
+   */
+  public long append(File file, byte[] typeAnnotation, byte[] data) {
+    Path relative = this.relativize(file);
+    Segment segment = null == relative ? null
+        : this.segment(this.segmentPath(relative));
+    if (null == segment) {
+      logger.warn("Could not store descriptor {} in a segment.", file);
+      return -1L;
+    }
+    String name = this.name(relative);
+    if (segment.entries.containsKey(name)) {
+      logger.debug("Segment already contains descriptor {}. Skipping.",
+          file);
+      return 0L;
+    }
+    boolean annotate = data.length > 0 && data[0] != '@';
+    int length = (annotate ? typeAnnotation.length : 0) + data.length;
+    try {
+      if (null == segment.data) {
+        Files.createDirectories(segment.dataFile.toPath().getParent());
+        truncate(segment.dataFile, segment.size);
+        truncate(segment.indexFile, segment.indexLength);
+        segment.data = new BufferedOutputStream(new FileOutputStream(
+            segment.dataFile, true));
+        segment.index = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(segment.indexFile, true)));
+      }
+      if (annotate) {
+        segment.data.write(typeAnnotation);
+      }
+      segment.data.write(data);
+      segment.index.writeUTF(name);
+      segment.index.writeLong(segment.size);
+      segment.index.writeInt(length);
+    } catch (IOException e) {
+      logger.warn("Could not store descriptor {} in segment {}.", file,
+          segment.dataFile, e);
+      /* Reopen the segment next time, rather than computing offsets from
+       * a size that might not include partially written bytes. */
+      closeSegment(segment);
+      this.segments.remove(this.segmentPath(relative));
+      return -1L;
+    }
+    segment.entries.put(name, new Entry(segment.size, length));
+    segment.size += length;
+    return length;
+  }
+
+  /** Writes all appended descriptors to disk and closes all segments. */
+  @Override
+  public void close() {
+    for (Segment segment : this.segments.values()) {
+      closeSegment(segment);
+    }
+    this.segments.clear();
+  }
+
+  private static void closeSegment(Segment segment) {
+    if (null == segment.data) {
+      return;
+    }
+    /* Write descriptors before index entries pointing to them. */
+    try {
+      segment.data.close();
+      segment.index.close();
+    } catch (IOException e) {
+      logger.warn("Could not write segment {}.", segment.dataFile, e);
+    }
+    segment.data = null;
+    segment.index = null;
+  }
+
+  /* Remove bytes that were written after the last complete descriptor or
+   * index entry, so that they don't become part of later entries. */
+  private static void truncate(File file, long length) throws IOException {
+    if (file.length() > length) {
+      try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+        raf.setLength(length);
+      }
+    }
+  }
+
+  private Path relativize(File file) {
+    Path path = file.toPath().toAbsolutePath().normalize();
+    Path output = this.outputDirectory.toAbsolutePath().normalize();
+    if (!path.startsWith(output)
+        || output.relativize(path).getNameCount() <= this.levels + 1) {
+      return null;
+    }
+    return output.relativize(path);
+  }
+
+  private Path segmentPath(Path relative) {
+    return relative.subpath(0, relative.getNameCount() - this.levels - 1);
+  }
+
+  private String name(Path relative) {
+    return relative.subpath(relative.getNameCount() - this.levels - 1,
+        relative.getNameCount()).toString().replace(File.separatorChar, '/');
+  }
+
+  private Segment segment(Path segmentPath) {
+    Segment segment = this.segments.get(segmentPath);
+    if (null == segment) {
+      try {
+        segment = new Segment(this.segmentDirectory.resolve(segmentPath));
+        this.segments.put(segmentPath, segment);
+      } catch (IOException e) {
+        logger.warn("Could not read segment {}.", segmentPath, e);
+      }
+    }
+    return segment;
+  }
+
+  /* Read index entries into the given map in the order in which they were
+   * appended, stopping at an incomplete entry or an entry pointing beyond
+   * the given size of the data file, and return the length of the entries
+   * read. */
+  private static long readIndex(File indexFile, long size,
+      Map<String, Entry> entries) throws IOException {
+    if (!indexFile.exists()) {
+      return 0L;
+    }
+    long indexLength = 0L;
+    try (CountingInputStream cis = new CountingInputStream(
+        new BufferedInputStream(new FileInputStream(indexFile)));
+        DataInputStream dis = new DataInputStream(cis)) {
+      while (true) {
+        String name = dis.readUTF();
+        long offset = dis.readLong();
+        int length = dis.readInt();
+        if (offset < 0L || length < 0 || offset + length > size) {
+          break;
+        }
+        entries.putIfAbsent(name, new Entry(offset, length));
+        indexLength = cis.getBytesRead();
+      }
+    } catch (EOFException e) {
+      /* Reached the end of the index, possibly in the middle of an entry
+       * whose descriptor was not written completely. */
+    }
+    return indexLength;
+  }
+
+  /**
+   * Writes all descriptors in segments below the given path relative to
+   * the given segment directory to the files they would have been written
+   * to in the given output directory, skipping files that already exist.
+   *
+   * @return The number of written files.
+   */
+  public static int export(Path segmentDirectory, Path outputDirectory,
+      String segmentPath) throws IOException {
+    Path start = segmentDirectory.resolve(segmentPath);
+    if (!Files.isDirectory(start)) {
+      return 0;
+    }
+    List<Path> indexFiles;
+    try (Stream<Path> paths = Files.walk(start)) {
+      indexFiles = paths.filter(path -> path.getFileName().toString()
+          .equals(INDEX_FILE_NAME)).sorted().collect(Collectors.toList());
+    }
+    int written = 0;
+    for (Path indexFile : indexFiles) {
+      Path directory = indexFile.getParent();
+      File dataFile = directory.resolve(DATA_FILE_NAME).toFile();
+      Path target = outputDirectory.resolve(segmentDirectory.relativize(
+          directory));
+      try (RandomAccessFile raf = new RandomAccessFile(dataFile, "r")) {
+        Map<String, Entry> entries = new LinkedHashMap<>();
+        readIndex(indexFile.toFile(), raf.length(), entries);
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+          Path file = target.resolve(e.getKey());
+          if (Files.exists(file)) {
+            continue;
+          }
+          byte[] descriptor = new byte[e.getValue().length];
+          raf.seek(e.getValue().offset);
+          raf.readFully(descriptor);
+          Files.createDirectories(file.getParent());
+          Files.write(file, descriptor);
+          written++;
+        }
+      }
+    }
+    return written;
+  }
+
+  /** Exports segments, see the class description for arguments. */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2 || args.length > 3) {
+      System.out.println("Usage: java -cp collector.jar "
+          + SegmentStore.class.getName() + " <segment directory> "
+          + "<output directory> [<segment path>]");
+      return;
+    }
+    int written = export(Paths.get(args[0]), Paths.get(args[1]),
+        args.length > 2 ? args[2] : "");
+    System.out.println("Exported " + written + " descriptor(s).");
+  }
+}
@@ -0,0 +1,150 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.persist;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Appends descriptors to files that are appended to many times during a
+ * run, like the concatenated descriptor files in the recent directory,
+ * while keeping these files open and collecting appended bytes in large
+ * buffers, rather than opening and closing a file for each descriptor.
+ *
+ * <p>Buffered bytes are written to disk and synced at checkpoints, which
+ * happen whenever the configured number of bytes has been appended since
+ * the last checkpoint, when calling {@link #checkpoint()}, and when
+ * closing the appender. Files that have not been appended to for a while
+ * are closed when too many files are open.</p>
+ *
+ * <p>Bytes appended to a file might not be visible to other readers
+ * until the next checkpoint, so the appender needs to be closed before
+ * files are read, renamed, or deleted.</p>
+ */
+public class WriteBehindAppender implements AutoCloseable {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      WriteBehindAppender.class);
+
+  /** Size of the buffer of each open file. */
+  static final int BUFFER_SIZE = 256 * 1024;
+
+  /** Maximum number of files that are kept open at the same time. */
+  static final int MAX_OPEN_FILES = 32;
+
+  /** Open file with its buffer. */
+  private static final class Handle {
+
+    private final FileOutputStream file;
+
+    private final BufferedOutputStream buffer;
+
+    private Handle(File file) throws IOException {
+      this.file = new FileOutputStream(file, true);
+      this.buffer = new BufferedOutputStream(this.file, BUFFER_SIZE);
+    }
+
+    private void sync() throws IOException {
+      this.buffer.flush();
+      this.file.getChannel().force(false);
+    }
+  }
+
+  private final long checkpointBytes;
+
+  /** Open files in the order in which they were last appended to. */
+  private final Map<File, Handle> handles = new LinkedHashMap<>(16, 0.75f,
+      true);
+
+  private long bytesSinceCheckpoint = 0L;
+
+  /** Creates an appender that syncs appended files after the given number
+   * of appended bytes, or only when calling {@link #checkpoint()} or
+   * {@link #close()} if that number is not positive. */
+  public WriteBehindAppender(long checkpointBytes) {
+    this.checkpointBytes = checkpointBytes;
+  }
+
+  /**
+   * Appends the given parts to the given file, creating the file and its
+   * parent directories if they don't exist yet.
+   */
+  public synchronized void append(File file, byte[]... parts)
+      throws IOException {
+    Handle handle = this.handles.get(file);
+    if (null == handle) {
+      if (!file.getParentFile().exists() && !file.getParentFile().mkdirs()) {
+        logger.warn("Unable to create parent directories of file {}.", file);
+      }
+      handle = new Handle(file);
+      this.handles.put(file, handle);
+      RecentFiles.getInstance().recordWritten(file);
+      this.closeLeastRecentlyUsed();
+    }
+    for (byte[] part : parts) {
+      handle.buffer.write(part);
+      this.bytesSinceCheckpoint += part.length;
+    }
+    if (this.checkpointBytes > 0L
+        && this.bytesSinceCheckpoint >= this.checkpointBytes) {
+      this.checkpoint();
+    }
+  }
+
+  /* Close files that have not been appended to for the longest time while
+   * there are too many open files. */
+  private void closeLeastRecentlyUsed() {
+    Iterator<Map.Entry<File, Handle>> iterator
+        = this.handles.entrySet().iterator();
+    while (this.handles.size() > MAX_OPEN_FILES && iterator.hasNext()) {
+      Map.Entry<File, Handle> e = iterator.next();
+      iterator.remove();
+      close(e.getKey(), e.getValue());
+    }
+  }
+
+  /** Writes all buffered bytes to disk and syncs all open files. */
+  public synchronized void checkpoint() {
+    for (Map.Entry<File, Handle> e : this.handles.entrySet()) {
+      try {
+        e.getValue().sync();
+      } catch (IOException ex) {
+        logger.warn("Could not write appended descriptors to {}.",
+            e.getKey(), ex);
+      }
+    }
+    this.bytesSinceCheckpoint = 0L;
+  }
+
+  /** Writes all buffered bytes to disk, syncs, and closes all files. */
+  @Override
+  public synchronized void close() {
+    for (Map.Entry<File, Handle> e : this.handles.entrySet()) {
+      close(e.getKey(), e.getValue());
+    }
+    this.handles.clear();
+    this.bytesSinceCheckpoint = 0L;
+  }
+
+  private static void close(File file, Handle handle) {
+    try {
+      handle.sync();
+    } catch (IOException e) {
+      logger.warn("Could not write appended descriptors to {}.", file, e);
+    }
+    try {
+      handle.buffer.close();
+    } catch (IOException e) {
+      logger.warn("Could not close {}.", file, e);
+    }
+  }
+}
@@ -3,6 +3,9 @@
 
 package org.torproject.metrics.collector.relaydescs;
 
+import org.torproject.metrics.collector.cron.Checkpoint;
+import org.torproject.metrics.collector.cron.CollecTorMain;
+
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
@@ -22,16 +25,22 @@ import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.Stack;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Read in all files in a given directory and pass buffered readers of
@@ -49,6 +58,8 @@ public class ArchiveReader {
 
   private File archivesDirectory;
 
+  private Collection<File> filesToImport;
+
   private boolean keepImportHistory;
 
   private int parsedFiles = 0;
@@ -59,24 +70,43 @@ public class ArchiveReader {
 
   private File archivesImportHistoryFile;
 
+  private Checkpoint checkpoint;
+
   /** Initializes an archive reader but without reading any descriptors yet. */
   ArchiveReader(RelayDescriptorParser rdp, File archivesDirectory,
       File statsDirectory, boolean keepImportHistory) {
+    this(rdp, archivesDirectory, statsDirectory, keepImportHistory,
+        Collections.singletonList(archivesDirectory));
+  }
+
+  /** Initializes an archive reader that only reads the given files or
+   * directories, which are all located in the given archives directory, but
+   * without reading any descriptors yet. */
+  ArchiveReader(RelayDescriptorParser rdp, File archivesDirectory,
+      File statsDirectory, boolean keepImportHistory,
+      Collection<File> filesToImport) {
     if (rdp == null || archivesDirectory == null
-        || statsDirectory == null) {
+        || statsDirectory == null || filesToImport == null) {
       throw new IllegalArgumentException();
     }
     this.rdp = rdp;
     this.rdp.setArchiveReader(this);
     this.archivesDirectory = archivesDirectory;
     this.keepImportHistory = keepImportHistory;
+    this.filesToImport = filesToImport;
     this.archivesImportHistoryFile = new File(statsDirectory,
         "archives-import-history");
+    this.checkpoint = Checkpoint.load(new File(statsDirectory,
+        "archives-import-checkpoint").toPath());
   }
 
   /** Reads all descriptors from the given directory, possibly using a
    * parse history file, and passes them to the given descriptor
-   * parser. */
+   * parser.
+   *
+   * <p>If CollecTor is shutting down, stops after the current file and
+   * saves a checkpoint of imported files, so that the next import can skip
+   * them.</p> */
   public void readDescriptors() {
     this.readHistoryFile();
     this.readDescriptorFiles();
@@ -105,18 +135,29 @@ public class ArchiveReader {
       logger.debug("Importing files in directory {}/...",
           this.archivesDirectory);
       Stack<File> filesInInputDir = new Stack<>();
-      filesInInputDir.add(this.archivesDirectory);
+      filesInInputDir.addAll(this.filesToImport);
       List<File> problems = new ArrayList<>();
       Set<File> filesToRetry = new HashSet<>();
+      Queue<Map.Entry<File, Future<Boolean>>> submittedFiles
+          = new ArrayDeque<>();
       while (!filesInInputDir.isEmpty()) {
+        if (CollecTorMain.isStopRequested()) {
+          logger.info("Stopping import from {}/ with {} file(s) left to "
+              + "import. Resuming on next run.", this.archivesDirectory,
+              filesInInputDir.size());
+          this.recordStoredFiles(submittedFiles, filesToRetry, true);
+          this.checkpoint.save();
+          return;
+        }
         File pop = filesInInputDir.pop();
         if (pop.isDirectory()) {
           Collections.addAll(filesInInputDir, pop.listFiles());
         } else {
           try {
             BufferedInputStream bis;
-            if (this.keepImportHistory
-                && this.archivesImportHistory.contains(pop.getName())) {
+            if ((this.keepImportHistory
+                && this.archivesImportHistory.contains(pop.getName()))
+                || this.checkpoint.isFinished(pop.getAbsolutePath())) {
               this.ignoredFiles++;
               continue;
             } else if (pop.getName().endsWith(".tar.bz2")) {
@@ -140,15 +181,9 @@ public class ArchiveReader {
             }
             bis.close();
             byte[] allData = baos.toByteArray();
-            boolean stored = this.rdp.parse(allData, pop);
-            if (!stored) {
-              filesToRetry.add(pop);
-              continue;
-            }
-            if (this.keepImportHistory) {
-              this.archivesImportHistory.add(pop.getName());
-            }
-            this.parsedFiles++;
+            submittedFiles.add(new AbstractMap.SimpleImmutableEntry<>(pop,
+                this.rdp.submit(allData, pop)));
+            this.recordStoredFiles(submittedFiles, filesToRetry, false);
           } catch (IOException e) {
             problems.add(pop);
             if (problems.size() > 3) {
@@ -157,6 +192,8 @@ public class ArchiveReader {
           }
         }
       }
+      this.recordStoredFiles(submittedFiles, filesToRetry, true);
+      this.checkpoint.delete();
       for (File pop : filesToRetry) {
         /* TODO We need to parse microdescriptors ourselves, rather than
          * RelayDescriptorParser, because only we know the valid-after
@@ -270,6 +307,41 @@ public class ArchiveReader {
     }
   }
 
+  /* Record files that have been submitted to the relay descriptor parser
+   * as imported, in the order of submission, or remember to retry them as
+   * microdescriptors if they didn't contain a descriptor that could be
+   * stored right away.  Only record files that have already been stored,
+   * unless we're asked to wait for all submitted files to be stored. */
+  private void recordStoredFiles(
+      Queue<Map.Entry<File, Future<Boolean>>> submittedFiles,
+      Set<File> filesToRetry, boolean waitForAll) {
+    while (!submittedFiles.isEmpty()
+        && (waitForAll || submittedFiles.peek().getValue().isDone())) {
+      File file = submittedFiles.peek().getKey();
+      boolean stored;
+      try {
+        stored = submittedFiles.peek().getValue().get();
+      } catch (ExecutionException e) {
+        stored = false;
+      } catch (InterruptedException e) {
+        logger.warn("Interrupted while waiting for {} to be stored. Not "
+            + "recording it or any later files as imported.", file);
+        Thread.currentThread().interrupt();
+        return;
+      }
+      submittedFiles.poll();
+      if (!stored) {
+        filesToRetry.add(file);
+        continue;
+      }
+      if (this.keepImportHistory) {
+        this.archivesImportHistory.add(file.getName());
+      }
+      this.checkpoint.finished(file.getAbsolutePath());
+      this.parsedFiles++;
+    }
+  }
+
   private void writeHistoryFile() {
     if (this.keepImportHistory) {
       try {
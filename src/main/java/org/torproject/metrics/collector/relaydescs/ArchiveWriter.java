@@ -18,17 +18,22 @@ import org.torproject.metrics.collector.conf.ConfigurationException;
 import org.torproject.metrics.collector.conf.Key;
 import org.torproject.metrics.collector.conf.SourceType;
 import org.torproject.metrics.collector.cron.CollecTorMain;
-
+import org.torproject.metrics.collector.cron.ResourceManager;
+import org.torproject.metrics.collector.monitoring.MetricsRegistry;
+import org.torproject.metrics.collector.persist.RecentFiles;
+import org.torproject.metrics.collector.persist.SegmentStore;
+import org.torproject.metrics.collector.persist.WriteBehindAppender;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -38,15 +43,11 @@ import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
-import java.util.SortedSet;
-import java.util.Stack;
 import java.util.TreeMap;
 import java.util.TreeSet;
 
@@ -61,6 +62,9 @@ public class ArchiveWriter extends CollecTorMain {
   private String outputDirectory;
   private String rsyncCatString;
   private DescriptorParser descriptorParser;
+  private Verification verification = Verification.FULL;
+  private int bulkDescriptorsSinceLastVerification = 0;
+  private int verifiedDescriptorsCounter = 0;
   private int storedConsensusesCounter = 0;
   private int storedMicrodescConsensusesCounter = 0;
   private int storedVotesCounter = 0;
@@ -70,21 +74,31 @@ public class ArchiveWriter extends CollecTorMain {
   private int storedExtraInfoDescriptorsCounter = 0;
   private int storedMicrodescriptorsCounter = 0;
 
-  private SortedMap<Long, SortedSet<String>> storedConsensuses =
-      new TreeMap<>();
-  private SortedMap<Long, SortedSet<String>> storedMicrodescConsensuses =
+  private SortedMap<Long, ReferenceCompleteness.Counts> storedConsensuses =
       new TreeMap<>();
+  private SortedMap<Long, ReferenceCompleteness.Counts>
+      storedMicrodescConsensuses = new TreeMap<>();
   private SortedMap<Long, Integer> expectedVotes = new TreeMap<>();
-  private SortedMap<Long, SortedMap<String, SortedSet<String>>> storedVotes =
-      new TreeMap<>();
-  private SortedMap<Long, Map<String, String>> storedServerDescriptors =
-      new TreeMap<>();
-  private SortedMap<Long, Set<String>> storedExtraInfoDescriptors =
-      new TreeMap<>();
-  private SortedMap<Long, Set<String>> storedMicrodescriptors = new TreeMap<>();
+  private SortedMap<Long, SortedMap<String, ReferenceCompleteness.Counts>>
+      storedVotes = new TreeMap<>();
+  private StoredDigestIndex storedServerDescriptors;
+  private StoredDigestIndex storedExtraInfoDescriptors;
+  private StoredDigestIndex storedMicrodescriptors;
+  private ReferenceCompleteness referenceCompleteness;
+
+  /* Segments to store server descriptors, extra-info descriptors, and
+   * microdescriptors in, or null if they are stored in separate files. */
+  private SegmentStore descriptorSegments;
+
+  /* Appender keeping concatenated descriptor files in the rsync directory
+   * open during a run, or null if they are opened for each descriptor. */
+  private WriteBehindAppender rsyncAppender;
   private SortedMap<LocalDateTime, Set<String>> storedBandwidths
       = new TreeMap<>();
 
+  /* Text files in which digests of stored descriptors were kept before
+   * keeping them in digest indexes, which are imported once and deleted
+   * after saving digest indexes. */
   private File storedServerDescriptorsFile;
   private File storedExtraInfoDescriptorsFile;
   private File storedMicrodescriptorsFile;
@@ -94,11 +108,50 @@ public class ArchiveWriter extends CollecTorMain {
   private Path recentPath;
   private String recentPathName;
   private static final String RELAY_DESCRIPTORS = "relay-descriptors";
+  private static final String RELAY_DESCRIPTOR_SEGMENTS
+      = "relay-descriptor-segments";
   private static final String MICRO = "micro";
   private static final String CONSENSUS_MICRODESC = "consensus-microdesc";
   private static final String MICRODESC = "microdesc";
   private static final String MICRODESCS = "microdescs";
 
+  /** Number of server descriptors, extra-info descriptors, and
+   * microdescriptors stored per verified descriptor of these types when
+   * verifying a sample. */
+  static final int SAMPLE_INTERVAL = 100;
+
+  /** Extent to which descriptors are parsed with metrics-lib before
+   * being stored, in addition to being parsed by
+   * {@link RelayDescriptorParser}. */
+  enum Verification {
+
+    /** Parse all descriptors. */
+    FULL,
+
+    /** Parse all network statuses, bandwidth files, and certificates, but
+     * only one in {@link #SAMPLE_INTERVAL} server descriptors, extra-info
+     * descriptors, and microdescriptors. */
+    SAMPLED,
+
+    /** Don't parse descriptors again. */
+    NONE;
+
+    /** Returns the verification level with the given case-insensitive
+     * name, or {@link #FULL} if the name is missing or unknown. */
+    static Verification of(String name) {
+      if (null != name) {
+        for (Verification verification : values()) {
+          if (verification.name().equalsIgnoreCase(name.trim())) {
+            return verification;
+          }
+        }
+        logger.warn("Unknown relay descriptor verification level '{}'. "
+            + "Verifying all descriptors.", name);
+      }
+      return FULL;
+    }
+  }
+
   /** Initialize an archive writer with a given configuration. */
   public ArchiveWriter(Configuration config) {
     super(config);
@@ -139,6 +192,18 @@ public class ArchiveWriter extends CollecTorMain {
         = new File(statsDir, "stored-extra-info-descriptors");
     storedMicrodescriptorsFile
         = new File(statsDir, "stored-microdescriptors");
+    File storedDescriptorsDir = new File(statsDir, "stored-descriptors");
+    this.storedServerDescriptors = new StoredDigestIndex(storedDescriptorsDir,
+        "server-descriptors", 20, 20, this.now - 48L * 60L * 60L * 1000L);
+    this.storedExtraInfoDescriptors = new StoredDigestIndex(
+        storedDescriptorsDir, "extra-info-descriptors", 20, 0,
+        this.now - 48L * 60L * 60L * 1000L);
+    this.storedMicrodescriptors = new StoredDigestIndex(storedDescriptorsDir,
+        "microdescriptors", 32, 0,
+        this.now - 40L * 24L * 60L * 60L * 1000L);
+    this.referenceCompleteness = new ReferenceCompleteness(
+        this.storedServerDescriptors, this.storedExtraInfoDescriptors,
+        this.storedMicrodescriptors);
     File statsDirectory = config.getPath(Key.StatsPath).toFile();
     this.outputDirectory
         = Paths.get(config.getPath(Key.OutputPath).toString(),
@@ -149,9 +214,58 @@ public class ArchiveWriter extends CollecTorMain {
         System.currentTimeMillis());
     this.descriptorParser =
         DescriptorSourceFactory.createDescriptorParser();
+    this.verification = Verification.of(
+        config.getProperty(Key.RelayDescriptorVerification.name()));
+    if (config.getBool(Key.StoreRelayDescriptorsInSegments)) {
+      this.descriptorSegments = new SegmentStore(
+          config.getPath(Key.OutputPath).resolve(RELAY_DESCRIPTOR_SEGMENTS),
+          Paths.get(this.outputDirectory), 2);
+    }
 
     this.loadDescriptorDigests();
 
+    this.rsyncAppender = new WriteBehindAppender(1024L * 1024L
+        * config.getInt(Key.WriteBehindCheckpointMegabytes));
+    /* Close segments, appended rsync files, and digest journals even if
+     * importing or downloading descriptors fails, so that appended
+     * descriptors and their digests are written and remain readable. */
+    try {
+      this.importAndDownloadDescriptors(statsDirectory);
+    } finally {
+      this.storedServerDescriptors.close();
+      this.storedExtraInfoDescriptors.close();
+      this.storedMicrodescriptors.close();
+      if (null != this.descriptorSegments) {
+        this.descriptorSegments.close();
+        this.descriptorSegments = null;
+      }
+      this.rsyncAppender.close();
+      this.rsyncAppender = null;
+    }
+
+    this.runReport().startPhase("missing check");
+    this.checkMissingDescriptors();
+
+    this.checkStaledescriptors();
+
+    this.runReport().startPhase("rsync cleanup");
+    this.cleanUpRsyncDirectory();
+
+    this.runReport().startPhase("digest save");
+    this.saveDescriptorDigests();
+
+    this.runReport().startPhase("reference check");
+    new ReferenceChecker(Paths.get(recentPathName, RELAY_DESCRIPTORS).toFile(),
+        new File(statsDir, "references"),
+        new File(statsDir, "references-history")).check();
+    CollecTorMain.checkAvailableSpace(recentPath);
+    cleanUp();
+  }
+
+  /* Import relay descriptors from configured sources and download missing
+   * descriptors from the directory authorities. */
+  private void importAndDownloadDescriptors(File statsDirectory)
+      throws ConfigurationException {
     // Prepare relay descriptor parser
     RelayDescriptorParser rdp = new RelayDescriptorParser(this);
 
@@ -167,45 +281,60 @@ public class ArchiveWriter extends CollecTorMain {
           true, true, true, // download missing serverdesc, extrainfo, and micro
           config.getBool(Key.DownloadAllServerDescriptors),
           config.getBool(Key.DownloadAllExtraInfoDescriptors),
-          config.getBool(Key.CompressRelayDescriptorDownloads));
+          config.getBool(Key.CompressRelayDescriptorDownloads),
+          config.getInt(Key.ParallelAuthorityDownloads),
+          config.getInt(Key.ParallelRequestsPerAuthority));
+      if (config.getBool(Key.DownloadConsensusDiffs)) {
+        rdd.setConsensusDiffBases(
+            Paths.get(recentPathName, RELAY_DESCRIPTORS, "consensuses"),
+            Paths.get(recentPathName, RELAY_DESCRIPTORS, MICRODESCS,
+            CONSENSUS_MICRODESC));
+      }
       rdp.setRelayDescriptorDownloader(rdd);
     }
-    if (sources.contains(SourceType.Cache)) {
-      new CachedRelayDescriptorReader(rdp,
-          config.getStringArray(Key.RelayCacheOrigins), statsDirectory)
-          .readDescriptors();
-      this.intermediateStats("importing relay descriptors from local "
-          + "Tor data directories");
-    }
-    if (sources.contains(SourceType.Local)) {
-      new ArchiveReader(rdp,
-          config.getPath(Key.RelayLocalOrigins).toFile(),
-          statsDirectory,
-          config.getBool(Key.KeepDirectoryArchiveImportHistory))
-          .readDescriptors();
-      this.intermediateStats("importing relay descriptors from local "
-          + "directory");
+    /* Parsing imported descriptors is CPU-bound, so we lease workers from
+     * the shared resource manager while doing so, and parse descriptors on
+     * as many threads as we were granted workers. */
+    try (ResourceManager.Lease lease = ResourceManager.getInstance().acquire(
+        this.module(), Math.max(1, config.getInt(
+        Key.RelayDescriptorParseWorkers)));
+        ImportPipeline pipeline = lease.workers() > 1
+            ? new ImportPipeline(lease.workers()) : null) {
+      rdp.setImportPipeline(pipeline);
+      if (sources.contains(SourceType.Cache)) {
+        this.runReport().startPhase("cache import");
+        new CachedRelayDescriptorReader(rdp,
+            config.getStringArray(Key.RelayCacheOrigins), statsDirectory)
+            .readDescriptors();
+        this.intermediateStats("importing relay descriptors from local "
+            + "Tor data directories");
+      }
+      if (sources.contains(SourceType.Local)) {
+        this.runReport().startPhase("archive import");
+        File relayLocalOrigins
+            = config.getPath(Key.RelayLocalOrigins).toFile();
+        new ArchiveReader(rdp, relayLocalOrigins, statsDirectory,
+            config.getBool(Key.KeepDirectoryArchiveImportHistory),
+            this.changedLocalOriginFiles(relayLocalOrigins.toPath())
+            .orElse(Collections.singletonList(relayLocalOrigins)))
+            .readDescriptors();
+        this.intermediateStats("importing relay descriptors from local "
+            + "directory");
+      }
+    } catch (InterruptedException ie) {
+      logger.info("Interrupted while waiting for a worker. Not importing "
+          + "relay descriptors from local directories.");
+      Thread.currentThread().interrupt();
+    } finally {
+      rdp.setImportPipeline(null);
     }
     if (rdd != null) {
+      this.runReport().startPhase("download");
       rdd.downloadDescriptors();
       rdd.writeFile();
       this.intermediateStats("downloading relay descriptors from the "
           + "directory authorities");
     }
-
-    this.checkMissingDescriptors();
-
-    this.checkStaledescriptors();
-
-    this.cleanUpRsyncDirectory();
-
-    this.saveDescriptorDigests();
-
-    new ReferenceChecker(Paths.get(recentPathName, RELAY_DESCRIPTORS).toFile(),
-        new File(statsDir, "references"),
-        new File(statsDir, "references-history")).check();
-    CollecTorMain.checkAvailableSpace(recentPath);
-    cleanUp();
   }
 
   private void cleanUp() {
@@ -215,11 +344,11 @@ public class ArchiveWriter extends CollecTorMain {
     this.storedMicrodescConsensuses.clear();
     this.storedVotes.clear();
     this.storedBandwidths.clear();
-    this.storedServerDescriptors.clear();
-    this.storedExtraInfoDescriptors.clear();
-    this.storedMicrodescriptors.clear();
+    this.referenceCompleteness.clear();
   }
 
+  /* Import digests from text files written by earlier versions, if they
+   * still exist. */
   private void loadDescriptorDigests() {
     SimpleDateFormat dateTimeFormat = new SimpleDateFormat(
         "yyyy-MM-dd HH:mm:ss");
@@ -237,15 +366,8 @@ public class ArchiveWriter extends CollecTorMain {
             break;
           }
           long published = dateTimeFormat.parse(parts[0]).getTime();
-          if (published < this.now - 48L * 60L * 60L * 1000L) {
-            continue;
-          }
-          this.storedServerDescriptors.putIfAbsent(published, new HashMap<>());
-          String serverDescriptorDigest = parts[1];
-          String extraInfoDescriptorDigest = parts[2].equals("NA") ? null
-              : parts[2];
-          this.storedServerDescriptors.get(published).put(
-              serverDescriptorDigest, extraInfoDescriptorDigest);
+          this.storedServerDescriptors.add(published, decodeDigest(parts[1]),
+              parts[2].equals("NA") ? null : decodeDigest(parts[2]));
         }
         br.close();
       }
@@ -262,14 +384,8 @@ public class ArchiveWriter extends CollecTorMain {
             break;
           }
           long published = dateTimeFormat.parse(parts[0]).getTime();
-          if (published < this.now - 48L * 60L * 60L * 1000L) {
-            continue;
-          }
-          this.storedExtraInfoDescriptors.putIfAbsent(published,
-              new HashSet<>());
-          String extraInfoDescriptorDigest = parts[1];
-          this.storedExtraInfoDescriptors.get(published).add(
-              extraInfoDescriptorDigest);
+          this.storedExtraInfoDescriptors.add(published,
+              decodeDigest(parts[1]), null);
         }
         br.close();
       }
@@ -286,13 +402,8 @@ public class ArchiveWriter extends CollecTorMain {
             break;
           }
           long validAfter = dateTimeFormat.parse(parts[0]).getTime();
-          if (validAfter < this.now - 40L * 24L * 60L * 60L * 1000L) {
-            continue;
-          }
-          this.storedMicrodescriptors.putIfAbsent(validAfter, new HashSet<>());
-          String microdescriptorDigest = parts[1];
-          this.storedMicrodescriptors.get(validAfter).add(
-              microdescriptorDigest);
+          this.storedMicrodescriptors.add(validAfter, decodeDigest(parts[1]),
+              null);
         }
         br.close();
       }
@@ -303,9 +414,21 @@ public class ArchiveWriter extends CollecTorMain {
     }
   }
 
+  /** Decodes the given hex-encoded digest, or returns null if it's not
+   * hex-encoded. */
+  static byte[] decodeDigest(String digest) {
+    try {
+      return Hex.decodeHex(digest.toCharArray());
+    } catch (DecoderException e) {
+      return null;
+    }
+  }
+
   /** Compiles a message with statistics on stored descriptors by type for
-   * later inclusion in the log and resets counters. */
+   * later inclusion in the log, resets counters, and ends the current phase
+   * in the run report. */
   public void intermediateStats(String event) {
+    this.runReport().endPhase();
     intermediateStats.append("While ").append(event).append(", we stored ")
         .append(this.storedConsensusesCounter).append(" consensus(es), ")
         .append(this.storedMicrodescConsensusesCounter).append(" microdesc ")
@@ -317,7 +440,10 @@ public class ArchiveWriter extends CollecTorMain {
         .append(this.storedExtraInfoDescriptorsCounter).append(" extra-info ")
         .append("descriptor(s), and ")
         .append(this.storedMicrodescriptorsCounter)
-        .append(" microdescriptor(s) to disk.\n");
+        .append(" microdescriptor(s) to disk, verifying ")
+        .append(this.verifiedDescriptorsCounter)
+        .append(" of them.\n");
+    this.verifiedDescriptorsCounter = 0;
     this.storedConsensusesCounter = 0;
     this.storedMicrodescConsensusesCounter = 0;
     this.storedVotesCounter = 0;
@@ -328,6 +454,19 @@ public class ArchiveWriter extends CollecTorMain {
     this.storedMicrodescriptorsCounter = 0;
   }
 
+  /** Adds the given number of bytes to the bytes read in the current phase of
+   * the run report. */
+  void countBytesRead(long bytes) {
+    this.runReport().addBytesRead(bytes);
+  }
+
+  private void countStoredDescriptor(String type) {
+    this.runReport().addDescriptors(1L);
+    MetricsRegistry.getInstance().counter(
+        "collector_relaydescs_stored_descriptors_total",
+        "Number of relay descriptors stored to disk.", "type", type).inc();
+  }
+
   private void checkMissingDescriptors() {
     StringBuilder sb = new StringBuilder("Finished writing relay "
         + "descriptors to disk.\n");
@@ -336,53 +475,23 @@ public class ArchiveWriter extends CollecTorMain {
         + "descriptors:");
     SimpleDateFormat dateTimeFormat =
         new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-    Map<String, String> knownServerDescriptors = new HashMap<>();
-    for (Map<String, String> descriptors :
-        this.storedServerDescriptors.values()) {
-      knownServerDescriptors.putAll(descriptors);
-    }
-    Set<String> knownExtraInfoDescriptors = new HashSet<>();
-    for (Set<String> descriptors :
-        this.storedExtraInfoDescriptors.values()) {
-      knownExtraInfoDescriptors.addAll(descriptors);
-    }
-    Set<String> knownMicrodescriptors = new HashSet<>();
-    for (Set<String> descriptors : this.storedMicrodescriptors.values()) {
-      knownMicrodescriptors.addAll(descriptors);
-    }
     boolean missingDescriptors = false;
     boolean missingVotes = false;
     boolean missingMicrodescConsensus = false;
-    for (Map.Entry<Long, SortedSet<String>> c :
+    for (Map.Entry<Long, ReferenceCompleteness.Counts> c :
         this.storedConsensuses.entrySet()) {
       long validAfterMillis = c.getKey();
       String validAfterTime = dateTimeFormat.format(validAfterMillis);
       int foundVotes = 0;
       if (this.storedVotes.containsKey(validAfterMillis)) {
         foundVotes = this.storedVotes.get(validAfterMillis).size();
-        for (Map.Entry<String, SortedSet<String>> v :
+        for (Map.Entry<String, ReferenceCompleteness.Counts> v :
             this.storedVotes.get(validAfterMillis).entrySet()) {
-          int voteFoundServerDescs = 0;
-          int voteAllServerDescs = 0;
-          int voteFoundExtraInfos = 0;
-          int voteAllExtraInfos = 0;
-          for (String serverDescriptorDigest : v.getValue()) {
-            voteAllServerDescs++;
-            if (knownServerDescriptors.containsKey(
-                serverDescriptorDigest)) {
-              voteFoundServerDescs++;
-              if (knownServerDescriptors.get(serverDescriptorDigest)
-                  != null) {
-                String extraInfoDescriptorDigest =
-                    knownServerDescriptors.get(serverDescriptorDigest);
-                voteAllExtraInfos++;
-                if (knownExtraInfoDescriptors.contains(
-                    extraInfoDescriptorDigest)) {
-                  voteFoundExtraInfos++;
-                }
-              }
-            }
-          }
+          ReferenceCompleteness.Counts voteCounts = v.getValue();
+          int voteFoundServerDescs = voteCounts.getFoundServerDescriptors();
+          int voteAllServerDescs = voteCounts.getAllServerDescriptors();
+          int voteFoundExtraInfos = voteCounts.getFoundExtraInfoDescriptors();
+          int voteAllExtraInfos = voteCounts.getAllExtraInfoDescriptors();
           sb.append("\nV, ").append(validAfterTime);
           if (voteAllServerDescs > 0) {
             sb.append(String.format(", %d/%d S (%.1f%%)",
@@ -410,29 +519,12 @@ public class ArchiveWriter extends CollecTorMain {
           }
         }
       }
-      int foundServerDescs = 0;
-      int allServerDescs = 0;
-      int foundExtraInfos = 0;
-      int allExtraInfos = 0;
+      int foundServerDescs = c.getValue().getFoundServerDescriptors();
+      int allServerDescs = c.getValue().getAllServerDescriptors();
+      int foundExtraInfos = c.getValue().getFoundExtraInfoDescriptors();
+      int allExtraInfos = c.getValue().getAllExtraInfoDescriptors();
       int foundMicrodescriptors = 0;
       int allMicrodescriptors = 0;
-      for (String serverDescriptorDigest : c.getValue()) {
-        allServerDescs++;
-        if (knownServerDescriptors.containsKey(
-            serverDescriptorDigest)) {
-          foundServerDescs++;
-          if (knownServerDescriptors.get(
-              serverDescriptorDigest) != null) {
-            allExtraInfos++;
-            String extraInfoDescriptorDigest =
-                knownServerDescriptors.get(serverDescriptorDigest);
-            if (knownExtraInfoDescriptors.contains(
-                extraInfoDescriptorDigest)) {
-              foundExtraInfos++;
-            }
-          }
-        }
-      }
       sb.append("\nC, ").append(validAfterTime);
       int allVotes = this.expectedVotes.getOrDefault(validAfterMillis, 0);
       if (allVotes > 0) {
@@ -456,13 +548,10 @@ public class ArchiveWriter extends CollecTorMain {
         sb.append(", 0/0 E");
       }
       if (this.storedMicrodescConsensuses.containsKey(validAfterMillis)) {
-        for (String microdescriptorDigest :
-            this.storedMicrodescConsensuses.get(validAfterMillis)) {
-          allMicrodescriptors++;
-          if (knownMicrodescriptors.contains(microdescriptorDigest)) {
-            foundMicrodescriptors++;
-          }
-        }
+        ReferenceCompleteness.Counts microdescCounts
+            = this.storedMicrodescConsensuses.get(validAfterMillis);
+        foundMicrodescriptors = microdescCounts.getFoundMicrodescriptors();
+        allMicrodescriptors = microdescCounts.getAllMicrodescriptors();
         sb.append("\nM, ").append(validAfterTime);
         if (allMicrodescriptors > 0) {
           sb.append(String.format(", %d/%d M (%.1f%%)",
@@ -528,24 +617,26 @@ public class ArchiveWriter extends CollecTorMain {
           + "{}, which is more than 5:30 hours in the past.",
           dateTimeFormat.format(this.storedVotes.lastKey()));
     }
-    if (!this.storedServerDescriptors.isEmpty()
-        && this.storedServerDescriptors.lastKey() < tooOldMillis) {
+    long lastServerDescriptor = this.storedServerDescriptors.latestTime();
+    if (lastServerDescriptor >= 0L && lastServerDescriptor < tooOldMillis) {
       logger.warn("The last known relay server descriptor was published at "
           + "{}, which is more than 5:30 hours in the past.",
-          dateTimeFormat.format(this.storedServerDescriptors.lastKey()));
+          dateTimeFormat.format(lastServerDescriptor));
     }
-    if (!this.storedExtraInfoDescriptors.isEmpty()
-        && this.storedExtraInfoDescriptors.lastKey() < tooOldMillis) {
+    long lastExtraInfoDescriptor
+        = this.storedExtraInfoDescriptors.latestTime();
+    if (lastExtraInfoDescriptor >= 0L
+        && lastExtraInfoDescriptor < tooOldMillis) {
       logger.warn("The last known relay extra-info descriptor was published "
           + "at {}, which is more than 5:30 hours in the past.",
-          dateTimeFormat.format(this.storedExtraInfoDescriptors.lastKey()));
+          dateTimeFormat.format(lastExtraInfoDescriptor));
     }
-    if (!this.storedMicrodescriptors.isEmpty()
-        && this.storedMicrodescriptors.lastKey() < tooOldMillis) {
+    long lastMicrodescriptor = this.storedMicrodescriptors.latestTime();
+    if (lastMicrodescriptor >= 0L && lastMicrodescriptor < tooOldMillis) {
       logger.warn("The last known relay microdescriptor was contained in a "
           + "microdesc consensus that was valid after {}, which is more than "
           + "5:30 hours in the past.",
-          dateTimeFormat.format(this.storedMicrodescriptors.lastKey()));
+          dateTimeFormat.format(lastMicrodescriptor));
     }
   }
 
@@ -554,115 +645,36 @@ public class ArchiveWriter extends CollecTorMain {
    * for up to thirty days), and remove the .tmp extension from newly
    * written files. */
   public void cleanUpRsyncDirectory() {
-    long cutOffMillis = System.currentTimeMillis()
-        - 3L * 24L * 60L * 60L * 1000L;
-    long cutOffMicroMillis = cutOffMillis - 27L * 24L * 60L * 60L * 1000L;
-    Stack<File> allFiles = new Stack<>();
-    allFiles.add(new File(recentPathName, RELAY_DESCRIPTORS));
-    while (!allFiles.isEmpty()) {
-      File file = allFiles.pop();
-      if (file.isDirectory()) {
-        File[] containedFiles = file.listFiles();
-        if (null == containedFiles) {
-          logger.warn("Unable to list files contained in directory {}.", file);
-        } else {
-          allFiles.addAll(Arrays.asList(containedFiles));
-        }
-      } else if (file.getName().endsWith("-micro")) {
-        if (file.lastModified() < cutOffMicroMillis) {
-          if (!file.delete()) {
-            logger.warn("Unable to delete outdated descriptor file {}.", file);
-          }
-        }
-      } else if (file.lastModified() < cutOffMillis) {
-        if (!file.delete()) {
-          logger.warn("Unable to delete outdated descriptor file {}.", file);
-        }
-      } else if (file.getName().endsWith(".tmp")) {
-        File destinationFile = new File(file.getParentFile(),
-            file.getName().substring(0, file.getName().lastIndexOf(".tmp")));
-        if (destinationFile.exists()) {
-          logger.warn("Attempting to rename descriptor file {} to existing "
-              + "file {}.", file, destinationFile);
-        } else {
-          logger.info("Renaming descriptor file {} to non-existing file {}.",
-              file, destinationFile);
-        }
-        if (!file.renameTo(destinationFile)) {
-          logger.warn("Unable to rename descriptor file {} to {}.", file,
-              destinationFile);
-        }
-      }
+    long retentionMillis = 3L * 24L * 60L * 60L * 1000L;
+    long retentionMicroMillis = 30L * 24L * 60L * 60L * 1000L;
+    Path directory = Paths.get(recentPathName, RELAY_DESCRIPTORS);
+    try {
+      RecentFiles.getInstance().clean(this.module(), directory,
+          name -> name.endsWith("-micro") ? retentionMicroMillis
+          : retentionMillis, true);
+    } catch (IOException e) {
+      logger.warn("Unable to clean up directory {}.", directory, e);
     }
   }
 
   private void saveDescriptorDigests() {
-    SimpleDateFormat dateTimeFormat = new SimpleDateFormat(
-        "yyyy-MM-dd HH:mm:ss");
-    try {
-      if (!this.storedServerDescriptorsFile.getParentFile().exists()
-          && !this.storedServerDescriptorsFile.getParentFile().mkdirs()) {
-        logger.warn("Unable to create parent directories of file {}.",
-            this.storedServerDescriptorsFile);
-      }
-      BufferedWriter bw = new BufferedWriter(new FileWriter(
-          this.storedServerDescriptorsFile));
-      for (Map.Entry<Long, Map<String, String>> e :
-          this.storedServerDescriptors.entrySet()) {
-        String published = dateTimeFormat.format(e.getKey());
-        for (Map.Entry<String, String> f : e.getValue().entrySet()) {
-          String serverDescriptorDigest = f.getKey();
-          String extraInfoDescriptorDigest = f.getValue() == null ? "NA"
-              : f.getValue();
-          bw.write(String.format("%s,%s,%s%n", published,
-              serverDescriptorDigest, extraInfoDescriptorDigest));
-        }
-      }
-      bw.close();
-      if (!this.storedExtraInfoDescriptorsFile.getParentFile().exists()
-          && !this.storedExtraInfoDescriptorsFile.getParentFile().mkdirs()) {
-        logger.warn("Unable to create parent directories of file {}.",
-            this.storedExtraInfoDescriptorsFile);
-      }
-      bw = new BufferedWriter(new FileWriter(
-          this.storedExtraInfoDescriptorsFile));
-      for (Map.Entry<Long, Set<String>> e :
-          this.storedExtraInfoDescriptors.entrySet()) {
-        String published = dateTimeFormat.format(e.getKey());
-        for (String extraInfoDescriptorDigest : e.getValue()) {
-          bw.write(String.format("%s,%s%n", published,
-              extraInfoDescriptorDigest));
-        }
+    this.storedServerDescriptors.flush();
+    this.storedExtraInfoDescriptors.flush();
+    this.storedMicrodescriptors.flush();
+    for (File file : new File[] { this.storedServerDescriptorsFile,
+        this.storedExtraInfoDescriptorsFile,
+        this.storedMicrodescriptorsFile }) {
+      if (file.exists() && !file.delete()) {
+        logger.warn("Unable to delete file {}, whose digests are now kept in "
+            + "a digest index.", file);
       }
-      bw.close();
-      if (!this.storedMicrodescriptorsFile.getParentFile().exists()
-          && !this.storedMicrodescriptorsFile.getParentFile().mkdirs()) {
-        logger.warn("Unable to create parent directories of file {}.",
-            this.storedMicrodescriptorsFile);
-      }
-      bw = new BufferedWriter(new FileWriter(
-          this.storedMicrodescriptorsFile));
-      for (Map.Entry<Long, Set<String>> e :
-          this.storedMicrodescriptors.entrySet()) {
-        String validAfter = dateTimeFormat.format(e.getKey());
-        for (String microdescriptorDigest : e.getValue()) {
-          bw.write(String.format("%s,%s%n", validAfter,
-              microdescriptorDigest));
-        }
-      }
-      bw.close();
-    } catch (IOException e) {
-      logger.warn("Could not save descriptor "
-          + "digests.  We might not be able to correctly check "
-          + "descriptors for completeness in the next run.", e);
     }
   }
 
   /** Stores a consensus to disk and adds all referenced votes and server
    * descriptors to the list of missing descriptors. */
-  public void storeConsensus(byte[] data, long validAfter,
-      SortedSet<String> dirSources,
-      SortedSet<String> serverDescriptorDigests) {
+  void storeConsensus(byte[] data, NetworkStatusScanner consensus) {
+    long validAfter = consensus.getValidAfter();
     SimpleDateFormat printFormat = new SimpleDateFormat(
         "yyyy/MM/dd/yyyy-MM-dd-HH-mm-ss");
     File tarballFile = Paths.get(this.outputDirectory, "consensus",
@@ -671,20 +683,23 @@ public class ArchiveWriter extends CollecTorMain {
     File rsyncFile = Paths.get(recentPathName, RELAY_DESCRIPTORS,
         "consensuses", tarballFile.getName()).toFile();
     File[] outputFiles = new File[] { tarballFile, rsyncFile };
-    if (this.store(Annotation.Consensus.bytes(), data, outputFiles, null)) {
+    if (this.store(Annotation.Consensus.bytes(), data, outputFiles, null,
+        false)) {
       this.storedConsensusesCounter++;
+      this.countStoredDescriptor("consensus");
     }
     if (!tarballFileExistedBefore
         && this.now - validAfter < 3L * 60L * 60L * 1000L) {
-      this.storedConsensuses.put(validAfter, serverDescriptorDigests);
-      this.expectedVotes.put(validAfter, dirSources.size());
+      this.storedConsensuses.put(validAfter, this.referenceCompleteness
+          .trackServerDescriptors(consensus));
+      this.expectedVotes.put(validAfter, consensus.getDirSourceCount());
     }
   }
 
   /** Stores a microdesc consensus to disk and adds all referenced
    * microdescriptors to the list of missing descriptors. */
-  public void storeMicrodescConsensus(byte[] data, long validAfter,
-      SortedSet<String> microdescriptorDigests) {
+  void storeMicrodescConsensus(byte[] data, NetworkStatusScanner consensus) {
+    long validAfter = consensus.getValidAfter();
     SimpleDateFormat yearMonthDirectoryFormat = new SimpleDateFormat(
         "yyyy/MM");
     SimpleDateFormat dayDirectoryFileFormat = new SimpleDateFormat(
@@ -698,21 +713,22 @@ public class ArchiveWriter extends CollecTorMain {
         CONSENSUS_MICRODESC, tarballFile.getName()).toFile();
     File[] outputFiles = new File[] { tarballFile, rsyncFile };
     if (this.store(Annotation.MicroConsensus.bytes(), data, outputFiles,
-        null)) {
+        null, false)) {
       this.storedMicrodescConsensusesCounter++;
+      this.countStoredDescriptor("microdesc-consensus");
     }
     if (!tarballFileExistedBefore
         && this.now - validAfter < 3L * 60L * 60L * 1000L) {
       this.storedMicrodescConsensuses.put(validAfter,
-          microdescriptorDigests);
+          this.referenceCompleteness.trackMicrodescriptors(consensus));
     }
   }
 
   /** Stores a vote to disk and adds all referenced server descriptors to
    * the list of missing descriptors. */
-  public void storeVote(byte[] data, long validAfter,
-      String fingerprint, String digest,
-      SortedSet<String> serverDescriptorDigests) {
+  void storeVote(byte[] data, NetworkStatusScanner vote, String digest) {
+    long validAfter = vote.getValidAfter();
+    String fingerprint = vote.getDirSource();
     SimpleDateFormat printFormat = new SimpleDateFormat(
         "yyyy/MM/dd/yyyy-MM-dd-HH-mm-ss");
     File tarballFile = Paths.get(this.outputDirectory, "vote",
@@ -722,14 +738,15 @@ public class ArchiveWriter extends CollecTorMain {
     File rsyncFile = Paths.get(recentPathName, RELAY_DESCRIPTORS, "votes",
         tarballFile.getName()).toFile();
     File[] outputFiles = new File[] { tarballFile, rsyncFile };
-    if (this.store(Annotation.Vote.bytes(), data, outputFiles, null)) {
+    if (this.store(Annotation.Vote.bytes(), data, outputFiles, null, false)) {
       this.storedVotesCounter++;
+      this.countStoredDescriptor("vote");
     }
     if (!tarballFileExistedBefore
         && this.now - validAfter < 3L * 60L * 60L * 1000L) {
       this.storedVotes.putIfAbsent(validAfter, new TreeMap<>());
       this.storedVotes.get(validAfter).put(fingerprint,
-          serverDescriptorDigests);
+          this.referenceCompleteness.trackServerDescriptors(vote));
     }
   }
 
@@ -751,8 +768,10 @@ public class ArchiveWriter extends CollecTorMain {
     File rsyncFile = Paths.get(recentPathName, RELAY_DESCRIPTORS, "bandwidths",
         tarballFile.getName()).toFile();
     File[] outputFiles = new File[] { tarballFile, rsyncFile };
-    if (this.store(sb.toString().getBytes(), data, outputFiles, null)) {
+    if (this.store(sb.toString().getBytes(), data, outputFiles, null,
+        false)) {
       this.storedBandwidthsCounter++;
+      this.countStoredDescriptor("bandwidth-file");
     }
     if (!tarballFileExistedBefore
         && this.nowLocalDateTime.isAfter(fileCreatedOrTimestamp.plusDays(3L))) {
@@ -771,8 +790,9 @@ public class ArchiveWriter extends CollecTorMain {
     File tarballFile = Paths.get(this.outputDirectory, "certs",
         fingerprint + "-" + printFormat.format(new Date(published))).toFile();
     File[] outputFiles = new File[] { tarballFile };
-    if (this.store(Annotation.Cert.bytes(), data, outputFiles, null)) {
+    if (this.store(Annotation.Cert.bytes(), data, outputFiles, null, false)) {
       this.storedCertsCounter++;
+      this.countStoredDescriptor("certificate");
     }
   }
 
@@ -784,21 +804,25 @@ public class ArchiveWriter extends CollecTorMain {
     File tarballFile = Paths.get(this.outputDirectory,
         "server-descriptor", printFormat.format(new Date(published)),
         digest.substring(0, 1), digest.substring(1, 2), digest).toFile();
-    boolean tarballFileExistedBefore = tarballFile.exists();
+    boolean tarballFileExistedBefore = this.tarballFileExists(tarballFile);
     File rsyncCatFile = Paths.get(recentPathName, RELAY_DESCRIPTORS,
         "server-descriptors",
         this.rsyncCatString + "-server-descriptors.tmp").toFile();
-    File[] outputFiles = new File[] { tarballFile, rsyncCatFile };
-    boolean[] append = new boolean[] { false, true };
-    if (this.store(Annotation.Server.bytes(), data, outputFiles,
-        append)) {
+    if (this.storeBulk(Annotation.Server.bytes(), data, tarballFile,
+        rsyncCatFile)) {
       this.storedServerDescriptorsCounter++;
+      this.countStoredDescriptor("server-descriptor");
     }
     if (!tarballFileExistedBefore
         && this.now - published < 48L * 60L * 60L * 1000L) {
-      this.storedServerDescriptors.putIfAbsent(published, new HashMap<>());
-      this.storedServerDescriptors.get(published).put(digest,
-          extraInfoDigest);
+      byte[] serverDescriptorDigest = decodeDigest(digest);
+      byte[] extraInfoDescriptorDigest = null == extraInfoDigest ? null
+          : decodeDigest(extraInfoDigest);
+      if (this.storedServerDescriptors.add(published, serverDescriptorDigest,
+          extraInfoDescriptorDigest)) {
+        this.referenceCompleteness.storedServerDescriptor(
+            serverDescriptorDigest, extraInfoDescriptorDigest);
+      }
     }
   }
 
@@ -811,18 +835,22 @@ public class ArchiveWriter extends CollecTorMain {
         extraInfoDigest.substring(0, 1),
         extraInfoDigest.substring(1, 2),
         extraInfoDigest).toFile();
-    boolean tarballFileExistedBefore = tarballFile.exists();
+    boolean tarballFileExistedBefore = this.tarballFileExists(tarballFile);
     File rsyncCatFile = Paths.get(recentPathName, RELAY_DESCRIPTORS,
         "extra-infos", this.rsyncCatString + "-extra-infos.tmp").toFile();
-    File[] outputFiles = new File[] { tarballFile, rsyncCatFile };
-    boolean[] append = new boolean[] { false, true };
-    if (this.store(Annotation.ExtraInfo.bytes(), data, outputFiles, append)) {
+    if (this.storeBulk(Annotation.ExtraInfo.bytes(), data, tarballFile,
+        rsyncCatFile)) {
       this.storedExtraInfoDescriptorsCounter++;
+      this.countStoredDescriptor("extra-info-descriptor");
     }
     if (!tarballFileExistedBefore
         && this.now - published < 48L * 60L * 60L * 1000L) {
-      this.storedExtraInfoDescriptors.putIfAbsent(published, new HashSet<>());
-      this.storedExtraInfoDescriptors.get(published).add(extraInfoDigest);
+      byte[] extraInfoDescriptorDigest = decodeDigest(extraInfoDigest);
+      if (this.storedExtraInfoDescriptors.add(published,
+          extraInfoDescriptorDigest, null)) {
+        this.referenceCompleteness.storedExtraInfoDescriptor(
+            extraInfoDescriptorDigest);
+      }
     }
   }
 
@@ -842,41 +870,114 @@ public class ArchiveWriter extends CollecTorMain {
         microdescriptorDigest.substring(0, 1),
         microdescriptorDigest.substring(1, 2),
         microdescriptorDigest).toFile();
-    boolean tarballFileExistedBefore = tarballFile.exists();
+    boolean tarballFileExistedBefore = this.tarballFileExists(tarballFile);
     File rsyncCatFile = Paths.get(recentPathName, RELAY_DESCRIPTORS,
         MICRODESCS, MICRO, this.rsyncCatString + "-micro.tmp").toFile();
-    File[] outputFiles = new File[] { tarballFile, rsyncCatFile };
-    boolean[] append = new boolean[] { false, true };
-    if (this.store(Annotation.Microdescriptor.bytes(), data, outputFiles,
-        append)) {
+    if (this.storeBulk(Annotation.Microdescriptor.bytes(), data, tarballFile,
+        rsyncCatFile)) {
       this.storedMicrodescriptorsCounter++;
+      this.countStoredDescriptor("microdescriptor");
     }
     if (!tarballFileExistedBefore
         && this.now - validAfter < 40L * 24L * 60L * 60L * 1000L) {
-      this.storedMicrodescriptors.putIfAbsent(validAfter, new HashSet<>());
-      this.storedMicrodescriptors.get(validAfter).add(
-          microdescriptorDigest);
+      byte[] digest = decodeDigest(microdescriptorDigest);
+      if (this.storedMicrodescriptors.add(validAfter, digest, null)) {
+        this.referenceCompleteness.storedMicrodescriptor(digest);
+      }
+    }
+  }
+
+  /* Return whether a server descriptor, extra-info descriptor, or
+   * microdescriptor has been stored to the given tarball file or to the
+   * segment replacing it. */
+  private boolean tarballFileExists(File tarballFile) {
+    return null == this.descriptorSegments ? tarballFile.exists()
+        : this.descriptorSegments.contains(tarballFile);
+  }
+
+  /* Store a server descriptor, extra-info descriptor, or microdescriptor
+   * to the given tarball file, or to the segment replacing it, and append
+   * it to the given rsync file. */
+  private boolean storeBulk(byte[] typeAnnotation, byte[] data,
+      File tarballFile, File rsyncCatFile) {
+    if (null == this.descriptorSegments) {
+      return this.store(typeAnnotation, data,
+          new File[] { tarballFile, rsyncCatFile },
+          new boolean[] { false, true }, true);
+    }
+    if (!this.store(typeAnnotation, data, new File[] { rsyncCatFile },
+        new boolean[] { true }, true)) {
+      return false;
+    }
+    long written = this.descriptorSegments.append(tarballFile,
+        typeAnnotation, data);
+    if (written > 0L) {
+      this.runReport().addBytesWritten(written);
+    }
+    return written >= 0L;
+  }
+
+  /** Returns whether the next descriptor to be stored should be parsed
+   * with metrics-lib, which is the case for all descriptors with
+   * verification level {@link Verification#FULL}, for no descriptors with
+   * {@link Verification#NONE}, and, with {@link Verification#SAMPLED}, for
+   * all descriptors that are not bulk descriptors and for the first of
+   * every {@link #SAMPLE_INTERVAL} bulk descriptors. */
+  boolean shouldVerify(boolean bulk) {
+    switch (this.verification) {
+      case NONE:
+        return false;
+      case SAMPLED:
+        if (!bulk) {
+          return true;
+        }
+        if (this.bulkDescriptorsSinceLastVerification >= SAMPLE_INTERVAL) {
+          this.bulkDescriptorsSinceLastVerification = 0;
+        }
+        return this.bulkDescriptorsSinceLastVerification++ == 0;
+      case FULL:
+      default:
+        return true;
     }
   }
 
+  void setVerification(Verification verification) {
+    this.verification = verification;
+    this.bulkDescriptorsSinceLastVerification = 0;
+  }
+
   private boolean store(byte[] typeAnnotation, byte[] data,
-      File[] outputFiles, boolean[] append) {
+      File[] outputFiles, boolean[] append, boolean bulk) {
     logger.trace("Storing {}", outputFiles[0]);
-    int parseableDescriptors = 0;
-    for (Descriptor descriptor : this.descriptorParser.parseDescriptors(data,
-        null, outputFiles[0].getName())) {
-      if (!(descriptor instanceof UnparseableDescriptor)) {
-        parseableDescriptors++;
+    if (this.shouldVerify(bulk)) {
+      this.verifiedDescriptorsCounter++;
+      int parseableDescriptors = 0;
+      for (Descriptor descriptor : this.descriptorParser.parseDescriptors(
+          data, null, outputFiles[0].getName())) {
+        if (!(descriptor instanceof UnparseableDescriptor)) {
+          parseableDescriptors++;
+        }
+      }
+      if (parseableDescriptors != 1) {
+        logger.info("Relay descriptor file {} doesn't contain exactly one "
+            + "descriptor.  Storing anyway.", outputFiles[0]);
       }
-    }
-    if (parseableDescriptors != 1) {
-      logger.info("Relay descriptor file {} doesn't contain exactly one "
-          + "descriptor.  Storing anyway.", outputFiles[0]);
     }
     try {
       for (int i = 0; i < outputFiles.length; i++) {
         File outputFile = outputFiles[i];
         boolean appendToFile = append != null && append[i];
+        boolean annotate = data.length > 0 && data[0] != '@';
+        if (appendToFile && null != this.rsyncAppender) {
+          if (annotate) {
+            this.rsyncAppender.append(outputFile, typeAnnotation, data);
+          } else {
+            this.rsyncAppender.append(outputFile, data);
+          }
+          this.runReport().addBytesWritten(annotate
+              ? typeAnnotation.length + data.length : data.length);
+          continue;
+        }
         if (!outputFile.getParentFile().exists()
             && !outputFile.getParentFile().mkdirs()) {
           logger.warn("Unable to create parent directories of file {}.",
@@ -901,11 +1002,14 @@ public class ArchiveWriter extends CollecTorMain {
         }
         BufferedOutputStream bos = new BufferedOutputStream(
             new FileOutputStream(outputFile, appendToFile));
-        if (data.length > 0 && data[0] != '@') {
+        if (annotate) {
           bos.write(typeAnnotation, 0, typeAnnotation.length);
         }
         bos.write(data, 0, data.length);
         bos.close();
+        RecentFiles.getInstance().recordWritten(outputFile);
+        this.runReport().addBytesWritten(annotate
+            ? typeAnnotation.length + data.length : data.length);
       }
       return true;
     } catch (IOException e) {
@@ -0,0 +1,195 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.relaydescs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Latency and error statistics of directory authorities, which are used to
+ * order authorities, derive adaptive read timeouts and hedging delays, and
+ * give up on authorities that fail repeatedly.
+ *
+ * <p>Statistics are exponentially weighted moving averages over requests
+ * in past executions and are persisted in a text file with lines formatted
+ * as "&lt;authority&gt;,&lt;latency millis&gt;,&lt;failure rate&gt;".</p>
+ */
+final class AuthorityHealth {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      AuthorityHealth.class);
+
+  /** Weight of the most recent request in moving averages. */
+  private static final double SMOOTHING = 0.2;
+
+  /** Latency assumed for authorities without history. */
+  private static final double DEFAULT_LATENCY_MILLIS = 1000.0;
+
+  private static final int MIN_READ_TIMEOUT_MILLIS = 5000;
+
+  private static final int MAX_READ_TIMEOUT_MILLIS = 30000;
+
+  private static final long MIN_HEDGE_DELAY_MILLIS = 1000L;
+
+  private static final long MAX_HEDGE_DELAY_MILLIS = 10000L;
+
+  /** Number of failed requests in a row after which we stop requesting
+   * anything from an authority in the current execution. */
+  static final int MAX_CONSECUTIVE_FAILURES = 3;
+
+  private final File healthFile;
+
+  /** Moving averages of latency in milliseconds and failure rate by
+   * authority. */
+  private final SortedMap<String, double[]> statistics = new TreeMap<>();
+
+  /** Failed requests in a row by authority in the current execution. */
+  private final Map<String, Integer> consecutiveFailures = new HashMap<>();
+
+  /** Read statistics from the given file, if it exists. */
+  AuthorityHealth(File healthFile) {
+    this.healthFile = healthFile;
+    if (!healthFile.exists()) {
+      return;
+    }
+    try (BufferedReader br = new BufferedReader(new FileReader(
+        healthFile))) {
+      String line;
+      while ((line = br.readLine()) != null) {
+        String[] parts = line.split(",");
+        try {
+          if (parts.length != 3) {
+            throw new NumberFormatException();
+          }
+          this.statistics.put(parts[0], new double[] {
+              Double.parseDouble(parts[1]), Double.parseDouble(parts[2]) });
+        } catch (NumberFormatException e) {
+          logger.debug("Invalid line '{}' in {}. Ignoring.", line,
+              healthFile.getAbsolutePath());
+        }
+      }
+    } catch (IOException e) {
+      logger.warn("Failed to read file {}! Treating all directory "
+          + "authorities as equally healthy.", healthFile.getAbsolutePath(),
+          e);
+    }
+  }
+
+  private double[] statistics(String authority) {
+    return this.statistics.computeIfAbsent(authority,
+        a -> new double[] { DEFAULT_LATENCY_MILLIS, 0.0 });
+  }
+
+  /** Record a completed request to the given authority, including its
+   * latency if it is representative, or -1 if it is not, e.g., for requests
+   * of all descriptors. */
+  synchronized void recordSuccess(String authority, long latencyMillis) {
+    double[] stats = this.statistics(authority);
+    if (latencyMillis >= 0L) {
+      stats[0] += SMOOTHING * (latencyMillis - stats[0]);
+    }
+    stats[1] -= SMOOTHING * stats[1];
+    this.consecutiveFailures.remove(authority);
+  }
+
+  /** Record a failed request to the given authority. */
+  synchronized void recordFailure(String authority) {
+    double[] stats = this.statistics(authority);
+    stats[1] += SMOOTHING * (1.0 - stats[1]);
+    this.consecutiveFailures.merge(authority, 1, Integer::sum);
+  }
+
+  /** Return whether requests to the given authority have failed too often
+   * in a row to keep requesting anything from it in this execution. */
+  synchronized boolean isUnavailable(String authority) {
+    return this.consecutiveFailures.getOrDefault(authority, 0)
+        >= MAX_CONSECUTIVE_FAILURES;
+  }
+
+  /** Return the expected latency of a request to the given authority,
+   * penalized by its failure rate; lower is better. */
+  synchronized double score(String authority) {
+    double[] stats = this.statistics(authority);
+    return stats[0] / Math.max(0.05, 1.0 - stats[1]);
+  }
+
+  /** Return a read timeout for the given authority that leaves enough room
+   * for slow authorities without waiting too long for stalled ones. */
+  synchronized int readTimeoutMillis(String authority) {
+    return (int) Math.max(MIN_READ_TIMEOUT_MILLIS, Math.min(
+        MAX_READ_TIMEOUT_MILLIS, 4.0 * this.statistics(authority)[0]));
+  }
+
+  /** Return how long to wait for a response from the given authority
+   * before sending a duplicate request to another authority. */
+  synchronized long hedgeDelayMillis(String authority) {
+    return (long) Math.max(MIN_HEDGE_DELAY_MILLIS, Math.min(
+        MAX_HEDGE_DELAY_MILLIS, 2.0 * this.statistics(authority)[0]));
+  }
+
+  /** Return the authority with the best score among the given authorities,
+   * excluding the given authority and unavailable authorities, or
+   * {@code null} if there is none. */
+  synchronized String bestAuthority(Collection<String> authorities,
+      String excluded) {
+    String best = null;
+    for (String authority : authorities) {
+      if (!authority.equals(excluded) && !this.isUnavailable(authority)
+          && (null == best || this.score(authority) < this.score(best))) {
+        best = authority;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Return the given authorities in random order, weighted by score, so
+   * that healthy authorities are likely to be asked first while the load is
+   * still distributed over all authorities over time.
+   */
+  synchronized List<String> order(Collection<String> authorities,
+      Random random) {
+    /* Sort by exponentially distributed keys with means proportional to
+     * scores, which is equivalent to drawing authorities one after another
+     * with probabilities inversely proportional to their scores. */
+    Map<String, Double> keys = new HashMap<>();
+    for (String authority : authorities) {
+      keys.put(authority, -Math.log(1.0 - random.nextDouble())
+          * this.score(authority));
+    }
+    List<String> ordered = new ArrayList<>(authorities);
+    ordered.sort((a, b) -> Double.compare(keys.get(a), keys.get(b)));
+    return ordered;
+  }
+
+  /** Write statistics to disk. */
+  synchronized void write() {
+    this.healthFile.getAbsoluteFile().getParentFile().mkdirs();
+    try (BufferedWriter bw = new BufferedWriter(new FileWriter(
+        this.healthFile))) {
+      for (Map.Entry<String, double[]> e : this.statistics.entrySet()) {
+        bw.write(String.format(Locale.US, "%s,%.1f,%.4f\n", e.getKey(),
+            e.getValue()[0], e.getValue()[1]));
+      }
+    } catch (IOException e) {
+      logger.warn("Failed writing {}!", this.healthFile.getAbsolutePath(), e);
+    }
+  }
+}
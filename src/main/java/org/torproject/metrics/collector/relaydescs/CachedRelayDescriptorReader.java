@@ -3,22 +3,25 @@
 
 package org.torproject.metrics.collector.relaydescs;
 
+import org.torproject.metrics.collector.downloader.DescriptorSplitter;
+
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
@@ -70,6 +73,7 @@ public class CachedRelayDescriptorReader {
   public void readDescriptors() {
     this.readHistoryFile();
     this.readDescriptorFiles();
+    this.rdp.awaitSubmitted();
     this.writeHistoryFile();
   }
 
@@ -115,19 +119,10 @@ public class CachedRelayDescriptorReader {
       }
       for (File f : cachedDescFiles) {
         try {
-          // descriptors may contain non-ASCII chars; read as bytes to
-          // determine digests
-          BufferedInputStream bis =
-              new BufferedInputStream(new FileInputStream(f));
-          ByteArrayOutputStream baos = new ByteArrayOutputStream();
-          int len;
-          byte[] data = new byte[1024];
-          while ((len = bis.read(data, 0, 1024)) >= 0) {
-            baos.write(data, 0, len);
-          }
-          bis.close();
-          byte[] allData = baos.toByteArray();
           if (f.getName().equals("cached-consensus")) {
+            // descriptors may contain non-ASCII chars; read as bytes to
+            // determine digests
+            byte[] allData = Files.readAllBytes(f.toPath());
             /* Check if directory information is stale. */
             BufferedReader br = new BufferedReader(new StringReader(
                 new String(allData, StandardCharsets.US_ASCII)));
@@ -157,88 +152,29 @@ public class CachedRelayDescriptorReader {
                 allData));
             if (!this.lastImportHistory.contains(digest)
                 && !this.currentImportHistory.contains(digest)) {
-              this.rdp.parse(allData, null);
+              this.rdp.submit(allData, null);
             } else {
               this.dumpStats.append(" (skipped)");
             }
             this.currentImportHistory.add(digest);
           } else if (f.getName().equals("v3-status-votes")) {
-            int parsedNum = 0;
-            int skippedNum = 0;
-            String ascii = new String(allData, StandardCharsets.US_ASCII);
-            String startToken = "network-status-version ";
-            int end = ascii.length();
-            int start = ascii.indexOf(startToken);
-            while (start >= 0 && start < end) {
-              int next = ascii.indexOf(startToken, start + 1);
-              if (next < 0) {
-                next = end;
-              }
-              if (start < next) {
-                byte[] rawNetworkStatusBytes = new byte[next - start];
-                System.arraycopy(allData, start, rawNetworkStatusBytes, 0,
-                    next - start);
-                String digest = Hex.encodeHexString(DigestUtils.sha1(
-                    rawNetworkStatusBytes));
-                if (!this.lastImportHistory.contains(digest)
-                    && !this.currentImportHistory.contains(digest)) {
-                  this.rdp.parse(rawNetworkStatusBytes, null);
-                  parsedNum++;
-                } else {
-                  skippedNum++;
-                }
-                this.currentImportHistory.add(digest);
-              }
-              start = next;
-            }
+            int[] parsedAndSkipped = this.readDescriptorFile(f,
+                DescriptorSplitter.networkStatuses());
             this.dumpStats.append("\n").append(f.getName()).append(": parsed ")
-                .append(parsedNum).append(", skipped ").append(skippedNum)
-                .append(" votes");
+                .append(parsedAndSkipped[0]).append(", skipped ")
+                .append(parsedAndSkipped[1]).append(" votes");
           } else if (f.getName().startsWith("cached-descriptors")
               || f.getName().startsWith("cached-extrainfo")) {
-            String ascii = new String(allData, StandardCharsets.US_ASCII);
-            int start;
-            int sig;
-            int end = -1;
-            String startToken =
-                f.getName().startsWith("cached-descriptors")
-                    ? "router " : "extra-info ";
-            String sigToken = "\nrouter-signature\n";
-            String endToken = "\n-----END SIGNATURE-----\n";
-            int parsedNum = 0;
-            int skippedNum = 0;
-            while (end < ascii.length()) {
-              start = ascii.indexOf(startToken, end);
-              if (start < 0) {
-                break;
-              }
-              sig = ascii.indexOf(sigToken, start);
-              if (sig < 0) {
-                break;
-              }
-              sig += sigToken.length();
-              end = ascii.indexOf(endToken, sig);
-              if (end < 0) {
-                break;
-              }
-              end += endToken.length();
-              byte[] descBytes = new byte[end - start];
-              System.arraycopy(allData, start, descBytes, 0, end - start);
-              String digest = Hex.encodeHexString(DigestUtils.sha1(
-                  descBytes));
-              if (!this.lastImportHistory.contains(digest)
-                  && !this.currentImportHistory.contains(digest)) {
-                this.rdp.parse(descBytes, null);
-                parsedNum++;
-              } else {
-                skippedNum++;
-              }
-              this.currentImportHistory.add(digest);
-            }
+            boolean serverDescriptors
+                = f.getName().startsWith("cached-descriptors");
+            int[] parsedAndSkipped = this.readDescriptorFile(f,
+                serverDescriptors ? DescriptorSplitter.serverDescriptors()
+                : DescriptorSplitter.extraInfoDescriptors());
             this.dumpStats.append("\n").append(f.getName()).append(": parsed ")
-                .append(parsedNum).append(", skipped ").append(skippedNum)
-                .append(" ").append(f.getName().startsWith("cached-descriptors")
-                ? "server" : "extra-info").append(" descriptors");
+                .append(parsedAndSkipped[0]).append(", skipped ")
+                .append(parsedAndSkipped[1]).append(" ")
+                .append(serverDescriptors ? "server" : "extra-info")
+                .append(" descriptors");
           }
         } catch (IOException | ParseException e) {
           logger.warn("Failed reading {} directory.",
@@ -250,6 +186,31 @@ public class CachedRelayDescriptorReader {
     }
   }
 
+  /** Splits the descriptors contained in the given file while reading it,
+   * and parses those that we didn't parse before, without reading the whole
+   * file into memory. Returns the numbers of parsed and skipped
+   * descriptors. */
+  private int[] readDescriptorFile(File file, DescriptorSplitter splitter)
+      throws IOException {
+    int[] parsedAndSkipped = new int[2];
+    MessageDigest sha1 = DigestUtils.getSha1Digest();
+    try (InputStream in = new FileInputStream(file)) {
+      splitter.split(in, descriptor -> {
+        sha1.update(descriptor.duplicate());
+        String digest = Hex.encodeHexString(sha1.digest());
+        if (!this.lastImportHistory.contains(digest)
+            && !this.currentImportHistory.contains(digest)) {
+          this.rdp.submit(DescriptorSplitter.toBytes(descriptor), null);
+          parsedAndSkipped[0]++;
+        } else {
+          parsedAndSkipped[1]++;
+        }
+        this.currentImportHistory.add(digest);
+      });
+    }
+    return parsedAndSkipped;
+  }
+
   /** Write import history containing SHA-1 digests to disk. */
   private void writeHistoryFile() {
     try {
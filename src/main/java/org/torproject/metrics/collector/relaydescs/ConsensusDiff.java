@@ -0,0 +1,210 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.relaydescs;
+
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Applies consensus diffs as specified in Tor proposal 140 to a previously
+ * downloaded consensus or microdesc consensus, so that we can download a
+ * diff from a directory authority rather than the full document.
+ *
+ * <p>A diff starts with a "network-status-diff-version 1" line and a "hash"
+ * line containing the SHA3-256 digests of the base and target documents as
+ * signed, followed by ed-style commands that refer to base document lines in
+ * strictly decreasing order.</p>
+ */
+final class ConsensusDiff {
+
+  private static final String DIFF_VERSION_LINE
+      = "network-status-diff-version 1";
+
+  private static final Pattern HASH_LINE = Pattern.compile(
+      "^hash ([0-9A-Fa-f]{64}) ([0-9A-Fa-f]{64})$");
+
+  private static final Pattern COMMAND_LINE = Pattern.compile(
+      "^([0-9]+)(?:,([0-9]+|\\$))?([acd])$");
+
+  private ConsensusDiff() {
+  }
+
+  /** Return whether the given response body is a consensus diff rather than
+   * a full document. */
+  static boolean isDiff(byte[] data) {
+    byte[] prefix = (DIFF_VERSION_LINE + "\n").getBytes(
+        StandardCharsets.US_ASCII);
+    return data.length >= prefix.length
+        && Arrays.equals(prefix, Arrays.copyOf(data, prefix.length));
+  }
+
+  /**
+   * Return the hex-encoded SHA3-256 digest of the given document as signed,
+   * that is, from the start of the "network-status-version" line through the
+   * space after the first "directory-signature" keyword, or {@code null} if
+   * the document has no such boundaries or the Java runtime does not support
+   * SHA3-256.
+   */
+  static String digestAsSigned(byte[] document) {
+    String ascii = new String(document, StandardCharsets.US_ASCII);
+    int start = ascii.indexOf("network-status-version");
+    int end = ascii.indexOf("\ndirectory-signature ", start);
+    if (start < 0 || end < 0) {
+      return null;
+    }
+    end += "\ndirectory-signature ".length();
+    try {
+      MessageDigest sha3 = MessageDigest.getInstance("SHA3-256");
+      sha3.update(document, start, end - start);
+      return Hex.encodeHexString(sha3.digest()).toUpperCase(Locale.US);
+    } catch (NoSuchAlgorithmException e) {
+      return null;
+    }
+  }
+
+  /** Read a stored document, skipping any leading {@code @type}
+   * annotations. */
+  static byte[] readStoredDocument(Path file) throws IOException {
+    byte[] stored = Files.readAllBytes(file);
+    int start = 0;
+    while (start < stored.length && stored[start] == '@') {
+      while (start < stored.length && stored[start++] != '\n') {
+        /* Skip annotation line. */
+      }
+    }
+    return Arrays.copyOfRange(stored, start, stored.length);
+  }
+
+  /**
+   * Apply the given diff to the given base document and verify that the
+   * result has the target digest stated in the diff.
+   *
+   * @param base Base document without annotations.
+   * @param baseDigest Digest of the base document as signed.
+   * @param diff Consensus diff.
+   * @return Target document.
+   * @throws ParseException Thrown if the diff is malformed, does not apply to
+   *     the base document, or does not produce the target document, with the
+   *     diff line number as error offset.
+   */
+  static byte[] apply(byte[] base, String baseDigest, byte[] diff)
+      throws ParseException {
+    List<String> diffLines = splitLines(diff);
+    if (diffLines.size() < 2 || !DIFF_VERSION_LINE.equals(diffLines.get(0))) {
+      throw new ParseException("Not a consensus diff.", 1);
+    }
+    Matcher hashes = HASH_LINE.matcher(diffLines.get(1));
+    if (!hashes.matches()) {
+      throw new ParseException("Missing or malformed hash line.", 2);
+    }
+    if (!hashes.group(1).equalsIgnoreCase(baseDigest)) {
+      throw new ParseException("Diff applies to a different base document.",
+          2);
+    }
+    List<String> lines = splitLines(base);
+    List<Edit> edits = new ArrayList<>();
+    int lastStart = Integer.MAX_VALUE;
+    int diffLine = 2;
+    while (diffLine < diffLines.size()) {
+      String command = diffLines.get(diffLine++);
+      Matcher matcher = COMMAND_LINE.matcher(command);
+      if (!matcher.matches()) {
+        throw new ParseException("Malformed command '" + command + "'.",
+            diffLine);
+      }
+      int start = Integer.parseInt(matcher.group(1));
+      int end = null == matcher.group(2) ? start
+          : "$".equals(matcher.group(2)) ? lines.size()
+          : Integer.parseInt(matcher.group(2));
+      char action = matcher.group(3).charAt(0);
+      if (end < start || end > lines.size()
+          || (action != 'a' && start < 1) || end >= lastStart
+          || (action == 'a' && null != matcher.group(2))) {
+        throw new ParseException("Command '" + command + "' is out of "
+            + "range or order.", diffLine);
+      }
+      lastStart = start;
+      List<String> added = new ArrayList<>();
+      if (action != 'd') {
+        String line;
+        while (!".".equals(line = diffLine < diffLines.size()
+            ? diffLines.get(diffLine) : null)) {
+          if (null == line) {
+            throw new ParseException("Unterminated command '" + command
+                + "'.", diffLine);
+          }
+          added.add(line);
+          diffLine++;
+        }
+        diffLine++;
+      }
+      edits.add(action == 'a' ? new Edit(start, start, added)
+          : new Edit(start - 1, end, added));
+    }
+    /* Commands refer to base lines in strictly decreasing order, so we can
+     * walk them backwards and copy unchanged ranges and added lines into the
+     * target document in a single pass. */
+    StringBuilder sb = new StringBuilder(base.length);
+    int copied = 0;
+    for (int i = edits.size() - 1; i >= 0; i--) {
+      Edit edit = edits.get(i);
+      appendLines(sb, lines.subList(copied, edit.from));
+      appendLines(sb, edit.added);
+      copied = edit.to;
+    }
+    appendLines(sb, lines.subList(copied, lines.size()));
+    byte[] target = sb.toString().getBytes(StandardCharsets.US_ASCII);
+    if (!hashes.group(2).equalsIgnoreCase(digestAsSigned(target))) {
+      throw new ParseException("Result does not match the target digest.",
+          2);
+    }
+    return target;
+  }
+
+  /** Replacement of base lines from (inclusive) to (exclusive), counted
+   * from 0, by added lines. */
+  private static final class Edit {
+
+    private final int from;
+
+    private final int to;
+
+    private final List<String> added;
+
+    private Edit(int from, int to, List<String> added) {
+      this.from = from;
+      this.to = to;
+      this.added = added;
+    }
+  }
+
+  private static void appendLines(StringBuilder sb, List<String> lines) {
+    for (String line : lines) {
+      sb.append(line).append('\n');
+    }
+  }
+
+  private static List<String> splitLines(byte[] data) {
+    String ascii = new String(data, StandardCharsets.US_ASCII);
+    List<String> lines = new ArrayList<>(Arrays.asList(ascii.split("\n",
+        -1)));
+    if (!lines.isEmpty() && lines.get(lines.size() - 1).isEmpty()) {
+      lines.remove(lines.size() - 1);
+    }
+    return lines;
+  }
+}
@@ -0,0 +1,159 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.relaydescs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Pipeline for importing relay descriptors in three stages: the threads
+ * submitting descriptors read and decompress them, a pool of parser
+ * threads parses them and computes their digests, and a single store
+ * thread stores them in the order in which they were submitted.
+ *
+ * <p>Parsing a descriptor returns the action that stores it, which
+ * includes telling the relay descriptor downloader and archive reader
+ * about it. Running these actions on a single thread and in submission
+ * order keeps the archive writer and the downloader free of concurrent
+ * modifications and produces the same results as parsing and storing
+ * descriptors one after another.</p>
+ *
+ * <p>The number of submitted descriptors that have not been stored yet is
+ * bounded, so that submitting threads block rather than reading more
+ * descriptors into memory than parser threads and the store thread can
+ * handle.</p>
+ */
+class ImportPipeline implements AutoCloseable {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      ImportPipeline.class);
+
+  /** Number of descriptors per parser thread that may be submitted but not
+   * yet stored. */
+  static final int QUEUE_CAPACITY_PER_PARSER = 16;
+
+  /** Submitted descriptor that is being parsed or waiting to be stored. */
+  private static final class Pending {
+
+    private final Future<BooleanSupplier> parsed;
+
+    private final CompletableFuture<Boolean> stored
+        = new CompletableFuture<>();
+
+    private Pending(Future<BooleanSupplier> parsed) {
+      this.parsed = parsed;
+    }
+  }
+
+  /** Marker telling the store thread to stop. */
+  private static final Pending END = new Pending(null);
+
+  private final ExecutorService parsers;
+
+  private final BlockingQueue<Pending> pending;
+
+  private final Thread storeThread;
+
+  private boolean closed = false;
+
+  /** Starts a pipeline with the given number of parser threads. */
+  ImportPipeline(int parserThreads) {
+    AtomicInteger parserThreadNumber = new AtomicInteger();
+    ThreadFactory parserThreadFactory = runnable -> {
+      Thread thread = new Thread(runnable, "CollecTor-Relay-Parser-"
+          + parserThreadNumber.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+    this.parsers = Executors.newFixedThreadPool(parserThreads,
+        parserThreadFactory);
+    this.pending = new ArrayBlockingQueue<>(
+        QUEUE_CAPACITY_PER_PARSER * parserThreads);
+    this.storeThread = new Thread(this::store, "CollecTor-Relay-Store");
+    this.storeThread.setDaemon(true);
+    this.storeThread.start();
+  }
+
+  /**
+   * Submits a descriptor to be parsed by the given task on a parser thread
+   * and stored by running the returned action on the store thread after
+   * all previously submitted descriptors, blocking while too many
+   * descriptors are waiting to be stored.
+   *
+   * @return Future telling whether the descriptor was stored.
+   */
+  Future<Boolean> submit(Callable<BooleanSupplier> parse)
+      throws InterruptedException {
+    if (this.closed) {
+      throw new IllegalStateException("Pipeline is closed.");
+    }
+    Pending descriptor = new Pending(this.parsers.submit(parse));
+    this.pending.put(descriptor);
+    return descriptor.stored;
+  }
+
+  /** Waits until all descriptors submitted so far have been stored. */
+  void await() throws InterruptedException {
+    try {
+      this.submit(() -> () -> false).get();
+    } catch (ExecutionException e) {
+      /* Storing the marker cannot fail. */
+    }
+  }
+
+  /* Store parsed descriptors in submission order until reaching the end
+   * marker. */
+  private void store() {
+    try {
+      Pending descriptor;
+      while (END != (descriptor = this.pending.take())) {
+        boolean stored = false;
+        try {
+          stored = descriptor.parsed.get().getAsBoolean();
+        } catch (ExecutionException e) {
+          logger.warn("Could not parse descriptor. Skipping.", e.getCause());
+        } catch (RuntimeException e) {
+          logger.warn("Could not store descriptor. Skipping.", e);
+        }
+        descriptor.stored.complete(stored);
+      }
+    } catch (InterruptedException e) {
+      logger.warn("Interrupted while storing imported descriptors.");
+    }
+  }
+
+  /** Stores all submitted descriptors and stops all threads, or stops
+   * all threads without storing remaining descriptors if interrupted while
+   * waiting for them to be stored. */
+  @Override
+  public void close() {
+    if (this.closed) {
+      return;
+    }
+    this.closed = true;
+    try {
+      this.pending.put(END);
+      this.storeThread.join();
+    } catch (InterruptedException e) {
+      logger.warn("Interrupted while storing remaining imported "
+          + "descriptors. Not storing them.");
+      this.storeThread.interrupt();
+      Thread.currentThread().interrupt();
+    } finally {
+      this.parsers.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,621 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.relaydescs;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * Relay descriptors that we are missing or that we have parsed recently,
+ * keyed by descriptor type, valid-after or published time, relay
+ * identity, and descriptor digest in binary form.
+ *
+ * <p>Entries are indexed by type and time, so that finding descriptors
+ * that are still missing and that are recent enough to be found on the
+ * directory authorities is a range query, and microdescriptor entries are
+ * indexed by digest.</p>
+ *
+ * <p>The store consists of a snapshot file containing all entries and an
+ * append-only journal file containing changes since the snapshot was
+ * written. Changes are appended to the journal as they happen, and the
+ * journal is compacted into a new snapshot once journal records and
+ * obsolete snapshot records outnumber the entries in the store.</p>
+ *
+ * <p>This class is not thread-safe; callers need to synchronize
+ * access.</p>
+ */
+final class MissingDescriptorStore {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      MissingDescriptorStore.class);
+
+  /** Descriptor types with the keywords used in the text file format. */
+  enum Type {
+    CONSENSUS("consensus"),
+    MICRODESC_CONSENSUS("consensus-microdesc"),
+    VOTE("vote"),
+    SERVER("server"),
+    EXTRA("extra"),
+    MICRO("micro");
+
+    final String keyword;
+
+    Type(String keyword) {
+      this.keyword = keyword;
+    }
+
+    /** Return the type with the given keyword, or {@code null} if there is
+     * no such type. */
+    static Type of(String keyword) {
+      for (Type type : values()) {
+        if (type.keyword.equals(keyword)) {
+          return type;
+        }
+      }
+      return null;
+    }
+  }
+
+  /** Value of the parsed time of descriptors that are still missing. */
+  static final long NOT_PARSED = -1L;
+
+  private static final DateTimeFormatter TIME_FORMAT
+      = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss", Locale.US);
+
+  /** Snapshot file format identifier and version. */
+  private static final int MAGIC = 0x434d4453;
+
+  private static final int VERSION = 1;
+
+  /** Minimum number of journal records before compacting, so that small
+   * stores are not rewritten on every execution. */
+  private static final int MIN_COMPACTION_RECORDS = 10000;
+
+  /**
+   * Missing or parsed descriptor, which is identified by type, time,
+   * relay identity, and digest, and which is either missing or has been
+   * parsed at a given time.
+   */
+  static final class Entry {
+
+    final Type type;
+
+    final long time;
+
+    final byte[] relay;
+
+    final byte[] digest;
+
+    private long parsed = NOT_PARSED;
+
+    private Entry(Type type, long time, byte[] relay, byte[] digest) {
+      this.type = type;
+      this.time = time;
+      this.relay = relay;
+      this.digest = digest;
+    }
+
+    /** Return whether this descriptor is still missing. */
+    boolean isMissing() {
+      return NOT_PARSED == this.parsed;
+    }
+
+    /** Return when this descriptor was parsed, or {@link #NOT_PARSED}. */
+    long getParsed() {
+      return this.parsed;
+    }
+
+    /** Return the valid-after or published time in the same format as in
+     * descriptors. */
+    String getTimeString() {
+      return formatTime(this.time);
+    }
+
+    /**
+     * Return the identifier used to request this descriptor from a
+     * directory authority, which is the valid-after time of consensuses,
+     * the authority fingerprint of votes, and the digest of server
+     * descriptors, extra-info descriptors, and microdescriptors.
+     */
+    String getIdentifier() {
+      switch (this.type) {
+        case CONSENSUS:
+        case MICRODESC_CONSENSUS:
+          return this.getTimeString();
+        case VOTE:
+          return Hex.encodeHexString(this.digest).toUpperCase(Locale.US);
+        case MICRO:
+          return Base64.encodeBase64String(this.digest).replaceAll("=", "");
+        default:
+          return Hex.encodeHexString(this.digest);
+      }
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (this == other) {
+        return true;
+      }
+      if (!(other instanceof Entry)) {
+        return false;
+      }
+      Entry entry = (Entry) other;
+      return this.type == entry.type && this.time == entry.time
+          && Arrays.equals(this.relay, entry.relay)
+          && Arrays.equals(this.digest, entry.digest);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * (31 * this.type.hashCode() + Long.hashCode(
+          this.time)) + Arrays.hashCode(this.relay))
+          + Arrays.hashCode(this.digest);
+    }
+  }
+
+  private final File snapshotFile;
+
+  private final File journalFile;
+
+  /** All entries, mapped to themselves, so that we can look up the stored
+   * entry using a newly created entry with the same key. */
+  private final Map<Entry, Entry> entries = new HashMap<>();
+
+  /** Missing entries by type and time. */
+  private final Map<Type, NavigableMap<Long, Set<Entry>>> missingByTime
+      = new EnumMap<>(Type.class);
+
+  /** Microdescriptor entries by digest. */
+  private final Map<ByteBuffer, Set<Entry>> microdescriptorsByDigest
+      = new HashMap<>();
+
+  private DataOutputStream journal;
+
+  /** Number of records in the journal file. */
+  private int journalRecords;
+
+  /** Number of records in the snapshot and journal files that have been
+   * superseded by later records or that belong to removed entries. */
+  private int obsoleteRecords;
+
+  /** Read the store from the given snapshot and journal files, if they
+   * exist. */
+  MissingDescriptorStore(File snapshotFile, File journalFile) {
+    this.snapshotFile = snapshotFile;
+    this.journalFile = journalFile;
+    for (Type type : Type.values()) {
+      this.missingByTime.put(type, new TreeMap<>());
+    }
+    if (snapshotFile.exists()) {
+      this.readRecords(snapshotFile, true);
+    }
+    if (journalFile.exists()) {
+      this.journalRecords = this.readRecords(journalFile, false);
+    }
+  }
+
+  /** Return whether neither a snapshot nor a journal file exists yet. */
+  boolean isNew() {
+    return !this.snapshotFile.exists() && !this.journalFile.exists();
+  }
+
+  /* Read records from the given file, and return the number of records
+   * read. Stop at the first incomplete or invalid record, which is most
+   * likely the result of an interrupted write, and truncate the journal
+   * after the last complete record, so that we can append to it. */
+  private int readRecords(File file, boolean isSnapshot) {
+    logger.debug("Reading file {}...", file.getAbsolutePath());
+    int records = 0;
+    try {
+      ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+      if (isSnapshot && (buffer.remaining() < 8 || buffer.getInt() != MAGIC
+          || buffer.getInt() != VERSION)) {
+        logger.warn("Unknown format of {}. Ignoring.",
+            file.getAbsolutePath());
+        return 0;
+      }
+      int position = buffer.position();
+      try {
+        while (buffer.hasRemaining()) {
+          int ordinal = buffer.get();
+          if (ordinal < 0 || ordinal >= Type.values().length) {
+            break;
+          }
+          Type type = Type.values()[ordinal];
+          long time = buffer.getLong();
+          byte[] relay = new byte[buffer.get() & 0xff];
+          buffer.get(relay);
+          byte[] digest = new byte[buffer.get() & 0xff];
+          buffer.get(digest);
+          long parsed = buffer.getLong();
+          this.update(new Entry(type, time, relay, digest), parsed);
+          position = buffer.position();
+          records++;
+        }
+      } catch (BufferUnderflowException e) {
+        /* Incomplete record at the end of the file. */
+      }
+      if (position < buffer.limit()) {
+        logger.warn("Ignoring {} byte(s) at the end of {} that do not form a "
+            + "complete record.", buffer.limit() - position,
+            file.getAbsolutePath());
+        if (!isSnapshot) {
+          try (FileChannel channel = FileChannel.open(file.toPath(),
+              StandardOpenOption.WRITE)) {
+            channel.truncate(position);
+          }
+        }
+      }
+      logger.debug("Finished reading file {}.", file.getAbsolutePath());
+    } catch (IOException e) {
+      logger.warn("Failed to read file {}! This means that we might forget "
+          + "to dowload relay descriptors we are missing.",
+          file.getAbsolutePath(), e);
+    }
+    return records;
+  }
+
+  /**
+   * Import entries from a missing descriptors text file as written by
+   * earlier versions, with lines formatted as
+   * "&lt;type&gt;,&lt;time&gt;[,&lt;relayid&gt;],&lt;descid&gt;,&lt;parsed&gt;"
+   * and "NA" as parsed time of descriptors that are still missing.
+   */
+  void importTextFile(File textFile) {
+    logger.info("Importing missing descriptors from {}.",
+        textFile.getAbsolutePath());
+    try (BufferedReader br = new BufferedReader(new FileReader(textFile))) {
+      String line;
+      while ((line = br.readLine()) != null) {
+        String[] parts = line.split(",");
+        Type type = parts.length > 2 ? Type.of(parts[0]) : null;
+        Entry entry = null;
+        if (null == type) {
+          /* Invalid line. */
+        } else if (Type.CONSENSUS == type
+            || Type.MICRODESC_CONSENSUS == type) {
+          entry = parts.length == 3 ? key(type, parts[1], null, null) : null;
+        } else if (Type.VOTE == type) {
+          entry = parts.length == 4 ? key(type, parts[1], null, parts[2])
+              : null;
+        } else if (parts.length == 5) {
+          entry = key(type, parts[1], parts[2], parts[3]);
+        }
+        String parsed = parts[parts.length - 1];
+        try {
+          if (null == entry) {
+            throw new DateTimeParseException("Invalid line.", line, 0);
+          }
+          this.put(entry, "NA".equals(parsed) ? NOT_PARSED
+              : parseTime(parsed));
+        } catch (DateTimeParseException e) {
+          logger.debug("Invalid line '{}' in {}. Ignoring.", line,
+              textFile.getAbsolutePath());
+        }
+      }
+    } catch (IOException e) {
+      logger.warn("Failed to read file {}! This means that we might forget "
+          + "to dowload relay descriptors we are missing.",
+          textFile.getAbsolutePath(), e);
+    }
+  }
+
+  /** Parse a time in the format used in descriptors. */
+  static long parseTime(String time) {
+    return LocalDateTime.parse(time, TIME_FORMAT).toInstant(ZoneOffset.UTC)
+        .toEpochMilli();
+  }
+
+  /** Format a time in the format used in descriptors. */
+  static String formatTime(long millis) {
+    return TIME_FORMAT.format(Instant.ofEpochMilli(millis).atOffset(
+        ZoneOffset.UTC));
+  }
+
+  /** Return whether the two given times are in the same month. */
+  static boolean isSameMonth(long firstMillis, long secondMillis) {
+    LocalDateTime first = LocalDateTime.ofInstant(Instant.ofEpochMilli(
+        firstMillis), ZoneOffset.UTC);
+    LocalDateTime second = LocalDateTime.ofInstant(Instant.ofEpochMilli(
+        secondMillis), ZoneOffset.UTC);
+    return first.getYear() == second.getYear()
+        && first.getMonth() == second.getMonth();
+  }
+
+  /**
+   * Return a new entry with the given key, or {@code null} if the time,
+   * hex-encoded relay identity, or digest cannot be decoded. Digests are
+   * hex-encoded fingerprints of votes, hex-encoded digests of server and
+   * extra-info descriptors, and base64-encoded digests of
+   * microdescriptors. Relay identity and digest are {@code null} for
+   * consensuses, and relay identity is {@code null} for votes.
+   */
+  static Entry key(Type type, String time, String relay, String digest) {
+    try {
+      byte[] decodedRelay = null == relay ? new byte[0]
+          : Hex.decodeHex(relay.toCharArray());
+      byte[] decodedDigest;
+      if (null == digest) {
+        decodedDigest = new byte[0];
+      } else if (Type.MICRO == type) {
+        decodedDigest = Base64.decodeBase64(digest);
+        if (!Base64.encodeBase64String(decodedDigest).replaceAll("=", "")
+            .equals(digest.replaceAll("=", ""))) {
+          return null;
+        }
+      } else {
+        decodedDigest = Hex.decodeHex(digest.toCharArray());
+      }
+      if (decodedRelay.length > 255 || decodedDigest.length > 255) {
+        return null;
+      }
+      return new Entry(type, parseTime(time), decodedRelay, decodedDigest);
+    } catch (DecoderException | DateTimeParseException e) {
+      return null;
+    }
+  }
+
+  /** Return a new entry with the given key and decoded relay identity and
+   * digest, which must not be modified afterwards. */
+  static Entry key(Type type, long time, byte[] relay, byte[] digest) {
+    return new Entry(type, time, relay, digest);
+  }
+
+  /** Return the stored entry with the same key as the given entry, or
+   * {@code null} if there is no such entry. */
+  Entry get(Entry key) {
+    return null == key ? null : this.entries.get(key);
+  }
+
+  /** Add the given entry as missing descriptor, unless the store already
+   * contains an entry with the same key, and return whether it was added. */
+  boolean addMissing(Entry key) {
+    if (null == key || this.entries.containsKey(key)) {
+      return false;
+    }
+    this.put(key, NOT_PARSED);
+    return true;
+  }
+
+  /** Mark the descriptor with the given key as parsed at the given time,
+   * unless it has been parsed before, and add it if necessary. */
+  void markParsed(Entry key, long parsed) {
+    if (null == key) {
+      return;
+    }
+    Entry entry = this.entries.get(key);
+    if (null == entry || entry.isMissing()) {
+      this.put(key, parsed);
+    }
+  }
+
+  /** Store the given entry with the given parsed time and append it to the
+   * journal. */
+  void put(Entry key, long parsed) {
+    this.update(key, parsed);
+    try {
+      if (null == this.journal) {
+        this.journalFile.getAbsoluteFile().getParentFile().mkdirs();
+        this.journal = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(this.journalFile, true)));
+      }
+      writeRecord(this.journal, key, parsed);
+      this.journalRecords++;
+    } catch (IOException e) {
+      logger.warn("Failed appending to {}! This means that we might forget "
+          + "to dowload relay descriptors we are missing.",
+          this.journalFile.getAbsolutePath(), e);
+    }
+  }
+
+  /* Store the given entry with the given parsed time and update indexes,
+   * without appending it to the journal. */
+  private void update(Entry key, long parsed) {
+    Entry entry = this.entries.get(key);
+    if (null == entry) {
+      entry = key;
+      this.entries.put(entry, entry);
+      if (Type.MICRO == entry.type) {
+        this.microdescriptorsByDigest.computeIfAbsent(
+            ByteBuffer.wrap(entry.digest), d -> new HashSet<>()).add(entry);
+      }
+    } else {
+      this.obsoleteRecords++;
+      if (entry.isMissing()) {
+        this.removeFromTimeIndex(entry);
+      }
+    }
+    entry.parsed = parsed;
+    if (entry.isMissing()) {
+      this.missingByTime.get(entry.type).computeIfAbsent(entry.time,
+          t -> new HashSet<>()).add(entry);
+    }
+  }
+
+  private void removeFromTimeIndex(Entry entry) {
+    NavigableMap<Long, Set<Entry>> index = this.missingByTime.get(
+        entry.type);
+    Set<Entry> atTime = index.get(entry.time);
+    if (null != atTime && atTime.remove(entry) && atTime.isEmpty()) {
+      index.remove(entry.time);
+    }
+  }
+
+  /** Return missing descriptors of the given type with times from
+   * {@code fromMillis} (inclusive) to {@code toMillis} (exclusive). */
+  List<Entry> findMissing(Type type, long fromMillis, long toMillis) {
+    List<Entry> missing = new ArrayList<>();
+    if (fromMillis < toMillis) {
+      for (Set<Entry> atTime : this.missingByTime.get(type).subMap(
+          fromMillis, true, toMillis, false).values()) {
+        missing.addAll(atTime);
+      }
+    }
+    return missing;
+  }
+
+  /** Return the number of missing descriptors of the given type. */
+  int countMissing(Type type) {
+    int missing = 0;
+    for (Set<Entry> atTime : this.missingByTime.get(type).values()) {
+      missing += atTime.size();
+    }
+    return missing;
+  }
+
+  /** Return the number of distinct digests of missing microdescriptors. */
+  int countMissingMicrodescriptorDigests() {
+    Set<ByteBuffer> digests = new HashSet<>();
+    for (Set<Entry> atTime : this.missingByTime.get(Type.MICRO).values()) {
+      for (Entry entry : atTime) {
+        digests.add(ByteBuffer.wrap(entry.digest));
+      }
+    }
+    return digests.size();
+  }
+
+  /** Return all microdescriptor entries with the given base64-encoded
+   * digest. */
+  Collection<Entry> findMicrodescriptors(String digestBase64) {
+    return this.findMicrodescriptors(Base64.decodeBase64(digestBase64));
+  }
+
+  /** Return all microdescriptor entries with the given digest. */
+  Collection<Entry> findMicrodescriptors(byte[] digest) {
+    Set<Entry> found = this.microdescriptorsByDigest.get(ByteBuffer.wrap(
+        digest));
+    return null == found ? Collections.emptySet() : found;
+  }
+
+  /** Remove all entries that do not match the given predicate without
+   * recording this in the journal, and return the number of removed
+   * entries. */
+  int retainAll(Predicate<Entry> predicate) {
+    int removed = 0;
+    Iterator<Entry> it = this.entries.keySet().iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      if (predicate.test(entry)) {
+        continue;
+      }
+      it.remove();
+      removed++;
+      if (entry.isMissing()) {
+        this.removeFromTimeIndex(entry);
+      }
+      if (Type.MICRO == entry.type) {
+        ByteBuffer digest = ByteBuffer.wrap(entry.digest);
+        Set<Entry> withDigest = this.microdescriptorsByDigest.get(digest);
+        if (null != withDigest && withDigest.remove(entry)
+            && withDigest.isEmpty()) {
+          this.microdescriptorsByDigest.remove(digest);
+        }
+      }
+    }
+    this.obsoleteRecords += removed;
+    return removed;
+  }
+
+  /** Return all entries. */
+  Collection<Entry> entries() {
+    return this.entries.keySet();
+  }
+
+  /** Write journal records to disk, and compact the journal into a new
+   * snapshot if it has grown too large. */
+  void flush() {
+    try {
+      if (null != this.journal) {
+        this.journal.flush();
+      }
+    } catch (IOException e) {
+      logger.warn("Failed writing {}!", this.journalFile.getAbsolutePath(),
+          e);
+    }
+    if (this.journalRecords + this.obsoleteRecords >= Math.max(
+        MIN_COMPACTION_RECORDS, this.entries.size())) {
+      this.compact();
+    }
+  }
+
+  /** Write all entries to a new snapshot file and delete the journal. */
+  void compact() {
+    logger.debug("Writing file {}...", this.snapshotFile.getAbsolutePath());
+    File tempFile = new File(this.snapshotFile.getAbsolutePath() + ".tmp");
+    tempFile.getAbsoluteFile().getParentFile().mkdirs();
+    try {
+      try (DataOutputStream dos = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+        dos.writeInt(MAGIC);
+        dos.writeInt(VERSION);
+        for (Entry entry : this.entries.keySet()) {
+          writeRecord(dos, entry, entry.parsed);
+        }
+      }
+      Files.move(tempFile.toPath(), this.snapshotFile.toPath(),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      if (null != this.journal) {
+        this.journal.close();
+        this.journal = null;
+      }
+      Files.deleteIfExists(this.journalFile.toPath());
+      this.journalRecords = 0;
+      this.obsoleteRecords = 0;
+      logger.debug("Finished writing file {}.",
+          this.snapshotFile.getAbsolutePath());
+    } catch (IOException e) {
+      logger.warn("Failed writing {}!", this.snapshotFile.getAbsolutePath(),
+          e);
+    }
+  }
+
+  private static void writeRecord(DataOutputStream dos, Entry entry,
+      long parsed) throws IOException {
+    dos.writeByte(entry.type.ordinal());
+    dos.writeLong(entry.time);
+    dos.writeByte(entry.relay.length);
+    dos.write(entry.relay);
+    dos.writeByte(entry.digest.length);
+    dos.write(entry.digest);
+    dos.writeLong(parsed);
+  }
+}
@@ -0,0 +1,607 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.relaydescs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Single-pass scanner over the raw bytes of a network status consensus,
+ * microdesc consensus, or vote, which extracts the parts that we need for
+ * storing the document and for learning about referenced descriptors.
+ *
+ * <p>Relay identities, descriptor digests, and published times from "r"
+ * and "m" lines are decoded directly from bytes into primitive arrays,
+ * which are reused when scanning the next document, rather than into
+ * strings, so that scanning a consensus with thousands of relays creates
+ * hardly any short-lived objects.</p>
+ *
+ * <p>Instances are not thread-safe, and their contents are only valid
+ * until the next document is scanned.</p>
+ */
+final class NetworkStatusScanner {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      NetworkStatusScanner.class);
+
+  static final int IDENTITY_LENGTH = 20;
+
+  static final int DIGEST_LENGTH = 20;
+
+  static final int MICRODESCRIPTOR_DIGEST_LENGTH = 32;
+
+  private static final int MAX_FIELDS = 10;
+
+  private static final byte[] NETWORK_STATUS_VERSION = ascii(
+      "network-status-version 3");
+
+  private static final byte[] MICRODESC_FLAVOR = ascii(
+      "network-status-version 3 microdesc");
+
+  private static final byte[] VOTE_STATUS_VOTE = ascii("vote-status vote");
+
+  private static final byte[] VALID_AFTER = ascii("valid-after ");
+
+  private static final byte[] DIR_SOURCE = ascii("dir-source ");
+
+  private static final byte[] VOTE_DIGEST = ascii("vote-digest ");
+
+  private static final byte[] DIR_KEY_CERTIFICATE_VERSION = ascii(
+      "dir-key-certificate-version ");
+
+  private static final byte[] FINGERPRINT = ascii("fingerprint ");
+
+  private static final byte[] DIR_KEY_PUBLISHED = ascii(
+      "dir-key-published ");
+
+  private static final byte[] R = ascii("r ");
+
+  private static final byte[] M = ascii("m ");
+
+  private static final byte[] SHA256 = ascii("sha256=");
+
+  private static final byte[] DIRECTORY_SIGNATURE = ascii(
+      "directory-signature ");
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private static final int[] BASE64 = new int[128];
+
+  static {
+    Arrays.fill(BASE64, -1);
+    String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz"
+        + "0123456789+/";
+    for (int i = 0; i < alphabet.length(); i++) {
+      BASE64[alphabet.charAt(i)] = i;
+    }
+  }
+
+  private static byte[] ascii(String string) {
+    return string.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  private byte[] data;
+
+  private String statusType;
+
+  private String validAfterTime;
+
+  private long validAfter;
+
+  private String fingerprint;
+
+  private String dirSource;
+
+  private long dirKeyPublished;
+
+  private final SortedSet<String> dirSources = new TreeSet<>();
+
+  private int documentStart;
+
+  private int signedEnd;
+
+  private int certificateStart;
+
+  private int certificateEnd;
+
+  private int relays;
+
+  private byte[] identities = new byte[1024 * IDENTITY_LENGTH];
+
+  private byte[] descriptorDigests = new byte[1024 * DIGEST_LENGTH];
+
+  private boolean[] hasDescriptorDigest = new boolean[1024];
+
+  private long[] published = new long[1024];
+
+  private int microdescriptors;
+
+  private byte[] microdescriptorDigests
+      = new byte[1024 * MICRODESCRIPTOR_DIGEST_LENGTH];
+
+  private int[] microdescriptorRelays = new int[1024];
+
+  private final int[] fieldStarts = new int[MAX_FIELDS];
+
+  private final int[] fieldEnds = new int[MAX_FIELDS];
+
+  /** Return the offset of the first line that is not an annotation, or the
+   * data length if there is no such line. */
+  static int skipAnnotations(byte[] data) {
+    int start = 0;
+    while (start < data.length && data[start] == '@') {
+      int end = indexOf(data, (byte) '\n', start);
+      start = end < 0 ? data.length : end + 1;
+    }
+    return start;
+  }
+
+  /** Return whether the document starting at the given offset is a
+   * network status consensus, microdesc consensus, or vote. */
+  static boolean isNetworkStatus(byte[] data, int start) {
+    return startsWith(data, start, lineEnd(data, start),
+        NETWORK_STATUS_VERSION);
+  }
+
+  /**
+   * Scan the network status document starting at the given offset.
+   *
+   * @return Whether the document was scanned to the end, or {@code false}
+   *     if scanning stopped at a malformed "r" or "m" line, in which case
+   *     only relays up to that line are contained.
+   * @throws ParseException Thrown if a contained timestamp cannot be
+   *     parsed.
+   */
+  boolean scan(byte[] data, int start) throws ParseException {
+    this.data = data;
+    this.statusType = equalsLine(data, start, lineEnd(data, start),
+        MICRODESC_FLAVOR) ? "consensus-microdesc" : "consensus";
+    this.validAfterTime = null;
+    this.validAfter = -1L;
+    this.fingerprint = null;
+    this.dirSource = null;
+    this.dirKeyPublished = -1L;
+    this.dirSources.clear();
+    this.documentStart = start;
+    this.signedEnd = -1;
+    this.certificateStart = -1;
+    this.certificateEnd = -1;
+    this.relays = 0;
+    this.microdescriptors = 0;
+    int lineStart = nextLine(data, start);
+    while (lineStart < data.length) {
+      int lineEnd = lineEnd(data, lineStart);
+      if (!this.scanLine(lineStart, lineEnd)) {
+        return false;
+      }
+      lineStart = nextLine(data, lineStart);
+    }
+    return true;
+  }
+
+  private boolean scanLine(int start, int end) throws ParseException {
+    byte[] data = this.data;
+    if (startsWith(data, start, end, R)) {
+      if (this.certificateStart >= 0 && this.certificateEnd < 0) {
+        this.certificateEnd = start;
+      }
+      return this.scanRelay(start, end);
+    } else if (startsWith(data, start, end, M)) {
+      return this.scanMicrodescriptor(start, end);
+    } else if (equalsLine(data, start, end, VOTE_STATUS_VOTE)) {
+      this.statusType = "vote";
+    } else if (startsWith(data, start, end, VALID_AFTER)) {
+      this.validAfterTime = new String(data, start + VALID_AFTER.length,
+          end - start - VALID_AFTER.length, StandardCharsets.US_ASCII);
+      this.validAfter = parseTime(data, start + VALID_AFTER.length, end);
+    } else if (startsWith(data, start, end, DIR_SOURCE)) {
+      if (this.splitFields(start, end) > 2) {
+        this.dirSource = this.field(2);
+      }
+    } else if (startsWith(data, start, end, VOTE_DIGEST)) {
+      this.dirSources.add(this.dirSource);
+    } else if (startsWith(data, start, end, DIR_KEY_CERTIFICATE_VERSION)) {
+      this.certificateStart = start;
+      this.certificateEnd = -1;
+    } else if (startsWith(data, start, end, FINGERPRINT)) {
+      if (this.splitFields(start, end) > 1) {
+        this.fingerprint = this.field(1);
+      }
+    } else if (startsWith(data, start, end, DIR_KEY_PUBLISHED)) {
+      this.dirKeyPublished = parseTime(data,
+          start + DIR_KEY_PUBLISHED.length, end);
+    } else if (this.signedEnd < 0
+        && startsWith(data, start, end, DIRECTORY_SIGNATURE)) {
+      this.signedEnd = start + DIRECTORY_SIGNATURE.length;
+    }
+    return true;
+  }
+
+  /* Scan an "r" line with or without server descriptor digest, depending
+   * on whether this is a microdesc consensus or not. */
+  private boolean scanRelay(int start, int end) throws ParseException {
+    int fields = this.splitFields(start, end);
+    if (fields != 8 && fields != 9) {
+      return this.malformed(start, end, "r");
+    }
+    if (this.relays == this.published.length) {
+      int capacity = 2 * this.relays;
+      this.identities = Arrays.copyOf(this.identities,
+          capacity * IDENTITY_LENGTH);
+      this.descriptorDigests = Arrays.copyOf(this.descriptorDigests,
+          capacity * DIGEST_LENGTH);
+      this.hasDescriptorDigest = Arrays.copyOf(this.hasDescriptorDigest,
+          capacity);
+      this.published = Arrays.copyOf(this.published, capacity);
+    }
+    int relay = this.relays;
+    if (!decodeBase64(this.data, this.fieldStarts[2], this.fieldEnds[2],
+        this.identities, relay * IDENTITY_LENGTH, IDENTITY_LENGTH)) {
+      return this.malformed(start, end, "r");
+    }
+    this.hasDescriptorDigest[relay] = fields == 9;
+    if (fields == 9) {
+      if (!decodeBase64(this.data, this.fieldStarts[3], this.fieldEnds[3],
+          this.descriptorDigests, relay * DIGEST_LENGTH, DIGEST_LENGTH)
+          || this.fieldEnds[4] + 1 != this.fieldStarts[5]) {
+        return this.malformed(start, end, "r");
+      }
+      this.published[relay] = parseTime(this.data, this.fieldStarts[4],
+          this.fieldEnds[5]);
+    }
+    this.relays++;
+    return true;
+  }
+
+  /* Scan an "m" line, which contains a microdescriptor digest in a microdesc
+   * consensus and consensus methods and digests in a vote. */
+  private boolean scanMicrodescriptor(int start, int end) {
+    int fields = this.splitFields(start, end);
+    if (fields == 2 && this.fieldEnds[1] - this.fieldStarts[1] == 43) {
+      if (this.microdescriptors == this.microdescriptorRelays.length) {
+        int capacity = 2 * this.microdescriptors;
+        this.microdescriptorDigests = Arrays.copyOf(
+            this.microdescriptorDigests,
+            capacity * MICRODESCRIPTOR_DIGEST_LENGTH);
+        this.microdescriptorRelays = Arrays.copyOf(
+            this.microdescriptorRelays, capacity);
+      }
+      if (!decodeBase64(this.data, this.fieldStarts[1], this.fieldEnds[1],
+          this.microdescriptorDigests,
+          this.microdescriptors * MICRODESCRIPTOR_DIGEST_LENGTH,
+          MICRODESCRIPTOR_DIGEST_LENGTH)) {
+        return this.malformed(start, end, "m");
+      }
+      this.microdescriptorRelays[this.microdescriptors++]
+          = this.relays - 1;
+      return true;
+    } else if (fields == 3 && this.fieldEnds[2] - this.fieldStarts[2] == 50
+        && startsWith(this.data, this.fieldStarts[2], this.fieldEnds[2],
+        SHA256)) {
+      return true;
+    }
+    return this.malformed(start, end, "m");
+  }
+
+  private boolean malformed(int start, int end, String keyword) {
+    logger.warn("Could not parse {} line '{}' in descriptor. Skipping.",
+        keyword, new String(this.data, start, end - start,
+        StandardCharsets.US_ASCII));
+    return false;
+  }
+
+  /* Split the given line at spaces, skipping empty fields, and return the
+   * number of fields. */
+  private int splitFields(int start, int end) {
+    int fields = 0;
+    int pos = start;
+    while (pos < end) {
+      while (pos < end && this.data[pos] == ' ') {
+        pos++;
+      }
+      if (pos == end) {
+        break;
+      }
+      int fieldStart = pos;
+      while (pos < end && this.data[pos] != ' ') {
+        pos++;
+      }
+      if (fields < MAX_FIELDS) {
+        this.fieldStarts[fields] = fieldStart;
+        this.fieldEnds[fields] = pos;
+      }
+      fields++;
+    }
+    return fields;
+  }
+
+  private String field(int field) {
+    return new String(this.data, this.fieldStarts[field],
+        this.fieldEnds[field] - this.fieldStarts[field],
+        StandardCharsets.US_ASCII);
+  }
+
+  /** Return "consensus", "consensus-microdesc", or "vote". */
+  String getStatusType() {
+    return this.statusType;
+  }
+
+  String getValidAfterTime() {
+    return this.validAfterTime;
+  }
+
+  long getValidAfter() {
+    return this.validAfter;
+  }
+
+  /** Return the fingerprint of the authority that created this vote. */
+  String getFingerprint() {
+    return this.fingerprint;
+  }
+
+  /** Return the identity of the last dir-source. */
+  String getDirSource() {
+    return this.dirSource;
+  }
+
+  long getDirKeyPublished() {
+    return this.dirKeyPublished;
+  }
+
+  /** Return the identities of dir-sources with a vote digest. */
+  SortedSet<String> getDirSources() {
+    return new TreeSet<>(this.dirSources);
+  }
+
+  /** Return the number of dir-sources with a vote digest. */
+  int getDirSourceCount() {
+    return this.dirSources.size();
+  }
+
+  /** Return the offset where the signed part of this document starts. */
+  int getDocumentStart() {
+    return this.documentStart;
+  }
+
+  /** Return the offset after the first "directory-signature " keyword, or
+   * -1 if there is no signature. */
+  int getSignedEnd() {
+    return this.signedEnd;
+  }
+
+  /** Return the authority key certificate contained in a vote, or
+   * {@code null} if there is none. */
+  byte[] getCertificate() {
+    return this.certificateStart < 0 || this.certificateEnd < 0 ? null
+        : Arrays.copyOfRange(this.data, this.certificateStart,
+        this.certificateEnd);
+  }
+
+  /** Return the number of "r" lines. */
+  int getRelays() {
+    return this.relays;
+  }
+
+  byte[] getIdentity(int relay) {
+    return Arrays.copyOfRange(this.identities, relay * IDENTITY_LENGTH,
+        (relay + 1) * IDENTITY_LENGTH);
+  }
+
+  /** Return whether the given "r" line contains a server descriptor
+   * digest, which is not the case in microdesc consensuses. */
+  boolean hasDescriptorDigest(int relay) {
+    return this.hasDescriptorDigest[relay];
+  }
+
+  byte[] getDescriptorDigest(int relay) {
+    return Arrays.copyOfRange(this.descriptorDigests, relay * DIGEST_LENGTH,
+        (relay + 1) * DIGEST_LENGTH);
+  }
+
+  /** Copy the server descriptor digest of the given relay into the given
+   * array of length {@link #DIGEST_LENGTH} without creating objects. */
+  void copyDescriptorDigest(int relay, byte[] digest) {
+    System.arraycopy(this.descriptorDigests, relay * DIGEST_LENGTH, digest, 0,
+        DIGEST_LENGTH);
+  }
+
+  long getPublished(int relay) {
+    return this.published[relay];
+  }
+
+  /** Return hex-encoded server descriptor digests. */
+  SortedSet<String> getDescriptorDigestsHex() {
+    SortedSet<String> digests = new TreeSet<>();
+    for (int relay = 0; relay < this.relays; relay++) {
+      if (this.hasDescriptorDigest[relay]) {
+        digests.add(hex(this.descriptorDigests, relay * DIGEST_LENGTH,
+            DIGEST_LENGTH));
+      }
+    }
+    return digests;
+  }
+
+  /** Return the number of microdescriptor digests in "m" lines. */
+  int getMicrodescriptors() {
+    return this.microdescriptors;
+  }
+
+  byte[] getMicrodescriptorDigest(int microdescriptor) {
+    return Arrays.copyOfRange(this.microdescriptorDigests,
+        microdescriptor * MICRODESCRIPTOR_DIGEST_LENGTH,
+        (microdescriptor + 1) * MICRODESCRIPTOR_DIGEST_LENGTH);
+  }
+
+  /** Copy the given microdescriptor digest into the given array of length
+   * {@link #MICRODESCRIPTOR_DIGEST_LENGTH} without creating objects. */
+  void copyMicrodescriptorDigest(int microdescriptor, byte[] digest) {
+    System.arraycopy(this.microdescriptorDigests,
+        microdescriptor * MICRODESCRIPTOR_DIGEST_LENGTH, digest, 0,
+        MICRODESCRIPTOR_DIGEST_LENGTH);
+  }
+
+  /** Return the "r" line preceding the given "m" line, or -1 if there is
+   * none. */
+  int getMicrodescriptorRelay(int microdescriptor) {
+    return this.microdescriptorRelays[microdescriptor];
+  }
+
+  /** Return hex-encoded microdescriptor digests. */
+  SortedSet<String> getMicrodescriptorDigestsHex() {
+    SortedSet<String> digests = new TreeSet<>();
+    for (int i = 0; i < this.microdescriptors; i++) {
+      digests.add(hex(this.microdescriptorDigests,
+          i * MICRODESCRIPTOR_DIGEST_LENGTH, MICRODESCRIPTOR_DIGEST_LENGTH));
+    }
+    return digests;
+  }
+
+  /**
+   * Parse a UTC timestamp formatted "yyyy-MM-dd HH:mm:ss" from the given
+   * bytes without creating any objects.
+   *
+   * @return Milliseconds since the epoch.
+   * @throws ParseException Thrown if the bytes are not a timestamp in this
+   *     format.
+   */
+  static long parseTime(byte[] data, int start, int end)
+      throws ParseException {
+    if (end - start != 19 || data[start + 4] != '-'
+        || data[start + 7] != '-' || data[start + 10] != ' '
+        || data[start + 13] != ':' || data[start + 16] != ':') {
+      throw new ParseException("Unparseable date: \"" + new String(data,
+          start, Math.max(0, end - start), StandardCharsets.US_ASCII)
+          + "\"", 0);
+    }
+    int year = digits(data, start, 4);
+    int month = digits(data, start + 5, 2);
+    int day = digits(data, start + 8, 2);
+    int hour = digits(data, start + 11, 2);
+    int minute = digits(data, start + 14, 2);
+    int second = digits(data, start + 17, 2);
+    if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31
+        || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0
+        || second > 60) {
+      throw new ParseException("Unparseable date: \"" + new String(data,
+          start, end - start, StandardCharsets.US_ASCII) + "\"", 0);
+    }
+    return (((daysFromCivil(year, month, day) * 24L + hour) * 60L + minute)
+        * 60L + second) * 1000L;
+  }
+
+  /** Parse a UTC timestamp formatted "yyyy-MM-dd HH:mm:ss". */
+  static long parseTime(String time) throws ParseException {
+    byte[] bytes = time.getBytes(StandardCharsets.US_ASCII);
+    return parseTime(bytes, 0, bytes.length);
+  }
+
+  /* Return the parsed decimal number, or -1 if there is a non-digit. */
+  private static int digits(byte[] data, int start, int length) {
+    int value = 0;
+    for (int i = start; i < start + length; i++) {
+      if (data[i] < '0' || data[i] > '9') {
+        return -1;
+      }
+      value = 10 * value + data[i] - '0';
+    }
+    return value;
+  }
+
+  /* Return the number of days since 1970-01-01 in the proleptic Gregorian
+   * calendar. */
+  private static long daysFromCivil(int year, int month, int day) {
+    int y = month <= 2 ? year - 1 : year;
+    long era = (y >= 0 ? y : y - 399) / 400;
+    long yearOfEra = y - era * 400;
+    long dayOfYear = (153L * (month > 2 ? month - 3 : month + 9) + 2) / 5
+        + day - 1;
+    long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+        + dayOfYear;
+    return era * 146097 + dayOfEra - 719468;
+  }
+
+  /* Decode unpadded base64 from the given bytes into exactly outLength
+   * bytes, ignoring left-over bits. */
+  private static boolean decodeBase64(byte[] data, int start, int end,
+      byte[] out, int outStart, int outLength) {
+    int buffer = 0;
+    int bits = 0;
+    int written = 0;
+    for (int i = start; i < end; i++) {
+      int value = data[i] >= 0 ? BASE64[data[i]] : -1;
+      if (value < 0) {
+        return false;
+      }
+      buffer = (buffer << 6) | value;
+      bits += 6;
+      if (bits >= 8) {
+        bits -= 8;
+        if (written == outLength) {
+          return false;
+        }
+        out[outStart + written++] = (byte) (buffer >> bits);
+        buffer &= (1 << bits) - 1;
+      }
+    }
+    return written == outLength;
+  }
+
+  /** Return the lower-case hex encoding of the given bytes. */
+  static String hex(byte[] data, int start, int length) {
+    char[] chars = new char[2 * length];
+    for (int i = 0; i < length; i++) {
+      chars[2 * i] = HEX[(data[start + i] >> 4) & 0xf];
+      chars[2 * i + 1] = HEX[data[start + i] & 0xf];
+    }
+    return new String(chars);
+  }
+
+  private static int indexOf(byte[] data, byte value, int start) {
+    for (int i = start; i < data.length; i++) {
+      if (data[i] == value) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /* Return the end of the line starting at the given offset, excluding the
+   * newline and a preceding carriage return. */
+  private static int lineEnd(byte[] data, int start) {
+    int end = indexOf(data, (byte) '\n', start);
+    if (end < 0) {
+      end = data.length;
+    }
+    return end > start && data[end - 1] == '\r' ? end - 1 : end;
+  }
+
+  private static int nextLine(byte[] data, int start) {
+    int end = indexOf(data, (byte) '\n', start);
+    return end < 0 ? data.length : end + 1;
+  }
+
+  private static boolean startsWith(byte[] data, int start, int end,
+      byte[] prefix) {
+    if (end - start < prefix.length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (data[start + i] != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean equalsLine(byte[] data, int start, int end,
+      byte[] line) {
+    return end - start == line.length && startsWith(data, start, end, line);
+  }
+}
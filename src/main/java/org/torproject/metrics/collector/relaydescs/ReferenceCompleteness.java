@@ -0,0 +1,195 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.relaydescs;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tracks how many of the descriptors referenced from stored network
+ * statuses have been stored, updating counts as referenced descriptors
+ * are stored rather than comparing all references to all stored
+ * descriptors at the end of a run.
+ *
+ * <p>References are looked up in digest indexes once, when the network
+ * status is tracked. References to descriptors that are not stored yet
+ * are kept by digest until the descriptor is stored, at which point the
+ * counts of all network statuses referencing it are updated.</p>
+ */
+class ReferenceCompleteness {
+
+  /** Numbers of referenced and found descriptors of a single network
+   * status. */
+  static final class Counts {
+
+    private int allServerDescriptors;
+
+    private int foundServerDescriptors;
+
+    private int allExtraInfoDescriptors;
+
+    private int foundExtraInfoDescriptors;
+
+    private int allMicrodescriptors;
+
+    private int foundMicrodescriptors;
+
+    int getAllServerDescriptors() {
+      return this.allServerDescriptors;
+    }
+
+    int getFoundServerDescriptors() {
+      return this.foundServerDescriptors;
+    }
+
+    int getAllExtraInfoDescriptors() {
+      return this.allExtraInfoDescriptors;
+    }
+
+    int getFoundExtraInfoDescriptors() {
+      return this.foundExtraInfoDescriptors;
+    }
+
+    int getAllMicrodescriptors() {
+      return this.allMicrodescriptors;
+    }
+
+    int getFoundMicrodescriptors() {
+      return this.foundMicrodescriptors;
+    }
+  }
+
+  private final StoredDigestIndex storedServerDescriptors;
+
+  private final StoredDigestIndex storedExtraInfoDescriptors;
+
+  private final StoredDigestIndex storedMicrodescriptors;
+
+  /* Counts of network statuses referencing descriptors that have not been
+   * stored yet, by descriptor digest. */
+  private final Map<ByteBuffer, List<Counts>> missingServerDescriptors
+      = new HashMap<>();
+
+  private final Map<ByteBuffer, List<Counts>> missingExtraInfoDescriptors
+      = new HashMap<>();
+
+  private final Map<ByteBuffer, List<Counts>> missingMicrodescriptors
+      = new HashMap<>();
+
+  ReferenceCompleteness(StoredDigestIndex storedServerDescriptors,
+      StoredDigestIndex storedExtraInfoDescriptors,
+      StoredDigestIndex storedMicrodescriptors) {
+    this.storedServerDescriptors = storedServerDescriptors;
+    this.storedExtraInfoDescriptors = storedExtraInfoDescriptors;
+    this.storedMicrodescriptors = storedMicrodescriptors;
+  }
+
+  /** Starts tracking the server descriptor digests referenced from the
+   * given scanned consensus or vote and returns the counts that will be
+   * updated as referenced descriptors are stored. */
+  Counts trackServerDescriptors(NetworkStatusScanner status) {
+    Counts counts = new Counts();
+    byte[] digest = new byte[NetworkStatusScanner.DIGEST_LENGTH];
+    for (int relay = 0; relay < status.getRelays(); relay++) {
+      if (!status.hasDescriptorDigest(relay)) {
+        continue;
+      }
+      counts.allServerDescriptors++;
+      status.copyDescriptorDigest(relay, digest);
+      byte[] extraInfoDigest = this.storedServerDescriptors.find(digest);
+      if (null == extraInfoDigest) {
+        add(this.missingServerDescriptors, digest.clone(), counts);
+      } else {
+        this.foundServerDescriptor(counts, extraInfoDigest);
+      }
+    }
+    return counts;
+  }
+
+  /** Starts tracking the microdescriptor digests referenced from the given
+   * scanned microdesc consensus and returns the counts that will be updated
+   * as referenced descriptors are stored. */
+  Counts trackMicrodescriptors(NetworkStatusScanner consensus) {
+    Counts counts = new Counts();
+    byte[] digest
+        = new byte[NetworkStatusScanner.MICRODESCRIPTOR_DIGEST_LENGTH];
+    for (int i = 0; i < consensus.getMicrodescriptors(); i++) {
+      counts.allMicrodescriptors++;
+      consensus.copyMicrodescriptorDigest(i, digest);
+      if (this.storedMicrodescriptors.contains(digest)) {
+        counts.foundMicrodescriptors++;
+      } else {
+        add(this.missingMicrodescriptors, digest.clone(), counts);
+      }
+    }
+    return counts;
+  }
+
+  /** Updates counts after storing a server descriptor with the given
+   * digest and referenced extra-info descriptor digest, which may be
+   * null. */
+  void storedServerDescriptor(byte[] digest, byte[] extraInfoDigest) {
+    List<Counts> referencing = this.missingServerDescriptors.remove(
+        ByteBuffer.wrap(digest));
+    if (null != referencing) {
+      for (Counts counts : referencing) {
+        this.foundServerDescriptor(counts, null == extraInfoDigest
+            ? StoredDigestIndex.NO_VALUE : extraInfoDigest);
+      }
+    }
+  }
+
+  /** Updates counts after storing an extra-info descriptor with the given
+   * digest. */
+  void storedExtraInfoDescriptor(byte[] digest) {
+    List<Counts> referencing = this.missingExtraInfoDescriptors.remove(
+        ByteBuffer.wrap(digest));
+    if (null != referencing) {
+      for (Counts counts : referencing) {
+        counts.foundExtraInfoDescriptors++;
+      }
+    }
+  }
+
+  /** Updates counts after storing a microdescriptor with the given
+   * digest. */
+  void storedMicrodescriptor(byte[] digest) {
+    List<Counts> referencing = this.missingMicrodescriptors.remove(
+        ByteBuffer.wrap(digest));
+    if (null != referencing) {
+      for (Counts counts : referencing) {
+        counts.foundMicrodescriptors++;
+      }
+    }
+  }
+
+  /** Stops tracking references to descriptors that have not been
+   * stored. */
+  void clear() {
+    this.missingServerDescriptors.clear();
+    this.missingExtraInfoDescriptors.clear();
+    this.missingMicrodescriptors.clear();
+  }
+
+  private void foundServerDescriptor(Counts counts, byte[] extraInfoDigest) {
+    counts.foundServerDescriptors++;
+    if (extraInfoDigest.length > 0) {
+      counts.allExtraInfoDescriptors++;
+      if (this.storedExtraInfoDescriptors.contains(extraInfoDigest)) {
+        counts.foundExtraInfoDescriptors++;
+      } else {
+        add(this.missingExtraInfoDescriptors, extraInfoDigest, counts);
+      }
+    }
+  }
+
+  private static void add(Map<ByteBuffer, List<Counts>> missing,
+      byte[] digest, Counts counts) {
+    missing.computeIfAbsent(ByteBuffer.wrap(digest), d -> new ArrayList<>())
+        .add(counts);
+  }
+}
@@ -3,7 +3,10 @@
 
 package org.torproject.metrics.collector.relaydescs;
 
-import org.torproject.metrics.collector.downloader.Downloader;
+import org.torproject.metrics.collector.cron.ExecutorFactory;
+import org.torproject.metrics.collector.downloader.DescriptorSplitter;
+import org.torproject.metrics.collector.downloader.HttpClient;
+import org.torproject.metrics.collector.monitoring.MetricsRegistry;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.digest.DigestUtils;
@@ -16,21 +19,42 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.MalformedURLException;
 import java.net.URL;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Random;
 import java.util.Set;
 import java.util.SortedMap;
-import java.util.SortedSet;
 import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
 
 /**
  * Downloads relay descriptors from the directory authorities via HTTP.
@@ -43,8 +67,9 @@ import java.util.TreeSet;
 public class RelayDescriptorDownloader {
 
   /**
-   * Text file containing the descriptors that we are missing and that we
-   * want to download. Lines are formatted as:
+   * Text file containing the descriptors that we were missing as written
+   * by earlier versions, which we import once into the missing descriptor
+   * store. Lines are formatted as:
    * <p>
    * - "consensus,&lt;validafter&gt;,&lt;parsed&gt;",
    * - "consensus-microdesc,&lt;validafter&gt;,&lt;parsed&gt;",
@@ -59,32 +84,18 @@ public class RelayDescriptorDownloader {
 
   /**
    * Relay descriptors that we are missing and that we want to download
-   * either in this execution or write to disk and try next time. Map keys
-   * contain comma-separated values as in the missing descriptors files
-   * without the "parsed" column. Map values contain the "parsed" column.
+   * either in this execution or write to disk and try next time, together
+   * with descriptors that we parsed recently. Microdescriptor entries are
+   * also indexed by digest, because we can't learn the valid-after time or
+   * relay identity from parsing microdescriptors, but we need to know the
+   * valid-after time to store microdescriptors to disk and both to remove
+   * microdescriptors from the missing list. There are potentially many
+   * matching entries for the same microdescriptor digest. Also, in rare
+   * cases relays share the same microdescriptor (which is only possible if
+   * they share the same onion key), and then we don't have to download
+   * their microdescriptor more than once.
    */
-  private SortedMap<String, String> missingDescriptors;
-
-  /**
-   * Map from base64 microdescriptor digests to keys in missingDescriptors
-   * ("micro,&lt;validafter&gt;,&lt;relayid&gt;,&lt;descid&gt;"). We need this
-   * map, because we can't learn &lt;validafter&gt; or &lt;relayid&gt; from
-   * parsing microdescriptors, but we need to know &lt;validafter&gt; to store
-   * microdescriptors to disk and both &lt;validafter&gt; and &lt;relayid&gt; to
-   * remove microdescriptors from the missing list. There are potentially
-   * many matching keys in missingDescriptors for the same microdescriptor
-   * digest. Also, in rare cases relays share the same microdescriptor
-   * (which is only possible if they share the same onion key), and then
-   * we don't have to download their microdescriptor more than once.
-   */
-  private Map<String, Set<String>> microdescriptorKeys;
-
-  /**
-   * Set of microdescriptor digests that are currently missing. Used for
-   * logging statistics instead of "micro,&lt;validafter&gt;,..." keys which may
-   * contain the same microdescriptor digest multiple times.
-   */
-  private Set<String> missingMicrodescriptors;
+  private MissingDescriptorStore missingDescriptors;
 
   /**
    * Text file containing the IP addresses (and Dir ports if not 80) of
@@ -107,6 +118,31 @@ public class RelayDescriptorDownloader {
    */
   private RelayDescriptorParser rdp;
 
+  /**
+   * Clients for downloading from directory authorities by authority, reusing
+   * connections to the same authority and using read timeouts adapted to
+   * that authority.
+   */
+  private Map<String, HttpClient> httpClients = new ConcurrentHashMap<>();
+
+  /**
+   * Stored consensus and microdesc consensus, without annotations, by
+   * resource type, from which we request consensus diffs.
+   */
+  private Map<String, byte[]> diffBaseDocuments = new HashMap<>();
+
+  /**
+   * SHA3-256 digests of stored documents in {@code diffBaseDocuments} as
+   * signed, by resource type.
+   */
+  private Map<String, String> diffBaseDigests = new HashMap<>();
+
+  /**
+   * Latency and error statistics of directory authorities, persisted in
+   * {@code stats/authority-health}.
+   */
+  AuthorityHealth health;
+
   /**
    * Directory authorities that we will try to download missing
    * descriptors from.
@@ -166,11 +202,31 @@ public class RelayDescriptorDownloader {
   private boolean downloadAllExtraInfos;
 
   /**
-   * Download zlib-compressed versions of descriptors by adding
-   * ".z" to URLs.
+   * Download compressed versions of descriptors by negotiating the best
+   * compression method supported by both us and the directory authority.
    */
   private boolean downloadCompressed;
 
+  /**
+   * Maximum number of directory authorities to download from at the same
+   * time.
+   */
+  private int parallelDownloads;
+
+  /**
+   * Maximum number of batch requests for missing descriptors to send to the
+   * same directory authority at the same time.
+   */
+  private int parallelRequests;
+
+  /**
+   * Missing descriptors that are currently being requested from a directory
+   * authority, formatted as "&lt;type&gt;,&lt;identifier&gt;", so that we
+   * don't request the same descriptor from more than one authority at a
+   * time.
+   */
+  private Set<String> requestedDescriptors = new HashSet<>();
+
   /**
    * valid-after time that we expect the current consensus,
    * microdescriptor consensus, and votes to have, formatted
@@ -180,6 +236,10 @@ public class RelayDescriptorDownloader {
    */
   private String currentValidAfter;
 
+  /** Current valid-after time in milliseconds, for range queries in the
+   * missing descriptor store. */
+  private long currentValidAfterMillis;
+
   /**
    * Cut-off time for missing server and extra-info descriptors, formatted
    * "yyyy-MM-dd HH:mm:ss". This time is initialized as the current system
@@ -189,6 +249,9 @@ public class RelayDescriptorDownloader {
    */
   private String descriptorCutOff;
 
+  /** Descriptor cut-off time in milliseconds. */
+  private long descriptorCutOffMillis;
+
   /**
    * Cut-off time for downloading all server and extra-info descriptors
    * from the directory authorities, formatted "yyyy-MM-dd HH:mm:ss". This
@@ -209,6 +272,9 @@ public class RelayDescriptorDownloader {
    */
   private String currentTimestamp;
 
+  /** Current timestamp in milliseconds. */
+  private long currentTimestampMillis;
+
   /**
    * Logger for this class.
    */
@@ -302,7 +368,8 @@ public class RelayDescriptorDownloader {
       boolean downloadMissingExtraInfos,
       boolean downloadMissingMicrodescriptors,
       boolean downloadAllServerDescriptors, boolean downloadAllExtraInfos,
-      boolean downloadCompressed) {
+      boolean downloadCompressed, int parallelDownloads,
+      int parallelRequests) {
 
     /* Memorize argument values. */
     this.rdp = rdp;
@@ -320,9 +387,13 @@ public class RelayDescriptorDownloader {
     this.downloadAllServerDescriptors = downloadAllServerDescriptors;
     this.downloadAllExtraInfos = downloadAllExtraInfos;
     this.downloadCompressed = downloadCompressed;
+    this.parallelDownloads = parallelDownloads;
+    this.parallelRequests = parallelRequests;
 
-    /* Shuffle list of authorities for better load balancing over time. */
-    Collections.shuffle(this.authorities);
+    /* Order authorities randomly for better load balancing over time, but
+     * prefer authorities that have been fast and reliable in the past. */
+    this.health = new AuthorityHealth(new File("stats/authority-health"));
+    this.authorities = this.health.order(this.authorities, new Random());
 
     /* Prepare cut-off times and timestamp for the missing descriptors
      * list and the list of authorities to download all server and
@@ -336,77 +407,48 @@ public class RelayDescriptorDownloader {
     this.downloadAllDescriptorsCutOff = format.format(now
         - 23L * 60L * 60L * 1000L - 30L * 60L * 1000L);
 
-    /* Read list of missing descriptors from disk and memorize those that
-     * we are interested in and that are likely to be found on the
+    this.currentValidAfterMillis = MissingDescriptorStore.parseTime(
+        this.currentValidAfter);
+    this.descriptorCutOffMillis = MissingDescriptorStore.parseTime(
+        this.descriptorCutOff);
+    this.currentTimestampMillis = MissingDescriptorStore.parseTime(
+        this.currentTimestamp);
+
+    /* Read missing descriptors from disk, importing them from the text file
+     * written by earlier versions if necessary, and forget those that we
+     * are not interested in anymore or that are unlikely to be found on the
      * directory authorities. */
-    this.missingDescriptors = new TreeMap<>();
-    this.microdescriptorKeys = new HashMap<>();
-    this.missingMicrodescriptors = new HashSet<>();
     this.missingDescriptorsFile = new File(
         "stats/missing-relay-descriptors");
-    if (this.missingDescriptorsFile.exists()) {
-      try {
-        logger.debug("Reading file {}...",
-            this.missingDescriptorsFile.getAbsolutePath());
-        BufferedReader br = new BufferedReader(new FileReader(
-            this.missingDescriptorsFile));
-        String line;
-        while ((line = br.readLine()) != null) {
-          if (line.split(",").length > 2) {
-            String published = line.split(",")[1];
-            if (((line.startsWith("consensus,")
-                || line.startsWith("consensus-microdesc,")
-                || line.startsWith("vote,"))
-                && this.currentValidAfter.equals(published))
-                || ((line.startsWith("server,")
-                || line.startsWith("extra,")
-                || line.startsWith("micro,"))
-                && this.descriptorCutOff.compareTo(published) < 0)) {
-              if (!line.endsWith("NA")) {
-                /* Not missing. */
-              } else if (line.startsWith("consensus,")) {
-                oldMissingConsensuses++;
-              } else if (line.startsWith("consensus-microdesc,")) {
-                oldMissingMicrodescConsensuses++;
-              } else if (line.startsWith("vote,")) {
-                oldMissingVotes++;
-              } else if (line.startsWith("server,")) {
-                oldMissingServerDescriptors++;
-              } else if (line.startsWith("extra,")) {
-                oldMissingExtraInfoDescriptors++;
-              }
-              int separateAt = line.lastIndexOf(",");
-              this.missingDescriptors.put(line.substring(0,
-                  separateAt), line.substring(separateAt + 1));
-              if (line.startsWith("micro,")) {
-                String microdescriptorDigest = line.split(",")[3];
-                String microdescriptorKey = line.substring(0,
-                    line.lastIndexOf(","));
-                this.microdescriptorKeys.putIfAbsent(microdescriptorDigest,
-                    new HashSet<>());
-                this.microdescriptorKeys.get(microdescriptorDigest).add(
-                    microdescriptorKey);
-                if (line.endsWith("NA") && !this.missingMicrodescriptors
-                    .contains(microdescriptorDigest)) {
-                  this.missingMicrodescriptors.add(microdescriptorDigest);
-                  oldMissingMicrodescriptors++;
-                }
-              }
-            }
-          } else {
-            logger.debug("Invalid line '{}' in {}. Ignoring.", line,
-                this.missingDescriptorsFile.getAbsolutePath());
-          }
-        }
-        br.close();
-        logger.debug("Finished reading file {}.",
-            this.missingDescriptorsFile.getAbsolutePath());
-      } catch (IOException e) {
-        logger.warn("Failed to read file {}! This means that we might forget "
-            + "to dowload relay descriptors we are missing.",
-            this.missingDescriptorsFile.getAbsolutePath(), e);
-      }
+    this.missingDescriptors = new MissingDescriptorStore(
+        new File("stats/missing-relay-descriptors.store"),
+        new File("stats/missing-relay-descriptors.journal"));
+    if (this.missingDescriptors.isNew()
+        && this.missingDescriptorsFile.exists()) {
+      this.missingDescriptors.importTextFile(this.missingDescriptorsFile);
     }
+    this.missingDescriptors.retainAll(entry -> {
+      switch (entry.type) {
+        case CONSENSUS:
+        case MICRODESC_CONSENSUS:
+        case VOTE:
+          return this.currentValidAfterMillis == entry.time;
+        default:
+          return this.descriptorCutOffMillis < entry.time;
+      }
+    });
+    this.oldMissingConsensuses = this.missingDescriptors.countMissing(
+        MissingDescriptorStore.Type.CONSENSUS);
+    this.oldMissingMicrodescConsensuses = this.missingDescriptors
+        .countMissing(MissingDescriptorStore.Type.MICRODESC_CONSENSUS);
+    this.oldMissingVotes = this.missingDescriptors.countMissing(
+        MissingDescriptorStore.Type.VOTE);
+    this.oldMissingServerDescriptors = this.missingDescriptors.countMissing(
+        MissingDescriptorStore.Type.SERVER);
+    this.oldMissingExtraInfoDescriptors = this.missingDescriptors
+        .countMissing(MissingDescriptorStore.Type.EXTRA);
+    this.oldMissingMicrodescriptors = this.missingDescriptors
+        .countMissingMicrodescriptorDigests();
 
     /* Read list of directory authorities and when we last downloaded all
      * server and extra-info descriptors from them. */
@@ -475,29 +517,56 @@ public class RelayDescriptorDownloader {
 
     /* Mark consensus as parsed. */
     if (this.currentValidAfter.equals(validAfter)) {
-      String consensusKey = "consensus," + validAfter;
-      this.missingDescriptors.put(consensusKey, this.currentTimestamp);
+      this.missingDescriptors.markParsed(MissingDescriptorStore.key(
+          MissingDescriptorStore.Type.CONSENSUS, validAfter, null, null),
+          this.currentTimestampMillis);
 
       /* Add votes to missing list. */
       for (String authority : authorities) {
-        String voteKey = "vote," + validAfter + "," + authority;
-        if (!this.missingDescriptors.containsKey(voteKey)) {
-          this.missingDescriptors.put(voteKey, "NA");
+        if (this.missingDescriptors.addMissing(MissingDescriptorStore.key(
+            MissingDescriptorStore.Type.VOTE, validAfter, null,
+            authority))) {
           this.newMissingVotes++;
         }
       }
     }
 
     /* Add server descriptors to missing list. */
+    this.addMissingServerDescriptors(serverDescriptors);
+  }
+
+  /**
+   * We have parsed a consensus. Take this consensus off the missing list
+   * and add the votes of its dir-sources and the server descriptors it
+   * references to that list.
+   */
+  void haveParsedConsensus(NetworkStatusScanner consensus) {
+    this.haveParsedConsensus(consensus.getValidAfterTime(),
+        consensus.getDirSources(), Collections.emptySet());
+    this.addMissingServerDescriptors(consensus);
+  }
+
+  private void addMissingServerDescriptors(NetworkStatusScanner status) {
+    for (int relay = 0; relay < status.getRelays(); relay++) {
+      if (status.hasDescriptorDigest(relay)
+          && this.descriptorCutOffMillis < status.getPublished(relay)
+          && this.missingDescriptors.addMissing(MissingDescriptorStore.key(
+          MissingDescriptorStore.Type.SERVER, status.getPublished(relay),
+          status.getIdentity(relay), status.getDescriptorDigest(relay)))) {
+        this.newMissingServerDescriptors++;
+      }
+    }
+  }
+
+  private void addMissingServerDescriptors(Set<String> serverDescriptors) {
     for (String serverDescriptor : serverDescriptors) {
-      String published = serverDescriptor.split(",")[0];
-      if (this.descriptorCutOff.compareTo(published) < 0) {
-        String serverDescriptorKey = "server," + serverDescriptor;
-        if (!this.missingDescriptors.containsKey(
-            serverDescriptorKey)) {
-          this.missingDescriptors.put(serverDescriptorKey, "NA");
-          this.newMissingServerDescriptors++;
-        }
+      String[] parts = serverDescriptor.split(",");
+      if (parts.length == 3
+          && this.descriptorCutOff.compareTo(parts[0]) < 0
+          && this.missingDescriptors.addMissing(MissingDescriptorStore.key(
+          MissingDescriptorStore.Type.SERVER, parts[0], parts[1],
+          parts[2]))) {
+        this.newMissingServerDescriptors++;
       }
     }
   }
@@ -512,9 +581,9 @@ public class RelayDescriptorDownloader {
 
     /* Mark microdesc consensus as parsed. */
     if (this.currentValidAfter.equals(validAfter)) {
-      String microdescConsensusKey = "consensus-microdesc," + validAfter;
-      this.missingDescriptors.put(microdescConsensusKey,
-          this.currentTimestamp);
+      this.missingDescriptors.markParsed(MissingDescriptorStore.key(
+          MissingDescriptorStore.Type.MICRODESC_CONSENSUS, validAfter, null,
+          null), this.currentTimestampMillis);
     }
 
     /* Add microdescriptors to missing list. Exclude those that we already
@@ -523,43 +592,63 @@ public class RelayDescriptorDownloader {
      * to copy microdescriptors from the earlier month to the current
      * month, and that gets messy.) */
     if (this.descriptorCutOff.compareTo(validAfter) < 0) {
-      String validAfterYearMonth = validAfter.substring(0,
-          "YYYY-MM".length());
       for (String microdescriptor : microdescriptors) {
-        String microdescriptorKey = "micro," + microdescriptor;
-        String parsed = "NA";
-        String microdescriptorDigest = microdescriptor.split(",")[2];
-        if (this.microdescriptorKeys.containsKey(microdescriptorDigest)) {
-          for (String otherMicrodescriptorKey :
-              this.microdescriptorKeys.get(microdescriptorDigest)) {
-            String otherValidAfter =
-                otherMicrodescriptorKey.split(",")[1];
-            if (!otherValidAfter.startsWith(validAfterYearMonth)) {
-              continue;
-            }
-            String otherParsed = this.missingDescriptors.get(
-                otherMicrodescriptorKey);
-            if (otherParsed != null && !otherParsed.equals("NA")) {
-              parsed = otherParsed;
-              break;
-            }
-          }
-        } else {
-          this.microdescriptorKeys.put(
-              microdescriptorDigest, new HashSet<>());
+        String[] parts = microdescriptor.split(",");
+        if (parts.length == 3) {
+          this.addMissingMicrodescriptor(MissingDescriptorStore.key(
+              MissingDescriptorStore.Type.MICRO, parts[0], parts[1],
+              parts[2]));
         }
-        this.microdescriptorKeys.get(microdescriptorDigest).add(
-            microdescriptorKey);
-        this.missingDescriptors.put(microdescriptorKey, parsed);
-        if (parsed.equals("NA")
-            && !this.missingMicrodescriptors.contains(microdescriptorDigest)) {
-          this.missingMicrodescriptors.add(microdescriptorDigest);
-          this.newMissingMicrodescriptors++;
+      }
+    }
+  }
+
+  /**
+   * We have parsed a microdesc consensus. Take this microdesc consensus off the
+   * missing list and add the microdescriptors it references to that list.
+   */
+  void haveParsedMicrodescConsensus(NetworkStatusScanner consensus) {
+    String validAfter = consensus.getValidAfterTime();
+    this.haveParsedMicrodescConsensus(validAfter, Collections.emptySet());
+    if (this.descriptorCutOff.compareTo(validAfter) < 0) {
+      for (int i = 0; i < consensus.getMicrodescriptors(); i++) {
+        int relay = consensus.getMicrodescriptorRelay(i);
+        if (relay >= 0) {
+          this.addMissingMicrodescriptor(MissingDescriptorStore.key(
+              MissingDescriptorStore.Type.MICRO, consensus.getValidAfter(),
+              consensus.getIdentity(relay),
+              consensus.getMicrodescriptorDigest(i)));
         }
       }
     }
   }
 
+  /* Add the given microdescriptor to the missing list, unless we already
+   * downloaded it this month. */
+  private void addMissingMicrodescriptor(
+      MissingDescriptorStore.Entry microdescriptorKey) {
+    if (null == microdescriptorKey
+        || null != this.missingDescriptors.get(microdescriptorKey)) {
+      return;
+    }
+    long parsed = MissingDescriptorStore.NOT_PARSED;
+    boolean isMissingElsewhere = false;
+    for (MissingDescriptorStore.Entry other :
+        this.missingDescriptors.findMicrodescriptors(
+        microdescriptorKey.digest)) {
+      if (other.isMissing()) {
+        isMissingElsewhere = true;
+      } else if (MissingDescriptorStore.isSameMonth(other.time,
+          microdescriptorKey.time)) {
+        parsed = other.getParsed();
+      }
+    }
+    this.missingDescriptors.put(microdescriptorKey, parsed);
+    if (MissingDescriptorStore.NOT_PARSED == parsed && !isMissingElsewhere) {
+      this.newMissingMicrodescriptors++;
+    }
+  }
+
   /**
    * We have parsed a vote. Take this vote off the missing list and add
    * the {@code serverDescriptors} which are in the format
@@ -570,22 +659,23 @@ public class RelayDescriptorDownloader {
 
     /* Mark vote as parsed. */
     if (this.currentValidAfter.equals(validAfter)) {
-      String voteKey = "vote," + validAfter + "," + fingerprint;
-      this.missingDescriptors.put(voteKey, this.currentTimestamp);
+      this.missingDescriptors.markParsed(MissingDescriptorStore.key(
+          MissingDescriptorStore.Type.VOTE, validAfter, null, fingerprint),
+          this.currentTimestampMillis);
     }
 
     /* Add server descriptors to missing list. */
-    for (String serverDescriptor : serverDescriptors) {
-      String published = serverDescriptor.split(",")[0];
-      if (this.descriptorCutOff.compareTo(published) < 0) {
-        String serverDescriptorKey = "server," + serverDescriptor;
-        if (!this.missingDescriptors.containsKey(
-            serverDescriptorKey)) {
-          this.missingDescriptors.put(serverDescriptorKey, "NA");
-          this.newMissingServerDescriptors++;
-        }
-      }
-    }
+    this.addMissingServerDescriptors(serverDescriptors);
+  }
+
+  /**
+   * We have parsed a vote. Take this vote off the missing list and add the
+   * server descriptors it references to that list.
+   */
+  void haveParsedVote(NetworkStatusScanner vote) {
+    this.haveParsedVote(vote.getValidAfterTime(), vote.getFingerprint(),
+        Collections.emptySet());
+    this.addMissingServerDescriptors(vote);
   }
 
   /**
@@ -599,19 +689,16 @@ public class RelayDescriptorDownloader {
 
     /* Mark server descriptor as parsed. */
     if (this.descriptorCutOff.compareTo(published) < 0) {
-      String serverDescriptorKey = "server," + published + ","
-          + relayIdentity + "," + serverDescriptorDigest;
-      this.missingDescriptors.put(serverDescriptorKey,
-          this.currentTimestamp);
+      this.missingDescriptors.markParsed(MissingDescriptorStore.key(
+          MissingDescriptorStore.Type.SERVER, published, relayIdentity,
+          serverDescriptorDigest), this.currentTimestampMillis);
 
       /* Add extra-info descriptor to missing list. */
-      if (extraInfoDigest != null) {
-        String extraInfoKey = "extra," + published + ","
-            + relayIdentity + "," + extraInfoDigest;
-        if (!this.missingDescriptors.containsKey(extraInfoKey)) {
-          this.missingDescriptors.put(extraInfoKey, "NA");
-          this.newMissingExtraInfoDescriptors++;
-        }
+      if (extraInfoDigest != null
+          && this.missingDescriptors.addMissing(MissingDescriptorStore.key(
+          MissingDescriptorStore.Type.EXTRA, published, relayIdentity,
+          extraInfoDigest))) {
+        this.newMissingExtraInfoDescriptors++;
       }
     }
   }
@@ -623,9 +710,9 @@ public class RelayDescriptorDownloader {
   public void haveParsedExtraInfoDescriptor(String published,
       String relayIdentity, String extraInfoDigest) {
     if (this.descriptorCutOff.compareTo(published) < 0) {
-      String extraInfoKey = "extra," + published + ","
-          + relayIdentity + "," + extraInfoDigest;
-      this.missingDescriptors.put(extraInfoKey, this.currentTimestamp);
+      this.missingDescriptors.markParsed(MissingDescriptorStore.key(
+          MissingDescriptorStore.Type.EXTRA, published, relayIdentity,
+          extraInfoDigest), this.currentTimestampMillis);
     }
   }
 
@@ -633,16 +720,58 @@ public class RelayDescriptorDownloader {
    * We have parsed a microdescriptor. Take it off the missing list.
    */
   public void haveParsedMicrodescriptor(String descriptorDigest) {
-    if (this.microdescriptorKeys.containsKey(descriptorDigest)) {
-      for (String microdescriptorKey :
-          this.microdescriptorKeys.get(descriptorDigest)) {
-        String validAfter = microdescriptorKey.split(",")[0];
-        if (this.descriptorCutOff.compareTo(validAfter) < 0) {
-          this.missingDescriptors.put(microdescriptorKey,
-              this.currentTimestamp);
-        }
+    for (MissingDescriptorStore.Entry microdescriptorKey :
+        this.missingDescriptors.findMicrodescriptors(descriptorDigest)) {
+      if (this.descriptorCutOffMillis < microdescriptorKey.time) {
+        this.missingDescriptors.markParsed(microdescriptorKey,
+            this.currentTimestampMillis);
       }
-      this.missingMicrodescriptors.remove(descriptorDigest);
+    }
+  }
+
+  /**
+   * Requests consensus diffs rather than full documents from the directory
+   * authorities, relative to the most recent consensus and microdesc
+   * consensus found in the given directories.
+   */
+  public void setConsensusDiffBases(Path consensusDirectory,
+      Path microdescConsensusDirectory) {
+    this.loadConsensusDiffBase("consensus", consensusDirectory,
+        "-consensus");
+    this.loadConsensusDiffBase("consensus-microdesc",
+        microdescConsensusDirectory, "-consensus-microdesc");
+  }
+
+  private void loadConsensusDiffBase(String type, Path directory,
+      String fileNameSuffix) {
+    if (!Files.isDirectory(directory)) {
+      return;
+    }
+    Optional<Path> latest;
+    try (Stream<Path> files = Files.list(directory)) {
+      latest = files.filter(file -> file.getFileName().toString()
+          .endsWith(fileNameSuffix)).max(Comparator.comparing(
+          file -> file.getFileName().toString()));
+    } catch (IOException e) {
+      logger.warn("Cannot list {}. Requesting full {}.", directory, type, e);
+      return;
+    }
+    if (!latest.isPresent()) {
+      return;
+    }
+    try {
+      byte[] document = ConsensusDiff.readStoredDocument(latest.get());
+      String digest = ConsensusDiff.digestAsSigned(document);
+      if (null == digest) {
+        logger.info("Cannot compute SHA3-256 digest of {}. Requesting full "
+            + "{}.", latest.get(), type);
+        return;
+      }
+      this.diffBaseDocuments.put(type, document);
+      this.diffBaseDigests.put(type, digest);
+    } catch (IOException e) {
+      logger.warn("Cannot read {}. Requesting full {}.", latest.get(), type,
+          e);
     }
   }
 
@@ -655,202 +784,433 @@ public class RelayDescriptorDownloader {
 
     /* Put the current consensus and votes on the missing list, unless we
      * already have them. */
-    String consensusKey = "consensus," + this.currentValidAfter;
-    if (!this.missingDescriptors.containsKey(consensusKey)) {
-      this.missingDescriptors.put(consensusKey, "NA");
+    if (this.missingDescriptors.addMissing(MissingDescriptorStore.key(
+        MissingDescriptorStore.Type.CONSENSUS, this.currentValidAfter, null,
+        null))) {
       this.newMissingConsensuses++;
     }
-    String microdescConsensusKey = "consensus-microdesc,"
-        + this.currentValidAfter;
-    if (!this.missingDescriptors.containsKey(microdescConsensusKey)) {
-      this.missingDescriptors.put(microdescConsensusKey, "NA");
+    if (this.missingDescriptors.addMissing(MissingDescriptorStore.key(
+        MissingDescriptorStore.Type.MICRODESC_CONSENSUS,
+        this.currentValidAfter, null, null))) {
       this.newMissingMicrodescConsensuses++;
     }
     for (String authority : authorityFingerprints) {
-      String voteKey = "vote," + this.currentValidAfter + "," + authority;
-      if (!this.missingDescriptors.containsKey(voteKey)) {
-        this.missingDescriptors.put(voteKey, "NA");
+      if (this.missingDescriptors.addMissing(MissingDescriptorStore.key(
+          MissingDescriptorStore.Type.VOTE, this.currentValidAfter, null,
+          authority))) {
         this.newMissingVotes++;
       }
     }
 
     /* Download descriptors from authorities which are in random order, so
-     * that we distribute the load somewhat fairly over time. */
-    for (String authority : authorities) {
-
-      /* Make all requests to an authority in a single try block. If
-       * something goes wrong with this authority, we give up on all
-       * downloads and continue with the next authority. */
-      /* TODO Some authorities provide very little bandwidth and could
-       * slow down the entire download process. Ponder adding a timeout of
-       * 3 or 5 minutes per authority to avoid getting in the way of the
-       * next execution. */
-      try {
-
-        /* Start with downloading the current consensus, unless we already
-         * have it. */
-        if (downloadCurrentConsensus) {
-          if (this.missingDescriptors.containsKey(consensusKey)
-              && this.missingDescriptors.get(consensusKey).equals("NA")) {
-            this.requestedConsensuses++;
-            this.downloadedConsensuses +=
-                this.downloadResourceFromAuthority(authority,
-                "/tor/status-vote/current/consensus");
-          }
+     * that we distribute the load somewhat fairly over time. Download from
+     * up to the configured number of authorities at the same time. */
+    int parallelAuthorities = Math.max(1, Math.min(this.parallelDownloads,
+        this.authorities.size()));
+    if (parallelAuthorities == 1) {
+      for (String authority : this.authorities) {
+        this.downloadFromAuthority(authority);
+      }
+      return;
+    }
+    Queue<String> pendingAuthorities
+        = new ConcurrentLinkedQueue<>(this.authorities);
+    List<Callable<Void>> workers = new ArrayList<>();
+    for (int i = 0; i < parallelAuthorities; i++) {
+      workers.add(() -> {
+        String authority;
+        while (null != (authority = pendingAuthorities.poll())) {
+          this.downloadFromAuthority(authority);
         }
+        return null;
+      });
+    }
+    ExecutorService executor = ExecutorFactory.newExecutor(
+        "CollecTor-Authority-Downloader", parallelAuthorities);
+    try {
+      for (Future<Void> result : executor.invokeAll(workers)) {
+        result.get();
+      }
+    } catch (ExecutionException e) {
+      logger.warn("Failed downloading from directory authorities.",
+          e.getCause());
+    } catch (InterruptedException e) {
+      logger.warn("Interrupted while downloading from directory "
+          + "authorities.");
+      Thread.currentThread().interrupt();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
 
-        /* Then try to download the microdesc consensus. */
-        if (downloadCurrentMicrodescConsensus) {
-          if (this.missingDescriptors.containsKey(microdescConsensusKey)
-              && this.missingDescriptors.get(microdescConsensusKey)
-              .equals("NA")) {
-            this.requestedMicrodescConsensuses++;
-            this.downloadedMicrodescConsensuses +=
-                this.downloadResourceFromAuthority(authority,
-                "/tor/status-vote/current/consensus-microdesc");
-          }
-        }
+  /**
+   * Downloads the current consensuses and votes, the bandwidth file, and
+   * missing or all server descriptors, extra-info descriptors, and
+   * microdescriptors from the given authority.
+   *
+   * <p>This method may run for several authorities at the same time.
+   * Descriptors are only requested if they are still missing and if no
+   * other authority is currently being asked for them.</p>
+   */
+  private void downloadFromAuthority(String authority) {
 
-        /* Next, try to download current votes that we're missing. */
-        if (downloadCurrentVotes) {
-          String voteKeyPrefix = "vote," + this.currentValidAfter;
-          SortedSet<String> fingerprints = new TreeSet<>();
-          for (Map.Entry<String, String> e :
-              this.missingDescriptors.entrySet()) {
-            if (e.getValue().equals("NA")
-                && e.getKey().startsWith(voteKeyPrefix)) {
-              String fingerprint = e.getKey().split(",")[2];
-              fingerprints.add(fingerprint);
-            }
-          }
-          for (String fingerprint : fingerprints) {
-            this.requestedVotes++;
-            this.downloadedVotes +=
-                this.downloadResourceFromAuthority(authority, 
-                "/tor/status-vote/current/" + fingerprint);
-          }
-        }
+    /* Make all requests to an authority in a single try block. If
+     * requests to this authority fail too often in a row, we give up on
+     * all downloads and continue with the next authority. */
+    try {
 
-        /* Now try to download the bandwidth file, regardless of whether this
-         * authority might provide one or when we last downloaded a bandwidth
-         * file from it. */
+      /* Start with downloading the current consensus, unless we already
+       * have it. */
+      if (this.downloadCurrentConsensus) {
+        this.downloadMissingDescriptors(authority, "consensus", 1,
+            identifiers -> "/tor/status-vote/current/consensus",
+            (requested, downloaded) -> {
+              this.requestedConsensuses += requested;
+              this.downloadedConsensuses += downloaded;
+            });
+      }
+
+      /* Then try to download the microdesc consensus. */
+      if (this.downloadCurrentMicrodescConsensus) {
+        this.downloadMissingDescriptors(authority, "consensus-microdesc", 1,
+            identifiers -> "/tor/status-vote/current/consensus-microdesc",
+            (requested, downloaded) -> {
+              this.requestedMicrodescConsensuses += requested;
+              this.downloadedMicrodescConsensuses += downloaded;
+            });
+      }
+
+      /* Next, try to download current votes that we're missing. */
+      if (this.downloadCurrentVotes) {
+        this.downloadMissingDescriptors(authority, "vote", 1,
+            identifiers -> "/tor/status-vote/current/" + identifiers.get(0),
+            (requested, downloaded) -> {
+              this.requestedVotes += requested;
+              this.downloadedVotes += downloaded;
+            });
+      }
+
+      /* Now try to download the bandwidth file, regardless of whether this
+       * authority might provide one or when we last downloaded a bandwidth
+       * file from it. */
+      synchronized (this) {
         this.requestedBandwidthFiles++;
-        this.downloadedBandwidthFiles +=
-            this.downloadResourceFromAuthority(authority,
-            "/tor/status-vote/next/bandwidth");
-
-        /* Download either all server and extra-info descriptors or only
-         * those that we're missing. Start with server descriptors, then
-         * request extra-info descriptors. Finally, request missing
-         * microdescriptors. */
-        for (String type : new String[] { "server", "extra", "micro" }) {
-
-          /* Download all server or extra-info descriptors from this
-           * authority if we haven't done so for 24 hours and if we're
-           * configured to do so. */
-          if (this.downloadAllDescriptorsFromAuthorities.contains(
-              authority) && ((type.equals("server")
-              && this.downloadAllServerDescriptors)
-              || (type.equals("extra") && this.downloadAllExtraInfos))) {
-            int downloadedAllDescriptors =
-                this.downloadResourceFromAuthority(authority, "/tor/"
-                + type + "/all");
+      }
+      int downloadedBandwidthFile = this.downloadResourceFromAuthority(
+          authority, "/tor/status-vote/next/bandwidth");
+      synchronized (this) {
+        this.downloadedBandwidthFiles += downloadedBandwidthFile;
+      }
+
+      /* Download either all server and extra-info descriptors or only
+       * those that we're missing. Start with server descriptors, then
+       * request extra-info descriptors. Finally, request missing
+       * microdescriptors. */
+      for (String type : new String[] { "server", "extra", "micro" }) {
+
+        /* Download all server or extra-info descriptors from this
+         * authority if we haven't done so for 24 hours and if we're
+         * configured to do so. */
+        if (this.downloadAllDescriptorsFromAuthorities.contains(
+            authority) && ((type.equals("server")
+            && this.downloadAllServerDescriptors)
+            || (type.equals("extra") && this.downloadAllExtraInfos))) {
+          synchronized (this) {
             if (type.equals("server")) {
               this.requestedAllServerDescriptors++;
-              this.downloadedAllServerDescriptors +=
-                  downloadedAllDescriptors;
-            } else if (type.equals("extra")) {
+            } else {
               this.requestedAllExtraInfoDescriptors++;
+            }
+          }
+          int downloadedAllDescriptors =
+              this.downloadResourceFromAuthority(authority, "/tor/"
+              + type + "/all");
+          synchronized (this) {
+            if (type.equals("server")) {
+              this.downloadedAllServerDescriptors += downloadedAllDescriptors;
+            } else {
               this.downloadedAllExtraInfoDescriptors +=
                   downloadedAllDescriptors;
             }
-
-          /* Download missing server descriptors, extra-info descriptors,
-           * and microdescriptors if we're configured to do so. */
-          } else if ((type.equals("server")
-              && this.downloadMissingServerDescriptors)
-              || (type.equals("extra") && this.downloadMissingExtraInfos)
-              || (type.equals("micro")
-              && this.downloadMissingMicrodescriptors)) {
-
-            /* Go through the list of missing descriptors of this type
-             * and combine the descriptor identifiers to a URL of up to
-             * 96 server or extra-info descriptors or 92 microdescriptors
-             * that we can download at once. */
-            SortedSet<String> descriptorIdentifiers = new TreeSet<>();
-            for (Map.Entry<String, String> e :
-                this.missingDescriptors.entrySet()) {
-              if (e.getValue().equals("NA")
-                  && e.getKey().startsWith(type + ",")
-                  && this.descriptorCutOff.compareTo(
-                  e.getKey().split(",")[1]) < 0) {
-                String descriptorIdentifier = e.getKey().split(",")[3];
-                descriptorIdentifiers.add(descriptorIdentifier);
-              }
-            }
-            StringBuilder combinedResource = null;
-            int descriptorsInCombinedResource = 0;
-            int requestedDescriptors = 0;
-            int downloadedDescriptors = 0;
-            int maxDescriptorsInCombinedResource =
-                type.equals("micro") ? 92 : 96;
-            String separator = type.equals("micro") ? "-" : "+";
-            for (String descriptorIdentifier : descriptorIdentifiers) {
-              if (descriptorsInCombinedResource
-                  >= maxDescriptorsInCombinedResource) {
-                requestedDescriptors += descriptorsInCombinedResource;
-                downloadedDescriptors +=
-                    this.downloadResourceFromAuthority(authority,
-                    combinedResource.toString());
-                combinedResource = null;
-                descriptorsInCombinedResource = 0;
-              }
-              if (descriptorsInCombinedResource == 0) {
-                combinedResource = new StringBuilder("/tor/" + type
-                    + "/d/" + descriptorIdentifier);
-              } else {
-                combinedResource.append(separator).append(descriptorIdentifier);
-              }
-              descriptorsInCombinedResource++;
-            }
-            if (descriptorsInCombinedResource > 0) {
-              requestedDescriptors += descriptorsInCombinedResource;
-              downloadedDescriptors +=
-                  this.downloadResourceFromAuthority(authority,
-                  combinedResource.toString());
-            }
-            switch (type) {
-              case "server":
-                this.requestedMissingServerDescriptors +=
-                    requestedDescriptors;
-                this.downloadedMissingServerDescriptors +=
-                    downloadedDescriptors;
-                break;
-              case "extra":
-                this.requestedMissingExtraInfoDescriptors +=
-                    requestedDescriptors;
-                this.downloadedMissingExtraInfoDescriptors +=
-                    downloadedDescriptors;
-                break;
-              case "micro":
-                this.requestedMissingMicrodescriptors +=
-                    requestedDescriptors;
-                this.downloadedMissingMicrodescriptors +=
-                    downloadedDescriptors;
-                break;
-              default:
-                /* Unknown type, nothing to do. */
-                break;
-            }
           }
+
+        /* Download missing server descriptors, extra-info descriptors,
+         * and microdescriptors if we're configured to do so, combining
+         * up to 96 server or extra-info descriptors or 92
+         * microdescriptors in a single request. */
+        } else if (type.equals("server")
+            && this.downloadMissingServerDescriptors) {
+          this.downloadMissingDescriptors(authority, type, 96,
+              identifiers -> "/tor/server/d/" + String.join("+", identifiers),
+              (requested, downloaded) -> {
+                this.requestedMissingServerDescriptors += requested;
+                this.downloadedMissingServerDescriptors += downloaded;
+              });
+        } else if (type.equals("extra") && this.downloadMissingExtraInfos) {
+          this.downloadMissingDescriptors(authority, type, 96,
+              identifiers -> "/tor/extra/d/" + String.join("+", identifiers),
+              (requested, downloaded) -> {
+                this.requestedMissingExtraInfoDescriptors += requested;
+                this.downloadedMissingExtraInfoDescriptors += downloaded;
+              });
+        } else if (type.equals("micro")
+            && this.downloadMissingMicrodescriptors) {
+          this.downloadMissingDescriptors(authority, type, 92,
+              identifiers -> "/tor/micro/d/" + String.join("-", identifiers),
+              (requested, downloaded) -> {
+                this.requestedMissingMicrodescriptors += requested;
+                this.downloadedMissingMicrodescriptors += downloaded;
+              });
         }
+      }
 
-      /* If a download failed, stop requesting descriptors from this
-       * authority and move on to the next. */
+    /* If downloads failed repeatedly, stop requesting descriptors from
+     * this authority and move on to the next. */
+    } catch (IOException e) {
+      logger.debug("Failed downloading from {}!", authority, e);
+    } catch (InterruptedException e) {
+      logger.debug("Interrupted while downloading from {}.", authority);
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Requests missing descriptors of the given type from the given authority
+   * in batches of up to {@code maxPerRequest} descriptor identifiers, until
+   * there are no more descriptors left that this authority could provide,
+   * and updates statistics using the given counter while holding the lock
+   * on this object.
+   *
+   * <p>Batch sizes adapt to the authority's response times, and up to
+   * {@code parallelRequests} batches are requested from the authority at the
+   * same time.</p>
+   */
+  private void downloadMissingDescriptors(String authority, String type,
+      int maxPerRequest, Function<List<String>, String> resource,
+      BiConsumer<Integer, Integer> counter)
+      throws IOException, InterruptedException {
+    SortedMap<String, List<MissingDescriptorStore.Entry>> candidates
+        = this.findMissingDescriptors(type);
+    AdaptiveBatchSize batchSize = new AdaptiveBatchSize(maxPerRequest);
+    int pipelinedRequests = Math.min(this.parallelRequests,
+        (candidates.size() + maxPerRequest - 1) / maxPerRequest) - 1;
+    if (pipelinedRequests < 1) {
+      this.downloadBatches(authority, type, candidates, batchSize, resource,
+          counter);
+      return;
+    }
+    ExecutorService executor = ExecutorFactory.newExecutor(
+        "CollecTor-Batch-Downloader", pipelinedRequests);
+    try {
+      List<Future<Void>> pipelined = new ArrayList<>();
+      for (int i = 0; i < pipelinedRequests; i++) {
+        pipelined.add(executor.submit(() -> {
+          this.downloadBatches(authority, type, candidates, batchSize,
+              resource, counter);
+          return null;
+        }));
+      }
+      IOException failure = null;
+      try {
+        this.downloadBatches(authority, type, candidates, batchSize,
+            resource, counter);
       } catch (IOException e) {
-        logger.debug("Failed downloading from {}!", authority, e);
+        failure = e;
       }
+      for (Future<Void> result : pipelined) {
+        try {
+          result.get();
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException) {
+            failure = (IOException) e.getCause();
+          } else if (e.getCause() instanceof InterruptedException) {
+            throw (InterruptedException) e.getCause();
+          } else {
+            throw new IOException(e.getCause());
+          }
+        }
+      }
+      if (null != failure) {
+        throw failure;
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Requests batches of missing descriptors from the given candidates, one
+   * after another, until there are no candidates left for this authority.
+   */
+  private void downloadBatches(String authority, String type,
+      SortedMap<String, List<MissingDescriptorStore.Entry>> candidates,
+      AdaptiveBatchSize batchSize, Function<List<String>, String> resource,
+      BiConsumer<Integer, Integer> counter)
+      throws IOException, InterruptedException {
+    MetricsRegistry metrics = MetricsRegistry.getInstance();
+    List<String> identifiers;
+    while (!(identifiers = this.claimMissingDescriptors(type, candidates,
+        batchSize.get(), MAX_RESOURCE_LENGTH)).isEmpty()) {
+      try {
+        synchronized (this) {
+          counter.accept(identifiers.size(), 0);
+        }
+        long started = System.currentTimeMillis();
+        int downloaded = this.downloadResourceFromAuthority(authority,
+            resource.apply(identifiers));
+        long millis = System.currentTimeMillis() - started;
+        synchronized (this) {
+          counter.accept(0, downloaded);
+        }
+        batchSize.record(identifiers.size(), millis);
+        metrics.histogram("collector_relaydescs_batch_size",
+            "Number of descriptors requested in a single request.",
+            BATCH_SIZE_BUCKETS, "resource", type).observe(identifiers.size());
+        metrics.histogram("collector_relaydescs_batch_duration_seconds",
+            "Duration of batch requests for missing descriptors.",
+            MetricsRegistry.DURATION_BUCKETS, "resource", type)
+            .observe(millis / 1000.0);
+        logger.debug("Received {} of {} requested {} descriptor(s) from {} in "
+            + "{} ms. Requesting up to {} descriptor(s) per request next.",
+            downloaded, identifiers.size(), type, authority, millis,
+            batchSize.get());
+      } finally {
+        this.releaseMissingDescriptors(type, identifiers);
+      }
+    }
+  }
+
+  /**
+   * Number of descriptors to request at once from an authority, which
+   * shrinks while requests take longer than a target duration and grows
+   * back while requests are fast.
+   */
+  static final class AdaptiveBatchSize {
+
+    /** Request duration that we aim for. */
+    static final long TARGET_MILLIS = 3000L;
+
+    static final int MIN_SIZE = 4;
+
+    private final int maxSize;
+
+    private int size;
+
+    AdaptiveBatchSize(int maxSize) {
+      this.maxSize = maxSize;
+      this.size = maxSize;
+    }
+
+    synchronized int get() {
+      return this.size;
+    }
+
+    /** Adapt the batch size after a request for the given number of
+     * descriptors took the given time. */
+    synchronized void record(int requested, long millis) {
+      if (millis > TARGET_MILLIS) {
+        this.size = Math.max(Math.min(MIN_SIZE, this.maxSize),
+            Math.min(this.size, requested) / 2);
+      } else if (millis < TARGET_MILLIS / 2 && requested >= this.size) {
+        this.size = Math.min(this.maxSize,
+            this.size + Math.max(1, this.size / 4));
+      }
+    }
+  }
+
+  /**
+   * Returns identifiers of missing descriptors of the given type that are
+   * likely to be found on the directory authorities, mapped to entries in
+   * {@code missingDescriptors}. Identifiers are valid-after times of
+   * consensuses, authority fingerprints of votes, and digests of server
+   * descriptors, extra-info descriptors, and microdescriptors.
+   */
+  synchronized SortedMap<String, List<MissingDescriptorStore.Entry>>
+      findMissingDescriptors(String type) {
+    MissingDescriptorStore.Type storeType = MissingDescriptorStore.Type.of(
+        type);
+    List<MissingDescriptorStore.Entry> missing;
+    if (MissingDescriptorStore.Type.CONSENSUS == storeType
+        || MissingDescriptorStore.Type.MICRODESC_CONSENSUS == storeType
+        || MissingDescriptorStore.Type.VOTE == storeType) {
+      missing = this.missingDescriptors.findMissing(storeType,
+          this.currentValidAfterMillis, this.currentValidAfterMillis + 1L);
+    } else {
+      missing = this.missingDescriptors.findMissing(storeType,
+          this.descriptorCutOffMillis + 1L, Long.MAX_VALUE);
+    }
+    SortedMap<String, List<MissingDescriptorStore.Entry>> identifiers
+        = new TreeMap<>();
+    for (MissingDescriptorStore.Entry entry : missing) {
+      identifiers.computeIfAbsent(entry.getIdentifier(),
+          i -> new ArrayList<>()).add(entry);
+    }
+    return identifiers;
+  }
+
+  /**
+   * Removes and returns up to {@code max} identifiers with a combined length
+   * of up to {@code maxLength}, including separators, from the given
+   * candidates that are still missing and that are not currently being
+   * requested from another authority, and marks them as being requested.
+   * Candidates that are not missing anymore are dropped. If the only
+   * remaining candidates are being requested from other authorities, waits
+   * for those requests to complete, because they might fail. Returns an
+   * empty list if there are no candidates left.
+   */
+  synchronized List<String> claimMissingDescriptors(String type,
+      SortedMap<String, List<MissingDescriptorStore.Entry>> candidates,
+      int max, int maxLength) throws InterruptedException {
+    while (true) {
+      List<String> claimed = new ArrayList<>();
+      int claimedLength = 0;
+      boolean requestedElsewhere = false;
+      Iterator<Map.Entry<String, List<MissingDescriptorStore.Entry>>> it
+          = candidates.entrySet().iterator();
+      while (it.hasNext() && claimed.size() < max) {
+        Map.Entry<String, List<MissingDescriptorStore.Entry>> candidate
+            = it.next();
+        boolean missing = false;
+        for (MissingDescriptorStore.Entry entry : candidate.getValue()) {
+          if (entry.isMissing()) {
+            missing = true;
+            break;
+          }
+        }
+        if (!missing) {
+          it.remove();
+        } else if (this.requestedDescriptors.contains(
+            type + "," + candidate.getKey())) {
+          requestedElsewhere = true;
+        } else if (claimed.isEmpty() || claimedLength
+            + candidate.getKey().length() + 1 <= maxLength) {
+          it.remove();
+          claimed.add(candidate.getKey());
+          claimedLength += candidate.getKey().length() + 1;
+        } else {
+          break;
+        }
+      }
+      if (!claimed.isEmpty() || !requestedElsewhere) {
+        for (String identifier : claimed) {
+          this.requestedDescriptors.add(type + "," + identifier);
+        }
+        return claimed;
+      }
+      this.wait();
+    }
+  }
+
+  /**
+   * Marks the given descriptors as no longer being requested, so that other
+   * authorities can be asked for them if they are still missing.
+   */
+  synchronized void releaseMissingDescriptors(String type,
+      List<String> identifiers) {
+    for (String identifier : identifiers) {
+      this.requestedDescriptors.remove(type + "," + identifier);
     }
+    this.notifyAll();
   }
 
   /**
@@ -860,161 +1220,385 @@ public class RelayDescriptorDownloader {
    * Returns the number of descriptors contained in the reply. Throws an
    * {@code IOException} if something goes wrong while downloading.
    */
-  private int downloadResourceFromAuthority(String authority,
+  int downloadResourceFromAuthority(String authority,
       String resource) throws IOException {
+    MetricsRegistry metrics = MetricsRegistry.getInstance();
+    String resourceType = resourceType(resource);
+    metrics.counter("collector_relaydescs_requested_resources_total",
+        "Number of requested resources by type.", "resource", resourceType)
+        .inc();
+    /* Stream server and extra-info descriptors, which can be large when
+     * requesting all descriptors, to a temporary file rather than to the
+     * heap, and split them into single descriptors from there. Request the
+     * time-critical current consensuses from a second authority if the
+     * first one is slow to respond. */
+    boolean isStreamedToDisk = resource.startsWith("/tor/server/")
+        || resource.startsWith("/tor/extra/");
+    boolean isHedged = resource.startsWith(
+        "/tor/status-vote/current/consensus");
+    HttpClient.DownloadedFile downloadedFile = null;
     byte[] allData = null;
-    this.requestsByAuthority.put(authority,
-        this.requestsByAuthority.get(authority) + 1);
-    /* TODO Disable compressed downloads for extra-info descriptors,
-     * because zlib decompression doesn't work correctly. Figure out why
-     * this is and fix it. */
-    boolean isCompressed = this.downloadCompressed
-        && !resource.startsWith("/tor/extra/");
-    String fullUrl
-        = "http://" + authority + resource + (isCompressed ? ".z" : "");
-    URL url = new URL(fullUrl);
-    allData = Downloader.downloadFromHttpServer(url, isCompressed);
+    long started = System.currentTimeMillis();
+    try {
+      if (isStreamedToDisk) {
+        downloadedFile = this.requestFromAuthority(authority, resource,
+            (client, url) -> {
+              HttpClient.DownloadedFile file = client.downloadToTempFile(url,
+                  false);
+              if (file.getResponse().isOk()) {
+                return file;
+              }
+              file.close();
+              return null;
+            }, file -> file.getResponse().getBytes());
+      } else if (isHedged) {
+        allData = this.downloadHedged(authority, resource);
+      } else {
+        allData = this.downloadBytesFromAuthority(authority, resource);
+      }
+    } catch (IOException e) {
+      /* Keep requesting other resources from this authority, unless we were
+       * interrupted or it has failed too often in a row. Connect and read
+       * timeouts are interrupted I/O exceptions, too, but they only count as
+       * failures of this resource. */
+      if (Thread.currentThread().isInterrupted()
+          || this.health.isUnavailable(authority)) {
+        throw e;
+      }
+      logger.debug("Failed downloading {} from {}. Continuing with next "
+          + "resource.", resource, authority, e);
+      return 0;
+    } finally {
+      metrics.histogram("collector_relaydescs_request_duration_seconds",
+          "Duration of requests to directory authorities.",
+          MetricsRegistry.DURATION_BUCKETS, "resource", resourceType)
+          .observe((System.currentTimeMillis() - started) / 1000.0);
+    }
+    int receivedDescriptors = this.parseDownloadedResource(authority,
+        resource, downloadedFile, allData);
+    metrics.counter("collector_relaydescs_downloaded_descriptors_total",
+        "Number of descriptors downloaded from directory authorities.",
+        "resource", resourceType).add(receivedDescriptors);
+    return receivedDescriptors;
+  }
+
+  /** Sends a request to a directory authority using the given HTTP client
+   * and URL. */
+  @FunctionalInterface
+  private interface RequestSender<T> {
+    T send(HttpClient client, URL url) throws IOException;
+  }
+
+  /**
+   * Sends a request for the given resource to the given authority, using a
+   * read timeout that is adapted to the authority's latency, and records
+   * latency, failures, and downloaded bytes of that authority. Returns the
+   * result of the request, which is {@code null} if the resource was not
+   * found.
+   */
+  private <T> T requestFromAuthority(String authority, String resource,
+      RequestSender<T> sender, ToLongFunction<T> bytes) throws IOException {
+    synchronized (this) {
+      this.requestsByAuthority.merge(authority, 1, Integer::sum);
+    }
+    /* Rather than requesting zlib-compressed resources by adding ".z" to
+     * URLs, let the client negotiate compression with the authority and
+     * decode responses while streaming them. */
+    URL url = this.authorityUrl(authority, resource);
+    String fullUrl = url.toString();
+    MetricsRegistry metrics = MetricsRegistry.getInstance();
+    metrics.counter("collector_relaydescs_requests_total",
+        "Number of requests to directory authorities.",
+        "authority", authority).inc();
+    HttpClient client = this.httpClients.computeIfAbsent(authority, a -> {
+      HttpClient authorityClient = new HttpClient();
+      authorityClient.setNegotiateEncoding(this.downloadCompressed);
+      return authorityClient;
+    });
+    client.setReadTimeout(this.health.readTimeoutMillis(authority));
+    long started = System.currentTimeMillis();
+    T result;
+    try {
+      result = sender.send(client, url);
+    } catch (IOException e) {
+      /* Don't hold it against the authority if we gave up on the request,
+       * e.g., because another authority has answered a hedged request
+       * first. */
+      if (Thread.currentThread().isInterrupted()) {
+        throw e;
+      }
+      this.health.recordFailure(authority);
+      metrics.counter("collector_relaydescs_request_failures_total",
+          "Number of failed requests to directory authorities.",
+          "authority", authority).inc();
+      throw e;
+    }
+    this.health.recordSuccess(authority, resource.endsWith("/all") ? -1L
+        : System.currentTimeMillis() - started);
+    long downloadedBytes = null == result ? 0L : bytes.applyAsLong(result);
+    metrics.counter("collector_relaydescs_downloaded_bytes_total",
+        "Number of bytes downloaded from directory authorities.",
+        "authority", authority).add(downloadedBytes);
+    logger.debug("Downloaded {} -> ({} bytes)", fullUrl, downloadedBytes);
+    return result;
+  }
+
+  /** Returns the URL of the given resource on the given authority, which
+   * tests override to stub responses. */
+  URL authorityUrl(String authority, String resource)
+      throws MalformedURLException {
+    return new URL("http://" + authority + resource);
+  }
+
+  private byte[] downloadBytesFromAuthority(String authority,
+      String resource) throws IOException {
+    return this.requestFromAuthority(authority, resource,
+        (client, url) -> client.downloadBytes(url, false),
+        data -> data.length);
+  }
+
+  /**
+   * Downloads the given consensus or microdesc consensus from the given
+   * authority, requesting a diff from the stored document of the same type
+   * if we have one, and applies the diff to obtain the full document.
+   * Requests the full document if the diff cannot be applied.
+   */
+  byte[] downloadConsensusFromAuthority(String authority,
+      String resource) throws IOException {
+    String type = resourceType(resource);
+    String baseDigest = this.diffBaseDigests.get(type);
+    if (null == baseDigest) {
+      return this.downloadBytesFromAuthority(authority, resource);
+    }
+    byte[] data = this.requestFromAuthority(authority, resource,
+        (client, url) -> client.downloadBytes(url, false,
+        Collections.singletonMap("X-Or-Diff-From-Consensus", baseDigest)),
+        diffOrDocument -> diffOrDocument.length);
+    if (null == data || !ConsensusDiff.isDiff(data)) {
+      return data;
+    }
+    try {
+      byte[] document = ConsensusDiff.apply(
+          this.diffBaseDocuments.get(type), baseDigest, data);
+      MetricsRegistry.getInstance().counter(
+          "collector_relaydescs_applied_consensus_diffs_total",
+          "Number of consensus diffs applied instead of downloading full "
+          + "consensuses.", "resource", type).inc();
+      logger.debug("Applied {} byte diff from {} to obtain {} byte {}.",
+          data.length, authority, document.length, type);
+      return document;
+    } catch (ParseException e) {
+      logger.warn("Cannot apply {} diff from {}. Requesting full document.",
+          type, authority, e);
+      return this.downloadBytesFromAuthority(authority, resource);
+    }
+  }
+
+  /**
+   * Downloads the given resource from the given authority and, if that
+   * authority has not responded within its hedging delay or has failed, from
+   * the authority with the best health score, too. Returns the first
+   * response body, or {@code null} if neither authority has the resource.
+   */
+  byte[] downloadHedged(String authority, String resource)
+      throws IOException {
+    String backupAuthority = this.health.bestAuthority(this.authorities,
+        authority);
+    if (null == backupAuthority) {
+      return this.downloadConsensusFromAuthority(authority, resource);
+    }
+    ExecutorService executor = ExecutorFactory.newExecutor(
+        "CollecTor-Hedged-Request", 2);
+    CompletionService<byte[]> requests
+        = new ExecutorCompletionService<>(executor);
+    IOException failure = null;
+    try {
+      requests.submit(() -> this.downloadConsensusFromAuthority(authority,
+          resource));
+      int pending = 1;
+      Future<byte[]> first = requests.poll(
+          this.health.hedgeDelayMillis(authority), TimeUnit.MILLISECONDS);
+      if (null != first) {
+        pending--;
+        try {
+          byte[] data = first.get();
+          if (null != data) {
+            return data;
+          }
+        } catch (ExecutionException e) {
+          failure = asIoException(e);
+        }
+      }
+      logger.debug("Requesting {} from {}, too, because {} has not "
+          + "delivered it yet.", resource, backupAuthority, authority);
+      MetricsRegistry.getInstance().counter(
+          "collector_relaydescs_hedged_requests_total",
+          "Number of duplicate requests to a second directory authority.",
+          "resource", resourceType(resource)).inc();
+      requests.submit(() -> this.downloadConsensusFromAuthority(
+          backupAuthority, resource));
+      pending++;
+      while (pending-- > 0) {
+        try {
+          byte[] data = requests.take().get();
+          if (null != data) {
+            return data;
+          }
+        } catch (ExecutionException e) {
+          failure = asIoException(e);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while downloading "
+          + resource + ".");
+    } finally {
+      executor.shutdownNow();
+    }
+    if (null != failure) {
+      throw failure;
+    }
+    return null;
+  }
+
+  private static IOException asIoException(ExecutionException e) {
+    return e.getCause() instanceof IOException ? (IOException) e.getCause()
+        : new IOException(e.getCause());
+  }
+
+  /**
+   * Passes the descriptor(s) contained in a downloaded resource to the
+   * {@code RelayDescriptorParser} while holding the lock on this object, so
+   * that parse results from concurrent downloads don't interfere with each
+   * other. Server and extra-info descriptors are submitted to the import
+   * pipeline, if there is one, and stored before returning. Returns the
+   * number of descriptors contained in the resource.
+   */
+  private synchronized int parseDownloadedResource(String authority,
+      String resource, HttpClient.DownloadedFile downloadedFile,
+      byte[] allData) throws IOException {
     int receivedDescriptors = 0;
-    logger.debug("Downloaded {} -> ({} bytes)", fullUrl,
-        allData == null ? 0 : allData.length);
-    if (null != allData) {
-      if (resource.startsWith("/tor/status-vote/")) {
-        this.rdp.parse(allData, null);
-        receivedDescriptors = 1;
-      } else if (resource.startsWith("/tor/server/")
-          || resource.startsWith("/tor/extra/")) {
+    if (null != downloadedFile) {
+      try {
         if (resource.equals("/tor/server/all")
             || resource.equals("/tor/extra/all")) {
           this.lastDownloadedAllDescriptors.put(authority,
               this.currentTimestamp);
         }
-        String ascii = new String(allData, StandardCharsets.US_ASCII);
-        int start;
-        int sig;
-        int end = -1;
-        String startToken = resource.startsWith("/tor/server/")
-            ? "router " : "extra-info ";
-        String sigToken = "\nrouter-signature\n";
-        String endToken = "\n-----END SIGNATURE-----\n";
-        while (end < ascii.length()) {
-          start = ascii.indexOf(startToken, end);
-          if (start < 0) {
-            break;
-          }
-          sig = ascii.indexOf(sigToken, start);
-          if (sig < 0) {
-            break;
-          }
-          sig += sigToken.length();
-          end = ascii.indexOf(endToken, sig);
-          if (end < 0) {
-            break;
-          }
-          end += endToken.length();
-          byte[] descBytes = new byte[end - start];
-          System.arraycopy(allData, start, descBytes, 0, end - start);
-          this.rdp.parse(descBytes, null);
-          receivedDescriptors++;
-        }
+        receivedDescriptors = (resource.startsWith("/tor/server/")
+            ? DescriptorSplitter.serverDescriptors()
+            : DescriptorSplitter.extraInfoDescriptors()).split(
+            downloadedFile.map(), descriptor -> this.rdp.submit(
+            DescriptorSplitter.toBytes(descriptor), null));
+        this.rdp.awaitSubmitted();
+      } finally {
+        downloadedFile.close();
+      }
+    } else if (null != allData) {
+      if (resource.startsWith("/tor/status-vote/")) {
+        this.rdp.parse(allData, null);
+        receivedDescriptors = 1;
       } else if (resource.startsWith("/tor/micro/")) {
         /* TODO We need to parse microdescriptors ourselves, rather than
          * RelayDescriptorParser, because only we know the valid-after
          * time(s) of microdesc consensus(es) containing this
          * microdescriptor.  However, this breaks functional abstraction
          * pretty badly. */
-        SimpleDateFormat parseFormat =
-            new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        String ascii = new String(allData, StandardCharsets.US_ASCII);
-        int start;
-        int end = -1;
-        String startToken = "onion-key\n";
-        while (end < ascii.length()) {
-          start = ascii.indexOf(startToken, end);
-          if (start < 0) {
-            break;
-          }
-          end = ascii.indexOf(startToken, start + 1);
-          if (end < 0) {
-            end = ascii.length();
-            if (end <= start) {
-              break;
-            }
-          }
-          byte[] descBytes = new byte[end - start];
-          System.arraycopy(allData, start, descBytes, 0, end - start);
-          String digest256Base64 = Base64.encodeBase64String(
-              DigestUtils.sha256(descBytes)).replaceAll("=", "");
-          if (!this.microdescriptorKeys.containsKey(digest256Base64)) {
-            continue;
-          }
-          String digest256Hex = DigestUtils.sha256Hex(descBytes);
-          for (String microdescriptorKey :
-              this.microdescriptorKeys.get(digest256Base64)) {
-            String validAfterTime = microdescriptorKey.split(",")[1];
-            try {
-              long validAfter =
-                  parseFormat.parse(validAfterTime).getTime();
-              this.rdp.storeMicrodescriptor(descBytes, digest256Hex,
-                  digest256Base64, validAfter);
-            } catch (ParseException e) {
-              logger.warn("Could not parse valid-after time '{}' in "
-                  + "microdescriptor key. Not storing microdescriptor.",
-                  validAfterTime, e);
-            }
-          }
-          receivedDescriptors++;
-        }
+        int[] storedMicrodescriptors = new int[1];
+        DescriptorSplitter.microdescriptors().split(ByteBuffer.wrap(allData),
+            descriptor -> {
+              if (this.storeMicrodescriptor(descriptor)) {
+                storedMicrodescriptors[0]++;
+              }
+            });
+        receivedDescriptors = storedMicrodescriptors[0];
       }
     }
     return receivedDescriptors;
   }
 
+  /* Store the given downloaded microdescriptor once for each microdesc
+   * consensus referencing it, and return whether any of them does. */
+  private boolean storeMicrodescriptor(ByteBuffer descriptor) {
+    byte[] descBytes = DescriptorSplitter.toBytes(descriptor);
+    String digest256Base64 = Base64.encodeBase64String(
+        DigestUtils.sha256(descBytes)).replaceAll("=", "");
+    List<MissingDescriptorStore.Entry> microdescriptorKeys
+        = new ArrayList<>(this.missingDescriptors.findMicrodescriptors(
+        digest256Base64));
+    if (microdescriptorKeys.isEmpty()) {
+      return false;
+    }
+    String digest256Hex = DigestUtils.sha256Hex(descBytes);
+    for (MissingDescriptorStore.Entry microdescriptorKey :
+        microdescriptorKeys) {
+      this.rdp.storeMicrodescriptor(descBytes, digest256Hex,
+          digest256Base64, microdescriptorKey.time);
+    }
+    return true;
+  }
+
+  /**
+   * Maximum combined length of descriptor identifiers and separators in a
+   * single request, leaving room for the resource prefix within the URL
+   * length that directory authorities and proxies accept.
+   */
+  private static final int MAX_RESOURCE_LENGTH = 4064;
+
+  private static final double[] BATCH_SIZE_BUCKETS = new double[] { 1.0,
+      4.0, 8.0, 16.0, 32.0, 64.0, 96.0 };
+
+  /**
+   * Returns a short name for the type of the given resource for use as
+   * metrics label.
+   */
+  private static String resourceType(String resource) {
+    if (resource.startsWith("/tor/status-vote/current/consensus-microdesc")) {
+      return "consensus-microdesc";
+    } else if (resource.startsWith("/tor/status-vote/current/consensus")) {
+      return "consensus";
+    } else if (resource.startsWith("/tor/status-vote/next/bandwidth")) {
+      return "bandwidth";
+    } else if (resource.startsWith("/tor/status-vote/")) {
+      return "vote";
+    } else if (resource.endsWith("/all")) {
+      return resource.startsWith("/tor/server/") ? "server-all" : "extra-all";
+    } else if (resource.startsWith("/tor/server/")) {
+      return "server";
+    } else if (resource.startsWith("/tor/extra/")) {
+      return "extra";
+    } else if (resource.startsWith("/tor/micro/")) {
+      return "micro";
+    } else {
+      return "other";
+    }
+  }
+
   /**
    * Writes status files to disk and logs statistics about downloading
    * relay descriptors in this execution.
    */
   public void writeFile() {
 
-    /* Write missing descriptors file to disk. */
-    int missingConsensuses = 0;
-    int missingMicrodescConsensuses = 0;
-    int missingVotes = 0;
-    int missingServerDescriptors = 0;
-    int missingExtraInfoDescriptors = 0;
-    try {
-      logger.debug("Writing file {}...",
+    /* Write missing descriptors to disk, and remove the text file written
+     * by earlier versions once its contents are contained in a snapshot. */
+    this.missingDescriptors.flush();
+    if (!this.missingDescriptors.isNew()
+        && this.missingDescriptorsFile.exists()
+        && !this.missingDescriptorsFile.delete()) {
+      logger.warn("Failed deleting {}.",
           this.missingDescriptorsFile.getAbsolutePath());
-      this.missingDescriptorsFile.getParentFile().mkdirs();
-      BufferedWriter bw = new BufferedWriter(new FileWriter(
-          this.missingDescriptorsFile));
-      for (Map.Entry<String, String> e :
-          this.missingDescriptors.entrySet()) {
-        String key = e.getKey();
-        String value = e.getValue();
-        if (!value.equals("NA")) {
-          /* Not missing. */
-        } else if (key.startsWith("consensus,")) {
-          missingConsensuses++;
-        } else if (key.startsWith("consensus-microdesc,")) {
-          missingMicrodescConsensuses++;
-        } else if (key.startsWith("vote,")) {
-          missingVotes++;
-        } else if (key.startsWith("server,")) {
-          missingServerDescriptors++;
-        } else if (key.startsWith("extra,")) {
-          missingExtraInfoDescriptors++;
-        } else if (key.startsWith("micro,")) {
-          /* We're counting missing microdescriptors below. */
-        }
-        bw.write(key + "," + value + "\n");
-      }
-      bw.close();
-      logger.debug("Finished writing file {}.",
-          this.missingDescriptorsFile.getAbsolutePath());
-    } catch (IOException e) {
-      logger.warn("Failed writing {}!",
-          this.missingDescriptorsFile.getAbsolutePath(), e);
     }
+    int missingConsensuses = this.missingDescriptors.countMissing(
+        MissingDescriptorStore.Type.CONSENSUS);
+    int missingMicrodescConsensuses = this.missingDescriptors.countMissing(
+        MissingDescriptorStore.Type.MICRODESC_CONSENSUS);
+    int missingVotes = this.missingDescriptors.countMissing(
+        MissingDescriptorStore.Type.VOTE);
+    int missingServerDescriptors = this.missingDescriptors.countMissing(
+        MissingDescriptorStore.Type.SERVER);
+    int missingExtraInfoDescriptors = this.missingDescriptors.countMissing(
+        MissingDescriptorStore.Type.EXTRA);
 
     /* Write text file containing the directory authorities and when we
      * last downloaded all server and extra-info descriptors from them to
@@ -1039,6 +1623,10 @@ public class RelayDescriptorDownloader {
           this.lastDownloadedAllDescriptorsFile.getAbsolutePath(), e);
     }
 
+    /* Write latency and error statistics of directory authorities to
+     * disk. */
+    this.health.write();
+
     /* Log statistics about this execution. */
     logger.info("Finished downloading relay descriptors from the "
         + "directory authorities.");
@@ -1096,7 +1684,7 @@ public class RelayDescriptorDownloader {
         + "microdescriptor(s), some of which we may try in the next execution.",
         missingConsensuses, missingMicrodescConsensuses, missingVotes,
         missingServerDescriptors, missingExtraInfoDescriptors,
-        this.missingMicrodescriptors.size());
+        this.missingDescriptors.countMissingMicrodescriptorDigests());
   }
 }
 
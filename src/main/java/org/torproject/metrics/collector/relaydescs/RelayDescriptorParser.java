@@ -3,7 +3,6 @@
 
 package org.torproject.metrics.collector.relaydescs;
 
-import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.slf4j.Logger;
@@ -14,14 +13,17 @@ import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeParseException;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
 
 /**
  * Parses relay descriptors including network status consensuses and
@@ -51,15 +53,26 @@ public class RelayDescriptorParser {
   private static final Logger logger = LoggerFactory.getLogger(
       RelayDescriptorParser.class);
 
-  private SimpleDateFormat dateTimeFormat;
+  /**
+   * Scanners for network statuses, whose buffers are reused for the next
+   * network status once the previous one has been stored.
+   */
+  private final Queue<NetworkStatusScanner> scanners
+      = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Pipeline that parses descriptors on several threads while importing
+   * them, or null if descriptors are parsed on the submitting thread.
+   */
+  private ImportPipeline pipeline;
+
+  private static final BooleanSupplier NOT_STORED = () -> false;
 
   /**
    * Initializes this class.
    */
   public RelayDescriptorParser(ArchiveWriter aw) {
     this.aw = aw;
-
-    this.dateTimeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
   }
 
   public void setRelayDescriptorDownloader(
@@ -71,13 +84,77 @@ public class RelayDescriptorParser {
     this.ar = ar;
   }
 
+  /** Sets the pipeline for parsing descriptors submitted via
+   * {@link #submit(byte[], File)} on several threads, or removes it if
+   * the given pipeline is null. */
+  void setImportPipeline(ImportPipeline pipeline) {
+    this.pipeline = pipeline;
+  }
+
   /** Parses the given bytes to find out the contained descriptor type,
    * forwards them to the archive writer to store them to disk, and tells
    * the relay descriptor downloader and archive reader about the
    * contained descriptor and all referenced descriptors. */
   public boolean parse(byte[] data, File containingFile) {
-    boolean stored = false;
+    return this.prepare(data, containingFile).getAsBoolean();
+  }
+
+  /** Submits the given bytes to the import pipeline, if there is one, to
+   * be parsed as in {@link #parse(byte[], File)} and stored after all
+   * previously submitted descriptors, or parses them right away, and
+   * returns whether they were stored. */
+  Future<Boolean> submit(byte[] data, File containingFile) {
+    if (null == this.pipeline) {
+      return CompletableFuture.completedFuture(this.parse(data,
+          containingFile));
+    }
     try {
+      return this.pipeline.submit(() -> this.prepare(data, containingFile));
+    } catch (InterruptedException e) {
+      logger.warn("Interrupted while submitting descriptor for parsing. "
+          + "Skipping.");
+      Thread.currentThread().interrupt();
+      return CompletableFuture.completedFuture(false);
+    }
+  }
+
+  /** Waits until all descriptors submitted to the import pipeline so far
+   * have been stored. */
+  void awaitSubmitted() {
+    if (null != this.pipeline) {
+      try {
+        this.pipeline.await();
+      } catch (InterruptedException e) {
+        logger.warn("Interrupted while waiting for submitted descriptors to "
+            + "be stored.");
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /** Parses the given bytes without storing them or telling anyone about
+   * them yet, which can happen on any thread, and returns the action that
+   * does so and tells whether the descriptor was stored.  Actions must be
+   * run one at a time and in the order of descriptors. */
+  BooleanSupplier prepare(byte[] data, File containingFile) {
+    BooleanSupplier store = this.parseDescriptor(data, containingFile);
+    return () -> {
+      if (this.aw != null) {
+        this.aw.countBytesRead(data.length);
+      }
+      return store.getAsBoolean();
+    };
+  }
+
+  private BooleanSupplier parseDescriptor(byte[] data,
+      File containingFile) {
+    try {
+      /* Scan network statuses on bytes, because they can be large. */
+      int firstLine = NetworkStatusScanner.skipAnnotations(data);
+      if (NetworkStatusScanner.isNetworkStatus(data, firstLine)) {
+        return this.parseNetworkStatus(data, firstLine);
+      }
+
       /* Convert descriptor to ASCII for parsing. This means we'll lose
        * the non-ASCII chars, but we don't care about them for parsing
        * anyway. */
@@ -90,154 +167,9 @@ public class RelayDescriptorParser {
       if (line == null) {
         logger.debug("We were given an empty descriptor for "
             + "parsing. Ignoring.");
-        return false;
+        return NOT_STORED;
       }
-      SimpleDateFormat parseFormat =
-          new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-      if (line.startsWith("network-status-version 3")) {
-        String statusType = "consensus";
-        if (line.equals("network-status-version 3 microdesc")) {
-          statusType = "consensus-microdesc";
-        }
-        String validAfterTime = null;
-        String fingerprint = null;
-        String dirSource = null;
-        long validAfter = -1L;
-        long dirKeyPublished = -1L;
-        SortedSet<String> dirSources = new TreeSet<>();
-        SortedSet<String> serverDescriptors = new TreeSet<>();
-        SortedSet<String> serverDescriptorDigests = new TreeSet<>();
-        SortedSet<String> microdescriptorKeys = new TreeSet<>();
-        SortedSet<String> microdescriptorDigests = new TreeSet<>();
-        StringBuilder certificateStringBuilder = null;
-        String certificateString = null;
-        String lastRelayIdentity = null;
-        while ((line = br.readLine()) != null) {
-          if (certificateStringBuilder != null) {
-            if (line.startsWith("r ")) {
-              certificateString = certificateStringBuilder.toString();
-              certificateStringBuilder = null;
-            } else {
-              certificateStringBuilder.append(line).append("\n");
-            }
-          }
-          if (line.equals("vote-status vote")) {
-            statusType = "vote";
-          } else if (line.startsWith("valid-after ")) {
-            validAfterTime = line.substring("valid-after ".length());
-            validAfter = parseFormat.parse(validAfterTime).getTime();
-          } else if (line.startsWith("dir-source ")) {
-            dirSource = line.split(" ")[2];
-          } else if (line.startsWith("vote-digest ")) {
-            dirSources.add(dirSource);
-          } else if (line.startsWith("dir-key-certificate-version ")) {
-            certificateStringBuilder = new StringBuilder();
-            certificateStringBuilder.append(line).append("\n");
-          } else if (line.startsWith("fingerprint ")) {
-            fingerprint = line.split(" ")[1];
-          } else if (line.startsWith("dir-key-published ")) {
-            String dirKeyPublishedTime = line.substring(
-                "dir-key-published ".length());
-            dirKeyPublished = parseFormat.parse(dirKeyPublishedTime)
-                .getTime();
-          } else if (line.startsWith("r ")) {
-            String[] parts = line.split(" ");
-            if (parts.length == 8) {
-              lastRelayIdentity = Hex.encodeHexString(Base64.decodeBase64(
-                  parts[2] + "=")).toLowerCase();
-            } else if (parts.length == 9) {
-              lastRelayIdentity = Hex.encodeHexString(Base64.decodeBase64(
-                  parts[2] + "=")).toLowerCase();
-              String serverDesc = Hex.encodeHexString(Base64.decodeBase64(
-                  parts[3] + "=")).toLowerCase();
-              String publishedTime = parts[4] + " " + parts[5];
-              serverDescriptors.add(publishedTime + ","
-                  + lastRelayIdentity + "," + serverDesc);
-              serverDescriptorDigests.add(serverDesc);
-            } else {
-              logger.warn("Could not parse r line '{}' in descriptor. "
-                  + "Skipping.", line);
-              break;
-            }
-          } else if (line.startsWith("m ")) {
-            String[] parts = line.split(" ");
-            if (parts.length == 2 && parts[1].length() == 43) {
-              String digest256Base64 = parts[1];
-              microdescriptorKeys.add(validAfterTime + ","
-                  + lastRelayIdentity + "," + digest256Base64);
-              String digest256Hex = Hex.encodeHexString(
-                  Base64.decodeBase64(digest256Base64 + "="))
-                  .toLowerCase();
-              microdescriptorDigests.add(digest256Hex);
-            } else if (parts.length != 3
-                || !parts[2].startsWith("sha256=")
-                || parts[2].length() != 50) {
-              logger.warn("Could not parse m line '{}' in descriptor. "
-                  + "Skipping.", line);
-              break;
-            }
-          }
-        }
-        switch (statusType) {
-          case "consensus":
-            if (this.rdd != null) {
-              this.rdd.haveParsedConsensus(validAfterTime, dirSources,
-                  serverDescriptors);
-            }
-            if (this.aw != null) {
-              this.aw.storeConsensus(data, validAfter, dirSources,
-                  serverDescriptorDigests);
-              stored = true;
-            }
-            break;
-          case "consensus-microdesc":
-            if (this.rdd != null) {
-              this.rdd.haveParsedMicrodescConsensus(validAfterTime,
-                  microdescriptorKeys);
-            }
-            if (this.ar != null) {
-              this.ar.haveParsedMicrodescConsensus(validAfterTime,
-                  microdescriptorDigests);
-            }
-            if (this.aw != null) {
-              this.aw.storeMicrodescConsensus(data, validAfter,
-                  microdescriptorDigests);
-              stored = true;
-            }
-            break;
-          default:
-            if (this.aw != null || this.rdd != null) {
-              String ascii = new String(data, StandardCharsets.US_ASCII);
-              String startToken = "network-status-version ";
-              String sigToken = "directory-signature ";
-              int start = ascii.indexOf(startToken);
-              int sig = ascii.indexOf(sigToken);
-              if (start >= 0 && sig >= 0 && sig > start) {
-                sig += sigToken.length();
-                byte[] forDigest = new byte[sig - start];
-                System.arraycopy(data, start, forDigest, 0, sig - start);
-                String digest = DigestUtils.sha1Hex(forDigest).toUpperCase();
-                if (this.aw != null) {
-                  this.aw.storeVote(data, validAfter, dirSource, digest,
-                      serverDescriptorDigests);
-                  stored = true;
-                }
-                if (this.rdd != null) {
-                  this.rdd.haveParsedVote(validAfterTime, fingerprint,
-                      serverDescriptors);
-                }
-              }
-              if (certificateString != null) {
-                if (this.aw != null) {
-                  this.aw.storeCertificate(certificateString.getBytes(),
-                      dirSource, dirKeyPublished);
-                  stored = true;
-                }
-              }
-            }
-            break;
-        }
-      } else if (line.startsWith("router ")) {
+      if (line.startsWith("router ")) {
         String publishedTime = null;
         String extraInfoDigest = null;
         String relayIdentifier = null;
@@ -245,7 +177,7 @@ public class RelayDescriptorParser {
         while ((line = br.readLine()) != null) {
           if (line.startsWith("published ")) {
             publishedTime = line.substring("published ".length());
-            published = parseFormat.parse(publishedTime).getTime();
+            published = NetworkStatusScanner.parseTime(publishedTime);
           } else if (line.startsWith("opt fingerprint")
               || line.startsWith("fingerprint")) {
             relayIdentifier = line.substring(line.startsWith("opt ")
@@ -263,20 +195,25 @@ public class RelayDescriptorParser {
         String sigToken = "\nrouter-signature\n";
         int start = ascii.indexOf(startToken);
         int sig = ascii.indexOf(sigToken) + sigToken.length();
-        String digest = null;
         if (start >= 0 || sig >= 0 || sig > start) {
-          byte[] forDigest = new byte[sig - start];
-          System.arraycopy(data, start, forDigest, 0, sig - start);
-          digest = DigestUtils.sha1Hex(forDigest);
-        }
-        if (this.aw != null && digest != null) {
-          this.aw.storeServerDescriptor(data, digest, published,
-              extraInfoDigest);
-          stored = true;
-        }
-        if (this.rdd != null && digest != null) {
-          this.rdd.haveParsedServerDescriptor(publishedTime,
-              relayIdentifier, digest, extraInfoDigest);
+          MessageDigest sha1 = DigestUtils.getSha1Digest();
+          sha1.update(data, start, sig - start);
+          String digest = Hex.encodeHexString(sha1.digest());
+          String serverPublishedTime = publishedTime;
+          long serverPublished = published;
+          String serverRelayIdentifier = relayIdentifier;
+          String serverExtraInfoDigest = extraInfoDigest;
+          return () -> {
+            if (this.aw != null) {
+              this.aw.storeServerDescriptor(data, digest, serverPublished,
+                  serverExtraInfoDigest);
+            }
+            if (this.rdd != null) {
+              this.rdd.haveParsedServerDescriptor(serverPublishedTime,
+                  serverRelayIdentifier, digest, serverExtraInfoDigest);
+            }
+            return this.aw != null;
+          };
         }
       } else if (line.startsWith("extra-info ")) {
         String publishedTime = null;
@@ -285,13 +222,12 @@ public class RelayDescriptorParser {
         while ((line = br.readLine()) != null) {
           if (line.startsWith("published ")) {
             publishedTime = line.substring("published ".length());
-            published = parseFormat.parse(publishedTime).getTime();
+            published = NetworkStatusScanner.parseTime(publishedTime);
           }
         }
         String ascii = new String(data, StandardCharsets.US_ASCII);
         String startToken = "extra-info ";
         String sigToken = "\nrouter-signature\n";
-        String digest = null;
         int start = ascii.indexOf(startToken);
         if (start > 0) {
           /* Do not confuse "extra-info " in "@type extra-info 1.0" with
@@ -304,17 +240,22 @@ public class RelayDescriptorParser {
         }
         int sig = ascii.indexOf(sigToken) + sigToken.length();
         if (start >= 0 && sig >= 0 && sig > start) {
-          byte[] forDigest = new byte[sig - start];
-          System.arraycopy(data, start, forDigest, 0, sig - start);
-          digest = DigestUtils.sha1Hex(forDigest);
-        }
-        if (this.aw != null && digest != null) {
-          this.aw.storeExtraInfoDescriptor(data, digest, published);
-          stored = true;
-        }
-        if (this.rdd != null && digest != null) {
-          this.rdd.haveParsedExtraInfoDescriptor(publishedTime,
-              relayIdentifier.toLowerCase(), digest);
+          MessageDigest sha1 = DigestUtils.getSha1Digest();
+          sha1.update(data, start, sig - start);
+          String digest = Hex.encodeHexString(sha1.digest());
+          String extraInfoPublishedTime = publishedTime;
+          long extraInfoPublished = published;
+          return () -> {
+            if (this.aw != null) {
+              this.aw.storeExtraInfoDescriptor(data, digest,
+                  extraInfoPublished);
+            }
+            if (this.rdd != null) {
+              this.rdd.haveParsedExtraInfoDescriptor(extraInfoPublishedTime,
+                  relayIdentifier.toLowerCase(), digest);
+            }
+            return this.aw != null;
+          };
         }
       } else if (line.equals("onion-key")) {
         /* Cannot store microdescriptors without knowing valid-after
@@ -358,16 +299,108 @@ public class RelayDescriptorParser {
         }
         String sourceName = containingFile == null ? null
             : containingFile.getParentFile().getName();
-        this.aw.storeBandwidthFile(data, fileCreatedOrTimestamp, sourceName,
-            DigestUtils.sha256Hex(data).toUpperCase());
-        stored = true;
+        String digest = DigestUtils.sha256Hex(data).toUpperCase();
+        LocalDateTime bandwidthFileCreatedOrTimestamp = fileCreatedOrTimestamp;
+        return () -> {
+          this.aw.storeBandwidthFile(data, bandwidthFileCreatedOrTimestamp,
+              sourceName, digest);
+          return true;
+        };
       }
       br.close();
     } catch (IOException | ParseException e) {
       logger.warn("Could not parse descriptor. "
           + "Skipping.", e);
     }
-    return stored;
+    return NOT_STORED;
+  }
+
+  /* Scans a network status consensus, microdesc consensus, or vote, and
+   * returns the action that stores it and tells the relay descriptor
+   * downloader and archive reader about referenced descriptors. */
+  private BooleanSupplier parseNetworkStatus(byte[] data, int start)
+      throws ParseException {
+    NetworkStatusScanner scanned = this.scanners.poll();
+    NetworkStatusScanner status = null == scanned
+        ? new NetworkStatusScanner() : scanned;
+    try {
+      status.scan(data, start);
+    } catch (ParseException e) {
+      this.scanners.offer(status);
+      throw e;
+    }
+    BooleanSupplier store;
+    switch (status.getStatusType()) {
+      case "consensus": {
+        store = () -> {
+          if (this.rdd != null) {
+            this.rdd.haveParsedConsensus(status);
+          }
+          if (this.aw != null) {
+            this.aw.storeConsensus(data, status);
+            return true;
+          }
+          return false;
+        };
+        break;
+      }
+      case "consensus-microdesc": {
+        store = () -> {
+          if (this.rdd != null) {
+            this.rdd.haveParsedMicrodescConsensus(status);
+          }
+          if (this.ar != null) {
+            this.ar.haveParsedMicrodescConsensus(status.getValidAfterTime(),
+                status.getMicrodescriptorDigestsHex());
+          }
+          if (this.aw != null) {
+            this.aw.storeMicrodescConsensus(data, status);
+            return true;
+          }
+          return false;
+        };
+        break;
+      }
+      default: {
+        String digest = null;
+        if (status.getSignedEnd() > status.getDocumentStart()) {
+          MessageDigest sha1 = DigestUtils.getSha1Digest();
+          sha1.update(data, status.getDocumentStart(),
+              status.getSignedEnd() - status.getDocumentStart());
+          digest = Hex.encodeHexString(sha1.digest()).toUpperCase();
+        }
+        String voteDigest = digest;
+        byte[] certificate = status.getCertificate();
+        store = () -> {
+          boolean stored = false;
+          if (this.aw != null || this.rdd != null) {
+            if (null != voteDigest) {
+              if (this.aw != null) {
+                this.aw.storeVote(data, status, voteDigest);
+                stored = true;
+              }
+              if (this.rdd != null) {
+                this.rdd.haveParsedVote(status);
+              }
+            }
+            if (certificate != null && this.aw != null) {
+              this.aw.storeCertificate(certificate, status.getDirSource(),
+                  status.getDirKeyPublished());
+              stored = true;
+            }
+          }
+          return stored;
+        };
+        break;
+      }
+    }
+    return () -> {
+      try {
+        return store.getAsBoolean();
+      } finally {
+        this.scanners.offer(status);
+      }
+    };
   }
 
   /** Forwards the given microdescriptor to the archive writer to store
@@ -0,0 +1,425 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.relaydescs;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Digests of recently stored descriptors of one type, together with their
+ * published or valid-after time and, optionally, a fixed-length value like
+ * the digest of a referenced descriptor.
+ *
+ * <p>Records are kept in one bucket per UTC day of their time. Each bucket
+ * consists of an index file with fixed-length records sorted by digest,
+ * which is memory-mapped and searched without reading it into the heap,
+ * and an append-only journal file with records added since the index file
+ * was last written. Flushing merges journal records into index files,
+ * so that only buckets with new records are rewritten, and expiring
+ * records means deleting buckets that only contain records older than the
+ * cut-off time.</p>
+ *
+ * <p>This class is not thread-safe; callers need to synchronize
+ * access.</p>
+ */
+final class StoredDigestIndex {
+
+  private static final Logger logger = LoggerFactory.getLogger(
+      StoredDigestIndex.class);
+
+  private static final long DAY_MILLIS = 24L * 60L * 60L * 1000L;
+
+  private static final String INDEX_SUFFIX = ".idx";
+
+  private static final String JOURNAL_SUFFIX = ".log";
+
+  /** Returned by {@link #find(byte[])} for records without value. */
+  static final byte[] NO_VALUE = new byte[0];
+
+  /** Records of a single day. */
+  private final class Bucket {
+
+    private final long day;
+
+    private final File indexFile;
+
+    private final File journalFile;
+
+    /** Sorted records in the index file, or null if there is none. */
+    private MappedByteBuffer index;
+
+    /** Records in the journal file by digest, sorted like index records. */
+    private final NavigableMap<ByteBuffer, byte[]> journalRecords
+        = new TreeMap<>();
+
+    private DataOutputStream journal;
+
+    private Bucket(long day) {
+      this.day = day;
+      String prefix = name + "-" + LocalDate.ofEpochDay(day);
+      this.indexFile = new File(directory, prefix + INDEX_SUFFIX);
+      this.journalFile = new File(directory, prefix + JOURNAL_SUFFIX);
+    }
+  }
+
+  private final File directory;
+
+  private final String name;
+
+  private final int digestLength;
+
+  private final int valueLength;
+
+  private final int recordLength;
+
+  private final long cutOffMillis;
+
+  private final NavigableMap<Long, Bucket> buckets = new TreeMap<>();
+
+  /**
+   * Open the index with the given name in the given directory, deleting
+   * buckets that only contain records older than the given cut-off time
+   * and ignoring older records in the remaining buckets.
+   *
+   * @param digestLength Length of digests in bytes.
+   * @param valueLength Length of values in bytes, or 0 if records don't
+   *     have values.
+   */
+  StoredDigestIndex(File directory, String name, int digestLength,
+      int valueLength, long cutOffMillis) {
+    this.directory = directory;
+    this.name = name;
+    this.digestLength = digestLength;
+    this.valueLength = valueLength;
+    this.recordLength = digestLength + 8 + valueLength;
+    this.cutOffMillis = cutOffMillis;
+    File[] files = directory.listFiles();
+    if (null == files) {
+      return;
+    }
+    Arrays.sort(files);
+    for (File file : files) {
+      String fileName = file.getName();
+      boolean isIndex = fileName.endsWith(INDEX_SUFFIX);
+      String suffix = isIndex ? INDEX_SUFFIX : JOURNAL_SUFFIX;
+      if (!fileName.startsWith(name + "-") || !fileName.endsWith(suffix)) {
+        continue;
+      }
+      long day;
+      try {
+        day = LocalDate.parse(fileName.substring(name.length() + 1,
+            fileName.length() - suffix.length())).toEpochDay();
+      } catch (DateTimeParseException e) {
+        continue;
+      }
+      if ((day + 1L) * DAY_MILLIS <= cutOffMillis) {
+        if (!file.delete()) {
+          logger.warn("Unable to delete expired digest index file {}.",
+              file);
+        }
+        continue;
+      }
+      Bucket bucket = this.bucket(day);
+      if (isIndex) {
+        this.mapIndex(bucket);
+      } else {
+        this.readJournal(bucket);
+      }
+    }
+  }
+
+  private Bucket bucket(long day) {
+    return this.buckets.computeIfAbsent(day, Bucket::new);
+  }
+
+  private void mapIndex(Bucket bucket) {
+    try (FileChannel channel = FileChannel.open(bucket.indexFile.toPath(),
+        StandardOpenOption.READ)) {
+      long size = channel.size() - channel.size() % this.recordLength;
+      bucket.index = channel.map(FileChannel.MapMode.READ_ONLY, 0L, size);
+    } catch (IOException e) {
+      logger.warn("Failed to read digest index file {}. We might not be able "
+          + "to correctly check descriptors for completeness.",
+          bucket.indexFile, e);
+    }
+  }
+
+  /* Read records from the journal file of the given bucket, ignoring an
+   * incomplete record at the end, which is most likely the result of an
+   * interrupted write. */
+  private void readJournal(Bucket bucket) {
+    try {
+      byte[] bytes = Files.readAllBytes(bucket.journalFile.toPath());
+      int records = bytes.length / this.recordLength;
+      if (records * this.recordLength < bytes.length) {
+        logger.warn("Ignoring {} byte(s) at the end of {} that do not form a "
+            + "complete record.", bytes.length - records * this.recordLength,
+            bucket.journalFile);
+      }
+      for (int i = 0; i < records; i++) {
+        byte[] record = Arrays.copyOfRange(bytes, i * this.recordLength,
+            (i + 1) * this.recordLength);
+        bucket.journalRecords.put(ByteBuffer.wrap(record, 0,
+            this.digestLength), record);
+      }
+    } catch (IOException e) {
+      logger.warn("Failed to read digest journal file {}. We might not be "
+          + "able to correctly check descriptors for completeness.",
+          bucket.journalFile, e);
+    }
+  }
+
+  /**
+   * Add a record with the given time, digest, and value, which must be null
+   * if records don't have values, unless the time is older than the cut-off
+   * time or the bucket of that time already contains a record with the
+   * same digest. Returns whether the record was added.
+   */
+  boolean add(long time, byte[] digest, byte[] value) {
+    if (time < this.cutOffMillis || null == digest
+        || digest.length != this.digestLength
+        || (null != value && value.length != this.valueLength)) {
+      return false;
+    }
+    Bucket bucket = this.bucket(Math.floorDiv(time, DAY_MILLIS));
+    if (bucket.journalRecords.containsKey(ByteBuffer.wrap(digest))
+        || this.search(bucket, digest) >= 0) {
+      return false;
+    }
+    ByteBuffer record = ByteBuffer.allocate(this.recordLength);
+    record.put(digest).putLong(time);
+    if (null != value) {
+      record.put(value);
+    }
+    bucket.journalRecords.put(ByteBuffer.wrap(record.array(), 0,
+        this.digestLength), record.array());
+    try {
+      if (null == bucket.journal) {
+        this.directory.mkdirs();
+        bucket.journal = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(bucket.journalFile, true)));
+      }
+      bucket.journal.write(record.array());
+    } catch (IOException e) {
+      logger.warn("Failed appending to {}. We might not be able to correctly "
+          + "check descriptors for completeness in the next run.",
+          bucket.journalFile, e);
+    }
+    return true;
+  }
+
+  /**
+   * Return the value of the most recent record with the given digest that
+   * is not older than the cut-off time, {@link #NO_VALUE} if that record
+   * doesn't have a value, or null if there is no such record.
+   */
+  byte[] find(byte[] digest) {
+    if (null == digest || digest.length != this.digestLength) {
+      return null;
+    }
+    for (Bucket bucket : this.buckets.descendingMap().values()) {
+      byte[] record = bucket.journalRecords.get(ByteBuffer.wrap(digest));
+      if (null == record) {
+        int position = this.search(bucket, digest);
+        if (position >= 0) {
+          record = new byte[this.recordLength];
+          ByteBuffer index = bucket.index.duplicate();
+          index.position(position);
+          index.get(record);
+        }
+      }
+      if (null != record && ByteBuffer.wrap(record, this.digestLength, 8)
+          .getLong() >= this.cutOffMillis) {
+        return this.valueLength == 0 || isZero(record, this.recordLength
+            - this.valueLength) ? NO_VALUE : Arrays.copyOfRange(record,
+            this.recordLength - this.valueLength, this.recordLength);
+      }
+    }
+    return null;
+  }
+
+  /** Return whether there is a record with the given digest that is not
+   * older than the cut-off time. */
+  boolean contains(byte[] digest) {
+    return null != this.find(digest);
+  }
+
+  /** Return the most recent time of all records, or -1 if there are no
+   * records that are not older than the cut-off time. */
+  long latestTime() {
+    for (Bucket bucket : this.buckets.descendingMap().values()) {
+      long latest = -1L;
+      for (byte[] record : bucket.journalRecords.values()) {
+        latest = Math.max(latest, ByteBuffer.wrap(record, this.digestLength,
+            8).getLong());
+      }
+      if (null != bucket.index) {
+        for (int position = 0; position < bucket.index.limit();
+            position += this.recordLength) {
+          latest = Math.max(latest, bucket.index.getLong(position
+              + this.digestLength));
+        }
+      }
+      if (latest >= this.cutOffMillis) {
+        return latest;
+      }
+    }
+    return -1L;
+  }
+
+  /* Return the position of the record with the given digest in the index
+   * file of the given bucket, or -1 if there is none. */
+  private int search(Bucket bucket, byte[] digest) {
+    if (null == bucket.index) {
+      return -1;
+    }
+    int low = 0;
+    int high = bucket.index.limit() / this.recordLength - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int compared = this.compare(bucket.index, middle * this.recordLength,
+          digest);
+      if (compared < 0) {
+        low = middle + 1;
+      } else if (compared > 0) {
+        high = middle - 1;
+      } else {
+        return middle * this.recordLength;
+      }
+    }
+    return -1;
+  }
+
+  /* Compare the digest at the given position in the given index with the
+   * given digest, using the same order as ByteBuffer keys of journal
+   * records. */
+  private int compare(ByteBuffer index, int position, byte[] digest) {
+    for (int i = 0; i < this.digestLength; i++) {
+      int compared = Byte.compare(index.get(position + i), digest[i]);
+      if (compared != 0) {
+        return compared;
+      }
+    }
+    return 0;
+  }
+
+  private static boolean isZero(byte[] bytes, int from) {
+    for (int i = from; i < bytes.length; i++) {
+      if (bytes[i] != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Merge journal records into index files, delete buckets that only
+   * contain records older than the cut-off time, and close all files.
+   */
+  void flush() {
+    Iterator<Bucket> iterator = this.buckets.values().iterator();
+    while (iterator.hasNext()) {
+      Bucket bucket = iterator.next();
+      if ((bucket.day + 1L) * DAY_MILLIS <= this.cutOffMillis) {
+        this.closeJournal(bucket);
+        bucket.index = null;
+        for (File file : new File[] { bucket.indexFile, bucket.journalFile }) {
+          if (file.exists() && !file.delete()) {
+            logger.warn("Unable to delete expired digest index file {}.",
+                file);
+          }
+        }
+        iterator.remove();
+      } else if (!bucket.journalRecords.isEmpty()) {
+        this.closeJournal(bucket);
+        this.merge(bucket);
+      }
+    }
+  }
+
+  /**
+   * Write buffered journal records and close journal files without merging
+   * them into index files, so that added records are kept even if the
+   * index is not flushed. Adding records afterwards reopens journal files.
+   */
+  void close() {
+    for (Bucket bucket : this.buckets.values()) {
+      this.closeJournal(bucket);
+    }
+  }
+
+  private void closeJournal(Bucket bucket) {
+    if (null != bucket.journal) {
+      try {
+        bucket.journal.close();
+      } catch (IOException e) {
+        logger.warn("Failed writing {}.", bucket.journalFile, e);
+      }
+      bucket.journal = null;
+    }
+  }
+
+  /* Write a new index file containing index and journal records of the
+   * given bucket in digest order, and delete the journal file. */
+  private void merge(Bucket bucket) {
+    File tempFile = new File(bucket.indexFile.getAbsolutePath() + ".tmp");
+    try {
+      try (DataOutputStream dos = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+        byte[] indexRecord = new byte[this.recordLength];
+        int position = 0;
+        int limit = null == bucket.index ? 0 : bucket.index.limit();
+        for (byte[] journalRecord : bucket.journalRecords.values()) {
+          while (position < limit && this.compare(bucket.index, position,
+              journalRecord) < 0) {
+            ByteBuffer index = bucket.index.duplicate();
+            index.position(position);
+            index.get(indexRecord);
+            dos.write(indexRecord);
+            position += this.recordLength;
+          }
+          if (position < limit && this.compare(bucket.index, position,
+              journalRecord) == 0) {
+            position += this.recordLength;
+          }
+          dos.write(journalRecord);
+        }
+        while (position < limit) {
+          ByteBuffer index = bucket.index.duplicate();
+          index.position(position);
+          index.get(indexRecord);
+          dos.write(indexRecord);
+          position += this.recordLength;
+        }
+      }
+      Files.move(tempFile.toPath(), bucket.indexFile.toPath(),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      Files.deleteIfExists(bucket.journalFile.toPath());
+      bucket.journalRecords.clear();
+      this.mapIndex(bucket);
+    } catch (IOException e) {
+      logger.warn("Failed writing {}. Keeping records in {}.",
+          bucket.indexFile, bucket.journalFile, e);
+    }
+  }
+}
@@ -12,12 +12,14 @@ import org.torproject.metrics.collector.conf.Configuration;
 import org.torproject.metrics.collector.conf.ConfigurationException;
 import org.torproject.metrics.collector.conf.Key;
 import org.torproject.metrics.collector.cron.CollecTorMain;
-import org.torproject.metrics.collector.downloader.Downloader;
+import org.torproject.metrics.collector.downloader.HttpClient;
+import org.torproject.metrics.collector.persist.RecentFiles;
 import org.torproject.metrics.collector.persist.SnowflakeStatsPersistence;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -26,9 +28,7 @@ import java.net.URL;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.LocalDateTime;
-import java.util.Arrays;
 import java.util.SortedSet;
-import java.util.Stack;
 import java.util.TreeSet;
 
 public class SnowflakeStatsDownloader extends CollecTorMain {
@@ -60,17 +60,29 @@ public class SnowflakeStatsDownloader extends CollecTorMain {
     this.recentPathName = config.getPath(Key.RecentPath).toString();
     logger.debug("Downloading snowflake stats...");
     URL url = config.getUrl(Key.SnowflakeStatsUrl);
-    byte[] downloadedBytes;
+    /* Send a conditional request, so that we don't download and process the
+     * whole file again if it hasn't changed since the last execution in
+     * which it was processed successfully. */
+    HttpClient httpClient = new HttpClient(this.config.getPath(Key.StatsPath)
+        .resolve("snowflake-stats-validators"));
+    ByteArrayOutputStream downloadedBytesStream = new ByteArrayOutputStream();
+    HttpClient.Response response;
     try {
-      downloadedBytes = Downloader.downloadFromHttpServer(url);
+      response = httpClient.download(url, false, downloadedBytesStream);
     } catch (IOException e) {
       logger.warn("Failed downloading {}.", url, e);
       return;
     }
-    if (null == downloadedBytes) {
+    if (response.isNotModified()) {
+      logger.info("Snowflake stats at {} have not been modified since the "
+          + "last execution.", url);
+      this.cleanUpRsyncDirectory();
+      return;
+    } else if (!response.isOk()) {
       logger.warn("Could not download {}.", url);
       return;
     }
+    byte[] downloadedBytes = downloadedBytesStream.toByteArray();
     logger.debug("Finished downloading {}.", url);
 
     Path parsedSnowflakeStatsFile = this.config.getPath(Key.StatsPath)
@@ -81,6 +93,7 @@ public class SnowflakeStatsDownloader extends CollecTorMain {
     DescriptorParser descriptorParser =
         DescriptorSourceFactory.createDescriptorParser();
     SortedSet<LocalDateTime> snowflakeStatsEnds = new TreeSet<>();
+    boolean processedAll = true;
     String outputPathName = config.getPath(Key.OutputPath).toString();
     for (Descriptor descriptor : descriptorParser.parseDescriptors(
         downloadedBytes, null, null)) {
@@ -93,20 +106,29 @@ public class SnowflakeStatsDownloader extends CollecTorMain {
         File tarballFile = new File(outputPathName + "/"
             + persistence.getStoragePath());
         Path relativeFileName = Paths.get(tarballFile.getName());
-        processedFiles.add(relativeFileName);
-        if (previouslyProcessedFiles.contains(relativeFileName)) {
-          continue;
-        }
-        if (tarballFile.exists()) {
+        if (previouslyProcessedFiles.contains(relativeFileName)
+            || tarballFile.exists()) {
+          processedFiles.add(relativeFileName);
           continue;
         }
         File rsyncFile = new File(this.recentPathName + "/"
             + persistence.getRecentPath());
         File[] outputFiles = new File[] { tarballFile, rsyncFile };
+        boolean written = true;
         for (File outputFile : outputFiles) {
-          this.writeToFile(outputFile, Annotation.SnowflakeStats.bytes(),
+          written &= this.writeToFile(outputFile,
+              Annotation.SnowflakeStats.bytes(),
               snowflakeStats.getRawDescriptorBytes());
         }
+        if (written) {
+          processedFiles.add(relativeFileName);
+        } else {
+          processedAll = false;
+        }
+      } else {
+        logger.warn("Could not parse snowflake stats descriptor in {}.",
+            url);
+        processedAll = false;
       }
     }
     if (snowflakeStatsEnds.isEmpty()) {
@@ -119,6 +141,12 @@ public class SnowflakeStatsDownloader extends CollecTorMain {
     }
 
     this.writeProcessedFiles(parsedSnowflakeStatsFile, processedFiles);
+    if (processedAll) {
+      httpClient.commitValidator(url);
+    } else {
+      logger.warn("Could not process all snowflake stats downloaded from {}. "
+          + "Downloading them again in the next execution.", url);
+    }
     this.cleanUpRsyncDirectory();
   }
 
@@ -131,39 +159,39 @@ public class SnowflakeStatsDownloader extends CollecTorMain {
    *
    * @param outputFile File to write to.
    * @param bytes One or more byte arrays.
+   * @return Whether the file was written.
    */
-  private void writeToFile(File outputFile, byte[] ... bytes) {
+  private boolean writeToFile(File outputFile, byte[] ... bytes) {
     try {
       if (!outputFile.getParentFile().exists()
           && !outputFile.getParentFile().mkdirs()) {
         logger.warn("Could not create parent directories of {}.", outputFile);
-        return;
+        return false;
       }
       OutputStream os = new FileOutputStream(outputFile);
       for (byte[] b : bytes) {
         os.write(b);
       }
       os.close();
+      RecentFiles.getInstance().recordWritten(outputFile);
+      return true;
     } catch (IOException e) {
       logger.warn("Could not write downloaded snowflake stats to {}",
           outputFile.getAbsolutePath(), e);
+      return false;
     }
   }
 
   /** Delete all files from the rsync directory that have not been modified
    * in the last three days. */
   public void cleanUpRsyncDirectory() {
-    long cutOffMillis = System.currentTimeMillis()
-        - 3L * 24L * 60L * 60L * 1000L;
-    Stack<File> allFiles = new Stack<>();
-    allFiles.add(new File(recentPathName));
-    while (!allFiles.isEmpty()) {
-      File file = allFiles.pop();
-      if (file.isDirectory()) {
-        allFiles.addAll(Arrays.asList(file.listFiles()));
-      } else if (file.lastModified() < cutOffMillis) {
-        file.delete();
-      }
+    long retentionMillis = 3L * 24L * 60L * 60L * 1000L;
+    Path directory = Paths.get(this.recentPathName);
+    try {
+      RecentFiles.getInstance().clean(this.module(), directory,
+          name -> retentionMillis, false);
+    } catch (IOException e) {
+      logger.warn("Unable to clean up directory {}.", directory, e);
     }
   }
 }
@@ -70,7 +70,7 @@ public class SyncPersistence {
    */
   public void cleanDirectory() {
     try {
-      PersistenceUtils.cleanDirectory(recentPath);
+      PersistenceUtils.cleanDirectory("sync", recentPath, -1L);
     } catch (IOException ioe) {
       logger.error("Cleaning of {} failed.", recentPath.toString(), ioe);
     }
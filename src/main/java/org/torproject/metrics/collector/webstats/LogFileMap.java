@@ -13,6 +13,7 @@ import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.time.LocalDate;
+import java.util.Collection;
 import java.util.Optional;
 import java.util.TreeMap;
 
@@ -33,6 +34,16 @@ public class LogFileMap
     collectFiles(this, startDir);
   }
 
+  /**
+   * The map to keep track of the given logfiles by virtual host,
+   * physical host, and date, without walking any directories.
+   */
+  public LogFileMap(Collection<Path> logPaths) {
+    for (Path logPath : logPaths) {
+      LogMetadata.create(logPath).ifPresent(this::add);
+    }
+  }
+
   private void collectFiles(final LogFileMap logFileMap, Path startDir) {
     try {
       Files.walkFileTree(startDir, new SimpleFileVisitor<Path>() {
@@ -16,6 +16,7 @@ import org.torproject.metrics.collector.conf.Configuration;
 import org.torproject.metrics.collector.conf.Key;
 import org.torproject.metrics.collector.conf.SourceType;
 import org.torproject.metrics.collector.cron.CollecTorMain;
+import org.torproject.metrics.collector.cron.ResourceManager;
 import org.torproject.metrics.collector.persist.PersistenceUtils;
 import org.torproject.metrics.collector.persist.WebServerAccessLogPersistence;
 
@@ -102,14 +103,47 @@ public class SanitizeWeblogs extends CollecTorMain {
         logger.info("Processing logs using batch value {}.", BATCH);
         Map<LogMetadata, Set<LocalDate>> previouslyProcessedWebstats
             = this.readProcessedWebstats();
-        Map<LogMetadata, Set<LocalDate>> newlyProcessedWebstats
-            = this.findCleanWrite(this.config.getPath(Key.WebstatsLocalOrigins),
-            previouslyProcessedWebstats);
+        Path webstatsLocalOrigins
+            = this.config.getPath(Key.WebstatsLocalOrigins);
+        Optional<List<File>> changedFiles
+            = this.changedLocalOriginFiles(webstatsLocalOrigins);
+        LogFileMap fileMapIn;
+        if (changedFiles.isPresent()) {
+          /* Combine new or modified log files with previously processed log
+           * files, because we need to know all log dates of a virtual and
+           * physical host to decide which dates are complete. */
+          Set<Path> logPaths = new HashSet<>();
+          for (LogMetadata logMetadata : previouslyProcessedWebstats.keySet()) {
+            logPaths.add(logMetadata.path);
+          }
+          for (File changedFile : changedFiles.get()) {
+            logPaths.add(changedFile.toPath());
+          }
+          fileMapIn = new LogFileMap(logPaths);
+        } else {
+          fileMapIn = new LogFileMap(webstatsLocalOrigins);
+        }
+        /* Sanitize logs using only as many workers as we can lease from the
+         * shared resource manager, rather than the common fork-join pool. */
+        Map<LogMetadata, Set<LocalDate>> newlyProcessedWebstats;
+        final LogFileMap logFileMap = fileMapIn;
+        try (ResourceManager.Lease lease = ResourceManager.getInstance()
+            .acquire(this.module(),
+            Runtime.getRuntime().availableProcessors())) {
+          logger.info("Sanitizing logs using {} worker(s).", lease.workers());
+          newlyProcessedWebstats = lease.invoke(() -> this.findCleanWrite(
+              logFileMap, previouslyProcessedWebstats, lease));
+        } catch (InterruptedException ie) {
+          logger.info("Interrupted while sanitizing logs. Resuming on next "
+              + "run.");
+          Thread.currentThread().interrupt();
+          return;
+        }
         this.writeProcessedWebstats(newlyProcessedWebstats);
         long cutOffMillis = System.currentTimeMillis()
             - 3L * 24L * 60L * 60L * 1000L;
-        PersistenceUtils.cleanDirectory(this.config.getPath(Key.RecentPath),
-            cutOffMillis);
+        PersistenceUtils.cleanDirectory(this.module(),
+            this.config.getPath(Key.RecentPath), cutOffMillis);
       }
     } catch (Exception e) {
       logger.error("Cannot sanitize web-logs: {}", e.getMessage(), e);
@@ -141,10 +175,11 @@ public class SanitizeWeblogs extends CollecTorMain {
     return processedWebstats;
   }
 
-  private Map<LogMetadata, Set<LocalDate>> findCleanWrite(Path dir,
-      Map<LogMetadata, Set<LocalDate>> previouslyProcessedWebstats) {
+  private Map<LogMetadata, Set<LocalDate>> findCleanWrite(
+      LogFileMap fileMapIn,
+      Map<LogMetadata, Set<LocalDate>> previouslyProcessedWebstats,
+      ResourceManager.Lease lease) {
     Map<LogMetadata, Set<LocalDate>> newlyProcessedWebstats = new HashMap<>();
-    LogFileMap fileMapIn = new LogFileMap(dir);
     logger.info("Found log files for {} virtual hosts.", fileMapIn.size());
     for (Map.Entry<String,TreeMap<String,TreeMap<LocalDate,LogMetadata>>>
              virtualEntry : fileMapIn.entrySet()) {
@@ -152,6 +187,15 @@ public class SanitizeWeblogs extends CollecTorMain {
       for (Map.Entry<String, TreeMap<LocalDate, LogMetadata>> physicalEntry
           : virtualEntry.getValue().entrySet()) {
         String physicalHost = physicalEntry.getKey();
+        if (isStopRequested() || lease.isCancelled()) {
+          /* Keep the state of log files that we didn't get to in this run, so
+           * that we don't process them again from scratch. */
+          logger.info("Stopping before processing logs for {} on {}. Resuming "
+              + "on next run.", virtualHost, physicalHost);
+          previouslyProcessedWebstats.forEach(
+              newlyProcessedWebstats::putIfAbsent);
+          return newlyProcessedWebstats;
+        }
         logger.info("Processing logs for {} on {}.", virtualHost, physicalHost);
         /* Go through current input log files for given virtual and physical
          * host, and either look up contained log dates from the last execution,
@@ -30,7 +30,7 @@ public class ConfigurationTest {
   public void testKeyCount() {
     assertEquals("The number of properties keys in enum Key changed."
         + "\n This test class should be adapted.",
-        70, Key.values().length);
+        89, Key.values().length);
   }
 
   @Test()
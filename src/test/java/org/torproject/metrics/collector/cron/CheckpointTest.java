@@ -0,0 +1,69 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.cron;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class CheckpointTest {
+
+  @Rule
+  public TemporaryFolder tmpf = new TemporaryFolder();
+
+  @Test()
+  public void testResume() throws Exception {
+    Path checkpointFile = tmpf.getRoot().toPath().resolve("stats")
+        .resolve("checkpoint");
+    Checkpoint checkpoint = Checkpoint.load(checkpointFile);
+    assertFalse(checkpoint.isFinished("a"));
+    checkpoint.finished("a");
+    checkpoint.finished("b");
+    assertTrue(checkpoint.isFinished("a"));
+    assertFalse("Checkpoint must only be saved periodically.",
+        Files.exists(checkpointFile));
+    checkpoint.save();
+    Checkpoint resumed = Checkpoint.load(checkpointFile);
+    assertTrue(resumed.isFinished("a"));
+    assertTrue(resumed.isFinished("b"));
+    assertFalse(resumed.isFinished("c"));
+    resumed.delete();
+    assertFalse(Files.exists(checkpointFile));
+    assertFalse(resumed.isFinished("a"));
+    assertFalse(Checkpoint.load(checkpointFile).isFinished("a"));
+  }
+
+  @Test()
+  public void testPeriodicSave() throws Exception {
+    Path checkpointFile = tmpf.newFile().toPath();
+    Files.delete(checkpointFile);
+    Checkpoint checkpoint = Checkpoint.load(checkpointFile);
+    for (int i = 0; i < 1000; i++) {
+      checkpoint.finished(String.valueOf(i));
+    }
+    assertTrue(Checkpoint.load(checkpointFile).isFinished("999"));
+  }
+
+  @Test()
+  public void testStopRequest() {
+    try {
+      assertFalse(CollecTorMain.isStopRequested());
+      CollecTorMain.requestStop();
+      assertTrue(CollecTorMain.isStopRequested());
+      CollecTorMain.clearStopRequest();
+      assertFalse(CollecTorMain.isStopRequested());
+      Thread.currentThread().interrupt();
+      assertTrue(CollecTorMain.isStopRequested());
+    } finally {
+      CollecTorMain.clearStopRequest();
+      Thread.interrupted();
+    }
+  }
+}
@@ -0,0 +1,113 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.cron;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.torproject.metrics.collector.conf.Configuration;
+import org.torproject.metrics.collector.conf.Key;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ExecutorFactoryTest {
+
+  @After
+  public void resetExecutionMode() {
+    ExecutorFactory.configure(new Configuration());
+  }
+
+  @Test()
+  public void testPlatformThreads() throws Exception {
+    ExecutorFactory.configure(new Configuration());
+    assertFalse(ExecutorFactory.usesVirtualThreads());
+    assertEquals(100, runTasks(100));
+    assertPlatformThread(runningThread());
+  }
+
+  /* Either runs tasks on virtual threads or falls back to platform threads,
+   * depending on the Java runtime running this test. */
+  @Test()
+  public void testVirtualThreads() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setProperty(Key.UseVirtualThreads.name(), "true");
+    ExecutorFactory.configure(conf);
+    boolean supported = virtualThreadsSupported();
+    assertEquals(supported, ExecutorFactory.usesVirtualThreads());
+    assertEquals(100, runTasks(100));
+    Thread thread = runningThread();
+    if (supported) {
+      assertTrue(isVirtual(thread));
+      assertTrue(thread.getName().startsWith("Test-"));
+    } else {
+      assertPlatformThread(thread);
+    }
+  }
+
+  /* Return whether this Java runtime can create virtual threads, which is
+   * not the case before Java 19 or without enabling preview features in
+   * Java 19 and 20. */
+  private static boolean virtualThreadsSupported() {
+    try {
+      Thread.class.getMethod("ofVirtual").invoke(null);
+      return true;
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return false;
+    }
+  }
+
+  private static boolean isVirtual(Thread thread) throws Exception {
+    try {
+      return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  private static void assertPlatformThread(Thread thread) throws Exception {
+    assertFalse(isVirtual(thread));
+    assertTrue(thread.getName().startsWith("Test-platform-"));
+  }
+
+  private static ExecutorService newExecutor() {
+    AtomicInteger threads = new AtomicInteger();
+    return ExecutorFactory.newExecutor("Test", 3,
+        runnable -> new Thread(runnable, "Test-platform-"
+        + threads.incrementAndGet()));
+  }
+
+  /* Return the thread that runs a task. */
+  private static Thread runningThread() throws Exception {
+    ExecutorService executor = newExecutor();
+    try {
+      return executor.submit(Thread::currentThread).get();
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static int runTasks(int tasks) throws Exception {
+    ExecutorService executor = newExecutor();
+    List<Future<Integer>> results = new ArrayList<>();
+    for (int i = 0; i < tasks; i++) {
+      results.add(executor.submit(() -> 1));
+    }
+    int sum = 0;
+    for (Future<Integer> result : results) {
+      sum += result.get();
+    }
+    executor.shutdown();
+    executor.awaitTermination(10, TimeUnit.SECONDS);
+    return sum;
+  }
+}
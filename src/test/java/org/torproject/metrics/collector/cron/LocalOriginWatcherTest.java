@@ -0,0 +1,71 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.cron;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+public class LocalOriginWatcherTest {
+
+  @Rule
+  public TemporaryFolder tmpf = new TemporaryFolder();
+
+  @Test()
+  public void testNewFiles() throws Exception {
+    Path directory = tmpf.newFolder().toPath();
+    Semaphore runRequests = new Semaphore(0);
+    LocalOriginWatcher watcher = LocalOriginWatcher.start(directory,
+        60L * 60L * 1000L, 100L, runRequests::release);
+    assertNotNull(watcher);
+    assertFalse("First run must walk the whole directory.",
+        watcher.takeChangedFiles().isPresent());
+    Path file = Files.write(directory.resolve("file"), new byte[] { 1 });
+    Path subdirectory = Files.createDirectory(directory.resolve("sub"));
+    Path nestedFile = Files.write(subdirectory.resolve("nested"),
+        new byte[] { 2 });
+    assertTrue(runRequests.tryAcquire(30L, TimeUnit.SECONDS));
+    Optional<List<Path>> changedFiles = Optional.empty();
+    long timeoutMillis = System.currentTimeMillis() + 30_000L;
+    while (System.currentTimeMillis() < timeoutMillis) {
+      changedFiles = watcher.takeChangedFiles();
+      assertTrue(changedFiles.isPresent());
+      if (changedFiles.get().size() == 2) {
+        break;
+      }
+      runRequests.tryAcquire(1L, TimeUnit.SECONDS);
+    }
+    assertEquals(Arrays.asList(file, nestedFile), changedFiles.get());
+    assertEquals(0, watcher.takeChangedFiles().get().size());
+  }
+
+  @Test()
+  public void testReconciliation() throws Exception {
+    Path directory = tmpf.newFolder().toPath();
+    LocalOriginWatcher watcher = LocalOriginWatcher.start(directory, 0L,
+        100L, () -> { });
+    assertNotNull(watcher);
+    assertFalse(watcher.takeChangedFiles().isPresent());
+    assertFalse(watcher.takeChangedFiles().isPresent());
+  }
+
+  @Test()
+  public void testNoDirectory() throws Exception {
+    assertEquals(null, LocalOriginWatcher.start(
+        tmpf.newFile().toPath(), 0L, 100L, () -> { }));
+  }
+}
@@ -0,0 +1,119 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.cron;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.torproject.metrics.collector.conf.Configuration;
+import org.torproject.metrics.collector.conf.Key;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
+
+public class ResourceManagerTest {
+
+  private static void configure(String budget, String limits,
+      String heapPercent) {
+    Configuration conf = new Configuration();
+    conf.setProperty(Key.WorkerBudget.name(), budget);
+    conf.setProperty(Key.ModuleWorkerLimits.name(), limits);
+    conf.setProperty(Key.HeapBudgetPercent.name(), heapPercent);
+    ResourceManager.getInstance().configure(conf);
+  }
+
+  /* Don't let other tests wait for workers. */
+  @After
+  public void resetBudget() {
+    configure("1000", "", "100");
+  }
+
+  @Test()
+  public void testBudgetAndModuleLimits() throws Exception {
+    configure("3", "Webstats:2, Broken, Updateindex:x", "100");
+    ResourceManager rm = ResourceManager.getInstance();
+    assertEquals(3, rm.getWorkerBudget());
+    try (ResourceManager.Lease webstats = rm.acquire("webstats", 5)) {
+      assertEquals(2, webstats.workers());
+      try (ResourceManager.Lease updateindex = rm.acquire("updateindex", 5)) {
+        assertEquals(1, updateindex.workers());
+        assertEquals(3, rm.getWorkersInUse());
+      }
+      assertEquals(2, rm.getWorkersInUse());
+    }
+    assertEquals(0, rm.getWorkersInUse());
+  }
+
+  @Test()
+  public void testBlockUntilReleased() throws Exception {
+    configure("1", "", "100");
+    ResourceManager rm = ResourceManager.getInstance();
+    ResourceManager.Lease first = rm.acquire("relaydescs", 1);
+    CountDownLatch acquired = new CountDownLatch(1);
+    Thread waiting = new Thread(() -> {
+      try (ResourceManager.Lease second = rm.acquire("webstats", 1)) {
+        assertEquals(1, second.workers());
+        acquired.countDown();
+      } catch (InterruptedException e) {
+        /* Fail below. */
+      }
+    });
+    waiting.start();
+    assertFalse("Second lease must wait for the first lease.",
+        acquired.await(200L, TimeUnit.MILLISECONDS));
+    first.close();
+    first.close();
+    assertTrue(acquired.await(5L, TimeUnit.SECONDS));
+    waiting.join();
+    assertEquals(0, rm.getWorkersInUse());
+  }
+
+  @Test()
+  public void testInvokeUsesLeasedWorkers() throws Exception {
+    configure("2", "", "100");
+    try (ResourceManager.Lease lease
+        = ResourceManager.getInstance().acquire("webstats", 2)) {
+      long threads = lease.invoke(() -> IntStream.range(0, 10_000).parallel()
+          .mapToObj(i -> Thread.currentThread().getName()).distinct().count());
+      assertTrue(threads <= 2L);
+    }
+  }
+
+  @Test()
+  public void testInterruptCancelsInvokedTask() throws Exception {
+    configure("2", "", "100");
+    CountDownLatch started = new CountDownLatch(1);
+    AtomicBoolean stopped = new AtomicBoolean();
+    AtomicBoolean interrupted = new AtomicBoolean();
+    Thread invoking = new Thread(() -> {
+      try (ResourceManager.Lease lease
+          = ResourceManager.getInstance().acquire("webstats", 1)) {
+        lease.invoke(() -> {
+          started.countDown();
+          while (!lease.isCancelled()) {
+            Thread.sleep(10L);
+          }
+          stopped.set(true);
+          return null;
+        });
+      } catch (InterruptedException e) {
+        interrupted.set(stopped.get());
+      } catch (Exception e) {
+        /* Fail below. */
+      }
+    });
+    invoking.start();
+    assertTrue(started.await(5L, TimeUnit.SECONDS));
+    invoking.interrupt();
+    invoking.join(5000L);
+    assertTrue("Task must stop before invoke() throws.", interrupted.get());
+    assertEquals(0, ResourceManager.getInstance().getWorkersInUse());
+  }
+}
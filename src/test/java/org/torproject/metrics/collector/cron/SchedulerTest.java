@@ -15,8 +15,14 @@ import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
 import java.lang.reflect.Field;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 
 public class SchedulerTest {
@@ -91,6 +97,115 @@ public class SchedulerTest {
     assertEquals(6, Counter.count.get());
   }
 
+  @Test()
+  public void testModuleDependencies() {
+    Configuration conf = new Configuration();
+    conf.setProperty(Key.ModuleDependencies.name(), "Relaydescs->Updateindex,"
+        + " Exitlists->Updateindex, Updateindex->Relaydescs, Relaydescs,"
+        + " Fantasy->Updateindex, OnionPerf->Updateindex");
+    Set<String> activated = new HashSet<>(Arrays.asList("Relaydescs",
+        "Exitlists", "Updateindex"));
+    Map<String, SortedSet<String>> dependencies
+        = Scheduler.readModuleDependencies(conf, activated);
+    assertEquals(2, dependencies.size());
+    assertEquals(new TreeSet<>(Arrays.asList("Updateindex")),
+        dependencies.get("Relaydescs"));
+    assertEquals(new TreeSet<>(Arrays.asList("Updateindex")),
+        dependencies.get("Exitlists"));
+    List<SortedSet<String>> stages
+        = Scheduler.computeRunStages(activated, dependencies);
+    assertEquals(2, stages.size());
+    assertEquals(new TreeSet<>(Arrays.asList("Exitlists", "Relaydescs")),
+        stages.get(0));
+    assertEquals(new TreeSet<>(Arrays.asList("Updateindex")), stages.get(1));
+  }
+
+  @Test()
+  public void testNoModuleDependencies() {
+    Set<String> activated = new HashSet<>(Arrays.asList("Relaydescs",
+        "Exitlists"));
+    Map<String, SortedSet<String>> dependencies
+        = Scheduler.readModuleDependencies(new Configuration(), activated);
+    assertTrue(dependencies.isEmpty());
+    assertEquals(1,
+        Scheduler.computeRunStages(activated, dependencies).size());
+  }
+
+  @Test()
+  public void testSkipPolicy() {
+    ModuleStatistics stats = runWithRequestsWhileRunning(
+        ExecutionPolicy.Skip, 1, 3);
+    assertEquals(4, stats.getRequestedRuns());
+    assertEquals(1, stats.getCompletedRuns());
+    assertEquals(0, stats.getDeferredRuns());
+    assertEquals(3, stats.getDroppedRuns());
+  }
+
+  @Test()
+  public void testCoalescePolicy() {
+    ModuleStatistics stats = runWithRequestsWhileRunning(
+        ExecutionPolicy.Coalesce, 1, 3);
+    assertEquals(4, stats.getRequestedRuns());
+    assertEquals(2, stats.getCompletedRuns());
+    assertEquals(1, stats.getDeferredRuns());
+    assertEquals(2, stats.getDroppedRuns());
+  }
+
+  @Test()
+  public void testQueuePolicy() {
+    ModuleStatistics stats = runWithRequestsWhileRunning(
+        ExecutionPolicy.Queue, 2, 3);
+    assertEquals(4, stats.getRequestedRuns());
+    assertEquals(3, stats.getCompletedRuns());
+    assertEquals(2, stats.getDeferredRuns());
+    assertEquals(1, stats.getDroppedRuns());
+  }
+
+  /* Runs a module that requests the given number of further runs of itself
+   * during its first run, using an executor that runs tasks right away. */
+  private static ModuleStatistics runWithRequestsWhileRunning(
+      ExecutionPolicy policy, int queueDepth, int requests) {
+    Rerun module = new Rerun(new Configuration(), requests);
+    ModuleExecution execution = new ModuleExecution(module, Runnable::run,
+        policy, queueDepth, 60_000L);
+    module.execution = execution;
+    execution.trigger();
+    assertEquals(execution.statistics().getCompletedRuns(), module.runs);
+    return execution.statistics();
+  }
+
+  private static class Rerun extends CollecTorMain {
+
+    private ModuleExecution execution;
+
+    private int requests;
+
+    private int runs;
+
+    private Rerun(Configuration conf, int requests) {
+      super(conf);
+      this.requests = requests;
+    }
+
+    @Override
+    protected void startProcessing() {
+      this.runs++;
+      while (this.requests-- > 0) {
+        this.execution.trigger();
+      }
+    }
+
+    @Override
+    public String module() {
+      return "rerun";
+    }
+
+    @Override
+    protected String syncMarker() {
+      return "Torperf";
+    }
+  }
+
   @Ignore("This test takes 180 seconds, which is too long.")
   @Test()
   public void testScheduleBrokenClass() throws Exception {
@@ -0,0 +1,156 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.downloader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class DescriptorSplitterTest {
+
+  private static final String firstServerDescriptor = "router first\n"
+      + "platform Tor\nrouter-signature\n-----BEGIN SIGNATURE-----\nAAAA\n"
+      + "-----END SIGNATURE-----\n";
+
+  private static final String secondServerDescriptor = "router second\n"
+      + "router-signature\n-----BEGIN SIGNATURE-----\nBBBB\n"
+      + "-----END SIGNATURE-----\n";
+
+  private static final String firstMicrodescriptor = "onion-key\n"
+      + "-----BEGIN RSA PUBLIC KEY-----\nAAAA\n-----END RSA PUBLIC KEY-----\n"
+      + "family first\n";
+
+  private static final String secondMicrodescriptor = "onion-key\n"
+      + "-----BEGIN RSA PUBLIC KEY-----\nBBBB\n-----END RSA PUBLIC KEY-----\n";
+
+  private static List<String> split(String data,
+      DescriptorSplitter splitter) {
+    List<String> descriptors = new ArrayList<>();
+    int count = splitter.split(
+        ByteBuffer.wrap(data.getBytes(StandardCharsets.US_ASCII)),
+        descriptor -> descriptors.add(new String(
+        DescriptorSplitter.toBytes(descriptor), StandardCharsets.US_ASCII)));
+    assertEquals(count, descriptors.size());
+    return descriptors;
+  }
+
+  /* Split the given data while reading it from a stream that returns at
+   * most the given number of bytes per read. */
+  private static List<String> splitStream(String data,
+      DescriptorSplitter splitter, int chunk) throws IOException {
+    InputStream in = new FilterInputStream(new ByteArrayInputStream(
+        data.getBytes(StandardCharsets.US_ASCII))) {
+      @Override
+      public int read(byte[] bytes, int off, int len) throws IOException {
+        return super.read(bytes, off, Math.min(len, chunk));
+      }
+    };
+    List<String> descriptors = new ArrayList<>();
+    int count = splitter.split(in, descriptor -> descriptors.add(
+        new String(DescriptorSplitter.toBytes(descriptor),
+        StandardCharsets.US_ASCII)));
+    assertEquals(count, descriptors.size());
+    return descriptors;
+  }
+
+  @Test()
+  public void testSplitServerDescriptors() {
+    List<String> descriptors = split("garbage\n" + firstServerDescriptor
+        + secondServerDescriptor, DescriptorSplitter.serverDescriptors());
+    assertEquals(2, descriptors.size());
+    assertEquals(firstServerDescriptor, descriptors.get(0));
+    assertEquals(secondServerDescriptor, descriptors.get(1));
+  }
+
+  @Test()
+  public void testSplitTruncatedDescriptor() {
+    List<String> descriptors = split(firstServerDescriptor
+        + secondServerDescriptor.substring(0, 40),
+        DescriptorSplitter.serverDescriptors());
+    assertEquals(1, descriptors.size());
+    assertEquals(firstServerDescriptor, descriptors.get(0));
+  }
+
+  @Test()
+  public void testSplitExtraInfoDescriptors() {
+    String extraInfoDescriptor = "extra-info first 0000\nrouter-signature\n"
+        + "-----BEGIN SIGNATURE-----\nCCCC\n-----END SIGNATURE-----\n";
+    assertTrue(split(firstServerDescriptor,
+        DescriptorSplitter.extraInfoDescriptors()).isEmpty());
+    assertEquals(extraInfoDescriptor, split(extraInfoDescriptor,
+        DescriptorSplitter.extraInfoDescriptors()).get(0));
+  }
+
+  @Test()
+  public void testSplitMicrodescriptors() {
+    List<String> descriptors = split(firstMicrodescriptor
+        + secondMicrodescriptor, DescriptorSplitter.microdescriptors());
+    assertEquals(2, descriptors.size());
+    assertEquals(firstMicrodescriptor, descriptors.get(0));
+    assertEquals(secondMicrodescriptor, descriptors.get(1));
+  }
+
+  @Test()
+  public void testSplitNetworkStatuses() {
+    String firstVote = "network-status-version 3\nvote-status vote\n"
+        + "directory-footer\n";
+    String secondVote = "network-status-version 3\nvote-status vote\n"
+        + "known-flags network-status-version \n";
+    List<String> descriptors = split(firstVote + secondVote,
+        DescriptorSplitter.networkStatuses());
+    assertEquals(2, descriptors.size());
+    assertEquals(firstVote, descriptors.get(0));
+    assertEquals(secondVote, descriptors.get(1));
+  }
+
+  @Test()
+  public void testSplitBufferFromPosition() {
+    ByteBuffer data = ByteBuffer.wrap(("xrouter first\n"
+        + secondServerDescriptor).getBytes(StandardCharsets.US_ASCII));
+    data.position(1);
+    assertEquals(1, DescriptorSplitter.serverDescriptors().split(data,
+        descriptor -> assertEquals('r', descriptor.get(0))));
+  }
+
+  @Test()
+  public void testSplitStream() throws IOException {
+    StringBuilder sb = new StringBuilder("@type server-descriptor 1.0\n");
+    for (int i = 0; i < 1000; i++) {
+      sb.append(i % 2 == 0 ? firstServerDescriptor : secondServerDescriptor);
+    }
+    for (int chunk : new int[] { 1, 7, 4096 }) {
+      List<String> descriptors = splitStream(sb.toString(),
+          DescriptorSplitter.serverDescriptors(), chunk);
+      assertEquals(1000, descriptors.size());
+      assertEquals(secondServerDescriptor, descriptors.get(999));
+    }
+    assertEquals(2, splitStream(firstMicrodescriptor + secondMicrodescriptor,
+        DescriptorSplitter.microdescriptors(), 3).size());
+  }
+
+  @Test()
+  public void testSplitStreamWithLongDescriptor() throws IOException {
+    StringBuilder sb = new StringBuilder(firstMicrodescriptor);
+    for (int i = 0; i < 300000; i++) {
+      sb.append("family long\n");
+    }
+    String longMicrodescriptor = sb.toString();
+    List<String> descriptors = splitStream(longMicrodescriptor
+        + secondMicrodescriptor, DescriptorSplitter.microdescriptors(),
+        65536);
+    assertEquals(2, descriptors.size());
+    assertEquals(longMicrodescriptor, descriptors.get(0));
+    assertEquals(secondMicrodescriptor, descriptors.get(1));
+  }
+}
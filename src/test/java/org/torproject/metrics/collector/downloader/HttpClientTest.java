@@ -0,0 +1,191 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.downloader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
+import org.apache.commons.compress.utils.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.DeflaterOutputStream;
+
+public class HttpClientTest {
+
+  @Rule
+  public TemporaryFolder tmpf = new TemporaryFolder();
+
+  /* Create a URL that opens the given connection, without relying on the
+   * URL stream handler factory, which may have been set by other tests. */
+  private static URL stubUrl(final HttpURLConnection connection)
+      throws Exception {
+    return new URL(null, "http://localhost/resource", new URLStreamHandler() {
+      @Override
+      protected URLConnection openConnection(URL url) {
+        return connection;
+      }
+    });
+  }
+
+  private static HttpURLConnection okConnection(byte[] body, String entityTag)
+      throws Exception {
+    HttpURLConnection connection = mock(HttpURLConnection.class);
+    given(connection.getResponseCode()).willReturn(200);
+    given(connection.getInputStream()).willReturn(
+        new ByteArrayInputStream(body));
+    given(connection.getHeaderField("ETag")).willReturn(entityTag);
+    return connection;
+  }
+
+  @Test()
+  public void testConditionalRequest() throws Exception {
+    Path validatorsFile = tmpf.getRoot().toPath().resolve("validators");
+    byte[] body = "content".getBytes();
+    HttpURLConnection first = okConnection(body, "\"v1\"");
+    ByteArrayOutputStream sink = new ByteArrayOutputStream();
+    HttpClient httpClient = new HttpClient(validatorsFile);
+    URL url = stubUrl(first);
+    HttpClient.Response response = httpClient.download(url, false, sink);
+    assertTrue(response.isOk());
+    assertEquals(body.length, response.getBytes());
+    assertArrayEquals(body, sink.toByteArray());
+    verify(first, never()).setRequestProperty(eq("If-None-Match"),
+        anyString());
+    assertFalse(Files.exists(validatorsFile));
+    httpClient.commitValidator(url);
+    assertTrue(Files.exists(validatorsFile));
+
+    HttpURLConnection second = mock(HttpURLConnection.class);
+    given(second.getResponseCode()).willReturn(304);
+    sink.reset();
+    response = new HttpClient(validatorsFile).download(stubUrl(second), false,
+        sink);
+    verify(second).setRequestProperty("If-None-Match", "\"v1\"");
+    assertTrue(response.isNotModified());
+    assertFalse(response.isOk());
+    assertEquals(0, sink.size());
+  }
+
+  @Test()
+  public void testUncommittedValidator() throws Exception {
+    Path validatorsFile = tmpf.getRoot().toPath().resolve("validators");
+    new HttpClient(validatorsFile).download(stubUrl(okConnection(
+        "content".getBytes(), "\"v1\"")), false, new ByteArrayOutputStream());
+    HttpURLConnection next = okConnection(new byte[0], null);
+    new HttpClient(validatorsFile).download(stubUrl(next), false,
+        new ByteArrayOutputStream());
+    verify(next, never()).setRequestProperty(eq("If-None-Match"),
+        anyString());
+    assertFalse(Files.exists(validatorsFile));
+  }
+
+  @Test()
+  public void testUnconditionalRequest() throws Exception {
+    HttpURLConnection connection = okConnection(new byte[0], "\"v1\"");
+    HttpClient httpClient = new HttpClient();
+    assertEquals(0, httpClient.downloadBytes(stubUrl(connection), false)
+        .length);
+    HttpURLConnection next = okConnection(new byte[0], null);
+    httpClient.downloadBytes(stubUrl(next), false);
+    verify(next, never()).setRequestProperty(eq("If-None-Match"),
+        anyString());
+  }
+
+  @Test()
+  public void testDownloadToFile() throws Exception {
+    Path file = tmpf.getRoot().toPath().resolve("sub").resolve("file");
+    byte[] body = "content".getBytes();
+    HttpClient httpClient = new HttpClient();
+    assertTrue(httpClient.downloadToFile(stubUrl(okConnection(body, null)),
+        false, file).isOk());
+    assertArrayEquals(body, Files.readAllBytes(file));
+    HttpURLConnection notFound = mock(HttpURLConnection.class);
+    given(notFound.getResponseCode()).willReturn(404);
+    given(notFound.getErrorStream()).willReturn(
+        new ByteArrayInputStream("not found".getBytes()));
+    Path missingFile = file.resolveSibling("missing");
+    assertEquals(404, httpClient.downloadToFile(stubUrl(notFound), false,
+        missingFile).getResponseCode());
+    assertFalse(Files.exists(missingFile));
+    assertEquals(1L, Files.list(file.getParent()).count());
+    assertNull(httpClient.downloadBytes(stubUrl(notFound), false));
+  }
+
+  @Test()
+  public void testDownloadToTempFile() throws Exception {
+    byte[] body = "content".getBytes();
+    HttpClient httpClient = new HttpClient();
+    Path tempFile;
+    try (HttpClient.DownloadedFile downloadedFile = httpClient
+        .downloadToTempFile(stubUrl(okConnection(body, null)), false)) {
+      assertTrue(downloadedFile.getResponse().isOk());
+      tempFile = downloadedFile.getPath();
+      ByteBuffer mapped = downloadedFile.map();
+      byte[] mappedBytes = new byte[mapped.remaining()];
+      mapped.get(mappedBytes);
+      assertArrayEquals(body, mappedBytes);
+    }
+    assertFalse(Files.exists(tempFile));
+  }
+
+  @Test()
+  public void testInflateConcatenatedStreams() throws Exception {
+    ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+    for (String part : new String[] { "first\n", "second\n" }) {
+      DeflaterOutputStream out = new DeflaterOutputStream(deflated);
+      out.write(part.getBytes());
+      out.finish();
+    }
+    byte[] inflated = IOUtils.toByteArray(HttpClient.decode(
+        new ByteArrayInputStream(deflated.toByteArray()), null, true));
+    assertEquals("first\nsecond\n", new String(inflated));
+  }
+
+  @Test()
+  public void testNegotiateEncoding() throws Exception {
+    byte[] body = "descriptor".getBytes();
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (OutputStream out = new XZCompressorOutputStream(compressed)) {
+      out.write(body);
+    }
+    HttpURLConnection connection = okConnection(compressed.toByteArray(),
+        null);
+    given(connection.getContentEncoding()).willReturn("x-tor-lzma");
+    HttpClient httpClient = new HttpClient();
+    httpClient.setNegotiateEncoding(true);
+    assertArrayEquals(body, httpClient.downloadBytes(stubUrl(connection),
+        false));
+    verify(connection).setRequestProperty("Accept-Encoding",
+        String.join(", ", HttpClient.supportedEncodings()));
+    assertTrue(HttpClient.supportedEncodings().contains("x-tor-lzma"));
+  }
+
+  @Test(expected = IOException.class)
+  public void testUnsupportedEncoding() throws Exception {
+    HttpClient.decode(new ByteArrayInputStream(new byte[0]), "br", false);
+  }
+}
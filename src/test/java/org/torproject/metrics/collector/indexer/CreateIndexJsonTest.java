@@ -48,7 +48,7 @@ public class CreateIndexJsonTest {
      * @param path Path to index.
      */
     MockedIndexerTask(Path path) {
-      super(path);
+      super(path, "updateindex");
     }
 
     /**
@@ -211,7 +211,7 @@ public class IndexerTaskTest {
         FileTime.from(LocalDateTime.parse(this.lastModified, dateTimeFormatter)
             .toInstant(ZoneOffset.UTC)));
     assertTrue(Files.exists(temporaryFile));
-    IndexerTask indexerTask = new IndexerTask(temporaryFile);
+    IndexerTask indexerTask = new IndexerTask(temporaryFile, "updateindex");
     FileNode indexResult = indexerTask.call();
     assertEquals(this.path, indexResult.path);
     assertEquals(this.size, indexResult.size);
@@ -0,0 +1,156 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.monitoring;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.torproject.metrics.collector.conf.Configuration;
+import org.torproject.metrics.collector.conf.Key;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+public class MetricsRegistryTest {
+
+  @Test()
+  public void testCounter() {
+    MetricsRegistry registry = MetricsRegistry.getInstance();
+    MetricsRegistry.Counter counter = registry.counter(
+        "collector_test_counter_total", "Test counter.", "type", "a");
+    assertSame(counter, registry.counter("collector_test_counter_total",
+        "Test counter.", "type", "a"));
+    counter.inc();
+    counter.add(2L);
+    counter.add(-5L);
+    String scraped = registry.scrape();
+    assertTrue(scraped.contains(
+        "# HELP collector_test_counter_total Test counter.\n"
+        + "# TYPE collector_test_counter_total counter\n"
+        + "collector_test_counter_total{type=\"a\"} 3\n"));
+  }
+
+  @Test()
+  public void testGauge() {
+    MetricsRegistry registry = MetricsRegistry.getInstance();
+    registry.gauge("collector_test_gauge", "Test gauge.", () -> 1.5,
+        "label", "quote\"d");
+    assertTrue(registry.scrape().contains(
+        "collector_test_gauge{label=\"quote\\\"d\"} 1.5\n"));
+  }
+
+  @Test()
+  public void testHistogram() {
+    MetricsRegistry registry = MetricsRegistry.getInstance();
+    MetricsRegistry.Histogram histogram = registry.histogram(
+        "collector_test_duration_seconds", "Test histogram.",
+        new double[] { 1.0, 10.0 });
+    histogram.observe(0.5);
+    histogram.observe(5.0);
+    histogram.observe(50.0);
+    assertEquals(3L, histogram.getCount());
+    assertTrue(registry.scrape().contains(
+        "collector_test_duration_seconds_bucket{le=\"1\"} 1\n"
+        + "collector_test_duration_seconds_bucket{le=\"10\"} 2\n"
+        + "collector_test_duration_seconds_bucket{le=\"+Inf\"} 3\n"
+        + "collector_test_duration_seconds_sum 55.5\n"
+        + "collector_test_duration_seconds_count 3\n"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTypeMismatch() {
+    MetricsRegistry registry = MetricsRegistry.getInstance();
+    registry.counter("collector_test_mismatch", "Test counter.");
+    registry.gauge("collector_test_mismatch", "Test gauge.", () -> 0.0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSuppliedCounterIncremented() {
+    MetricsRegistry registry = MetricsRegistry.getInstance();
+    registry.counter("collector_test_supplied_total", "Test counter.",
+        () -> 1.0, "type", "a");
+    registry.counter("collector_test_supplied_total", "Test counter.",
+        "type", "b");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testIncrementedCounterSupplied() {
+    MetricsRegistry registry = MetricsRegistry.getInstance();
+    registry.counter("collector_test_incremented_total", "Test counter.",
+        "type", "a").inc();
+    registry.counter("collector_test_incremented_total", "Test counter.",
+        () -> 1.0, "type", "a");
+  }
+
+  /* Start the metrics server on a free port, request metrics with a plain
+   * socket, because other tests replace the URL stream handler for HTTP
+   * URLs, and return the response. */
+  private static String requestMetrics() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setProperty(Key.MetricsHost.name(), "127.0.0.1");
+    try (ServerSocket socket = new ServerSocket(0)) {
+      conf.setProperty(Key.MetricsPort.name(),
+          String.valueOf(socket.getLocalPort()));
+    }
+    try {
+      assertTrue(MetricsServer.getInstance().start(conf));
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      try (Socket socket = new Socket("127.0.0.1",
+          MetricsServer.getInstance().getPort())) {
+        socket.getOutputStream().write(("GET " + MetricsServer.PATH
+            + " HTTP/1.0\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        InputStream is = socket.getInputStream();
+        byte[] buffer = new byte[1024];
+        int len;
+        while ((len = is.read(buffer)) >= 0) {
+          baos.write(buffer, 0, len);
+        }
+      }
+      return new String(baos.toByteArray(), StandardCharsets.UTF_8);
+    } finally {
+      MetricsServer.getInstance().stop();
+    }
+  }
+
+  private static volatile boolean failScraping;
+
+  @Test()
+  public void testServerError() throws Exception {
+    MetricsRegistry.getInstance().gauge("collector_test_failing",
+        "Test gauge.", () -> {
+          if (failScraping) {
+            throw new IllegalStateException("Test failure.");
+          }
+          return 0.0;
+        });
+    failScraping = true;
+    try {
+      String response = requestMetrics();
+      assertTrue(response.startsWith("HTTP/1.1 500"));
+      assertFalse(response.contains("HTTP/1.1 200"));
+    } finally {
+      failScraping = false;
+    }
+  }
+
+  @Test()
+  public void testServer() throws Exception {
+    MetricsRegistry.getInstance().counter("collector_test_served_total",
+        "Test counter.").inc();
+    Configuration conf = new Configuration();
+    conf.setProperty(Key.MetricsHost.name(), "127.0.0.1");
+    conf.setProperty(Key.MetricsPort.name(), "0");
+    assertEquals(false, MetricsServer.getInstance().start(conf));
+    String response = requestMetrics();
+    assertTrue(response.startsWith("HTTP/1.1 200"));
+    assertTrue(response.contains("collector_test_served_total 1\n"));
+  }
+}
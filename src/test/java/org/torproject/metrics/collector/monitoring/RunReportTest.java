@@ -0,0 +1,69 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.monitoring;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class RunReportTest {
+
+  @Rule
+  public TemporaryFolder tmpf = new TemporaryFolder();
+
+  @Test()
+  public void testPhases() {
+    RunReport report = new RunReport("test");
+    report.addBytesRead(1L);
+    report.startPhase("import");
+    report.addBytesRead(10L);
+    report.addDescriptors(2L);
+    report.startPhase("write");
+    report.addBytesWritten(20L);
+    report.addDescriptors(3L);
+    report.finish();
+    assertEquals(2, report.getPhases().size());
+    assertEquals("import", report.getPhases().get(0).getName());
+    assertEquals(10L, report.getPhases().get(0).getBytesRead());
+    assertEquals(2L, report.getPhases().get(0).getDescriptors());
+    assertEquals("write", report.getPhases().get(1).getName());
+    assertEquals(20L, report.getPhases().get(1).getBytesWritten());
+    assertEquals(11L, report.getRun().getBytesRead());
+    assertEquals(20L, report.getRun().getBytesWritten());
+    assertEquals(5L, report.getRun().getDescriptors());
+  }
+
+  @Test()
+  public void testWriteTo() throws Exception {
+    Path directory = tmpf.newFolder().toPath();
+    File oldReport = directory.resolve("test-2000-01-01-00-00-00.json")
+        .toFile();
+    assertTrue(oldReport.createNewFile());
+    assertTrue(oldReport.setLastModified(0L));
+    RunReport report = new RunReport("test");
+    report.startPhase("import");
+    report.addDescriptors(7L);
+    report.finish();
+    report.writeTo(directory, 1000L);
+    File[] reports = directory.toFile().listFiles();
+    assertEquals(1, reports.length);
+    JsonNode json = new ObjectMapper().readTree(
+        Files.readAllBytes(reports[0].toPath()));
+    assertEquals("test", json.get("module").asText());
+    assertEquals(7L, json.get("run").get("descriptors").asLong());
+    assertEquals("import",
+        json.get("phases").get(0).get("name").asText());
+    assertTrue(json.get("phases").get(0).has("wall_millis"));
+    assertTrue(json.get("phases").get(0).has("gc_count"));
+  }
+}
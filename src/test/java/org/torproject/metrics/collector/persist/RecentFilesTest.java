@@ -0,0 +1,119 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.persist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.torproject.metrics.collector.conf.Configuration;
+import org.torproject.metrics.collector.conf.Key;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.ToLongFunction;
+
+public class RecentFilesTest {
+
+  private static final long DAY = 24L * 60L * 60L * 1000L;
+
+  /* Keep files starting with "short" only until the next cleaning. */
+  private static final ToLongFunction<String> retention
+      = name -> name.startsWith("short") ? -DAY : 3L * DAY;
+
+  @Rule
+  public TemporaryFolder tmpf = new TemporaryFolder();
+
+  private Path recent;
+
+  private Path stats;
+
+  private void configure(String reconcileMinutes) {
+    Configuration conf = new Configuration();
+    conf.setProperty(Key.RecentReconcileMinutes.name(), reconcileMinutes);
+    conf.setProperty(Key.RecentPath.name(), this.recent.toString());
+    conf.setProperty(Key.StatsPath.name(), this.stats.toString());
+    RecentFiles.getInstance().configure(conf);
+  }
+
+  /** Creates recent and stats directories and enables indexes. */
+  @Before
+  public void configureIndexes() throws Exception {
+    this.recent = tmpf.newFolder("recent").toPath();
+    this.stats = tmpf.newFolder("stats").toPath();
+    configure("60");
+  }
+
+  /** Walks directories again for other tests. */
+  @After
+  public void disableIndexes() {
+    configure("0");
+  }
+
+  private File write(String name, long ageMillis, boolean record)
+      throws Exception {
+    File file = this.recent.resolve(name).toFile();
+    Files.createDirectories(file.getParentFile().toPath());
+    Files.write(file.toPath(), name.getBytes(StandardCharsets.US_ASCII));
+    assertTrue(file.setLastModified(System.currentTimeMillis() - ageMillis));
+    if (record) {
+      RecentFiles.getInstance().recordWritten(file);
+    }
+    return file;
+  }
+
+  private void clean() throws Exception {
+    RecentFiles.getInstance().clean("test", this.recent, retention, true);
+  }
+
+  @Test()
+  public void testExpireIndexedFiles() throws Exception {
+    File keep = write("a/keep", 0L, false);
+    File old = write("a/old", 4L * DAY, false);
+    clean();
+    assertTrue(keep.exists());
+    assertFalse(old.exists());
+    assertTrue(this.stats.resolve("recent-index/test").toFile().exists());
+    File unrecorded = write("a/unrecorded", 4L * DAY, false);
+    File expired = write("a/short", 0L, true);
+    File temporary = write("b/file.tmp", 0L, true);
+    clean();
+    assertTrue(unrecorded.exists());
+    assertFalse(expired.exists());
+    assertFalse(temporary.exists());
+    assertEquals("b/file.tmp", new String(Files.readAllBytes(
+        this.recent.resolve("b/file")), StandardCharsets.US_ASCII));
+    configure("60");
+    clean();
+    assertTrue(unrecorded.exists());
+    configure("0");
+    clean();
+    assertFalse(unrecorded.exists());
+    assertTrue(keep.exists());
+  }
+
+  @Test()
+  public void testPromoteIndexedTemporaryFiles() throws Exception {
+    clean();
+    File replaced = write("replaced", 0L, true);
+    File expired = write("replaced.tmp", 4L * DAY, true);
+    write("new", 0L, true);
+    File temporary = write("new.tmp", 0L, true);
+    assertTrue(write("deleted", 0L, true).delete());
+    clean();
+    assertTrue(replaced.exists());
+    assertFalse(expired.exists());
+    assertFalse(temporary.exists());
+    assertEquals("new.tmp", new String(Files.readAllBytes(
+        this.recent.resolve("new")), StandardCharsets.US_ASCII));
+  }
+}
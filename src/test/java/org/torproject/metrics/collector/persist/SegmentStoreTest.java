@@ -0,0 +1,106 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.persist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class SegmentStoreTest {
+
+  private static final byte[] annotation
+      = "@type server-descriptor 1.0\n".getBytes(StandardCharsets.US_ASCII);
+
+  @Rule
+  public TemporaryFolder tmpf = new TemporaryFolder();
+
+  private static byte[] descriptor(String text) {
+    return text.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  private static File file(Path out, String month, String digest) {
+    return out.resolve("server-descriptor/" + month + "/"
+        + digest.charAt(0) + "/" + digest.charAt(1) + "/" + digest).toFile();
+  }
+
+  @Test()
+  public void testAppendAndExport() throws Exception {
+    Path segments = tmpf.newFolder().toPath();
+    Path out = tmpf.newFolder().toPath();
+    try (SegmentStore store = new SegmentStore(segments, out, 2)) {
+      assertFalse(store.contains(file(out, "2020/05", "abc")));
+      assertEquals(annotation.length + 7, store.append(
+          file(out, "2020/05", "abc"), annotation, descriptor("router\n")));
+      assertEquals(0L, store.append(file(out, "2020/05", "abc"), annotation,
+          descriptor("router\n")));
+      assertEquals(10, store.append(file(out, "2020/05", "def"), annotation,
+          descriptor("@x\nrouter\n")));
+      assertEquals(7 + annotation.length, store.append(
+          file(out, "2020/06", "abc"), annotation, descriptor("router\n")));
+      assertTrue(store.contains(file(out, "2020/05", "abc")));
+      assertEquals(-1L, store.append(out.resolve("a/b/c").toFile(),
+          annotation, descriptor("router\n")));
+    }
+    try (SegmentStore store = new SegmentStore(segments, out, 2)) {
+      assertTrue(store.contains(file(out, "2020/05", "def")));
+      assertFalse(store.contains(file(out, "2020/07", "def")));
+    }
+    assertEquals(2, segments.resolve("server-descriptor/2020/05").toFile()
+        .list().length);
+    assertEquals(2, SegmentStore.export(segments, out,
+        "server-descriptor/2020/05"));
+    assertEquals("@type server-descriptor 1.0\nrouter\n", new String(
+        Files.readAllBytes(file(out, "2020/05", "abc").toPath()),
+        StandardCharsets.US_ASCII));
+    assertEquals("@x\nrouter\n", new String(Files.readAllBytes(
+        file(out, "2020/05", "def").toPath()), StandardCharsets.US_ASCII));
+    assertFalse(file(out, "2020/06", "abc").exists());
+    assertEquals(1, SegmentStore.export(segments, out, ""));
+    assertTrue(file(out, "2020/06", "abc").exists());
+  }
+
+  @Test()
+  public void testIgnoreIncompleteWrites() throws Exception {
+    Path segments = tmpf.newFolder().toPath();
+    Path out = tmpf.newFolder().toPath();
+    try (SegmentStore store = new SegmentStore(segments, out, 2)) {
+      store.append(file(out, "2020/05", "abc"), annotation,
+          descriptor("router a\n"));
+      store.append(file(out, "2020/05", "def"), annotation,
+          descriptor("router b\n"));
+    }
+    Path segment = segments.resolve("server-descriptor/2020/05");
+    try (RandomAccessFile raf = new RandomAccessFile(
+        segment.resolve("descriptors").toFile(), "rw")) {
+      raf.setLength(raf.length() - 1L);
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(
+        segment.resolve("index").toFile(), "rw")) {
+      raf.setLength(raf.length() + 3L);
+    }
+    try (SegmentStore store = new SegmentStore(segments, out, 2)) {
+      assertTrue(store.contains(file(out, "2020/05", "abc")));
+      assertFalse(store.contains(file(out, "2020/05", "def")));
+      assertTrue(store.append(file(out, "2020/05", "def"), annotation,
+          descriptor("router b\n")) > 0L);
+    }
+    try (SegmentStore store = new SegmentStore(segments, out, 2)) {
+      assertTrue(store.contains(file(out, "2020/05", "def")));
+    }
+    assertEquals(2, SegmentStore.export(segments, out, ""));
+    assertEquals("@type server-descriptor 1.0\nrouter b\n", new String(
+        Files.readAllBytes(file(out, "2020/05", "def").toPath()),
+        StandardCharsets.US_ASCII));
+  }
+}
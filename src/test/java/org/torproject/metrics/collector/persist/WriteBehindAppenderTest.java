@@ -0,0 +1,68 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.persist;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+public class WriteBehindAppenderTest {
+
+  @Rule
+  public TemporaryFolder tmpf = new TemporaryFolder();
+
+  private static byte[] bytes(String text) {
+    return text.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  private static String read(File file) throws Exception {
+    return new String(Files.readAllBytes(file.toPath()),
+        StandardCharsets.US_ASCII);
+  }
+
+  @Test()
+  public void testAppendUntilCheckpoint() throws Exception {
+    File file = new File(tmpf.getRoot(), "recent/server-descriptors.tmp");
+    try (WriteBehindAppender appender = new WriteBehindAppender(0L)) {
+      appender.append(file, bytes("@type x\n"), bytes("router a\n"));
+      appender.append(file, bytes("router b\n"));
+      assertEquals("", read(file));
+      appender.checkpoint();
+      assertEquals("@type x\nrouter a\nrouter b\n", read(file));
+      appender.append(file, bytes("router c\n"));
+    }
+    assertEquals("@type x\nrouter a\nrouter b\nrouter c\n", read(file));
+  }
+
+  @Test()
+  public void testCheckpointAfterBytes() throws Exception {
+    File file = tmpf.newFile();
+    try (WriteBehindAppender appender = new WriteBehindAppender(10L)) {
+      appender.append(file, bytes("12345"));
+      assertEquals("", read(file));
+      appender.append(file, bytes("67890"));
+      assertEquals("1234567890", read(file));
+    }
+  }
+
+  @Test()
+  public void testCloseLeastRecentlyUsedFiles() throws Exception {
+    File first = tmpf.newFile();
+    try (WriteBehindAppender appender = new WriteBehindAppender(0L)) {
+      appender.append(first, bytes("a"));
+      for (int i = 0; i < WriteBehindAppender.MAX_OPEN_FILES; i++) {
+        appender.append(tmpf.newFile(), bytes("b"));
+      }
+      assertEquals("a", read(first));
+      appender.append(first, bytes("c"));
+    }
+    assertEquals("ac", read(first));
+  }
+}
@@ -0,0 +1,64 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.relaydescs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.torproject.metrics.collector.conf.Configuration;
+
+import org.junit.Test;
+
+public class ArchiveWriterTest {
+
+  private static int countVerified(ArchiveWriter.Verification verification,
+      boolean bulk, int descriptors) {
+    ArchiveWriter aw = new ArchiveWriter(new Configuration());
+    aw.setVerification(verification);
+    int verified = 0;
+    for (int i = 0; i < descriptors; i++) {
+      if (aw.shouldVerify(bulk)) {
+        verified++;
+      }
+    }
+    return verified;
+  }
+
+  @Test()
+  public void testVerificationOf() {
+    assertEquals(ArchiveWriter.Verification.SAMPLED,
+        ArchiveWriter.Verification.of(" Sampled "));
+    assertEquals(ArchiveWriter.Verification.NONE,
+        ArchiveWriter.Verification.of("none"));
+    assertEquals(ArchiveWriter.Verification.FULL,
+        ArchiveWriter.Verification.of("some"));
+    assertEquals(ArchiveWriter.Verification.FULL,
+        ArchiveWriter.Verification.of(null));
+  }
+
+  @Test()
+  public void testVerifyAll() {
+    assertEquals(250, countVerified(ArchiveWriter.Verification.FULL, true,
+        250));
+  }
+
+  @Test()
+  public void testVerifySample() {
+    assertEquals(3, countVerified(ArchiveWriter.Verification.SAMPLED, true,
+        2 * ArchiveWriter.SAMPLE_INTERVAL + 1));
+    assertEquals(250, countVerified(ArchiveWriter.Verification.SAMPLED,
+        false, 250));
+  }
+
+  @Test()
+  public void testVerifyNone() {
+    ArchiveWriter aw = new ArchiveWriter(new Configuration());
+    aw.setVerification(ArchiveWriter.Verification.NONE);
+    assertFalse(aw.shouldVerify(false));
+    assertFalse(aw.shouldVerify(true));
+    aw.setVerification(ArchiveWriter.Verification.FULL);
+    assertTrue(aw.shouldVerify(true));
+  }
+}
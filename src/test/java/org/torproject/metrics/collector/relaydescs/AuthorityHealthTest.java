@@ -0,0 +1,81 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.relaydescs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class AuthorityHealthTest {
+
+  @Rule
+  public TemporaryFolder tmpf = new TemporaryFolder();
+
+  private AuthorityHealth newHealth() {
+    return new AuthorityHealth(new File(tmpf.getRoot(), "authority-health"));
+  }
+
+  @Test()
+  public void testPersistStatistics() {
+    AuthorityHealth health = newHealth();
+    for (int i = 0; i < 50; i++) {
+      health.recordSuccess("fast", 100L);
+      health.recordSuccess("slow", 20000L);
+    }
+    health.write();
+    AuthorityHealth reread = newHealth();
+    assertTrue(reread.score("fast") < reread.score("slow"));
+    assertEquals(5000, reread.readTimeoutMillis("fast"));
+    assertEquals(30000, reread.readTimeoutMillis("slow"));
+    assertEquals(1000L, reread.hedgeDelayMillis("fast"));
+    assertEquals(10000L, reread.hedgeDelayMillis("slow"));
+  }
+
+  @Test()
+  public void testUnavailableAfterConsecutiveFailures() {
+    AuthorityHealth health = newHealth();
+    List<String> authorities = Arrays.asList("a", "b");
+    for (int i = 0; i < AuthorityHealth.MAX_CONSECUTIVE_FAILURES; i++) {
+      assertFalse(health.isUnavailable("a"));
+      health.recordFailure("a");
+    }
+    assertTrue(health.isUnavailable("a"));
+    assertTrue(health.score("a") > health.score("b"));
+    assertNull(health.bestAuthority(authorities, "b"));
+    assertEquals("b", health.bestAuthority(authorities, "a"));
+    health.recordSuccess("a", -1L);
+    assertFalse(health.isUnavailable("a"));
+  }
+
+  @Test()
+  public void testPreferHealthyAuthorities() {
+    AuthorityHealth health = newHealth();
+    for (int i = 0; i < 50; i++) {
+      health.recordSuccess("fast", 100L);
+      health.recordSuccess("slow", 10000L);
+    }
+    Random random = new Random(1L);
+    int fastFirst = 0;
+    for (int i = 0; i < 1000; i++) {
+      List<String> ordered = health.order(Arrays.asList("slow", "fast"),
+          random);
+      assertEquals(2, ordered.size());
+      if (ordered.get(0).equals("fast")) {
+        fastFirst++;
+      }
+    }
+    assertTrue(fastFirst > 900);
+    assertTrue(fastFirst < 1000);
+  }
+}
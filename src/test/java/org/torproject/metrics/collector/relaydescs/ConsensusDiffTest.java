@@ -0,0 +1,122 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.relaydescs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+
+public class ConsensusDiffTest {
+
+  @Rule
+  public TemporaryFolder tmpf = new TemporaryFolder();
+
+  private static final String base = "network-status-version 3\n"
+      + "valid-after 2020-05-01 10:00:00\n"
+      + "r relay1 AAAA\n"
+      + "s Fast\n"
+      + "r relay2 BBBB\n"
+      + "s Running\n"
+      + "directory-footer\n"
+      + "directory-signature sha256 X Y\n"
+      + "-----BEGIN SIGNATURE-----\nSIG1\n-----END SIGNATURE-----\n";
+
+  private static final String target = "network-status-version 3\n"
+      + "valid-after 2020-05-01 11:00:00\n"
+      + "r relay0 9999\n"
+      + "r relay1 AAAA\n"
+      + "s Fast Stable\n"
+      + "directory-footer\n"
+      + "directory-signature sha256 X Y\n"
+      + "-----BEGIN SIGNATURE-----\nSIG2\n-----END SIGNATURE-----\n";
+
+  private static byte[] bytes(String string) {
+    return string.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  private static String diff(String baseDigest, String targetDigest) {
+    return "network-status-diff-version 1\n"
+        + "hash " + baseDigest + " " + targetDigest + "\n"
+        + "10c\nSIG2\n.\n"
+        + "5,6d\n"
+        + "4c\ns Fast Stable\n.\n"
+        + "2c\nvalid-after 2020-05-01 11:00:00\nr relay0 9999\n.\n";
+  }
+
+  @Test()
+  public void testApplyDiff() throws Exception {
+    String baseDigest = ConsensusDiff.digestAsSigned(bytes(base));
+    String targetDigest = ConsensusDiff.digestAsSigned(bytes(target));
+    assertNotNull(baseDigest);
+    assertEquals(64, baseDigest.length());
+    byte[] diff = bytes(diff(baseDigest, targetDigest));
+    assertTrue(ConsensusDiff.isDiff(diff));
+    assertFalse(ConsensusDiff.isDiff(bytes(target)));
+    assertArrayEquals(bytes(target),
+        ConsensusDiff.apply(bytes(base), baseDigest, diff));
+  }
+
+  @Test()
+  public void testApplyAppendAndDeleteToEnd() throws Exception {
+    String baseDigest = ConsensusDiff.digestAsSigned(bytes(base));
+    String appended = "network-status-version 3\n"
+        + "valid-after 2020-05-01 10:00:00\n"
+        + "r relay1 AAAA\n"
+        + "s Fast\n"
+        + "r relay2 BBBB\n"
+        + "s Running\n"
+        + "r relay3 CCCC\n"
+        + "directory-footer\n"
+        + "directory-signature sha256 X Y\n";
+    byte[] diff = bytes("network-status-diff-version 1\n"
+        + "hash " + baseDigest + " "
+        + ConsensusDiff.digestAsSigned(bytes(appended)) + "\n"
+        + "9,$d\n"
+        + "6a\nr relay3 CCCC\n.\n");
+    assertArrayEquals(bytes(appended),
+        ConsensusDiff.apply(bytes(base), baseDigest, diff));
+  }
+
+  @Test(expected = ParseException.class)
+  public void testRejectWrongTargetDigest() throws Exception {
+    String baseDigest = ConsensusDiff.digestAsSigned(bytes(base));
+    ConsensusDiff.apply(bytes(base), baseDigest,
+        bytes(diff(baseDigest, baseDigest)));
+  }
+
+  @Test(expected = ParseException.class)
+  public void testRejectOtherBase() throws Exception {
+    String baseDigest = ConsensusDiff.digestAsSigned(bytes(base));
+    String targetDigest = ConsensusDiff.digestAsSigned(bytes(target));
+    ConsensusDiff.apply(bytes(base), targetDigest,
+        bytes(diff(baseDigest, targetDigest)));
+  }
+
+  @Test(expected = ParseException.class)
+  public void testRejectIncreasingLineNumbers() throws Exception {
+    String baseDigest = ConsensusDiff.digestAsSigned(bytes(base));
+    ConsensusDiff.apply(bytes(base), baseDigest,
+        bytes("network-status-diff-version 1\nhash " + baseDigest + " "
+        + baseDigest + "\n2d\n3d\n"));
+  }
+
+  @Test()
+  public void testReadStoredDocument() throws Exception {
+    Path stored = tmpf.newFile("2020-05-01-10-00-00-consensus").toPath();
+    Files.write(stored, bytes("@type network-status-consensus-3 1.0\n"
+        + base));
+    assertArrayEquals(bytes(base), ConsensusDiff.readStoredDocument(stored));
+  }
+}
@@ -0,0 +1,74 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.relaydescs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+
+public class ImportPipelineTest {
+
+  @Test()
+  public void testStoreInSubmissionOrder() throws Exception {
+    List<Integer> stored = Collections.synchronizedList(new ArrayList<>());
+    List<Future<Boolean>> results = new ArrayList<>();
+    try (ImportPipeline pipeline = new ImportPipeline(4)) {
+      for (int i = 0; i < 200; i++) {
+        int descriptor = i;
+        results.add(pipeline.submit(() -> {
+          /* Make earlier descriptors take longer to parse. */
+          Thread.sleep(descriptor % 5 == 0 ? 5L : 0L);
+          return () -> stored.add(descriptor);
+        }));
+      }
+      pipeline.await();
+      assertEquals(200, stored.size());
+    }
+    for (int i = 0; i < 200; i++) {
+      assertEquals(i, (int) stored.get(i));
+      assertTrue(results.get(i).isDone());
+      assertTrue(results.get(i).get());
+    }
+  }
+
+  @Test()
+  public void testSkipUnparseableDescriptor() throws Exception {
+    Future<Boolean> unparseable;
+    Future<Boolean> parseable;
+    try (ImportPipeline pipeline = new ImportPipeline(2)) {
+      unparseable = pipeline.submit(() -> {
+        throw new IllegalArgumentException("unparseable");
+      });
+      parseable = pipeline.submit(() -> () -> true);
+    }
+    assertFalse(unparseable.get());
+    assertTrue(parseable.get());
+  }
+
+  @Test()
+  public void testParseWithPipeline() throws Exception {
+    RelayDescriptorParser rdp = new RelayDescriptorParser(null);
+    try (ImportPipeline pipeline = new ImportPipeline(2)) {
+      rdp.setImportPipeline(pipeline);
+      Future<Boolean> empty = rdp.submit(new byte[0], null);
+      rdp.awaitSubmitted();
+      assertTrue(empty.isDone());
+      assertFalse(empty.get());
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testSubmitAfterClose() throws Exception {
+    ImportPipeline pipeline = new ImportPipeline(1);
+    pipeline.close();
+    pipeline.submit(() -> () -> true);
+  }
+}
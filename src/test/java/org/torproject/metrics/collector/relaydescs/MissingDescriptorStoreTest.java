@@ -0,0 +1,153 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.relaydescs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+public class MissingDescriptorStoreTest {
+
+  @Rule
+  public TemporaryFolder tmpf = new TemporaryFolder();
+
+  private static final String relay
+      = "0123456789abcdef0123456789abcdef01234567";
+
+  private static final String digest
+      = "89abcdef0123456789abcdef0123456789abcdef";
+
+  private static final String microdigest
+      = "ALkXzQzfDpvXTjAdyRXJjR7iRQwzQNCxGbq8bAMONaI";
+
+  private File snapshotFile() {
+    return new File(tmpf.getRoot(), "missing-relay-descriptors.store");
+  }
+
+  private File journalFile() {
+    return new File(tmpf.getRoot(), "missing-relay-descriptors.journal");
+  }
+
+  private MissingDescriptorStore newStore() {
+    return new MissingDescriptorStore(snapshotFile(), journalFile());
+  }
+
+  private static MissingDescriptorStore.Entry server(String published) {
+    return MissingDescriptorStore.key(MissingDescriptorStore.Type.SERVER,
+        published, relay, digest);
+  }
+
+  @Test()
+  public void testFindMissingInTimeRange() {
+    MissingDescriptorStore store = newStore();
+    assertTrue(store.addMissing(server("2020-05-01 10:00:00")));
+    assertTrue(store.addMissing(server("2020-05-01 12:00:00")));
+    assertFalse(store.addMissing(server("2020-05-01 12:00:00")));
+    List<MissingDescriptorStore.Entry> missing = store.findMissing(
+        MissingDescriptorStore.Type.SERVER,
+        MissingDescriptorStore.parseTime("2020-05-01 11:00:00"),
+        Long.MAX_VALUE);
+    assertEquals(1, missing.size());
+    assertEquals("2020-05-01 12:00:00", missing.get(0).getTimeString());
+    assertEquals(digest, missing.get(0).getIdentifier());
+    store.markParsed(server("2020-05-01 12:00:00"), 0L);
+    assertFalse(missing.get(0).isMissing());
+    assertEquals(1, store.countMissing(MissingDescriptorStore.Type.SERVER));
+    assertTrue(store.findMissing(MissingDescriptorStore.Type.EXTRA, 0L,
+        Long.MAX_VALUE).isEmpty());
+  }
+
+  @Test()
+  public void testReadJournalAndSnapshot() {
+    MissingDescriptorStore store = newStore();
+    assertTrue(store.isNew());
+    store.addMissing(server("2020-05-01 10:00:00"));
+    store.addMissing(server("2020-05-01 11:00:00"));
+    store.flush();
+    assertTrue(journalFile().exists());
+    assertFalse(snapshotFile().exists());
+    MissingDescriptorStore reread = newStore();
+    assertEquals(2, reread.countMissing(MissingDescriptorStore.Type.SERVER));
+    reread.markParsed(server("2020-05-01 10:00:00"), 1000L);
+    reread.compact();
+    assertFalse(journalFile().exists());
+    assertTrue(snapshotFile().exists());
+    MissingDescriptorStore compacted = newStore();
+    assertEquals(2, compacted.entries().size());
+    assertEquals(1000L, compacted.get(server("2020-05-01 10:00:00"))
+        .getParsed());
+    assertTrue(compacted.get(server("2020-05-01 11:00:00")).isMissing());
+  }
+
+  @Test()
+  public void testIgnoreIncompleteJournalRecord() throws Exception {
+    MissingDescriptorStore store = newStore();
+    store.addMissing(server("2020-05-01 10:00:00"));
+    store.flush();
+    try (FileOutputStream fos = new FileOutputStream(journalFile(), true)) {
+      fos.write(new byte[] { 3, 0, 0 });
+    }
+    MissingDescriptorStore reread = newStore();
+    assertEquals(1, reread.entries().size());
+    reread.addMissing(server("2020-05-01 11:00:00"));
+    reread.flush();
+    assertEquals(2, newStore().entries().size());
+  }
+
+  @Test()
+  public void testRetainAll() {
+    MissingDescriptorStore store = newStore();
+    store.addMissing(server("2020-05-01 10:00:00"));
+    store.addMissing(MissingDescriptorStore.key(
+        MissingDescriptorStore.Type.MICRO, "2020-05-01 10:00:00", relay,
+        microdigest));
+    assertEquals(1, store.findMicrodescriptors(microdigest).size());
+    assertEquals(1, store.countMissingMicrodescriptorDigests());
+    assertEquals(1, store.retainAll(
+        entry -> MissingDescriptorStore.Type.SERVER == entry.type));
+    assertTrue(store.findMicrodescriptors(microdigest).isEmpty());
+    assertEquals(0, store.countMissingMicrodescriptorDigests());
+  }
+
+  @Test()
+  public void testImportTextFile() throws Exception {
+    File textFile = tmpf.newFile("missing-relay-descriptors");
+    Files.write(textFile.toPath(), ("consensus,2020-05-01 10:00:00,NA\n"
+        + "vote,2020-05-01 10:00:00,0123456789ABCDEF0123456789ABCDEF01234567,"
+        + "2020-05-01 10:05:00\n"
+        + "server,2020-05-01 09:00:00," + relay + "," + digest + ",NA\n"
+        + "micro,2020-05-01 10:00:00," + relay + "," + microdigest + ",NA\n"
+        + "server,2020-05-01 09:00:00,relay,digest,NA\n"
+        + "invalid\n").getBytes(StandardCharsets.US_ASCII));
+    MissingDescriptorStore store = newStore();
+    store.importTextFile(textFile);
+    assertEquals(4, store.entries().size());
+    assertEquals("2020-05-01 10:00:00", store.findMissing(
+        MissingDescriptorStore.Type.CONSENSUS, 0L, Long.MAX_VALUE).get(0)
+        .getIdentifier());
+    MissingDescriptorStore.Entry vote = store.get(MissingDescriptorStore.key(
+        MissingDescriptorStore.Type.VOTE, "2020-05-01 10:00:00", null,
+        "0123456789abcdef0123456789abcdef01234567"));
+    assertEquals("0123456789ABCDEF0123456789ABCDEF01234567",
+        vote.getIdentifier());
+    assertEquals(MissingDescriptorStore.parseTime("2020-05-01 10:05:00"),
+        vote.getParsed());
+    assertEquals(microdigest, store.findMicrodescriptors(microdigest)
+        .iterator().next().getIdentifier());
+    assertNull(store.get(MissingDescriptorStore.key(
+        MissingDescriptorStore.Type.SERVER, "2020-05-01 09:00:00", "relay",
+        "digest")));
+  }
+}
@@ -0,0 +1,179 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.relaydescs;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.compress.utils.IOUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Compares the time and heap allocation of scanning network statuses with
+ * {@link NetworkStatusScanner} to the line-based parsing that
+ * {@link RelayDescriptorParser} did before, which is reproduced here.
+ * Also measures parsing network statuses end to end with
+ * {@link RelayDescriptorParser}, and tracking references to descriptors
+ * from scanned network statuses as {@link ArchiveWriter} does for newly
+ * stored network statuses.
+ *
+ * <p>This is not a unit test and does not run as part of the test suite.
+ * Run it with the test classpath and optional paths to consensuses or
+ * votes, for example:</p>
+ *
+ * <pre>java -cp ... org.torproject.metrics.collector.relaydescs.\
+ * NetworkStatusScannerBenchmark [file ...]</pre>
+ *
+ * <p>Without arguments, it uses the consensus, vote, and microdesc
+ * consensus contained in the test resources.</p>
+ */
+public class NetworkStatusScannerBenchmark {
+
+  private static final int WARMUP_ITERATIONS = 20;
+
+  private static final int ITERATIONS = 50;
+
+  private static final String[] DEFAULT_RESOURCES = new String[] {
+      "2016-09-20-13-00-00-consensus",
+      "2016-09-20-13-00-00-vote-49015F787433103580E3B66A1707A00E60F2D15B-"
+          + "60ADC6BEC262AE921A1037D54C8A3976367DBE87",
+      "2016-10-02-17-00-00-consensus-microdesc" };
+
+  /** Prevents the JIT compiler from eliminating unused results. */
+  private static long sink;
+
+  /** Run the benchmark. */
+  public static void main(String[] args) throws Exception {
+    String[] names = args.length > 0 ? args : DEFAULT_RESOURCES;
+    File indexDirectory = Files.createTempDirectory("digest-index").toFile();
+    ReferenceCompleteness references = new ReferenceCompleteness(
+        new StoredDigestIndex(indexDirectory, "server", 20, 20, 0L),
+        new StoredDigestIndex(indexDirectory, "extra-info", 20, 0, 0L),
+        new StoredDigestIndex(indexDirectory, "micro", 32, 0, 0L));
+    RelayDescriptorParser parser = new RelayDescriptorParser(null);
+    for (String name : names) {
+      byte[] data = read(name, args.length > 0);
+      NetworkStatusScanner scanner = new NetworkStatusScanner();
+      measure(name, "line-based", () -> parseLineBased(data));
+      measure(name, "scanner", () -> {
+        scanner.scan(data, NetworkStatusScanner.skipAnnotations(data));
+        sink += scanner.getRelays() + scanner.getMicrodescriptors();
+      });
+      measure(name, "parser", () -> parser.parse(data, null));
+      measure(name, "references", () -> {
+        scanner.scan(data, NetworkStatusScanner.skipAnnotations(data));
+        ReferenceCompleteness.Counts counts
+            = "consensus-microdesc".equals(scanner.getStatusType())
+            ? references.trackMicrodescriptors(scanner)
+            : references.trackServerDescriptors(scanner);
+        sink += counts.getAllServerDescriptors()
+            + counts.getAllMicrodescriptors();
+        references.clear();
+      });
+    }
+  }
+
+  private static byte[] read(String name, boolean isFile) throws Exception {
+    try (InputStream is = isFile ? new FileInputStream(name)
+        : NetworkStatusScannerBenchmark.class.getClassLoader()
+        .getResourceAsStream(name)) {
+      return IOUtils.toByteArray(is);
+    }
+  }
+
+  private interface Operation {
+    void run() throws Exception;
+  }
+
+  private static void measure(String name, String variant,
+      Operation operation) throws Exception {
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      operation.run();
+    }
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    long allocatedBefore = allocatedBytes(threads);
+    long started = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      operation.run();
+    }
+    long nanos = System.nanoTime() - started;
+    long allocated = allocatedBytes(threads) - allocatedBefore;
+    System.out.println(String.format(Locale.US,
+        "%-12s %8.2f ms/op %12d bytes/op  %s", variant,
+        nanos / 1e6 / ITERATIONS, allocated < 0 ? -1 : allocated / ITERATIONS,
+        name));
+  }
+
+  /* Return the number of bytes allocated by the current thread, or a
+   * negative number if the JVM does not provide this number. */
+  private static long allocatedBytes(ThreadMXBean threads) {
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threads)
+          .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return Long.MIN_VALUE;
+  }
+
+  /* Parse the given network status like RelayDescriptorParser did before
+   * scanning bytes. */
+  private static void parseLineBased(byte[] data) throws Exception {
+    BufferedReader br = new BufferedReader(new StringReader(new String(
+        data, StandardCharsets.US_ASCII)));
+    SimpleDateFormat parseFormat = new SimpleDateFormat(
+        "yyyy-MM-dd HH:mm:ss");
+    String validAfterTime = null;
+    String dirSource = null;
+    SortedSet<String> dirSources = new TreeSet<>();
+    SortedSet<String> serverDescriptors = new TreeSet<>();
+    SortedSet<String> serverDescriptorDigests = new TreeSet<>();
+    SortedSet<String> microdescriptorKeys = new TreeSet<>();
+    SortedSet<String> microdescriptorDigests = new TreeSet<>();
+    String lastRelayIdentity = null;
+    String line;
+    while ((line = br.readLine()) != null) {
+      if (line.startsWith("valid-after ")) {
+        validAfterTime = line.substring("valid-after ".length());
+        sink += parseFormat.parse(validAfterTime).getTime();
+      } else if (line.startsWith("dir-source ")) {
+        dirSource = line.split(" ")[2];
+      } else if (line.startsWith("vote-digest ")) {
+        dirSources.add(dirSource);
+      } else if (line.startsWith("r ")) {
+        String[] parts = line.split(" ");
+        lastRelayIdentity = Hex.encodeHexString(Base64.decodeBase64(
+            parts[2] + "=")).toLowerCase();
+        if (parts.length == 9) {
+          String serverDesc = Hex.encodeHexString(Base64.decodeBase64(
+              parts[3] + "=")).toLowerCase();
+          serverDescriptors.add(parts[4] + " " + parts[5] + ","
+              + lastRelayIdentity + "," + serverDesc);
+          serverDescriptorDigests.add(serverDesc);
+        }
+      } else if (line.startsWith("m ")) {
+        String[] parts = line.split(" ");
+        if (parts.length == 2 && parts[1].length() == 43) {
+          microdescriptorKeys.add(validAfterTime + "," + lastRelayIdentity
+              + "," + parts[1]);
+          microdescriptorDigests.add(Hex.encodeHexString(
+              Base64.decodeBase64(parts[1] + "=")).toLowerCase());
+        }
+      }
+    }
+    sink += serverDescriptors.size() + serverDescriptorDigests.size()
+        + microdescriptorKeys.size() + microdescriptorDigests.size()
+        + dirSources.size();
+  }
+}
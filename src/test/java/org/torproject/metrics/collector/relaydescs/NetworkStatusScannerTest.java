@@ -0,0 +1,138 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.relaydescs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.compress.utils.IOUtils;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+public class NetworkStatusScannerTest {
+
+  private byte[] resource(String fileName) throws Exception {
+    try (InputStream is = getClass().getClassLoader().getResourceAsStream(
+        fileName)) {
+      return IOUtils.toByteArray(is);
+    }
+  }
+
+  private static NetworkStatusScanner scan(byte[] data) throws Exception {
+    NetworkStatusScanner scanner = new NetworkStatusScanner();
+    int start = NetworkStatusScanner.skipAnnotations(data);
+    assertTrue(NetworkStatusScanner.isNetworkStatus(data, start));
+    assertTrue(scanner.scan(data, start));
+    return scanner;
+  }
+
+  /* Extract hex-encoded base64 digests from the given field of lines with
+   * the given keyword and number of fields. */
+  private static SortedSet<String> digests(byte[] data, String keyword,
+      int fields, int field) {
+    SortedSet<String> digests = new TreeSet<>();
+    for (String line : new String(data, StandardCharsets.US_ASCII)
+        .split("\n")) {
+      String[] parts = line.split(" ");
+      if (parts[0].equals(keyword) && parts.length == fields) {
+        digests.add(Hex.encodeHexString(Base64.decodeBase64(parts[field]
+            + "=")));
+      }
+    }
+    return digests;
+  }
+
+  @Test()
+  public void testScanConsensus() throws Exception {
+    byte[] data = resource("2016-09-20-13-00-00-consensus");
+    NetworkStatusScanner consensus = scan(data);
+    assertEquals("consensus", consensus.getStatusType());
+    assertEquals("2016-09-20 13:00:00", consensus.getValidAfterTime());
+    assertEquals(LocalDateTime.of(2016, 9, 20, 13, 0, 0).toInstant(
+        ZoneOffset.UTC).toEpochMilli(), consensus.getValidAfter());
+    assertEquals(7, consensus.getDirSources().size());
+    assertEquals(7213, consensus.getRelays());
+    assertEquals(digests(data, "r", 9, 3),
+        consensus.getDescriptorDigestsHex());
+    assertEquals(0, consensus.getMicrodescriptors());
+  }
+
+  @Test()
+  public void testScanVote() throws Exception {
+    byte[] data = resource("2016-09-20-13-00-00-vote-49015F787433103580E3B66"
+        + "A1707A00E60F2D15B-60ADC6BEC262AE921A1037D54C8A3976367DBE87");
+    NetworkStatusScanner vote = scan(data);
+    assertEquals("vote", vote.getStatusType());
+    assertEquals("49015F787433103580E3B66A1707A00E60F2D15B",
+        vote.getFingerprint());
+    assertEquals(digests(data, "r", 9, 3), vote.getDescriptorDigestsHex());
+    String certificate = new String(vote.getCertificate(),
+        StandardCharsets.US_ASCII);
+    assertTrue(certificate.startsWith("dir-key-certificate-version 3\n"));
+    assertTrue(certificate.endsWith("-----END SIGNATURE-----\n"));
+    assertTrue(vote.getSignedEnd() > vote.getDocumentStart());
+    assertEquals("directory-signature ", new String(data,
+        vote.getSignedEnd() - 20, 20, StandardCharsets.US_ASCII));
+  }
+
+  @Test()
+  public void testScanMicrodescConsensus() throws Exception {
+    byte[] data = resource("2016-10-02-17-00-00-consensus-microdesc");
+    NetworkStatusScanner consensus = scan(data);
+    assertEquals("consensus-microdesc", consensus.getStatusType());
+    assertEquals(7284, consensus.getRelays());
+    assertFalse(consensus.hasDescriptorDigest(0));
+    assertEquals(7284, consensus.getMicrodescriptors());
+    assertEquals(digests(data, "m", 2, 1),
+        consensus.getMicrodescriptorDigestsHex());
+    assertEquals(7283, consensus.getMicrodescriptorRelay(7283));
+    assertArrayEquals(Base64.decodeBase64(new String(data,
+        StandardCharsets.US_ASCII).split("\nr ")[1].split(" ")[1] + "="),
+        consensus.getIdentity(0));
+    assertNull(consensus.getCertificate());
+  }
+
+  @Test()
+  public void testStopAtMalformedRelayLine() throws Exception {
+    byte[] data = ("network-status-version 3\n"
+        + "r relay AAAAAAAAAAAAAAAAAAAAAAAAAAA AAAAAAAAAAAAAAAAAAAAAAAAAAA "
+        + "2020-05-01 10:00:00 127.0.0.1 9001 0\n"
+        + "r malformed\n"
+        + "r later AAAAAAAAAAAAAAAAAAAAAAAAAAA AAAAAAAAAAAAAAAAAAAAAAAAAAA "
+        + "2020-05-01 10:00:00 127.0.0.1 9001 0\n")
+        .getBytes(StandardCharsets.US_ASCII);
+    NetworkStatusScanner scanner = new NetworkStatusScanner();
+    assertFalse(scanner.scan(data, 0));
+    assertEquals(1, scanner.getRelays());
+    assertEquals(NetworkStatusScanner.parseTime("2020-05-01 10:00:00"),
+        scanner.getPublished(0));
+  }
+
+  @Test()
+  public void testParseTime() throws Exception {
+    for (String time : new String[] { "1970-01-01 00:00:00",
+        "2000-02-29 23:59:59", "2016-12-31 12:34:56", "2100-03-01 00:00:00" }) {
+      assertEquals(LocalDateTime.parse(time.replace(' ', 'T')).toInstant(
+          ZoneOffset.UTC).toEpochMilli(), NetworkStatusScanner.parseTime(
+          time));
+    }
+  }
+
+  @Test(expected = ParseException.class)
+  public void testParseMalformedTime() throws Exception {
+    NetworkStatusScanner.parseTime("2020-05-01T10:00:00");
+  }
+}
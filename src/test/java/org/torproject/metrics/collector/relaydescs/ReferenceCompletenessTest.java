@@ -0,0 +1,134 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.relaydescs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+public class ReferenceCompletenessTest {
+
+  private static final long now = 1_590_000_000_000L;
+
+  @Rule
+  public TemporaryFolder tmpf = new TemporaryFolder();
+
+  private StoredDigestIndex servers;
+
+  private StoredDigestIndex extraInfos;
+
+  private StoredDigestIndex micros;
+
+  private ReferenceCompleteness completeness;
+
+  /** Opens empty digest indexes. */
+  @Before
+  public void openIndexes() throws Exception {
+    File dir = tmpf.newFolder();
+    this.servers = new StoredDigestIndex(dir, "servers", 20, 20, 0L);
+    this.extraInfos = new StoredDigestIndex(dir, "extra-infos", 20, 0, 0L);
+    this.micros = new StoredDigestIndex(dir, "micros", 32, 0, 0L);
+    this.completeness = new ReferenceCompleteness(this.servers,
+        this.extraInfos, this.micros);
+  }
+
+  private static byte[] digest(int length, int value) {
+    byte[] digest = new byte[length];
+    Arrays.fill(digest, (byte) value);
+    return digest;
+  }
+
+  private static String base64(byte[] digest) {
+    return Base64.getEncoder().withoutPadding().encodeToString(digest);
+  }
+
+  /* Scan a consensus or microdesc consensus referencing descriptors with
+   * digests consisting of the given values. */
+  private static NetworkStatusScanner scan(boolean microdesc, int... values)
+      throws Exception {
+    StringBuilder sb = new StringBuilder("network-status-version 3"
+        + (microdesc ? " microdesc" : "") + "\n");
+    for (int value : values) {
+      sb.append("r nickname ").append(base64(digest(20, 0xff - value)));
+      if (!microdesc) {
+        sb.append(' ').append(base64(digest(20, value)));
+      }
+      sb.append(" 2020-05-20 18:40:00 1.2.3.4 9001 0\n");
+      if (microdesc) {
+        sb.append("m ").append(base64(digest(32, value))).append('\n');
+      }
+    }
+    byte[] data = sb.toString().getBytes(StandardCharsets.US_ASCII);
+    NetworkStatusScanner scanner = new NetworkStatusScanner();
+    assertTrue(scanner.scan(data, 0));
+    return scanner;
+  }
+
+  private void storeServer(int value, Integer extraInfo) {
+    byte[] extraInfoDigest = null == extraInfo ? null
+        : digest(20, extraInfo);
+    this.servers.add(now, digest(20, value), extraInfoDigest);
+    this.completeness.storedServerDescriptor(digest(20, value),
+        extraInfoDigest);
+  }
+
+  private void storeExtraInfo(int value) {
+    this.extraInfos.add(now, digest(20, value), null);
+    this.completeness.storedExtraInfoDescriptor(digest(20, value));
+  }
+
+  @Test()
+  public void testDescriptorsStoredBeforeStatus() throws Exception {
+    storeServer(1, 11);
+    storeServer(2, null);
+    storeExtraInfo(11);
+    ReferenceCompleteness.Counts counts = this.completeness
+        .trackServerDescriptors(scan(false, 1, 2, 3));
+    assertEquals(3, counts.getAllServerDescriptors());
+    assertEquals(2, counts.getFoundServerDescriptors());
+    assertEquals(1, counts.getAllExtraInfoDescriptors());
+    assertEquals(1, counts.getFoundExtraInfoDescriptors());
+  }
+
+  @Test()
+  public void testDescriptorsStoredAfterStatuses() throws Exception {
+    ReferenceCompleteness.Counts consensus = this.completeness
+        .trackServerDescriptors(scan(false, 1, 2));
+    ReferenceCompleteness.Counts vote = this.completeness
+        .trackServerDescriptors(scan(false, 1));
+    storeServer(1, 11);
+    assertEquals(1, consensus.getFoundServerDescriptors());
+    assertEquals(1, vote.getAllExtraInfoDescriptors());
+    assertEquals(0, vote.getFoundExtraInfoDescriptors());
+    storeExtraInfo(11);
+    storeExtraInfo(11);
+    storeServer(2, 12);
+    assertEquals(2, consensus.getAllServerDescriptors());
+    assertEquals(2, consensus.getFoundServerDescriptors());
+    assertEquals(2, consensus.getAllExtraInfoDescriptors());
+    assertEquals(1, consensus.getFoundExtraInfoDescriptors());
+    assertEquals(1, vote.getFoundServerDescriptors());
+    assertEquals(1, vote.getFoundExtraInfoDescriptors());
+  }
+
+  @Test()
+  public void testMicrodescriptors() throws Exception {
+    this.micros.add(now, digest(32, 1), null);
+    ReferenceCompleteness.Counts counts = this.completeness
+        .trackMicrodescriptors(scan(true, 1, 2, 3));
+    this.micros.add(now, digest(32, 2), null);
+    this.completeness.storedMicrodescriptor(digest(32, 2));
+    assertEquals(3, counts.getAllMicrodescriptors());
+    assertEquals(2, counts.getFoundMicrodescriptors());
+  }
+}
@@ -0,0 +1,375 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.relaydescs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.SortedMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class RelayDescriptorDownloaderTest {
+
+  @Rule
+  public TemporaryFolder tmpf = new TemporaryFolder();
+
+  private static final String published = new SimpleDateFormat(
+      "yyyy-MM-dd HH:mm:ss").format(System.currentTimeMillis());
+
+  private static final String relay1
+      = "1111111111111111111111111111111111111111";
+
+  private static final String relay2
+      = "2222222222222222222222222222222222222222";
+
+  private static final String digest1
+      = "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa";
+
+  private static final String digest2
+      = "bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb";
+
+  /* Create a downloader that is missing two server descriptors. */
+  private static RelayDescriptorDownloader missingServerDescriptors() {
+    RelayDescriptorDownloader rdd = new RelayDescriptorDownloader(
+        mock(RelayDescriptorParser.class), new String[] { "a", "b" },
+        new String[0], true, true, true, true, true, true, false, false,
+        true, 2, 2);
+    rdd.haveParsedVote("2000-01-01 00:00:00", "fingerprint",
+        new HashSet<>(Arrays.asList(published + "," + relay1 + "," + digest1,
+        published + "," + relay2 + "," + digest2)));
+    return rdd;
+  }
+
+  private static List<String> claim(RelayDescriptorDownloader rdd,
+      SortedMap<String, List<MissingDescriptorStore.Entry>> candidates, int max)
+      throws InterruptedException {
+    return rdd.claimMissingDescriptors("server", candidates, max, 4064);
+  }
+
+  @Test()
+  public void testClaimMissingDescriptorsOnce() throws Exception {
+    RelayDescriptorDownloader rdd = missingServerDescriptors();
+    SortedMap<String, List<MissingDescriptorStore.Entry>> first
+        = rdd.findMissingDescriptors("server");
+    SortedMap<String, List<MissingDescriptorStore.Entry>> second
+        = rdd.findMissingDescriptors("server");
+    assertEquals(2, first.size());
+    List<String> claimed = claim(rdd, first, 1);
+    assertEquals(Collections.singletonList(digest1), claimed);
+    assertEquals(Collections.singletonList(digest2),
+        claim(rdd, second, 96));
+    rdd.haveParsedServerDescriptor(published, relay2, digest2, null);
+    rdd.releaseMissingDescriptors("server", Collections.singletonList(
+        digest2));
+    assertTrue(claim(rdd, first, 96).isEmpty());
+  }
+
+  @Test()
+  public void testWaitForDescriptorsRequestedElsewhere() throws Exception {
+    RelayDescriptorDownloader rdd = missingServerDescriptors();
+    SortedMap<String, List<MissingDescriptorStore.Entry>> first
+        = rdd.findMissingDescriptors("server");
+    SortedMap<String, List<MissingDescriptorStore.Entry>> second
+        = rdd.findMissingDescriptors("server");
+    List<String> claimed = claim(rdd, first, 96);
+    assertEquals(2, claimed.size());
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<List<String>> waiting = executor.submit(
+          () -> claim(rdd, second, 96));
+      try {
+        waiting.get(200L, TimeUnit.MILLISECONDS);
+        assertTrue("Claim must wait for descriptors requested elsewhere.",
+            false);
+      } catch (TimeoutException e) {
+        /* Expected. */
+      }
+      rdd.haveParsedServerDescriptor(published, relay1, digest1, null);
+      rdd.releaseMissingDescriptors("server", claimed);
+      assertEquals(Collections.singletonList(digest2),
+          waiting.get(5L, TimeUnit.SECONDS));
+      rdd.releaseMissingDescriptors("server", Collections.singletonList(
+          digest2));
+      assertTrue(claim(rdd, second, 96).isEmpty());
+      assertFalse(rdd.findMissingDescriptors("server").containsKey(
+          digest1));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test()
+  public void testClaimWithinResourceLength() throws Exception {
+    RelayDescriptorDownloader rdd = missingServerDescriptors();
+    SortedMap<String, List<MissingDescriptorStore.Entry>> candidates
+        = rdd.findMissingDescriptors("server");
+    assertEquals(Collections.singletonList(digest1),
+        rdd.claimMissingDescriptors("server", candidates, 96, 10));
+  }
+
+  @Test()
+  public void testAdaptiveBatchSize() {
+    RelayDescriptorDownloader.AdaptiveBatchSize batchSize
+        = new RelayDescriptorDownloader.AdaptiveBatchSize(96);
+    assertEquals(96, batchSize.get());
+    batchSize.record(96, RelayDescriptorDownloader.AdaptiveBatchSize
+        .TARGET_MILLIS + 1L);
+    assertEquals(48, batchSize.get());
+    for (int i = 0; i < 10; i++) {
+      batchSize.record(batchSize.get(), 60000L);
+    }
+    assertEquals(RelayDescriptorDownloader.AdaptiveBatchSize.MIN_SIZE,
+        batchSize.get());
+    batchSize.record(2, 100L);
+    assertEquals(RelayDescriptorDownloader.AdaptiveBatchSize.MIN_SIZE,
+        batchSize.get());
+    for (int i = 0; i < 20; i++) {
+      batchSize.record(batchSize.get(), 100L);
+    }
+    assertEquals(96, batchSize.get());
+  }
+
+  private static final String consensusResource
+      = "/tor/status-vote/current/consensus";
+
+  private static final String baseConsensus = "network-status-version 3\n"
+      + "valid-after 2020-05-01 10:00:00\n"
+      + "r relay1 AAAA\n"
+      + "directory-signature sha256 X Y\n"
+      + "SIG1\n";
+
+  private static final String targetConsensus = "network-status-version 3\n"
+      + "valid-after 2020-05-01 11:00:00\n"
+      + "r relay1 AAAA\n"
+      + "directory-signature sha256 X Y\n"
+      + "SIG2\n";
+
+  private static byte[] bytes(String string) {
+    return string.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  private static HttpURLConnection okConnection(byte[] body)
+      throws Exception {
+    HttpURLConnection connection = mock(HttpURLConnection.class);
+    given(connection.getResponseCode()).willReturn(200);
+    given(connection.getInputStream()).willReturn(
+        new ByteArrayInputStream(body));
+    return connection;
+  }
+
+  private static HttpURLConnection timedOutConnection() throws Exception {
+    HttpURLConnection connection = mock(HttpURLConnection.class);
+    given(connection.getResponseCode()).willThrow(
+        new SocketTimeoutException("Read timed out"));
+    return connection;
+  }
+
+  /* Create a downloader for the given authorities that opens the given
+   * connections by authority in the given order rather than connecting to
+   * directory authorities. */
+  private static RelayDescriptorDownloader stubbedDownloader(
+      final Map<String, Queue<HttpURLConnection>> connections) {
+    return new RelayDescriptorDownloader(mock(RelayDescriptorParser.class),
+        connections.keySet().toArray(new String[0]), new String[0], true,
+        false, false, false, false, false, false, false, false, 1, 1) {
+      @Override
+      URL authorityUrl(String authority, String resource)
+          throws MalformedURLException {
+        final HttpURLConnection connection = connections.get(authority)
+            .remove();
+        return new URL(null, "http://" + authority + resource,
+            new URLStreamHandler() {
+              @Override
+              protected URLConnection openConnection(URL url) {
+                return connection;
+              }
+            });
+      }
+    };
+  }
+
+  /* Create a downloader that opens the given connections to authority "a"
+   * in the given order, with the stored consensus as diff base. */
+  private RelayDescriptorDownloader stubbedDownloader(
+      Queue<HttpURLConnection> connections) throws Exception {
+    RelayDescriptorDownloader rdd = stubbedDownloader(
+        Collections.singletonMap("a", connections));
+    Path consensuses = tmpf.newFolder("consensus").toPath();
+    Files.write(consensuses.resolve("2020-05-01-10-00-00-consensus"),
+        bytes("@type network-status-consensus-3 1.0\n" + baseConsensus));
+    rdd.setConsensusDiffBases(consensuses,
+        tmpf.getRoot().toPath().resolve("microdesc"));
+    return rdd;
+  }
+
+  private static byte[] diff(String targetDigest) {
+    return bytes("network-status-diff-version 1\n"
+        + "hash " + ConsensusDiff.digestAsSigned(bytes(baseConsensus)) + " "
+        + targetDigest + "\n"
+        + "5c\nSIG2\n.\n"
+        + "2c\nvalid-after 2020-05-01 11:00:00\n.\n");
+  }
+
+  @Test()
+  public void testDownloadConsensusDiff() throws Exception {
+    HttpURLConnection connection = okConnection(diff(
+        ConsensusDiff.digestAsSigned(bytes(targetConsensus))));
+    Queue<HttpURLConnection> connections = new ArrayDeque<>();
+    connections.add(connection);
+    assertArrayEquals(bytes(targetConsensus), stubbedDownloader(connections)
+        .downloadConsensusFromAuthority("a", consensusResource));
+    verify(connection).setRequestProperty("X-Or-Diff-From-Consensus",
+        ConsensusDiff.digestAsSigned(bytes(baseConsensus)));
+    assertTrue(connections.isEmpty());
+  }
+
+  @Test()
+  public void testDownloadFullConsensusAfterMismatchingDiff()
+      throws Exception {
+    HttpURLConnection diffConnection = okConnection(diff(
+        ConsensusDiff.digestAsSigned(bytes(baseConsensus))));
+    HttpURLConnection fullConnection = okConnection(bytes(targetConsensus));
+    Queue<HttpURLConnection> connections = new ArrayDeque<>(Arrays.asList(
+        diffConnection, fullConnection));
+    assertArrayEquals(bytes(targetConsensus), stubbedDownloader(connections)
+        .downloadConsensusFromAuthority("a", consensusResource));
+    verify(diffConnection).setRequestProperty(eq("X-Or-Diff-From-Consensus"),
+        anyString());
+    verify(fullConnection, never()).setRequestProperty(
+        eq("X-Or-Diff-From-Consensus"), anyString());
+    assertTrue(connections.isEmpty());
+  }
+
+  @Test()
+  public void testDownloadFullConsensusAfterMalformedDiff()
+      throws Exception {
+    HttpURLConnection diffConnection = okConnection(bytes(
+        "network-status-diff-version 1\nhash 00\n"));
+    HttpURLConnection fullConnection = okConnection(bytes(targetConsensus));
+    Queue<HttpURLConnection> connections = new ArrayDeque<>(Arrays.asList(
+        diffConnection, fullConnection));
+    assertArrayEquals(bytes(targetConsensus), stubbedDownloader(connections)
+        .downloadConsensusFromAuthority("a", consensusResource));
+    verify(fullConnection, never()).setRequestProperty(
+        eq("X-Or-Diff-From-Consensus"), anyString());
+    assertTrue(connections.isEmpty());
+  }
+
+  @Test()
+  public void testContinueAfterTimeout() throws Exception {
+    Queue<HttpURLConnection> connections = new ArrayDeque<>();
+    for (int i = 0; i < AuthorityHealth.MAX_CONSECUTIVE_FAILURES + 1; i++) {
+      connections.add(timedOutConnection());
+    }
+    RelayDescriptorDownloader rdd = stubbedDownloader(
+        Collections.singletonMap("a", connections));
+    String resource = "/tor/status-vote/current/authority";
+    for (int i = 1; i < AuthorityHealth.MAX_CONSECUTIVE_FAILURES; i++) {
+      assertEquals(0, rdd.downloadResourceFromAuthority("a", resource));
+    }
+    try {
+      rdd.downloadResourceFromAuthority("a", resource);
+      fail("Expected authority to be unavailable after repeated timeouts.");
+    } catch (SocketTimeoutException e) {
+      assertTrue(rdd.health.isUnavailable("a"));
+    }
+  }
+
+  @Test()
+  public void testStopAfterInterruptedTimeout() throws Exception {
+    RelayDescriptorDownloader rdd = stubbedDownloader(
+        Collections.singletonMap("a", new ArrayDeque<>(
+        Collections.singletonList(timedOutConnection()))));
+    Thread.currentThread().interrupt();
+    try {
+      rdd.downloadResourceFromAuthority("a",
+          "/tor/status-vote/current/authority");
+      fail("Expected interrupted download to stop.");
+    } catch (SocketTimeoutException e) {
+      assertFalse(rdd.health.isUnavailable("a"));
+    } finally {
+      Thread.interrupted();
+    }
+  }
+
+  @Test()
+  public void testHedgedRequestAfterTimeout() throws Exception {
+    Map<String, Queue<HttpURLConnection>> connections = new HashMap<>();
+    connections.put("a", new ArrayDeque<>(Collections.singletonList(
+        timedOutConnection())));
+    connections.put("b", new ArrayDeque<>(Collections.singletonList(
+        okConnection(bytes(targetConsensus)))));
+    assertArrayEquals(bytes(targetConsensus), stubbedDownloader(connections)
+        .downloadHedged("a", consensusResource));
+    assertTrue(connections.get("b").isEmpty());
+  }
+
+  @Test()
+  public void testHedgedRequestToSlowAuthority() throws Exception {
+    final CountDownLatch slowResponse = new CountDownLatch(1);
+    final Thread[] slowThread = new Thread[1];
+    HttpURLConnection slow = mock(HttpURLConnection.class);
+    given(slow.getResponseCode()).willAnswer(invocation -> {
+      slowThread[0] = Thread.currentThread();
+      try {
+        slowResponse.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SocketTimeoutException("Read timed out");
+      }
+      return 200;
+    });
+    Map<String, Queue<HttpURLConnection>> connections = new HashMap<>();
+    connections.put("a", new ArrayDeque<>(Collections.singletonList(slow)));
+    connections.put("b", new ArrayDeque<>(Collections.singletonList(
+        okConnection(bytes(targetConsensus)))));
+    RelayDescriptorDownloader rdd = stubbedDownloader(connections);
+    double score = rdd.health.score("a");
+    assertArrayEquals(bytes(targetConsensus),
+        rdd.downloadHedged("a", consensusResource));
+    assertTrue(connections.get("b").isEmpty());
+    /* The request to the slow authority is cancelled and not counted as
+     * failure. */
+    slowThread[0].join(10000L);
+    assertFalse(slowThread[0].isAlive());
+    assertEquals(score, rdd.health.score("a"), 0.0);
+  }
+}
@@ -0,0 +1,128 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.collector.relaydescs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+public class StoredDigestIndexTest {
+
+  private static final long day = 24L * 60L * 60L * 1000L;
+
+  private static final long now = 18_000L * day + 12L * 60L * 60L * 1000L;
+
+  @Rule
+  public TemporaryFolder tmpf = new TemporaryFolder();
+
+  private static byte[] digest(int value) {
+    byte[] digest = new byte[20];
+    Arrays.fill(digest, (byte) value);
+    return digest;
+  }
+
+  private StoredDigestIndex open(File dir, long cutOffMillis) {
+    return new StoredDigestIndex(dir, "server-descriptors", 20, 20,
+        cutOffMillis);
+  }
+
+  @Test()
+  public void testAddAndFind() throws Exception {
+    StoredDigestIndex index = open(tmpf.newFolder(), now - 2L * day);
+    assertTrue(index.add(now, digest(1), digest(2)));
+    assertTrue(index.add(now - day, digest(0x81), null));
+    assertFalse(index.add(now, digest(1), digest(3)));
+    assertFalse(index.add(now - 3L * day, digest(4), null));
+    assertFalse(index.add(now, new byte[19], null));
+    assertArrayEquals(digest(2), index.find(digest(1)));
+    assertSame(StoredDigestIndex.NO_VALUE, index.find(digest(0x81)));
+    assertNull(index.find(digest(2)));
+    assertFalse(index.contains(digest(4)));
+    assertEquals(now, index.latestTime());
+  }
+
+  @Test()
+  public void testFlushAndReopen() throws Exception {
+    File dir = tmpf.newFolder();
+    StoredDigestIndex index = open(dir, now - 2L * day);
+    for (int i = 0; i < 100; i++) {
+      assertTrue(index.add(now - (i % 2) * day, digest(i * 2), null));
+    }
+    index.flush();
+    assertEquals(0, dir.list((d, name) -> name.endsWith(".log")).length);
+    index = open(dir, now - 2L * day);
+    assertTrue(index.add(now, digest(3), digest(5)));
+    assertFalse(index.add(now, digest(4), null));
+    index.flush();
+    index = open(dir, now - 2L * day);
+    for (int i = 0; i < 100; i++) {
+      assertTrue(index.contains(digest(i * 2)));
+    }
+    assertArrayEquals(digest(5), index.find(digest(3)));
+    assertNull(index.find(digest(201)));
+  }
+
+  @Test()
+  public void testCloseAndReopen() throws Exception {
+    File dir = tmpf.newFolder();
+    StoredDigestIndex index = open(dir, now - 2L * day);
+    assertTrue(index.add(now, digest(1), digest(2)));
+    index.close();
+    assertEquals(1, dir.list((d, name) -> name.endsWith(".log")).length);
+    assertTrue(index.add(now, digest(3), null));
+    index.close();
+    index = open(dir, now - 2L * day);
+    assertArrayEquals(digest(2), index.find(digest(1)));
+    assertTrue(index.contains(digest(3)));
+  }
+
+  @Test()
+  public void testExpireBuckets() throws Exception {
+    File dir = tmpf.newFolder();
+    StoredDigestIndex index = open(dir, now - 5L * day);
+    assertTrue(index.add(now - 4L * day, digest(1), null));
+    assertTrue(index.add(now, digest(2), null));
+    index.flush();
+    assertEquals(2, dir.list().length);
+    index = open(dir, now - 2L * day);
+    assertFalse(index.contains(digest(1)));
+    assertTrue(index.contains(digest(2)));
+    assertEquals(1, dir.list().length);
+  }
+
+  @Test()
+  public void testReadTruncatedJournal() throws Exception {
+    File dir = tmpf.newFolder();
+    StoredDigestIndex index = open(dir, now - 2L * day);
+    assertTrue(index.add(now, digest(1), null));
+    index.flush();
+    File[] indexFiles = dir.listFiles();
+    assertEquals(1, indexFiles.length);
+    File journalFile = new File(dir, indexFiles[0].getName().replace(".idx",
+        ".log"));
+    try (DataOutputStream dos = new DataOutputStream(new FileOutputStream(
+        journalFile))) {
+      dos.write(digest(2));
+      dos.writeLong(now);
+      dos.write(digest(3));
+      dos.write(digest(4), 0, 10);
+    }
+    index = open(dir, now - 2L * day);
+    assertTrue(index.contains(digest(1)));
+    assertArrayEquals(digest(3), index.find(digest(2)));
+    assertFalse(index.contains(digest(4)));
+  }
+}